@@ -28,6 +28,13 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Objects;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
 import org.apache.commons.codec.digest.DigestUtils;
@@ -42,10 +49,15 @@ import org.elasticsearch.action.update.UpdateRequest;
 import org.elasticsearch.cluster.metadata.IndexNameExpressionResolver;
 import org.elasticsearch.cluster.service.ClusterService;
 import org.elasticsearch.common.Strings;
+import org.elasticsearch.common.bytes.BytesArray;
 import org.elasticsearch.common.bytes.BytesReference;
 import org.elasticsearch.common.collect.Tuple;
+import org.elasticsearch.common.settings.Setting;
+import org.elasticsearch.common.settings.Setting.Property;
 import org.elasticsearch.common.settings.Settings;
 import org.elasticsearch.common.transport.TransportAddress;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.util.concurrent.EsExecutors;
 import org.elasticsearch.common.xcontent.NamedXContentRegistry;
 import org.elasticsearch.common.xcontent.XContentBuilder;
 import org.elasticsearch.common.xcontent.XContentHelper;
@@ -76,10 +88,42 @@ import com.floragunn.searchguard.support.ConfigConstants;
 import com.floragunn.searchguard.support.SearchGuardDeprecationHandler;
 import com.floragunn.searchguard.support.WildcardMatcher;
 import com.floragunn.searchguard.user.User;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.common.io.BaseEncoding;
 
 public abstract class AbstractAuditLog implements AuditLog {
 
+    /**
+     * Reads of the same document by the same user within this time window are only logged once (0, the default, disables this)
+     */
+    public static final Setting<TimeValue> READ_DEDUP_WINDOW = Setting.timeSetting("searchguard.compliance.history.read.dedup_window",
+            TimeValue.ZERO, Property.NodeScope);
+    public static final Setting<Long> READ_DEDUP_MAX_ENTRIES = Setting.longSetting("searchguard.compliance.history.read.dedup_max_entries",
+            100000L, 1L, Property.NodeScope);
+
+    /**
+     * Number of threads which compute the diffs of written documents (0 computes them on the indexing thread).
+     * All write and delete messages of a document are handled by the same thread, so they are logged in order.
+     * The threads are only started once diffs are logged.
+     */
+    public static final Setting<Integer> WRITE_DIFF_THREADS = Setting.intSetting("searchguard.compliance.history.write.diff.threads", 2, 0,
+            Property.NodeScope);
+    public static final Setting<Integer> WRITE_DIFF_MAX_QUEUE_LEN = Setting.intSetting("searchguard.compliance.history.write.diff.max_queue_len",
+            10000, 1, Property.NodeScope);
+    /**
+     * What happens if the diff queue is full: <code>caller_runs</code> (the default) computes the diff on the indexing thread,
+     * <code>skip_diff</code> logs the write without the diff. Either way the message can then overtake earlier
+     * queued messages of the same document.
+     */
+    public static final Setting<String> WRITE_DIFF_OVERFLOW = new Setting<>("searchguard.compliance.history.write.diff.overflow", "caller_runs",
+            s -> {
+                if (!"caller_runs".equals(s) && !"skip_diff".equals(s)) {
+                    throw new IllegalArgumentException("searchguard.compliance.history.write.diff.overflow must be caller_runs or skip_diff but was " + s);
+                }
+                return s;
+            }, Property.NodeScope);
+
     protected final Logger log = LogManager.getLogger(this.getClass());
     protected final ThreadPool threadPool;
     protected final IndexNameExpressionResolver resolver;
@@ -101,6 +145,16 @@ public abstract class AbstractAuditLog implements AuditLog {
     private final List<String> defaultDisabledCategories = Arrays.asList(Category.AUTHENTICATED.toString(), Category.GRANTED_PRIVILEGES.toString());
     private final List<String> defaultIgnoredUsers = Arrays.asList("kibanaserver");
     private final boolean excludeSensitiveHeaders;
+    //user, index and id of recently logged document reads, null if deduplication is disabled
+    private final Cache<String, Boolean> recentReads;
+    //compute write diffs off the indexing thread, a single thread per document, null until the first diff or if they are computed synchronously
+    private ExecutorService[] writeDiffExecutors;
+    private final int writeDiffThreads;
+    private final int writeDiffQueueLen;
+    private final boolean skipWriteDiffOnOverflow;
+    //whether the last write was logged with diff, deletes go through the diff threads only then
+    private volatile boolean writeDiffsLogged;
+    private boolean closed;
 
     private final String searchguardIndex;
     private static final List<String> writeClasses = new ArrayList<>();
@@ -209,6 +263,24 @@ public abstract class AbstractAuditLog implements AuditLog {
         }
         
         this.excludeSensitiveHeaders = settings.getAsBoolean(ConfigConstants.SEARCHGUARD_AUDIT_EXCLUDE_SENSITIVE_HEADERS, true);
+
+        final TimeValue readDedupWindow = READ_DEDUP_WINDOW.get(settings);
+
+        if (readDedupWindow.millis() > 0) {
+            log.info("Repeated reads of a document by the same user within {} are logged once", readDedupWindow);
+            recentReads = CacheBuilder.newBuilder().maximumSize(READ_DEDUP_MAX_ENTRIES.get(settings))
+                    .expireAfterWrite(readDedupWindow.millis(), TimeUnit.MILLISECONDS).build();
+        } else {
+            recentReads = null;
+        }
+
+        writeDiffThreads = WRITE_DIFF_THREADS.get(settings);
+        writeDiffQueueLen = Math.max(1, WRITE_DIFF_MAX_QUEUE_LEN.get(settings) / Math.max(1, writeDiffThreads));
+        skipWriteDiffOnOverflow = "skip_diff".equals(WRITE_DIFF_OVERFLOW.get(settings));
+    }
+
+    public static List<Setting<?>> getSettings() {
+        return Arrays.asList(READ_DEDUP_WINDOW, READ_DEDUP_MAX_ENTRIES, WRITE_DIFF_THREADS, WRITE_DIFF_MAX_QUEUE_LEN, WRITE_DIFF_OVERFLOW);
     }
 
     @Override
@@ -466,7 +538,7 @@ public abstract class AbstractAuditLog implements AuditLog {
             return;
         }
 
-        if(fieldNameValues != null && !fieldNameValues.isEmpty()) {
+        if(fieldNameValues != null && !fieldNameValues.isEmpty() && !isRecentRead(effectiveUser, index, id)) {
             AuditMessage msg = new AuditMessage(category, clusterService, getOrigin(), null);
             TransportAddress remoteAddress = getRemoteAddress();
             msg.addRemoteAddress(remoteAddress);
@@ -511,6 +583,100 @@ public abstract class AbstractAuditLog implements AuditLog {
 
     }
 
+    /**
+     * Logs the reads of several documents of a shard by the current request as one compliance event.
+     * The request body contains the ids of the documents and the names of the watched fields which were read
+     * and, unless only metadata is logged, the field values per document.
+     * Reads of the Search Guard index are logged document by document like {@link #logDocumentRead}.
+     *
+     * @param ids the ids of the documents (an id can be null if it was not read)
+     * @param fieldNameValues the watched fields of the documents, in the same order as the ids
+     */
+    public void logDocumentsRead(String index, ShardId shardId, List<String> ids, List<Map<String, String>> fieldNameValues, ComplianceConfig complianceConfig) {
+
+        if(complianceConfig == null || !complianceConfig.readHistoryEnabledForIndex(index)) {
+            return;
+        }
+
+        if(searchguardIndex.equals(index)) {
+            for(int i = 0; i < ids.size(); i++) {
+                logDocumentRead(index, ids.get(i), shardId, fieldNameValues.get(i), complianceConfig);
+            }
+            return;
+        }
+
+        final String initiatingRequestClass = threadPool.getThreadContext().getHeader(ConfigConstants.SG_INITIAL_ACTION_CLASS_HEADER);
+
+        if(initiatingRequestClass != null && writeClasses.contains(initiatingRequestClass)) {
+            return;
+        }
+
+        String effectiveUser = getUser();
+        if(!checkComplianceFilter(Category.COMPLIANCE_DOC_READ, effectiveUser, getOrigin())) {
+            return;
+        }
+
+        final List<String> readIds = new ArrayList<>(ids.size());
+        final List<Map<String, String>> readFields = new ArrayList<>(ids.size());
+        final TreeSet<String> fieldNames = new TreeSet<>();
+
+        for(int i = 0; i < ids.size(); i++) {
+            final Map<String, String> fields = fieldNameValues.get(i);
+            if(fields != null && !fields.isEmpty() && !isRecentRead(effectiveUser, index, ids.get(i))) {
+                readIds.add(ids.get(i));
+                readFields.add(fields);
+                fieldNames.addAll(fields.keySet());
+            }
+        }
+
+        if(readIds.isEmpty()) {
+            return;
+        }
+
+        AuditMessage msg = new AuditMessage(Category.COMPLIANCE_DOC_READ, clusterService, getOrigin(), null);
+        TransportAddress remoteAddress = getRemoteAddress();
+        msg.addRemoteAddress(remoteAddress);
+        msg.addEffectiveUser(effectiveUser);
+        msg.addIndices(new String[]{index});
+        msg.addResolvedIndices(new String[]{index});
+        msg.addShardId(shardId);
+
+        if(readIds.size() == 1) {
+            msg.addId(readIds.get(0));
+        }
+
+        try {
+            XContentBuilder builder = XContentBuilder.builder(JsonXContent.jsonXContent);
+            builder.startObject();
+            builder.field("doc_ids", readIds);
+            builder.field("field_names", fieldNames);
+            if(!complianceConfig.logReadMetadataOnly()) {
+                builder.startArray("documents");
+                for(int i = 0; i < readIds.size(); i++) {
+                    builder.startObject();
+                    builder.field("id", readIds.get(i));
+                    builder.field("fields", readFields.get(i));
+                    builder.endObject();
+                }
+                builder.endArray();
+            }
+            builder.endObject();
+            builder.close();
+            msg.addUnescapedJsonToRequestBody(Strings.toString(builder));
+        } catch (Exception e) {
+            log.error("Unable to generate request body for {} and {} documents",msg.toPrettyString(),readIds.size(), e);
+        }
+
+        save(msg);
+    }
+
+    private boolean isRecentRead(final String effectiveUser, final String index, final String id) {
+        if(recentReads == null || id == null) {
+            return false;
+        }
+        return recentReads.asMap().putIfAbsent(effectiveUser + '\u0000' + index + '\u0000' + id, Boolean.TRUE) != null;
+    }
+
     @Override
     public void logDocumentWritten(ShardId shardId, GetResult originalResult, Index currentIndex, IndexResult result, ComplianceConfig complianceConfig) {
         
@@ -538,44 +704,6 @@ public abstract class AbstractAuditLog implements AuditLog {
         msg.addComplianceDocVersion(result.getVersion());
         msg.addComplianceOperation(result.isCreated()?Operation.CREATE:Operation.UPDATE);
 
-        if(complianceConfig.logDiffsForWrite() && originalResult != null && originalResult.isExists() && originalResult.internalSourceRef() != null) {
-            try {
-                String originalSource = null;
-                String currentSource = null;
-                if (searchguardIndex.equals(shardId.getIndexName())) {
-                    try (XContentParser parser = XContentHelper.createParser(NamedXContentRegistry.EMPTY, SearchGuardDeprecationHandler.INSTANCE, originalResult.internalSourceRef(), XContentType.JSON)) {
-                        Object base64 = parser.map().values().iterator().next();
-                        if(base64 instanceof String) {
-                            originalSource = (new String(BaseEncoding.base64().decode((String) base64)));
-                         } else {
-                             originalSource = XContentHelper.convertToJson(originalResult.internalSourceRef(), false, XContentType.JSON);
-                        }
-                     } catch (Exception e) {
-                         log.error(e);
-                     }
-                    
-                    try (XContentParser parser = XContentHelper.createParser(NamedXContentRegistry.EMPTY, SearchGuardDeprecationHandler.INSTANCE, currentIndex.source(), XContentType.JSON)) {
-                        Object base64 = parser.map().values().iterator().next();
-                        if(base64 instanceof String) {
-                            currentSource = (new String(BaseEncoding.base64().decode((String) base64)));
-                         } else {
-                            currentSource = XContentHelper.convertToJson(currentIndex.source(), false, XContentType.JSON);
-                        }
-                     } catch (Exception e) {
-                         log.error(e);
-                     }
-                } else {
-                    originalSource = XContentHelper.convertToJson(originalResult.internalSourceRef(), false, XContentType.JSON);
-                    currentSource = XContentHelper.convertToJson(currentIndex.source(), false, XContentType.JSON);
-                }
-                final JsonNode diffnode = JsonDiff.asJson(DefaultObjectMapper.objectMapper.readTree(originalSource), DefaultObjectMapper.objectMapper.readTree(currentSource));
-                msg.addComplianceWriteDiffSource(diffnode.size() == 0?"":diffnode.toString());
-            } catch (Exception e) {
-                log.error("Unable to generate diff for {}",msg.toPrettyString(),e);
-            }   
-         }
-        
-        
          if (!complianceConfig.logWriteMetadataOnly()){
             if(searchguardIndex.equals(shardId.getIndexName())) {
                 //current source, normally not null or empty
@@ -602,9 +730,148 @@ public abstract class AbstractAuditLog implements AuditLog {
             }
             
          }
-        
-        
-        save(msg);
+
+        writeDiffsLogged = complianceConfig.logDiffsForWrite();
+
+        if(!writeDiffsLogged) {
+            save(msg);
+            return;
+        }
+
+        if(originalResult != null && originalResult.isExists() && originalResult.internalSourceRef() != null) {
+            final boolean configIndex = searchguardIndex.equals(shardId.getIndexName());
+            final BytesReference originalSource = immutable(originalResult.internalSourceRef());
+            final BytesReference currentSource = immutable(currentIndex.source());
+            saveInOrder(shardId, currentIndex.id(), msg, () -> addWriteDiff(msg, configIndex, originalSource, currentSource));
+            return;
+        }
+
+        saveInOrder(shardId, currentIndex.id(), msg, null);
+    }
+
+    //the sources are only referenced by the diff task, so they must not change after the operation
+    private static BytesReference immutable(final BytesReference source) {
+        return source instanceof BytesArray ? source : new BytesArray(BytesReference.toBytes(source));
+    }
+
+    //the write and delete messages of a document go through the same diff thread, so they are saved in the order of the operations
+    private void saveInOrder(final ShardId shardId, final String id, final AuditMessage msg, final Runnable writeDiff) {
+
+        final Runnable diffAndSave = writeDiff == null ? () -> save(msg) : () -> {
+            writeDiff.run();
+            save(msg);
+        };
+
+        final ExecutorService[] writeDiffExecutors = writeDiffExecutors();
+
+        if(writeDiffExecutors == null) {
+            diffAndSave.run();
+            return;
+        }
+
+        try {
+            writeDiffExecutors[Math.floorMod(31 * shardId.hashCode() + Objects.hashCode(id), writeDiffExecutors.length)].execute(diffAndSave);
+        } catch (RejectedExecutionException e) {
+            if(writeDiff != null && skipWriteDiffOnOverflow) {
+                if(log.isDebugEnabled()) {
+                    log.debug("Write diff queue is full, logging {} without diff", msg.getAsMap().get(AuditMessage.ID));
+                }
+                save(msg);
+            } else {
+                diffAndSave.run();
+            }
+        }
+    }
+
+    private synchronized ExecutorService[] writeDiffExecutors() {
+        if(writeDiffExecutors == null && writeDiffThreads > 0 && !closed) {
+            writeDiffExecutors = new ExecutorService[writeDiffThreads];
+            for(int i = 0; i < writeDiffThreads; i++) {
+                writeDiffExecutors[i] = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(writeDiffQueueLen),
+                        EsExecutors.daemonThreadFactory(settings, "sg_audit_write_diff"));
+            }
+        }
+        return writeDiffExecutors;
+    }
+
+    private void addWriteDiff(final AuditMessage msg, final boolean configIndex, final BytesReference originalSource,
+            final BytesReference currentSource) {
+        try {
+            if (configIndex) {
+                String original = null;
+                String current = null;
+
+                try (XContentParser parser = XContentHelper.createParser(NamedXContentRegistry.EMPTY, SearchGuardDeprecationHandler.INSTANCE, originalSource, XContentType.JSON)) {
+                    Object base64 = parser.map().values().iterator().next();
+                    if(base64 instanceof String) {
+                        original = (new String(BaseEncoding.base64().decode((String) base64)));
+                     } else {
+                         original = XContentHelper.convertToJson(originalSource, false, XContentType.JSON);
+                    }
+                 } catch (Exception e) {
+                     log.error(e);
+                 }
+
+                try (XContentParser parser = XContentHelper.createParser(NamedXContentRegistry.EMPTY, SearchGuardDeprecationHandler.INSTANCE, currentSource, XContentType.JSON)) {
+                    Object base64 = parser.map().values().iterator().next();
+                    if(base64 instanceof String) {
+                        current = (new String(BaseEncoding.base64().decode((String) base64)));
+                     } else {
+                        current = XContentHelper.convertToJson(currentSource, false, XContentType.JSON);
+                    }
+                 } catch (Exception e) {
+                     log.error(e);
+                 }
+
+                final JsonNode diffnode = JsonDiff.asJson(DefaultObjectMapper.objectMapper.readTree(original), DefaultObjectMapper.objectMapper.readTree(current));
+                msg.addComplianceWriteDiffSource(diffnode.size() == 0?"":diffnode.toString());
+            } else if (originalSource.equals(currentSource)) {
+                //unchanged source, no need to parse it
+                msg.addComplianceWriteDiffSource("");
+            } else {
+                //the sources are json, parsed directly from the bytes
+                final JsonNode diffnode = JsonDiff.asJson(DefaultObjectMapper.objectMapper.readTree(BytesReference.toBytes(originalSource)),
+                        DefaultObjectMapper.objectMapper.readTree(BytesReference.toBytes(currentSource)));
+                msg.addComplianceWriteDiffSource(diffnode.size() == 0?"":diffnode.toString());
+            }
+        } catch (Exception e) {
+            log.error("Unable to generate diff for {}",msg.toPrettyString(),e);
+        }
+    }
+
+    /**
+     * Waits for the pending write diffs
+     */
+    @Override
+    public void close() throws IOException {
+        final ExecutorService[] writeDiffExecutors;
+
+        synchronized (this) {
+            closed = true;
+            writeDiffExecutors = this.writeDiffExecutors;
+        }
+
+        if(writeDiffExecutors != null) {
+            for(final ExecutorService writeDiffExecutor : writeDiffExecutors) {
+                writeDiffExecutor.shutdown();
+            }
+
+            final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(60);
+
+            try {
+                for(final ExecutorService writeDiffExecutor : writeDiffExecutors) {
+                    if(!writeDiffExecutor.awaitTermination(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS)) {
+                        log.error("Pending write diffs not logged within 60 seconds");
+                        writeDiffExecutor.shutdownNow();
+                    }
+                }
+            } catch (InterruptedException e) {
+                for(final ExecutorService writeDiffExecutor : writeDiffExecutors) {
+                    writeDiffExecutor.shutdownNow();
+                }
+                Thread.currentThread().interrupt();
+            }
+        }
     }
 
     @Override
@@ -627,7 +894,12 @@ public abstract class AbstractAuditLog implements AuditLog {
         msg.addShardId(shardId);
         msg.addComplianceDocVersion(result.getVersion());
         msg.addComplianceOperation(Operation.DELETE);
-        save(msg);
+
+        if(writeDiffsLogged) {
+            saveInOrder(shardId, delete.id(), msg, null);
+        } else {
+            save(msg);
+        }
     }
 
     @Override
@@ -18,12 +18,15 @@ import java.io.IOException;
 import java.nio.file.Path;
 import java.security.AccessController;
 import java.security.PrivilegedAction;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 
 import org.elasticsearch.SpecialPermission;
 import org.elasticsearch.client.Client;
 import org.elasticsearch.cluster.metadata.IndexNameExpressionResolver;
 import org.elasticsearch.cluster.service.ClusterService;
+import org.elasticsearch.common.settings.Setting;
 import org.elasticsearch.common.settings.Settings;
 import org.elasticsearch.env.Environment;
 import org.elasticsearch.index.engine.Engine.Delete;
@@ -37,6 +40,7 @@ import org.elasticsearch.tasks.Task;
 import org.elasticsearch.threadpool.ThreadPool;
 import org.elasticsearch.transport.TransportRequest;
 
+import com.floragunn.searchguard.auditlog.routing.AsyncStoragePool;
 import com.floragunn.searchguard.auditlog.routing.AuditMessageRouter;
 import com.floragunn.searchguard.compliance.ComplianceConfig;
 
@@ -82,6 +86,12 @@ public final class AuditLogImpl extends AbstractAuditLog {
 
     }
 
+    public static List<Setting<?>> getSettings() {
+        final List<Setting<?>> settings = new ArrayList<>(AbstractAuditLog.getSettings());
+        settings.addAll(AsyncStoragePool.getSettings());
+        return settings;
+    }
+
     @Override
     public void setComplianceConfig(ComplianceConfig complianceConfig) {
         messageRouter.setComplianceConfig(complianceConfig);
@@ -89,6 +99,8 @@ public final class AuditLogImpl extends AbstractAuditLog {
 
     @Override
     public void close() throws IOException {
+        //pending write diffs are still routed
+        super.close();
         messageRouter.close();
     }
 
@@ -190,6 +202,14 @@ public final class AuditLogImpl extends AbstractAuditLog {
         }
     }
 
+    @Override
+    public void logDocumentsRead(String index, ShardId shardId, List<String> ids, List<Map<String, String>> fieldNameValues,
+            ComplianceConfig complianceConfig) {
+        if (enabled) {
+            super.logDocumentsRead(index, shardId, ids, fieldNameValues, complianceConfig);
+        }
+    }
+
     @Override
     public void logDocumentWritten(ShardId shardId, GetResult originalResult, Index currentIndex, IndexResult result,
             ComplianceConfig complianceConfig) {
@@ -32,6 +32,7 @@ import org.apache.http.client.utils.URIBuilder;
 import org.elasticsearch.ExceptionsHelper;
 import org.elasticsearch.cluster.service.ClusterService;
 import org.elasticsearch.common.Strings;
+import org.elasticsearch.common.bytes.BytesArray;
 import org.elasticsearch.common.bytes.BytesReference;
 import org.elasticsearch.common.collect.Tuple;
 import org.elasticsearch.common.transport.TransportAddress;
@@ -132,6 +133,28 @@ public final class AuditMessage {
         }
     }
 
+    private AuditMessage(final Category msgCategory, final Map<String, Object> auditInfo) {
+        this.msgCategory = msgCategory;
+        this.auditInfo.putAll(auditInfo);
+        this.auditInfo.put(CATEGORY, msgCategory);
+
+        if (auditInfo.get(ORIGIN) instanceof String) {
+            this.auditInfo.put(ORIGIN, Origin.valueOf((String) auditInfo.get(ORIGIN)));
+        }
+
+        if (auditInfo.get(REQUEST_LAYER) instanceof String) {
+            this.auditInfo.put(REQUEST_LAYER, Origin.valueOf((String) auditInfo.get(REQUEST_LAYER)));
+        }
+    }
+
+    /**
+     * Restores a message from its json representation ({@link #toJson()}), e.g. after it was spooled to disk
+     */
+    public static AuditMessage fromJson(final byte[] json) {
+        final Map<String, Object> auditInfo = XContentHelper.convertToMap(new BytesArray(json), false, XContentType.JSON).v2();
+        return new AuditMessage(Category.valueOf((String) Objects.requireNonNull(auditInfo.get(CATEGORY), CATEGORY)), auditInfo);
+    }
+
     public void addRemoteAddress(TransportAddress remoteAddress) {
         if (remoteAddress != null && remoteAddress.getAddress() != null) {
             auditInfo.put(REMOTE_ADDRESS, remoteAddress.getAddress());
@@ -13,35 +13,92 @@
  */
 package com.floragunn.searchguard.auditlog.routing;
 
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.ThreadPoolExecutor;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.AccessController;
+import java.security.PrivilegedActionException;
+import java.security.PrivilegedExceptionAction;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.elasticsearch.common.settings.Setting;
+import org.elasticsearch.common.settings.Setting.Property;
 import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.ByteSizeUnit;
+import org.elasticsearch.common.unit.ByteSizeValue;
 
 import com.floragunn.searchguard.auditlog.impl.AuditMessage;
 import com.floragunn.searchguard.auditlog.sink.AuditLogSink;
 import com.floragunn.searchguard.support.ConfigConstants;
 
+/**
+ * Stores audit messages asynchronously. Every sink has its own consumer threads with bounded lock free ring buffers,
+ * so a slow sink can not delay the others and producers never block.
+ * Sinks which store batches get one consumer thread which drains its ring buffer in batches. Sinks which store
+ * message by message (e.g. webhooks without batching) get <code>threadpool.size</code> consumer threads, each with its own
+ * ring buffer, so that as many messages are stored concurrently. The <code>threadpool.max_queue_len</code> is split among them.
+ * If the ring buffers of a sink are full the message is stored synchronously on the fallback sink.
+ * <p>
+ * If the spool is enabled every sink gets an {@link AuditSpool} on local disk instead of the ring buffers and a single
+ * consumer thread. Messages are only removed from the spool when the sink stored them, so they survive a restart
+ * and an unavailable sink is retried until the spool is full.
+ */
 public class AsyncStoragePool {
 
 	protected final Logger log = LogManager.getLogger(this.getClass());
 
+	public static final Setting<Integer> MAX_BATCH_SIZE = Setting.intSetting("searchguard.audit.threadpool.max_batch_size", 1000, 1,
+			Property.NodeScope);
+	public static final Setting<Boolean> SPOOL_ENABLED = Setting.boolSetting("searchguard.audit.spool.enabled", false, Property.NodeScope);
+	/**
+	 * Relative to path.home, by default the spool is in the first data path
+	 */
+	public static final Setting<String> SPOOL_PATH = Setting.simpleString("searchguard.audit.spool.path", Property.NodeScope);
+	public static final Setting<ByteSizeValue> SPOOL_MAX_SIZE = Setting.byteSizeSetting("searchguard.audit.spool.max_size",
+			new ByteSizeValue(1, ByteSizeUnit.GB), Property.NodeScope);
+	/**
+	 * A segment is mapped as a whole, so it must fit into an int
+	 */
+	public static final Setting<ByteSizeValue> SPOOL_SEGMENT_SIZE = Setting.byteSizeSetting("searchguard.audit.spool.segment_size",
+			new ByteSizeValue(64, ByteSizeUnit.MB), new ByteSizeValue(64, ByteSizeUnit.KB), new ByteSizeValue(Integer.MAX_VALUE, ByteSizeUnit.BYTES),
+			Property.NodeScope);
+
 	private static final int DEFAULT_THREAD_POOL_SIZE = 10;
 	private static final int DEFAULT_THREAD_POOL_MAX_QUEUE_LEN = 100 * 1000;
+	private static final String DEFAULT_SPOOL_DIRECTORY = "searchguard_audit_spool";
+	private static final long SPOOL_MIN_RETRY_DELAY_MS = 1000;
+	private static final long SPOOL_MAX_RETRY_DELAY_MS = 30 * 1000;
 
-	// package private for unit tests
-	final ExecutorService pool;
+	private final Map<AuditLogSink, SinkConsumer[]> consumers = new ConcurrentHashMap<>();
+	private volatile boolean closed;
 
+	//number of consumer threads of sinks which do not store batches
 	int threadPoolSize;
+	//capacity of the ring buffers of every sink
 	int threadPoolMaxQueueLen;
+	final int maxBatchSize;
+	//null if the spool is disabled
+	final Path spoolPath;
+	final long spoolMaxSize;
+	final int spoolSegmentSize;
 
 	public AsyncStoragePool(final Settings settings) {
 		this.threadPoolSize = settings.getAsInt(ConfigConstants.SEARCHGUARD_AUDIT_THREADPOOL_SIZE, DEFAULT_THREAD_POOL_SIZE).intValue();
 		this.threadPoolMaxQueueLen = settings.getAsInt(ConfigConstants.SEARCHGUARD_AUDIT_THREADPOOL_MAX_QUEUE_LEN, DEFAULT_THREAD_POOL_MAX_QUEUE_LEN).intValue();
+		this.maxBatchSize = MAX_BATCH_SIZE.get(settings);
 
 		if (threadPoolSize <= 0) {
 			threadPoolSize = DEFAULT_THREAD_POOL_SIZE;
@@ -51,51 +108,354 @@ public class AsyncStoragePool {
 			threadPoolMaxQueueLen = DEFAULT_THREAD_POOL_MAX_QUEUE_LEN;
 		}
 
-		this.pool = createExecutor(threadPoolSize, threadPoolMaxQueueLen);
+		this.spoolPath = SPOOL_ENABLED.get(settings) ? getSpoolPath(settings) : null;
+		this.spoolMaxSize = SPOOL_MAX_SIZE.get(settings).getBytes();
+		this.spoolSegmentSize = (int) SPOOL_SEGMENT_SIZE.get(settings).getBytes();
+
+		if (spoolPath != null) {
+			log.info("Spooling audit messages to {} with max size {} bytes", spoolPath, spoolMaxSize);
+		}
+	}
+
+	public static List<Setting<?>> getSettings() {
+		return Arrays.asList(MAX_BATCH_SIZE, SPOOL_ENABLED, SPOOL_PATH, SPOOL_MAX_SIZE, SPOOL_SEGMENT_SIZE);
+	}
+
+	private static Path getSpoolPath(final Settings settings) {
+		final Path home = Paths.get(settings.get("path.home", "."));
+		final String path = SPOOL_PATH.get(settings);
+
+		if (!path.isEmpty()) {
+			return home.resolve(path).toAbsolutePath();
+		}
+
+		final List<String> dataPaths = settings.getAsList("path.data");
+		final Path data = dataPaths.isEmpty() ? home.resolve("data") : home.resolve(dataPaths.get(0));
+		return data.resolve(DEFAULT_SPOOL_DIRECTORY).toAbsolutePath();
+	}
+
+	/**
+	 * Starts the consumers of the sinks right away if the spool is enabled, so messages which were spooled
+	 * before a restart are stored without waiting for a new message
+	 */
+	public void start(final Collection<AuditLogSink> sinks) {
+		if (spoolPath == null || closed) {
+			return;
+		}
+
+		for (final AuditLogSink sink : sinks) {
+			consumers.computeIfAbsent(sink, this::createConsumers);
+		}
 	}
 
 	public void submit(AuditMessage message, AuditLogSink sink) {
-		try {
-			pool.submit(() -> {
-				sink.store(message);
-				if (log.isTraceEnabled()) {
-					log.trace("stored on delegate {} asynchronously", sink.getClass().getSimpleName());
+		submit(message, Collections.singletonList(sink));
+	}
+
+	/**
+	 * Submits the message to several sinks, if the spool is enabled it is serialized only once for all of them
+	 */
+	public void submit(final AuditMessage message, final Collection<AuditLogSink> sinks) {
+		byte[] record = null;
+
+		for (final AuditLogSink sink : sinks) {
+			SinkConsumer[] sinkConsumers = consumers.get(sink);
+
+			if (sinkConsumers == null && !closed) {
+				sinkConsumers = consumers.computeIfAbsent(sink, this::createConsumers);
+			}
+
+			if (record == null && sinkConsumers != null && sinkConsumers[0].spool != null) {
+				record = message.toJson().getBytes(StandardCharsets.UTF_8);
+			}
+
+			if (sinkConsumers == null || closed || !offer(sinkConsumers, message, record)) {
+				log.error("Could not submit audit message {} to {} for delegate '{}' due to '{}'", message, spoolPath == null ? "ring buffer" : "spool",
+						sink.getClass().getSimpleName(), closed ? "closed" : "buffer full");
+				if (sink.getFallbackSink() != null) {
+					sink.getFallbackSink().store(message);
 				}
-			});
-		} catch (Exception ex) {
-			log.error("Could not submit audit message {} to thread pool for delegate '{}' due to '{}'", message, sink.getClass().getSimpleName(), ex.getMessage());
-			if (sink.getFallbackSink() != null) {
-				sink.getFallbackSink().store(message);
 			}
 		}
 	}
 
-	private ThreadPoolExecutor createExecutor(final int threadPoolSize, final int maxQueueLen) {
-		if (log.isDebugEnabled()) {
-			log.debug("Create new executor with threadPoolSize: {} and maxQueueLen: {}", threadPoolSize, maxQueueLen);
+	//starts at a random consumer, so that concurrent producers do not contend on the same ring buffer
+	private static boolean offer(final SinkConsumer[] sinkConsumers, final AuditMessage message, final byte[] record) {
+		final int start = sinkConsumers.length == 1 ? 0 : ThreadLocalRandom.current().nextInt(sinkConsumers.length);
+
+		for (int i = 0; i < sinkConsumers.length; i++) {
+			if (sinkConsumers[(start + i) % sinkConsumers.length].offer(message, record)) {
+				return true;
+			}
 		}
-		return new ThreadPoolExecutor(threadPoolSize, threadPoolSize, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(maxQueueLen));
+
+		return false;
 	}
 
 	public void close() {
+		closed = true;
 
-		if (pool != null) {
-			pool.shutdown(); // Disable new tasks from being submitted
+		for (SinkConsumer[] sinkConsumers : consumers.values()) {
+			for (SinkConsumer consumer : sinkConsumers) {
+				consumer.stop();
+			}
+		}
+
+		final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(60);
+
+		for (SinkConsumer[] sinkConsumers : consumers.values()) {
+			for (SinkConsumer consumer : sinkConsumers) {
+				try {
+					// Wait a while for the pending messages to be stored
+					if (!consumer.await(Math.max(1, deadline - System.nanoTime()), TimeUnit.NANOSECONDS)) {
+						log.error("Consumer for {} did not terminate", consumer.sink.getName());
+					}
+				} catch (InterruptedException ie) {
+					// Preserve interrupt status
+					Thread.currentThread().interrupt();
+					return;
+				}
+			}
+		}
 
+		for (SinkConsumer[] sinkConsumers : consumers.values()) {
+			for (SinkConsumer consumer : sinkConsumers) {
+				consumer.closeSpool();
+			}
+		}
+	}
+
+	private SinkConsumer[] createConsumers(final AuditLogSink sink) {
+		AuditSpool spool = null;
+
+		if (spoolPath != null) {
+			final Path directory = spoolPath.resolve(sink.getName().toLowerCase(Locale.ROOT).replaceAll("[^a-z0-9_-]", "_"));
 			try {
-				// Wait a while for existing tasks to terminate
-				if (!pool.awaitTermination(60, TimeUnit.SECONDS)) {
-					pool.shutdownNow(); // Cancel currently executing tasks
-					// Wait a while for tasks to respond to being cancelled
-					if (!pool.awaitTermination(60, TimeUnit.SECONDS))
-						log.error("Pool did not terminate");
+				spool = AccessController.doPrivileged(new PrivilegedExceptionAction<AuditSpool>() {
+					@Override
+					public AuditSpool run() throws IOException {
+						return AuditSpool.open(directory, spoolSegmentSize, spoolMaxSize);
+					}
+				});
+			} catch (PrivilegedActionException e) {
+				log.error("Unable to open audit spool in {} for {}, messages are buffered in memory only", directory, sink.getName(), e.getException());
+			} catch (RuntimeException e) {
+				//e.g. a SecurityException if the spool path is not permitted
+				log.error("Unable to open audit spool in {} for {}, messages are buffered in memory only", directory, sink.getName(), e);
+			}
+		}
+
+		if (spool != null || sink.isBatching() || threadPoolSize == 1) {
+			return new SinkConsumer[] { new SinkConsumer(sink, sink.getName(), threadPoolMaxQueueLen, maxBatchSize, spool) };
+		}
+
+		//messages are stored one by one, so several of them are stored concurrently
+		final SinkConsumer[] sinkConsumers = new SinkConsumer[threadPoolSize];
+
+		for (int i = 0; i < sinkConsumers.length; i++) {
+			sinkConsumers[i] = new SinkConsumer(sink, sink.getName() + "_" + i, Math.max(1, threadPoolMaxQueueLen / threadPoolSize), maxBatchSize,
+					null);
+		}
+
+		return sinkConsumers;
+	}
+
+	private final class SinkConsumer implements Runnable {
+
+		private final AuditLogSink sink;
+		//either the ring buffer or the spool is used
+		private final SinkRingBuffer<AuditMessage> buffer;
+		private final AuditSpool spool;
+		private final List<byte[]> records = new ArrayList<>();
+		private final int maxBatchSize;
+		private final long maxBatchDelayNanos;
+		private final Thread thread;
+		private volatile boolean waiting;
+		private volatile boolean stopped;
+
+		SinkConsumer(final AuditLogSink sink, final String name, final int capacity, final int maxBatchSize, final AuditSpool spool) {
+			this.sink = sink;
+			this.spool = spool;
+			this.buffer = spool == null ? new SinkRingBuffer<>(capacity) : null;
+			this.maxBatchSize = Math.max(1, Math.min(maxBatchSize, sink.getMaxBatchSize()));
+			this.maxBatchDelayNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, sink.getMaxBatchDelayMillis()));
+			this.thread = new Thread(this, "searchguard_audit_" + name);
+			this.thread.setDaemon(true);
+
+			if (log.isDebugEnabled()) {
+				log.debug("Create new consumer {} with {}, max batch size {} and max batch delay {}ms", name,
+						spool == null ? "ring buffer capacity " + buffer.capacity() : "spool", this.maxBatchSize, sink.getMaxBatchDelayMillis());
+			}
+
+			this.thread.start();
+		}
+
+		//the record is the serialized message, only used with the spool
+		boolean offer(final AuditMessage message, final byte[] record) {
+			if (spool != null) {
+				try {
+					if (!spool.append(record)) {
+						return false;
+					}
+				} catch (IOException e) {
+					log.error("Unable to spool audit message for {} due to {}", sink.getName(), e.toString());
+					return false;
 				}
-			} catch (InterruptedException ie) {
-				// (Re-)Cancel if current thread also interrupted
-				pool.shutdownNow();
-				// Preserve interrupt status
-				Thread.currentThread().interrupt();
+			} else if (!buffer.offer(message)) {
+				return false;
+			}
+
+			if (waiting) {
+				LockSupport.unpark(thread);
 			}
+
+			return true;
+		}
+
+		@Override
+		public void run() {
+			final List<AuditMessage> batch = new ArrayList<>(spool == null ? Math.min(maxBatchSize, buffer.capacity()) : Math.min(maxBatchSize, 1024));
+
+			for (;;) {
+				//spooled messages are stored after a restart, so there is no need to drain them on stop
+				if (spool != null && stopped) {
+					return;
+				}
+
+				if (drain(batch, maxBatchSize) > 0) {
+					if (maxBatchDelayNanos > 0 && batch.size() < maxBatchSize) {
+						fill(batch);
+					}
+
+					if (spool != null) {
+						if (!storeSpooled(batch)) {
+							return;
+						}
+						continue;
+					}
+
+					try {
+						sink.store(batch);
+						if (log.isTraceEnabled()) {
+							log.trace("stored {} messages on delegate {} asynchronously", batch.size(), sink.getClass().getSimpleName());
+						}
+					} catch (Exception e) {
+						log.error("Unable to store {} audit messages on delegate '{}'", batch.size(), sink.getClass().getSimpleName(), e);
+					}
+					batch.clear();
+					continue;
+				}
+
+				if (stopped) {
+					return;
+				}
+
+				waiting = true;
+				//a message offered before waiting was set is seen here, one offered afterwards unparks this thread
+				if (isEmpty() && !stopped) {
+					LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(100));
+				}
+				waiting = false;
+			}
+		}
+
+		//waits up to the max batch delay for the batch to become full
+		private void fill(final List<AuditMessage> batch) {
+			final long deadline = System.nanoTime() + maxBatchDelayNanos;
+
+			while (batch.size() < maxBatchSize && !stopped) {
+				final long remaining = deadline - System.nanoTime();
+
+				if (remaining <= 0) {
+					return;
+				}
+
+				if (drain(batch, maxBatchSize - batch.size()) == 0) {
+					waiting = true;
+					if (isEmpty() && !stopped) {
+						LockSupport.parkNanos(this, remaining);
+					}
+					waiting = false;
+				}
+			}
+		}
+
+		//returns the number of messages which were taken from the ring buffer or read from the spool
+		private int drain(final List<AuditMessage> batch, final int maxMessages) {
+			if (spool == null) {
+				return buffer.drainTo(batch, maxMessages);
+			}
+
+			final int count = spool.read(records, maxMessages);
+			spool.prepareNextSegment();
+
+			for (final byte[] record : records) {
+				try {
+					batch.add(AuditMessage.fromJson(record));
+				} catch (Exception e) {
+					log.error("Unable to restore spooled audit message for {}, skipping it", sink.getName(), e);
+				}
+			}
+
+			records.clear();
+			return count;
+		}
+
+		private boolean isEmpty() {
+			return spool == null ? buffer.isEmpty() : spool.isEmpty();
+		}
+
+		/**
+		 * Stores the batch, retrying with increasing delay until the sink stored all messages,
+		 * only then they are committed and removed from the spool.
+		 *
+		 * @return false if the consumer was stopped before, the messages are then stored after a restart
+		 */
+		private boolean storeSpooled(final List<AuditMessage> batch) {
+			long delayMillis = SPOOL_MIN_RETRY_DELAY_MS;
+
+			for (;;) {
+				try {
+					batch.subList(0, sink.tryStore(batch)).clear();
+				} catch (Exception e) {
+					log.error("Unable to store {} audit messages on delegate '{}'", batch.size(), sink.getClass().getSimpleName(), e);
+				}
+
+				if (batch.isEmpty()) {
+					spool.commit();
+					return true;
+				}
+
+				if (stopped) {
+					log.warn("Consumer for {} stopped, unstored audit messages remain in the spool", sink.getName());
+					return false;
+				}
+
+				log.warn("Unable to store {} spooled audit messages on delegate '{}', retrying in {}ms", batch.size(),
+						sink.getClass().getSimpleName(), delayMillis);
+				//the producers keep appending while the sink is down
+				spool.forceFullSegments();
+				//only unparked by stop()
+				LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(delayMillis));
+				delayMillis = Math.min(delayMillis * 2, SPOOL_MAX_RETRY_DELAY_MS);
+			}
+		}
+
+		//the spool is unmapped on close, so it must not be closed while the consumer might still read it
+		void closeSpool() {
+			if (spool != null && !thread.isAlive()) {
+				spool.close();
+			}
+		}
+
+		void stop() {
+			stopped = true;
+			LockSupport.unpark(thread);
+		}
+
+		boolean await(final long timeout, final TimeUnit unit) throws InterruptedException {
+			thread.join(Math.max(1, unit.toMillis(timeout)));
+			return !thread.isAlive();
 		}
 	}
 }
@@ -15,13 +15,16 @@
 package com.floragunn.searchguard.auditlog.routing;
 
 import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.EnumMap;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -61,6 +64,7 @@ public class AuditMessageRouter {
 			// create sinks for all categories. Only do that if we have any extended setting, otherwise there is just the default category
 			setupRoutes(settings);
 			enabled = true;			
+			startStoragePool();
 		}		
 	}
 	
@@ -82,9 +86,21 @@ public class AuditMessageRouter {
 		if (!hasMultipleEndpoints || complianceConfig == null || !complianceConfig.isEnabled()) {
 			store(defaultSink, msg);
 		} else {
+			final List<AuditLogSink> asyncSinks = new ArrayList<>();
 			for (AuditLogSink sink : categorySinks.get(msg.getCategory())) {
-				store(sink, msg);
-			}			
+				if (sink.isHandlingBackpressure()) {
+					store(sink, msg);
+				} else {
+					asyncSinks.add(sink);
+				}
+			}
+			// the message is serialized once for all spooled sinks
+			if (!asyncSinks.isEmpty()) {
+				storagePool.submit(msg, asyncSinks);
+				if (log.isTraceEnabled()) {
+					log.trace("will store on {} sinks asynchronously", asyncSinks.size());
+				}
+			}
 		}
 	}
 
@@ -148,6 +164,17 @@ public class AuditMessageRouter {
 		}
 	}
 	
+	// replays spooled messages of all asynchronous sinks
+	private final void startStoragePool() {
+		final Set<AuditLogSink> sinks = new HashSet<>();
+		sinks.add(defaultSink);
+		for (List<AuditLogSink> sinksForCategory : categorySinks.values()) {
+			sinks.addAll(sinksForCategory);
+		}
+		sinks.removeIf(AuditLogSink::isHandlingBackpressure);
+		storagePool.start(sinks);
+	}
+
 	private final List<AuditLogSink> createSinksForCategory(Category category, Settings configuration) {
 		List<AuditLogSink> sinksForCategory = new LinkedList<>();
 		List<String> sinks = configuration.getAsList("endpoints");
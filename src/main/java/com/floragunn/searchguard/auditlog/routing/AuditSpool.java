@@ -0,0 +1,572 @@
+/*
+ * Copyright 2016-2019 by floragunn GmbH - All rights reserved
+ *
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed here is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * This software is free of charge for non-commercial and academic use.
+ * For commercial use in a production environment you have to obtain a license
+ * from https://floragunn.com
+ *
+ */
+
+package com.floragunn.searchguard.auditlog.routing;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.AccessController;
+import java.security.PrivilegedAction;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Queue;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.zip.CRC32;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Append only log of the audit messages of one sink on local disk, made of memory mapped segment files.
+ * <p>
+ * Every record is <code>[length][crc][payload]</code>, the crc covers the id of the segment and the payload, so records
+ * left over in a recycled segment file or torn by a crash are detected. Producers append under a lock, the single consumer
+ * reads the published records without locking and commits its cursor when the sink has stored them. The cursor is
+ * persisted in a small mapped file, so a restart replays everything after the last commit (at least once).
+ * Segments before the cursor are recycled for new segments. Appending fails if the spool would exceed its max number
+ * of segments, the caller is then responsible for the message.
+ * <p>
+ * Writes go to the page cache and are forced to disk when a segment is full and on close, so the spool survives
+ * a crash of the process but not necessarily one of the machine. Full segments are forced by the consumer, not by the
+ * producer which rolled to the next segment, so producers never wait for the disk. The consumer also maps the next
+ * segment in advance, so producers only create and map one under the lock if the consumer did not get to it yet.
+ * <p>
+ * Segments are unmapped explicitly when they are recycled and on close, as the garbage collector may keep
+ * the mappings (and the space of deleted files) for a long time.
+ */
+final class AuditSpool implements Closeable {
+
+	private static final Logger log = LogManager.getLogger(AuditSpool.class);
+
+	private static final String SEGMENT_PREFIX = "segment-";
+	private static final String SEGMENT_SUFFIX = ".spool";
+	private static final String CURSOR_FILE = "cursor";
+	//length and crc
+	private static final int HEADER_SIZE = 8;
+	private static final int END_OF_SEGMENT = -1;
+	private static final int MAX_FREE_SEGMENTS = 2;
+	//null if not supported
+	private static final Unmapper UNMAPPER = createUnmapper();
+
+	private final Path directory;
+	private final int segmentSize;
+	private final long maxSegments;
+	private final Map<Long, Segment> segments = new ConcurrentHashMap<>();
+	private final Deque<Path> freeSegments = new ConcurrentLinkedDeque<>();
+	//full segments which are not forced yet
+	private final Queue<Segment> fullSegments = new ConcurrentLinkedQueue<>();
+	private final MappedByteBuffer cursor;
+
+	//writer state, guarded by this
+	private Segment writeSegment;
+	private int writeOffset;
+	private boolean closed;
+	//mapped in advance by the consumer, null if not prepared yet
+	private volatile Segment nextSegment;
+	private boolean preparing;
+	//end of the last appended record (segment id << 32 | offset), read by the consumer
+	private volatile long published;
+
+	//reader state, only used by the consumer
+	private Segment readSegment;
+	private int readOffset;
+	//id of the segment of the committed cursor, segments before are recycled
+	private volatile long committedSegmentId;
+
+	private AuditSpool(final Path directory, final int segmentSize, final long maxSegments) throws IOException {
+		this.directory = directory;
+		this.segmentSize = segmentSize;
+		this.maxSegments = maxSegments;
+
+		try (FileChannel channel = FileChannel.open(directory.resolve(CURSOR_FILE), StandardOpenOption.READ, StandardOpenOption.WRITE,
+				StandardOpenOption.CREATE)) {
+			this.cursor = channel.map(MapMode.READ_WRITE, 0, 16);
+		}
+
+		final TreeMap<Long, Path> files = listSegments();
+		long position = cursor.getLong(0);
+
+		if (cursor.getLong(8) != cursorCrc(position) || !files.containsKey(segmentId(position))) {
+			if (!files.isEmpty()) {
+				log.warn("No valid cursor found in {}, replaying all {} segments", directory, files.size());
+			}
+			position = files.isEmpty() ? position(0, 0) : position(files.firstKey(), 0);
+		}
+
+		final long firstId = segmentId(position);
+		files.putIfAbsent(firstId, segmentPath(firstId));
+
+		for (final Entry<Long, Path> file : files.entrySet()) {
+			if (file.getKey() < firstId) {
+				recycle(file.getValue());
+			} else {
+				segments.put(file.getKey(), map(file.getKey(), file.getValue()));
+			}
+		}
+
+		long lastId = files.lastKey();
+
+		//a segment which was prepared before the restart, but not written to
+		while (lastId > firstId && scan(segments.get(lastId), 0) == 0) {
+			final Segment unused = segments.remove(lastId);
+			unmap(unused.buffer);
+			recycle(unused.path);
+			lastId = files.lowerKey(lastId);
+		}
+
+		this.readSegment = segments.get(firstId);
+		this.readOffset = offset(position);
+		this.committedSegmentId = firstId;
+		this.writeSegment = segments.get(lastId);
+		this.writeOffset = scan(writeSegment, writeSegment == readSegment ? readOffset : 0);
+		this.published = position(writeSegment.id, writeOffset);
+	}
+
+	/**
+	 * Opens the spool in the directory and recovers the records which were not committed
+	 *
+	 * @param segmentSize size of the segment files, a record can not be larger
+	 * @param maxSize max size of all segment files
+	 */
+	static AuditSpool open(final Path directory, final int segmentSize, final long maxSize) throws IOException {
+		Files.createDirectories(directory);
+		return new AuditSpool(directory, segmentSize, Math.max(2, maxSize / segmentSize));
+	}
+
+	/**
+	 * Can be called by any thread
+	 *
+	 * @return false if the record does not fit into the spool
+	 */
+	synchronized boolean append(final byte[] payload) throws IOException {
+		final int recordSize = HEADER_SIZE + payload.length;
+
+		if (closed || recordSize > segmentSize) {
+			return false;
+		}
+
+		if (writeOffset + recordSize > segmentSize && !roll()) {
+			return false;
+		}
+
+		final ByteBuffer view = writeSegment.writeView;
+		view.position(writeOffset + HEADER_SIZE);
+		view.put(payload);
+		view.putInt(writeOffset + 4, crc(writeSegment.id, payload));
+		view.putInt(writeOffset, payload.length);
+		writeOffset += recordSize;
+		published = position(writeSegment.id, writeOffset);
+		return true;
+	}
+
+	//must hold the lock
+	private boolean roll() throws IOException {
+		final long id = writeSegment.id + 1;
+
+		if (id - committedSegmentId >= maxSegments) {
+			return false;
+		}
+
+		if (segmentSize - writeOffset >= 4) {
+			writeSegment.writeView.putInt(writeOffset, END_OF_SEGMENT);
+		}
+
+		fullSegments.add(writeSegment);
+
+		//the consumer is about to map it
+		while (preparing) {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			}
+		}
+
+		final Segment next = nextSegment;
+		nextSegment = null;
+		final Segment segment = next != null ? next : createSegment(id);
+		segments.put(id, segment);
+		writeSegment = segment;
+		writeOffset = 0;
+		published = position(id, 0);
+		return true;
+	}
+
+	/**
+	 * Creates and maps the segment after the current write segment, so that appending does not have to do it under the lock.
+	 * Must only be called by the consumer.
+	 */
+	void prepareNextSegment() {
+		if (nextSegment != null) {
+			return;
+		}
+
+		final long id;
+
+		synchronized (this) {
+			id = writeSegment.id + 1;
+
+			if (closed || nextSegment != null || id - committedSegmentId >= maxSegments) {
+				return;
+			}
+
+			preparing = true;
+		}
+
+		Segment segment = null;
+
+		try {
+			segment = createSegment(id);
+		} catch (IOException e) {
+			log.warn("Unable to prepare spool segment {} due to {}", id, e.toString());
+		} finally {
+			synchronized (this) {
+				preparing = false;
+
+				if (segment != null && (closed || writeSegment.id + 1 != id)) {
+					//closed meanwhile, the writer does not roll while the segment is prepared
+					unmap(segment.buffer);
+				} else {
+					nextSegment = segment;
+				}
+
+				notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Reads the records after the last read one, must only be called by the consumer
+	 *
+	 * @return the number of records which were added
+	 */
+	int read(final List<byte[]> records, final int maxRecords) {
+		forceFullSegments();
+		int count = 0;
+
+		while (count < maxRecords) {
+			final long published = this.published;
+			final boolean lastSegment = readSegment.id == segmentId(published);
+			final int end = lastSegment ? offset(published) : segmentSize;
+
+			if (lastSegment && readOffset >= end) {
+				break;
+			}
+
+			final ByteBuffer view = readSegment.readView;
+			final int length = end - readOffset >= HEADER_SIZE ? view.getInt(readOffset) : END_OF_SEGMENT;
+
+			if (length < 0 || readOffset + HEADER_SIZE + length > end) {
+				if (lastSegment) {
+					//can not happen, every published record is complete
+					log.error("Invalid record in {} at offset {}", readSegment.path, readOffset);
+					readOffset = end;
+				} else {
+					nextReadSegment();
+				}
+				continue;
+			}
+
+			final byte[] payload = new byte[length];
+			view.position(readOffset + HEADER_SIZE);
+			view.get(payload);
+
+			if (view.getInt(readOffset + 4) != crc(readSegment.id, payload)) {
+				log.error("Corrupted record in {} at offset {}, skipping the rest of the segment", readSegment.path, readOffset);
+				if (lastSegment) {
+					readOffset = end;
+				} else {
+					nextReadSegment();
+				}
+				continue;
+			}
+
+			records.add(payload);
+			readOffset += HEADER_SIZE + length;
+			count++;
+		}
+
+		return count;
+	}
+
+	private void nextReadSegment() {
+		final long lastId = segmentId(published);
+
+		for (long id = readSegment.id + 1; id <= lastId; id++) {
+			final Segment segment = segments.get(id);
+			if (segment != null) {
+				readSegment = segment;
+				readOffset = 0;
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Forces the segments which are full to disk, must only be called by the consumer
+	 */
+	void forceFullSegments() {
+		Segment segment;
+
+		while ((segment = fullSegments.poll()) != null) {
+			//not committed and recycled yet
+			if (segments.get(segment.id) == segment) {
+				segment.buffer.force();
+			}
+		}
+	}
+
+	/**
+	 * @return true if the consumer has read all published records
+	 */
+	boolean isEmpty() {
+		final long published = this.published;
+		return readSegment.id == segmentId(published) && readOffset >= offset(published);
+	}
+
+	/**
+	 * Marks all read records as stored, they are not replayed after a restart and their segments are recycled.
+	 * Must only be called by the consumer.
+	 */
+	void commit() {
+		final long position = position(readSegment.id, readOffset);
+		cursor.putLong(8, cursorCrc(position));
+		cursor.putLong(0, position);
+
+		final long previous = committedSegmentId;
+		committedSegmentId = readSegment.id;
+
+		for (long id = previous; id < readSegment.id; id++) {
+			final Segment segment = segments.remove(id);
+			if (segment != null) {
+				//the consumer was the last one to access it, the writer moved on when it was full
+				unmap(segment.buffer);
+				recycle(segment.path);
+			}
+		}
+	}
+
+	/**
+	 * Forces and unmaps the segments, must only be called when the consumer does not access the spool anymore
+	 */
+	@Override
+	public synchronized void close() {
+		if (closed) {
+			return;
+		}
+
+		closed = true;
+		fullSegments.clear();
+
+		for (final Segment segment : segments.values()) {
+			segment.buffer.force();
+			unmap(segment.buffer);
+		}
+
+		segments.clear();
+
+		if (nextSegment != null) {
+			unmap(nextSegment.buffer);
+			nextSegment = null;
+		}
+
+		cursor.force();
+		unmap(cursor);
+	}
+
+	private void recycle(final Path path) {
+		if (freeSegments.size() < MAX_FREE_SEGMENTS) {
+			freeSegments.add(path);
+			return;
+		}
+
+		try {
+			Files.deleteIfExists(path);
+		} catch (IOException e) {
+			log.warn("Unable to delete spool segment {} due to {}", path, e.toString());
+		}
+	}
+
+	//returns the offset after the last valid record
+	private int scan(final Segment segment, final int from) {
+		final ByteBuffer view = segment.readView;
+		int offset = from;
+
+		while (segmentSize - offset >= HEADER_SIZE) {
+			final int length = view.getInt(offset);
+
+			if (length < 0 || offset + HEADER_SIZE + length > segmentSize) {
+				break;
+			}
+
+			final byte[] payload = new byte[length];
+			view.position(offset + HEADER_SIZE);
+			view.get(payload);
+
+			if (view.getInt(offset + 4) != crc(segment.id, payload)) {
+				break;
+			}
+
+			offset += HEADER_SIZE + length;
+		}
+
+		return offset;
+	}
+
+	private TreeMap<Long, Path> listSegments() throws IOException {
+		final TreeMap<Long, Path> files = new TreeMap<>();
+
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+			for (final Path path : stream) {
+				final String name = path.getFileName().toString();
+				try {
+					files.put(Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())), path);
+				} catch (NumberFormatException e) {
+					log.warn("Ignoring unexpected file {} in spool", path);
+				}
+			}
+		}
+
+		return files;
+	}
+
+	//recycles a free segment file if possible
+	private Segment createSegment(final long id) throws IOException {
+		final Path path = segmentPath(id);
+		final Path free = freeSegments.poll();
+
+		if (free != null) {
+			Files.move(free, path);
+		}
+
+		return map(id, path);
+	}
+
+	private Segment map(final long id, final Path path) throws IOException {
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE)) {
+			return new Segment(id, path, channel.map(MapMode.READ_WRITE, 0, segmentSize));
+		}
+	}
+
+	private Path segmentPath(final long id) {
+		return directory.resolve(String.format("%s%020d%s", SEGMENT_PREFIX, id, SEGMENT_SUFFIX));
+	}
+
+	private static long position(final long segmentId, final int offset) {
+		return segmentId << 32 | offset;
+	}
+
+	private static long segmentId(final long position) {
+		return position >>> 32;
+	}
+
+	private static int offset(final long position) {
+		return (int) position;
+	}
+
+	private static int crc(final long segmentId, final byte[] payload) {
+		final CRC32 crc = new CRC32();
+		crc.update(ByteBuffer.allocate(8).putLong(0, segmentId));
+		crc.update(payload);
+		return (int) crc.getValue();
+	}
+
+	private static long cursorCrc(final long position) {
+		final CRC32 crc = new CRC32();
+		crc.update(ByteBuffer.allocate(8).putLong(0, position));
+		return crc.getValue();
+	}
+
+	//the buffer must not be accessed afterwards, if unmapping is not supported the mapping is released by the garbage collector
+	private static void unmap(final MappedByteBuffer buffer) {
+		if (UNMAPPER != null) {
+			try {
+				UNMAPPER.unmap(buffer);
+			} catch (Exception e) {
+				log.warn("Unable to unmap spool segment due to {}", e.toString());
+			}
+		}
+	}
+
+	private static Unmapper createUnmapper() {
+		return AccessController.doPrivileged(new PrivilegedAction<Unmapper>() {
+			@Override
+			public Unmapper run() {
+				try {
+					//java 9 and later
+					final Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+					final Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+					final Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+					theUnsafe.setAccessible(true);
+					final Object unsafe = theUnsafe.get(null);
+					return buffer -> invokeCleaner.invoke(unsafe, buffer);
+				} catch (Exception | LinkageError e) {
+					//java 8
+				}
+
+				try {
+					final Method cleaner = Class.forName("sun.nio.ch.DirectBuffer").getMethod("cleaner");
+					final Method clean = Class.forName("sun.misc.Cleaner").getMethod("clean");
+					return buffer -> {
+						final Object bufferCleaner = cleaner.invoke(buffer);
+						if (bufferCleaner != null) {
+							clean.invoke(bufferCleaner);
+						}
+					};
+				} catch (Exception | LinkageError e) {
+					log.warn("Unmapping spool segments is not supported, they are released by the garbage collector ({})", e.toString());
+					return null;
+				}
+			}
+		});
+	}
+
+	@FunctionalInterface
+	private interface Unmapper {
+		void unmap(MappedByteBuffer buffer) throws Exception;
+	}
+
+	private static final class Segment {
+		private final long id;
+		private final Path path;
+		private final MappedByteBuffer buffer;
+		//separate views because the position of a buffer is not thread safe
+		private final ByteBuffer writeView;
+		private final ByteBuffer readView;
+
+		private Segment(final long id, final Path path, final MappedByteBuffer buffer) {
+			this.id = id;
+			this.path = path;
+			this.buffer = buffer;
+			this.writeView = buffer.duplicate();
+			this.readView = buffer.duplicate();
+		}
+	}
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright 2016-2019 by floragunn GmbH - All rights reserved
+ *
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed here is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * This software is free of charge for non-commercial and academic use.
+ * For commercial use in a production environment you have to obtain a license
+ * from https://floragunn.com
+ *
+ */
+package com.floragunn.searchguard.auditlog.routing;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded lock free multi producer, single consumer ring buffer.
+ * <p>
+ * Every slot has a sequence number which tells whether it is free for the producer of a position (sequence == position)
+ * or published for the consumer (sequence == position + 1). Producers claim positions with a CAS on the tail,
+ * the consumer is the only one which advances the head, so draining needs no atomic read-modify-write at all.
+ */
+final class SinkRingBuffer<T> {
+
+	private final int capacity;
+	private final int mask;
+	private final AtomicReferenceArray<T> slots;
+	private final AtomicLongArray sequences;
+	private final AtomicLong tail = new AtomicLong();
+	//only written by the consumer
+	private volatile long head;
+
+	/**
+	 * @param capacity rounded up to the next power of two
+	 */
+	SinkRingBuffer(final int capacity) {
+		this.capacity = capacity <= 1 ? 1 : Integer.highestOneBit(capacity - 1) << 1;
+		this.mask = this.capacity - 1;
+		this.slots = new AtomicReferenceArray<>(this.capacity);
+		this.sequences = new AtomicLongArray(this.capacity);
+
+		for (int i = 0; i < this.capacity; i++) {
+			sequences.set(i, i);
+		}
+	}
+
+	/**
+	 * Can be called by any thread
+	 *
+	 * @return false if the buffer is full
+	 */
+	boolean offer(final T element) {
+		long position = tail.get();
+
+		for (;;) {
+			final int index = (int) position & mask;
+			final long difference = sequences.get(index) - position;
+
+			if (difference == 0) {
+				if (tail.compareAndSet(position, position + 1)) {
+					slots.set(index, element);
+					//volatile, so that a consumer which is about to park either sees it or is unparked (see isEmpty)
+					sequences.set(index, position + 1);
+					return true;
+				}
+				position = tail.get();
+			} else if (difference < 0) {
+				//the consumer has not yet freed the slot of the previous round
+				return false;
+			} else {
+				//another producer claimed the position
+				position = tail.get();
+			}
+		}
+	}
+
+	/**
+	 * Must only be called by the consumer thread
+	 *
+	 * @return the number of elements which were moved to the batch
+	 */
+	int drainTo(final List<T> batch, final int maxElements) {
+		long position = head;
+		int count = 0;
+
+		while (count < maxElements) {
+			final int index = (int) position & mask;
+
+			if (sequences.get(index) != position + 1) {
+				break;
+			}
+
+			batch.add(slots.get(index));
+			slots.lazySet(index, null);
+			sequences.lazySet(index, position + capacity);
+			position++;
+			count++;
+		}
+
+		head = position;
+		return count;
+	}
+
+	/**
+	 * @return true if the consumer has nothing to drain
+	 */
+	boolean isEmpty() {
+		return sequences.get((int) head & mask) != head + 1;
+	}
+
+	int capacity() {
+		return capacity;
+	}
+}
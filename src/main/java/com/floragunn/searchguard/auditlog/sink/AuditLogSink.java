@@ -15,6 +15,7 @@
 package com.floragunn.searchguard.auditlog.sink;
 
 import java.io.IOException;
+import java.util.List;
 import java.util.Objects;
 import java.util.concurrent.TimeUnit;
 
@@ -31,6 +32,14 @@ import com.google.common.util.concurrent.Uninterruptibles;
 
 public abstract class AuditLogSink {
 
+    //bulk settings of the sinks which support batching, relative to the sink settings
+    static final String BULK_ENABLED = "bulk.enabled";
+    static final String BULK_MAX_ACTIONS = "bulk.max_actions";
+    static final String BULK_MAX_SIZE = "bulk.max_size";
+    static final String BULK_MAX_CONCURRENT = "bulk.max_concurrent_requests";
+    static final String BULK_MAX_RETRIES = "bulk.max_retries";
+    static final String BULK_RETRY_DELAY = "bulk.retry_delay";
+
     protected final Logger log = LogManager.getLogger(this.getClass());
     protected final Settings settings;
     protected final String settingsPrefix;
@@ -67,6 +76,77 @@ public abstract class AuditLogSink {
 		}
     }
     
+    /**
+     * Stores a batch of messages, sinks which do not support batching ({@link #isBatching()}) store them one by one.
+     * If the batch can not be stored (after retries) it is stored on the fallback sink.
+     */
+    public final void store(List<AuditMessage> msgs) {
+        if (msgs.isEmpty()) {
+            return;
+        }
+
+        if (!isBatching()) {
+            for (AuditMessage msg : msgs) {
+                store(msg);
+            }
+            return;
+        }
+
+        if (!doStoreBatchWithRetry(msgs)) {
+            for (AuditMessage msg : msgs) {
+                storeOnFallback(msg);
+            }
+        }
+    }
+
+    /**
+     * Stores a batch of messages like {@link #store(List)}, but does not store messages which failed
+     * (after retries) on the fallback sink. The caller keeps them, e.g. to try again later.
+     * Returns only when the stored messages are acknowledged by the sink.
+     * 
+     * @return the number of messages from the start of the batch which were stored
+     */
+    public final int tryStore(List<AuditMessage> msgs) {
+        if (isBatching()) {
+            return msgs.isEmpty() ? 0 : doTryStoreBatch(msgs);
+        }
+
+        for (int i = 0; i < msgs.size(); i++) {
+            if (!doStoreWithRetry(msgs.get(i))) {
+                return i;
+            }
+        }
+
+        return msgs.size();
+    }
+
+    /**
+     * For sinks which detect failed messages themselves, e.g. failed items of an asynchronous bulk request
+     */
+    protected final void storeOnFallback(AuditMessage msg) {
+        if (!fallbackSink.doStoreWithRetry(msg)) {
+            System.err.println(msg.toPrettyString());
+        }
+    }
+
+    private boolean doStoreBatchWithRetry(List<AuditMessage> msgs) {
+        if(doStoreBatch(msgs)) {
+            return true;
+        }
+
+        for(int i=0; i<retryCount; i++) {
+            if(log.isDebugEnabled()) {
+                log.debug("Retry attempt {}/{} for batch of {} messages for {} ({})", i+1, retryCount, msgs.size(), this.getName(), this.getClass());
+            }
+            Uninterruptibles.sleepUninterruptibly(delayMs, TimeUnit.MILLISECONDS);
+            if(doStoreBatch(msgs)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
     private boolean doStoreWithRetry(AuditMessage msg) {
         //retryCount of 0 means no retry (which is: try exactly once) - delayMs is ignored
         //retryCount of 1 means: try and if this fails wait delayMs and try once again
@@ -92,7 +172,56 @@ public abstract class AuditLogSink {
     }
     
     protected abstract boolean doStore(AuditMessage msg);
+
+    /**
+     * @return the max number of messages the async storage passes to {@link #store(List)} at once
+     */
+    public int getMaxBatchSize() {
+        return Integer.MAX_VALUE;
+    }
+
+    /**
+     * @return how long the async storage waits for more messages before it passes a batch which is not full,
+     * 0 passes the messages which are available immediately
+     */
+    public long getMaxBatchDelayMillis() {
+        return 0;
+    }
+
+    /**
+     * @return true if the sink stores batches with {@link #doStoreBatch(List)} instead of message by message.
+     * The async storage passes the messages of batching sinks from a single thread in batches, the others
+     * are stored message by message from several threads concurrently.
+     */
+    public boolean isBatching() {
+        return false;
+    }
+
+    /**
+     * @return false if the batch could not be stored, a failed batch is retried as a whole
+     * Sinks which return true from {@link #isBatching()} have to override this.
+     */
+    protected boolean doStoreBatch(List<AuditMessage> msgs) {
+        for (AuditMessage msg : msgs) {
+            if (!doStore(msg)) {
+                return false;
+            }
+        }
+        return true;
+    }
     
+    /**
+     * Used by {@link #tryStore(List)} for sinks which return true from {@link #isBatching()}.
+     * Sinks which store batches asynchronously or store failed messages on the fallback sink themselves
+     * in {@link #doStoreBatch(List)} have to override this, it must neither use the fallback sink
+     * nor return before the stored messages are acknowledged.
+     * 
+     * @return the number of messages from the start of the batch which were stored
+     */
+    protected int doTryStoreBatch(List<AuditMessage> msgs) {
+        return doStoreBatchWithRetry(msgs) ? msgs.size() : 0;
+    }
+
     public void close() throws IOException {
     	// to be implemented by subclasses 
     }
@@ -19,11 +19,25 @@ import java.nio.file.Path;
 import java.security.KeyStore;
 import java.security.PrivateKey;
 import java.security.cert.X509Certificate;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.bulk.BackoffPolicy;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkResponse;
 import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.ByteSizeUnit;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.unit.TimeValue;
 import org.joda.time.format.DateTimeFormat;
 import org.joda.time.format.DateTimeFormatter;
 
@@ -33,6 +47,7 @@ import com.floragunn.searchguard.httpclient.HttpClient.HttpClientBuilder;
 import com.floragunn.searchguard.ssl.util.SSLConfigConstants;
 import com.floragunn.searchguard.support.ConfigConstants;
 import com.floragunn.searchguard.support.PemKeyReader;
+import com.google.common.util.concurrent.Uninterruptibles;
 
 public final class ExternalESSink extends AuditLogSink {
 
@@ -43,8 +58,18 @@ public final class ExternalESSink extends AuditLogSink {
 	private final HttpClient client;
 	private List<String> servers;
 	private DateTimeFormatter indexPattern;
+
+	//bulk mode, see doStoreBatch()
+	final boolean bulk;
+	private final int bulkMaxActions;
+	private final long bulkMaxBytes;
+	private final BackoffPolicy bulkBackoffPolicy;
+	private final Semaphore bulkPermits;
 	
     static final String PKCS12 = "PKCS12";
+    static final String COMPRESSION_ENABLED = "compression.enabled";
+    static final String MAX_CONNECTIONS = "max_connections";
+    static final String MAX_CONNECTIONS_PER_ROUTE = "max_connections_per_route";
 
 	public ExternalESSink(final String name, final Settings settings, final String settingPrefix, final Path configPath, AuditLogSink fallbackSink) throws Exception {
 
@@ -74,6 +99,16 @@ public final class ExternalESSink extends AuditLogSink {
 
 		final HttpClientBuilder builder = HttpClient.builder(servers.toArray(new String[0]));
 
+		this.bulk = sinkSettings.getAsBoolean(BULK_ENABLED, false);
+		this.bulkMaxActions = Math.max(1, sinkSettings.getAsInt(BULK_MAX_ACTIONS, 1000));
+		this.bulkMaxBytes = sinkSettings.getAsBytesSize(BULK_MAX_SIZE, new ByteSizeValue(5, ByteSizeUnit.MB)).getBytes();
+		this.bulkBackoffPolicy = BackoffPolicy.exponentialBackoff(sinkSettings.getAsTime(BULK_RETRY_DELAY, TimeValue.timeValueMillis(100)),
+				Math.max(0, sinkSettings.getAsInt(BULK_MAX_RETRIES, 3)));
+		this.bulkPermits = new Semaphore(Math.max(1, sinkSettings.getAsInt(BULK_MAX_CONCURRENT, 2)));
+
+		builder.setCompressRequests(sinkSettings.getAsBoolean(COMPRESSION_ENABLED, false));
+		builder.setMaxConnections(sinkSettings.getAsInt(MAX_CONNECTIONS, 0), sinkSettings.getAsInt(MAX_CONNECTIONS_PER_ROUTE, 0));
+
 		if (enableSsl) {
 		    
 		    final boolean pem = sinkSettings.get(ConfigConstants.SEARCHGUARD_AUDIT_EXTERNAL_ES_PEMTRUSTEDCAS_FILEPATH, null) != null
@@ -182,4 +217,149 @@ public final class ExternalESSink extends AuditLogSink {
 			return false;
 		}
 	}
+
+	@Override
+	public boolean isBatching() {
+		return bulk;
+	}
+
+	/**
+	 * Sends the batch as bulk requests of at most max actions and size, up to max concurrent requests at a time,
+	 * and waits for them. Failed items are retried with backoff, items which still fail are stored on the fallback sink,
+	 * so this always returns true.
+	 */
+	@Override
+	protected boolean doStoreBatch(final List<AuditMessage> msgs) {
+		final List<AuditMessage> failed = sendBulksWithRetry(msgs);
+
+		if (!failed.isEmpty()) {
+			log.error("Unable to send {} audit messages to one of these servers: {}, storing them on the fallback sink", failed.size(), servers);
+			for (final AuditMessage msg : failed) {
+				storeOnFallback(msg);
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Like {@link #doStoreBatch(List)}, but messages which still fail are kept by the caller. Messages after the first
+	 * failed one may have been indexed already, so they are indexed again when the caller retries them.
+	 */
+	@Override
+	protected int doTryStoreBatch(final List<AuditMessage> msgs) {
+		final List<AuditMessage> failed = sendBulksWithRetry(msgs);
+
+		if (failed.isEmpty()) {
+			return msgs.size();
+		}
+
+		log.error("Unable to send {} audit messages to one of these servers: {}", failed.size(), servers);
+		final Set<AuditMessage> failedSet = Collections.newSetFromMap(new IdentityHashMap<>());
+		failedSet.addAll(failed);
+
+		for (int i = 0; i < msgs.size(); i++) {
+			if (failedSet.contains(msgs.get(i))) {
+				return i;
+			}
+		}
+
+		return msgs.size();
+	}
+
+	//returns the messages which could not be indexed after the retries
+	private List<AuditMessage> sendBulksWithRetry(final List<AuditMessage> msgs) {
+		final String indexName = getExpandedIndexName(indexPattern, index);
+		final Iterator<TimeValue> backoff = bulkBackoffPolicy.iterator();
+		List<AuditMessage> pending = msgs;
+
+		for (;;) {
+			final List<AuditMessage> failed = sendBulks(pending, indexName);
+
+			if (failed.isEmpty() || !backoff.hasNext()) {
+				return failed;
+			}
+
+			final TimeValue delay = backoff.next();
+
+			if (log.isDebugEnabled()) {
+				log.debug("Retry sending {} audit messages in {}", failed.size(), delay);
+			}
+
+			Uninterruptibles.sleepUninterruptibly(delay.millis(), TimeUnit.MILLISECONDS);
+			pending = failed;
+		}
+	}
+
+	//returns the messages which could not be indexed
+	private List<AuditMessage> sendBulks(final List<AuditMessage> msgs, final String indexName) {
+		final List<CompletableFuture<List<AuditMessage>>> results = new ArrayList<>();
+		List<AuditMessage> chunk = new ArrayList<>();
+		List<String> sources = new ArrayList<>();
+		long size = 0;
+
+		for (final AuditMessage msg : msgs) {
+			final String source = msg.toString();
+			chunk.add(msg);
+			sources.add(source);
+			size += source.length();
+
+			if (chunk.size() >= bulkMaxActions || size >= bulkMaxBytes) {
+				results.add(sendBulk(chunk, sources, indexName));
+				chunk = new ArrayList<>();
+				sources = new ArrayList<>();
+				size = 0;
+			}
+		}
+
+		if (!chunk.isEmpty()) {
+			results.add(sendBulk(chunk, sources, indexName));
+		}
+
+		final List<AuditMessage> failed = new ArrayList<>();
+
+		for (final CompletableFuture<List<AuditMessage>> result : results) {
+			failed.addAll(result.join());
+		}
+
+		return failed;
+	}
+
+	private CompletableFuture<List<AuditMessage>> sendBulk(final List<AuditMessage> chunk, final List<String> sources, final String indexName) {
+		final CompletableFuture<List<AuditMessage>> result = new CompletableFuture<>();
+
+		bulkPermits.acquireUninterruptibly();
+
+		client.bulk(sources, indexName, type, new ActionListener<BulkResponse>() {
+
+			@Override
+			public void onResponse(final BulkResponse response) {
+				final List<AuditMessage> failed = new ArrayList<>();
+
+				if (response.hasFailures()) {
+					for (final BulkItemResponse itemResponse : response) {
+						if (itemResponse.isFailed()) {
+							failed.add(chunk.get(itemResponse.getItemId()));
+						}
+					}
+					log.warn("{} of {} audit messages failed: {}", failed.size(), chunk.size(), response.buildFailureMessage());
+				}
+
+				complete(failed);
+			}
+
+			@Override
+			public void onFailure(final Exception e) {
+				log.warn("Unable to send {} audit messages to one of these servers: {} due to {}", chunk.size(), servers, e.toString());
+				complete(chunk);
+			}
+
+			private void complete(final List<AuditMessage> failed) {
+				bulkPermits.release();
+				result.complete(failed);
+			}
+		});
+
+		return result;
+	}
 }
@@ -16,13 +16,32 @@ package com.floragunn.searchguard.auditlog.sink;
 
 import java.io.IOException;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.bulk.BackoffPolicy;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.index.IndexRequest;
 import org.elasticsearch.action.index.IndexRequestBuilder;
 import org.elasticsearch.action.support.WriteRequest.RefreshPolicy;
 import org.elasticsearch.client.Client;
 import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.ByteSizeUnit;
+import org.elasticsearch.common.unit.ByteSizeValue;
 import org.elasticsearch.common.unit.TimeValue;
 import org.elasticsearch.common.util.concurrent.ThreadContext.StoredContext;
+import org.elasticsearch.threadpool.Scheduler.Cancellable;
 import org.elasticsearch.threadpool.ThreadPool;
 import org.joda.time.format.DateTimeFormat;
 import org.joda.time.format.DateTimeFormatter;
@@ -33,12 +52,26 @@ import com.floragunn.searchguard.support.HeaderHelper;
 
 public final class InternalESSink extends AuditLogSink {
 
+	static final String BULK_FLUSH_INTERVAL = "bulk.flush_interval";
+
 	private final Client clientProvider;
 	final String index;
 	final String type;
 	private DateTimeFormatter indexPattern;
 	private final ThreadPool threadPool;
 
+	//bulk mode, see doStoreBatch()
+	final boolean bulk;
+	final int bulkMaxActions;
+	final long bulkMaxBytes;
+	final int bulkMaxConcurrent;
+	private final BackoffPolicy bulkBackoffPolicy;
+	private final Semaphore bulkPermits;
+	private final Cancellable bulkFlushTask;
+	private final Object pendingLock = new Object();
+	private List<BulkItem> pending = new ArrayList<>();
+	private long pendingBytes;
+
 	public InternalESSink(final String name, final Settings settings, final String settingsPrefix, final Path configPath, final Client clientProvider, ThreadPool threadPool, AuditLogSink fallbackSink) {
 		super(name, settings, settingsPrefix, fallbackSink);
 		this.clientProvider = clientProvider;
@@ -53,19 +86,65 @@ public final class InternalESSink extends AuditLogSink {
 		} catch (IllegalArgumentException e) {
 			log.debug("Unable to parse index pattern due to {}. " + "If you have no date pattern configured you can safely ignore this message", e.getMessage());
 		}
+
+		this.bulk = sinkSettings.getAsBoolean(BULK_ENABLED, false);
+		this.bulkMaxActions = Math.max(1, sinkSettings.getAsInt(BULK_MAX_ACTIONS, 1000));
+		this.bulkMaxBytes = sinkSettings.getAsBytesSize(BULK_MAX_SIZE, new ByteSizeValue(5, ByteSizeUnit.MB)).getBytes();
+		this.bulkMaxConcurrent = Math.max(1, sinkSettings.getAsInt(BULK_MAX_CONCURRENT, 2));
+		this.bulkBackoffPolicy = BackoffPolicy.exponentialBackoff(sinkSettings.getAsTime(BULK_RETRY_DELAY, TimeValue.timeValueMillis(100)),
+				Math.max(0, sinkSettings.getAsInt(BULK_MAX_RETRIES, 3)));
+		this.bulkPermits = new Semaphore(bulkMaxConcurrent);
+
+		final TimeValue flushInterval = sinkSettings.getAsTime(BULK_FLUSH_INTERVAL, TimeValue.timeValueSeconds(5));
+
+		if (bulk && flushInterval.millis() > 0) {
+			this.bulkFlushTask = threadPool.scheduleWithFixedDelay(this::flushPending, flushInterval, ThreadPool.Names.GENERIC);
+		} else {
+			this.bulkFlushTask = null;
+		}
+
+		if (bulk) {
+			log.info("Bulk indexing of audit messages enabled with max {} actions, {} bytes, flush interval {} and {} concurrent requests",
+					bulkMaxActions, bulkMaxBytes, flushInterval, bulkMaxConcurrent);
+		}
 	}
 
 	@Override
 	public void close() throws IOException {
+		if (!bulk) {
+			return;
+		}
+
+		if (bulkFlushTask != null) {
+			bulkFlushTask.cancel();
+		}
+
+		flushPending();
+
+		try {
+			// Wait a while for the bulk requests in flight (including their retries)
+			if (bulkPermits.tryAcquire(bulkMaxConcurrent, 60, TimeUnit.SECONDS)) {
+				bulkPermits.release(bulkMaxConcurrent);
+			} else {
+				log.error("Bulk requests of audit messages did not complete");
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
 
+	@Override
+	public boolean isBatching() {
+		return bulk;
 	}
 
 	public boolean doStore(final AuditMessage msg) {
 
-		if (Boolean.parseBoolean((String) HeaderHelper.getSafeFromHeader(threadPool.getThreadContext(), ConfigConstants.SG_CONF_REQUEST_HEADER))) {
-			if (log.isTraceEnabled()) {
-				log.trace("audit log of audit log will not be executed");
-			}
+		if (bulk) {
+			return doStoreBatch(Collections.singletonList(msg));
+		}
+
+		if (isAuditOfAudit()) {
 			return true;
 		}
 
@@ -82,4 +161,231 @@ public final class InternalESSink extends AuditLogSink {
 			}
 		}
 	}
+
+	/**
+	 * Adds the messages to the pending bulk, which is sent when it reaches the max actions or size or when the flush interval elapses.
+	 * Bulks are sent asynchronously and without refresh, at most max concurrent requests at a time (further flushes wait).
+	 * Failed items are retried with backoff, items which still fail are stored on the fallback sink,
+	 * so this always returns true.
+	 */
+	@Override
+	protected boolean doStoreBatch(final List<AuditMessage> msgs) {
+
+		if (isAuditOfAudit()) {
+			return true;
+		}
+
+		for (final AuditMessage msg : msgs) {
+			final BulkItem item = new BulkItem(msg, new IndexRequest().type(type).source(msg.getAsMap()));
+			List<BulkItem> ready = null;
+
+			synchronized (pendingLock) {
+				pending.add(item);
+				pendingBytes += item.request.source().length();
+
+				if (pending.size() >= bulkMaxActions || pendingBytes >= bulkMaxBytes) {
+					ready = takePending();
+				}
+			}
+
+			if (ready != null) {
+				flush(ready);
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Sends the batch like {@link #doStoreBatch(List)}, but waits for the bulk requests and does not store items which
+	 * still fail on the fallback sink. Items after the first failed one may have been indexed already,
+	 * so they are indexed again when the caller retries them.
+	 */
+	@Override
+	protected int doTryStoreBatch(final List<AuditMessage> msgs) {
+
+		if (isAuditOfAudit()) {
+			return msgs.size();
+		}
+
+		final String indexName = getExpandedIndexName(indexPattern, index);
+		final List<BulkItem> items = new ArrayList<>(msgs.size());
+		final List<CompletableFuture<List<BulkItem>>> results = new ArrayList<>();
+		int chunkStart = 0;
+		long chunkBytes = 0;
+
+		for (final AuditMessage msg : msgs) {
+			final BulkItem item = new BulkItem(msg, new IndexRequest(indexName, type).source(msg.getAsMap()));
+			items.add(item);
+			chunkBytes += item.request.source().length();
+
+			if (items.size() - chunkStart >= bulkMaxActions || chunkBytes >= bulkMaxBytes) {
+				results.add(executeAndWait(items.subList(chunkStart, items.size())));
+				chunkStart = items.size();
+				chunkBytes = 0;
+			}
+		}
+
+		if (chunkStart < items.size()) {
+			results.add(executeAndWait(items.subList(chunkStart, items.size())));
+		}
+
+		final Set<BulkItem> failed = Collections.newSetFromMap(new IdentityHashMap<>());
+
+		for (final CompletableFuture<List<BulkItem>> result : results) {
+			failed.addAll(result.join());
+		}
+
+		for (int i = 0; i < items.size(); i++) {
+			if (failed.contains(items.get(i))) {
+				return i;
+			}
+		}
+
+		return items.size();
+	}
+
+	private CompletableFuture<List<BulkItem>> executeAndWait(final List<BulkItem> items) {
+		final CompletableFuture<List<BulkItem>> result = new CompletableFuture<>();
+		bulkPermits.acquireUninterruptibly();
+		execute(items, bulkBackoffPolicy.iterator(), failed -> {
+			bulkPermits.release();
+			result.complete(failed);
+		});
+		return result;
+	}
+
+	private boolean isAuditOfAudit() {
+		if (Boolean.parseBoolean((String) HeaderHelper.getSafeFromHeader(threadPool.getThreadContext(), ConfigConstants.SG_CONF_REQUEST_HEADER))) {
+			if (log.isTraceEnabled()) {
+				log.trace("audit log of audit log will not be executed");
+			}
+			return true;
+		}
+		return false;
+	}
+
+	//must hold pendingLock
+	private List<BulkItem> takePending() {
+		final List<BulkItem> items = pending;
+		pending = new ArrayList<>();
+		pendingBytes = 0;
+		return items;
+	}
+
+	private void flushPending() {
+		final List<BulkItem> items;
+
+		synchronized (pendingLock) {
+			if (pending.isEmpty()) {
+				return;
+			}
+			items = takePending();
+		}
+
+		flush(items);
+	}
+
+	private void flush(final List<BulkItem> items) {
+		final String indexName = getExpandedIndexName(indexPattern, index);
+
+		for (final BulkItem item : items) {
+			item.request.index(indexName);
+		}
+
+		try {
+			bulkPermits.acquire();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			log.error("Interrupted while waiting to index {} audit messages, storing them on the fallback sink", items.size());
+			for (final BulkItem item : items) {
+				storeOnFallback(item.message);
+			}
+			return;
+		}
+
+		execute(items, bulkBackoffPolicy.iterator(), failed -> {
+			try {
+				if (!failed.isEmpty()) {
+					log.error("Storing {} audit messages on the fallback sink", failed.size());
+				}
+				for (final BulkItem item : failed) {
+					storeOnFallback(item.message);
+				}
+			} finally {
+				bulkPermits.release();
+			}
+		});
+	}
+
+	//holds a permit which the callback has to release, it gets the items which still failed after the retries
+	private void execute(final List<BulkItem> items, final Iterator<TimeValue> backoff, final Consumer<List<BulkItem>> done) {
+		final BulkRequest request = new BulkRequest();
+		request.timeout(TimeValue.timeValueMinutes(1));
+
+		for (final BulkItem item : items) {
+			request.add(item.request);
+		}
+
+		try (StoredContext ctx = threadPool.getThreadContext().stashContext()) {
+			threadPool.getThreadContext().putHeader(ConfigConstants.SG_CONF_REQUEST_HEADER, "true");
+			clientProvider.bulk(request, new ActionListener<BulkResponse>() {
+
+				@Override
+				public void onResponse(final BulkResponse response) {
+					if (!response.hasFailures()) {
+						done.accept(Collections.emptyList());
+						return;
+					}
+
+					final List<BulkItem> failed = new ArrayList<>();
+
+					for (final BulkItemResponse itemResponse : response) {
+						if (itemResponse.isFailed()) {
+							failed.add(items.get(itemResponse.getItemId()));
+						}
+					}
+
+					retry(failed, backoff, response.buildFailureMessage(), done);
+				}
+
+				@Override
+				public void onFailure(final Exception e) {
+					retry(items, backoff, e.toString(), done);
+				}
+			});
+		} catch (final Exception e) {
+			retry(items, backoff, e.toString(), done);
+		}
+	}
+
+	private void retry(final List<BulkItem> items, final Iterator<TimeValue> backoff, final String reason, final Consumer<List<BulkItem>> done) {
+		if (backoff.hasNext()) {
+			final TimeValue delay = backoff.next();
+
+			if (log.isDebugEnabled()) {
+				log.debug("Retry indexing {} audit messages in {} due to {}", items.size(), delay, reason);
+			}
+
+			try {
+				threadPool.schedule(() -> execute(items, backoff, done), delay, ThreadPool.Names.GENERIC);
+				return;
+			} catch (final Exception e) {
+				log.debug("Unable to schedule retry due to {}", e.toString());
+			}
+		}
+
+		log.error("Unable to index {} audit messages due to {}", items.size(), reason);
+		done.accept(items);
+	}
+
+	private static final class BulkItem {
+		private final AuditMessage message;
+		private final IndexRequest request;
+
+		private BulkItem(final AuditMessage message, final IndexRequest request) {
+			this.message = message;
+			this.request = request;
+		}
+	}
 }
@@ -23,7 +23,11 @@ import java.security.AccessController;
 import java.security.KeyStore;
 import java.security.PrivilegedAction;
 import java.security.cert.X509Certificate;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 
+import org.apache.http.HttpResponse;
 import org.apache.http.HttpStatus;
 import org.apache.http.client.config.RequestConfig;
 import org.apache.http.client.methods.CloseableHttpResponse;
@@ -35,11 +39,17 @@ import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
 import org.apache.http.entity.ContentType;
 import org.apache.http.entity.StringEntity;
 import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClientBuilder;
 import org.apache.http.impl.client.HttpClients;
+import org.apache.http.protocol.HttpContext;
 import org.apache.http.ssl.SSLContextBuilder;
 import org.apache.http.ssl.TrustStrategy;
 import org.elasticsearch.common.Strings;
 import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.json.JsonXContent;
 
 import com.floragunn.searchguard.auditlog.impl.AuditMessage;
 import com.floragunn.searchguard.ssl.util.SSLConfigConstants;
@@ -47,6 +57,10 @@ import com.floragunn.searchguard.support.ConfigConstants;
 import com.floragunn.searchguard.support.PemKeyReader;
 
 public class WebhookSink extends AuditLogSink {
+
+	static final String BATCH_MAX_EVENTS = "webhook.batch.max_events";
+	static final String BATCH_FLUSH_INTERVAL = "webhook.batch.flush_interval";
+	static final String KEEP_ALIVE = "webhook.keep_alive";
 	
 	/* HttpClient is thread safe */
 	private final CloseableHttpClient httpClient;
@@ -55,6 +69,9 @@ public class WebhookSink extends AuditLogSink {
 	WebhookFormat webhookFormat = null;
 	final boolean verifySSL;
 	final KeyStore effectiveTruststore;
+	final int batchMaxEvents;
+	final TimeValue batchFlushInterval;
+	final TimeValue keepAlive;
 
     public WebhookSink(final String name, final Settings settings, final String settingsPrefix, final Path configPath, AuditLogSink fallbackSink) throws Exception {
 	    super(name, settings, settingsPrefix, fallbackSink);
@@ -67,6 +84,9 @@ public class WebhookSink extends AuditLogSink {
 		final String format = sinkSettings.get(ConfigConstants.SEARCHGUARD_AUDIT_WEBHOOK_FORMAT);
 		
 		verifySSL = sinkSettings.getAsBoolean(ConfigConstants.SEARCHGUARD_AUDIT_WEBHOOK_SSL_VERIFY, true);
+		batchMaxEvents = Math.max(1, sinkSettings.getAsInt(BATCH_MAX_EVENTS, 100));
+		batchFlushInterval = sinkSettings.getAsTime(BATCH_FLUSH_INTERVAL, TimeValue.timeValueSeconds(5));
+		keepAlive = sinkSettings.getAsTime(KEEP_ALIVE, TimeValue.timeValueSeconds(30));
 		httpClient = getHttpClient();
 		
 		if(httpClient == null) {
@@ -111,6 +131,10 @@ public class WebhookSink extends AuditLogSink {
 			return true;
 		}
 
+		if (webhookFormat.batched) {
+			return doStoreBatch(Collections.singletonList(msg));
+		}
+
 		return AccessController.doPrivileged(new PrivilegedAction<Boolean>() {
 
 			@Override
@@ -128,7 +152,7 @@ public class WebhookSink extends AuditLogSink {
 						log.error("Http Method '{}' defined in WebhookFormat '{}' not implemented yet", webhookFormat.method.name(),
 								webhookFormat.name());					
 					}
-					// log something in case endpoint is not reachable or did not return 200
+					// log something in case endpoint is not reachable or did not return 2xx
 					if (!success) {
 						log.error(msg.toString());
 					}
@@ -142,6 +166,49 @@ public class WebhookSink extends AuditLogSink {
 		});		
 	}
 
+	@Override
+	public boolean isBatching() {
+		return webhookFormat != null && webhookFormat.batched;
+	}
+
+	@Override
+	public int getMaxBatchSize() {
+		return isBatching() ? batchMaxEvents : super.getMaxBatchSize();
+	}
+
+	@Override
+	public long getMaxBatchDelayMillis() {
+		return isBatching() ? batchFlushInterval.millis() : super.getMaxBatchDelayMillis();
+	}
+
+	/**
+	 * Sends all messages with one request, used by the batched formats
+	 */
+	@Override
+	protected boolean doStoreBatch(List<AuditMessage> msgs) {
+		if (Strings.isEmpty(webhookUrl)) {
+			log.debug("Webhook URL is null");
+			return false;
+		}
+
+		return AccessController.doPrivileged(new PrivilegedAction<Boolean>() {
+
+			@Override
+			public Boolean run() {
+				try {
+					final boolean success = post(msgs);
+					if (!success) {
+						log.error("Unable to send {} audit messages to webhook URL '{}'", msgs.size(), webhookUrl);
+					}
+					return success;
+				} catch(Throwable t) {
+					log.error("Uncaught exception while trying to log {} messages.", msgs.size(), t);
+					return false;
+				}
+			}
+		});
+	}
+
     @Override
     public void close() throws IOException { 
         if(httpClient != null) {
@@ -203,6 +270,65 @@ public class WebhookSink extends AuditLogSink {
 	protected String formatUrlParameters(AuditMessage msg) {
 		return msg.toUrlParameters();
 	}
+
+	/**
+	 * Transforms a batch of {@link AuditMessage}s to a JSON array of their
+	 * {@link #formatJson(AuditMessage)} representations. Used by {@link WebhookFormat#JSON_ARRAY}.
+	 * 
+	 * @param msgs the AuditMessages to transform
+	 * @return the JSON array string
+	 */
+	protected String formatJsonArray(List<AuditMessage> msgs) {
+		final StringBuilder sb = new StringBuilder("[");
+		for (AuditMessage msg : msgs) {
+			if (sb.length() > 1) {
+				sb.append(',');
+			}
+			sb.append(formatJson(msg));
+		}
+		return sb.append(']').toString();
+	}
+
+	/**
+	 * Transforms a batch of {@link AuditMessage}s to newline delimited JSON, one
+	 * {@link #formatJson(AuditMessage)} line per message. Used by {@link WebhookFormat#NDJSON}.
+	 * 
+	 * @param msgs the AuditMessages to transform
+	 * @return the NDJSON string
+	 */
+	protected String formatNdjson(List<AuditMessage> msgs) {
+		final StringBuilder sb = new StringBuilder();
+		for (AuditMessage msg : msgs) {
+			sb.append(formatJson(msg)).append('\n');
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Transforms a batch of {@link AuditMessage}s to one Slack message. 
+	 * The default implementation returns
+	 * <p><blockquote><pre>
+	 * {
+	 *   "text": "<number> audit events\n<AuditMessage#toText>\n..."
+	 * }    
+	 * </pre></blockquote>
+	 * <p> 
+	 * Used by {@link WebhookFormat#SLACK_DIGEST}. Can be overridden by subclasses if a more specific format is needed.
+	 * 
+	 * @param msgs the AuditMessages to transform
+	 * @return the Slack formatted JSON string
+	 */
+	protected String formatSlackDigest(List<AuditMessage> msgs) throws IOException {
+		final StringBuilder text = new StringBuilder().append(msgs.size()).append(msgs.size() == 1 ? " audit event" : " audit events");
+		for (AuditMessage msg : msgs) {
+			text.append('\n').append(msg.toText());
+		}
+
+		try (XContentBuilder builder = JsonXContent.contentBuilder()) {
+			builder.startObject().field("text", text.toString()).endObject();
+			return Strings.toString(builder);
+		}
+	}
 	
 	boolean get(AuditMessage msg) {
 		switch (webhookFormat) {
@@ -220,7 +346,7 @@ public class WebhookSink extends AuditLogSink {
 		try {
 			serverResponse = httpClient.execute(httpGet);
 			int responseCode = serverResponse.getStatusLine().getStatusCode();
-			if (responseCode != HttpStatus.SC_OK) {
+			if (!isSuccess(responseCode)) {
 				log.error("Cannot GET to webhook URL '{}', server returned status {}", webhookUrl, responseCode);
 				return false;
 			}
@@ -267,6 +393,28 @@ public class WebhookSink extends AuditLogSink {
 
 	}
 	
+	boolean post(List<AuditMessage> msgs) throws IOException {
+
+		String payload;
+
+		switch (webhookFormat) {
+		case JSON_ARRAY:
+			payload = formatJsonArray(msgs);
+			break;
+		case NDJSON:
+			payload = formatNdjson(msgs);
+			break;
+		case SLACK_DIGEST:
+			payload = formatSlackDigest(msgs);
+			break;
+		default:
+			log.error("WebhookFormat '{}' does not support batches", webhookFormat.name());
+			return false;
+		}
+
+		return doPost(webhookUrl, payload);
+	}
+	
 	protected boolean doPost(String url, String payload) {
 
 		HttpPost postRequest = new HttpPost(url);
@@ -279,7 +427,7 @@ public class WebhookSink extends AuditLogSink {
 		try {
 			serverResponse = httpClient.execute(postRequest);
 			int responseCode = serverResponse.getStatusLine().getStatusCode();
-			if (responseCode != HttpStatus.SC_OK) {
+			if (!isSuccess(responseCode)) {
 				log.error("Cannot POST to webhook URL '{}', server returned status {}", webhookUrl, responseCode);
 				return false;
 			}
@@ -298,6 +446,10 @@ public class WebhookSink extends AuditLogSink {
 		}
 	}
 
+	private static boolean isSuccess(int responseCode) {
+		return responseCode >= HttpStatus.SC_OK && responseCode < HttpStatus.SC_MULTIPLE_CHOICES;
+	}
+
 	private KeyStore getEffectiveKeyStore(final Path configPath) {
 
 		return AccessController.doPrivileged(new PrivilegedAction<KeyStore>() {
@@ -351,34 +503,44 @@ public class WebhookSink extends AuditLogSink {
             }
         };
 
+	    // reuse pooled connections, but not longer than the server allows and not longer than keepAlive
+	    final DefaultConnectionKeepAliveStrategy keepAliveStrategy = new DefaultConnectionKeepAliveStrategy() {
+            @Override
+            public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+                final long duration = super.getKeepAliveDuration(response, context);
+                return duration > 0 ? Math.min(duration, keepAlive.millis()) : keepAlive.millis();
+            }
+        };
+
 	    try {
 	        
+	        final HttpClientBuilder builder = HttpClients.custom()
+	                .setDefaultRequestConfig(config)
+	                .setKeepAliveStrategy(keepAliveStrategy)
+	                .evictIdleConnections(keepAlive.millis(), TimeUnit.MILLISECONDS);
+	        
 	        if(!verifySSL) {
-	            return HttpClients.custom()
+	            return builder
 	                    .setSSLSocketFactory(
 	                            new SSLConnectionSocketFactory(
 	                                    new SSLContextBuilder()
 	                                    .loadTrustMaterial(trustAllStrategy)
 	                                    .build(),
 	                                    NoopHostnameVerifier.INSTANCE))
-	                    .setDefaultRequestConfig(config)
 	                    .build();   
 	        }
 	        
 	        if(effectiveTruststore == null) {
-	            return HttpClients.custom()
-                        .setDefaultRequestConfig(config)
-                        .build();  
+	            return builder.build();  
 	        }
 
-		    return HttpClients.custom()
+		    return builder
 		            .setSSLSocketFactory(
 		                    new SSLConnectionSocketFactory(
 		                            new SSLContextBuilder()
 		                            .loadTrustMaterial(effectiveTruststore, null)
 		                            .build(),
 		                            new DefaultHostnameVerifier()))
-		            .setDefaultRequestConfig(config)
 		            .build();	
 		    
 		    
@@ -393,14 +555,24 @@ public class WebhookSink extends AuditLogSink {
 		URL_PARAMETER_POST(HttpMethod.POST, ContentType.TEXT_PLAIN),
 		TEXT(HttpMethod.POST, ContentType.TEXT_PLAIN),
 		JSON(HttpMethod.POST, ContentType.APPLICATION_JSON),
-		SLACK(HttpMethod.POST, ContentType.APPLICATION_JSON);
+		SLACK(HttpMethod.POST, ContentType.APPLICATION_JSON),
+		JSON_ARRAY(HttpMethod.POST, ContentType.APPLICATION_JSON, true),
+		NDJSON(HttpMethod.POST, ContentType.create("application/x-ndjson", StandardCharsets.UTF_8), true),
+		SLACK_DIGEST(HttpMethod.POST, ContentType.APPLICATION_JSON, true);
 
 		private HttpMethod method;
 		private ContentType contentType;
+		// sends batches of messages, see WebhookSink.doStoreBatch()
+		private boolean batched;
 
 		private WebhookFormat(HttpMethod method, ContentType contentType) {
+			this(method, contentType, false);
+		}
+
+		private WebhookFormat(HttpMethod method, ContentType contentType, boolean batched) {
 			this.method = method;
 			this.contentType = contentType;
+			this.batched = batched;
 		}
 
 		HttpMethod getMethod() {
@@ -410,6 +582,10 @@ public class WebhookSink extends AuditLogSink {
 		ContentType getContentType() {
 			return contentType;
 		}
+
+		boolean isBatched() {
+			return batched;
+		}
 		
 		
 	}
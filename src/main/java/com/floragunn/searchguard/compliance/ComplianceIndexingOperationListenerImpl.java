@@ -14,28 +14,50 @@
 
 package com.floragunn.searchguard.compliance;
 
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.common.lucene.uid.Versions;
+import org.elasticsearch.common.settings.Setting;
+import org.elasticsearch.common.settings.Setting.Property;
+import org.elasticsearch.common.util.concurrent.ThreadContext;
 import org.elasticsearch.index.IndexService;
+import org.elasticsearch.index.VersionType;
 import org.elasticsearch.index.engine.Engine.Delete;
 import org.elasticsearch.index.engine.Engine.DeleteResult;
 import org.elasticsearch.index.engine.Engine.Index;
 import org.elasticsearch.index.engine.Engine.IndexResult;
 import org.elasticsearch.index.get.GetResult;
 import org.elasticsearch.index.shard.IndexShard;
+import org.elasticsearch.index.shard.IndexingOperationListener;
 import org.elasticsearch.index.shard.ShardId;
 
 import com.floragunn.searchguard.auditlog.AuditLog;
 
 public final class ComplianceIndexingOperationListenerImpl extends ComplianceIndexingOperationListener {
 
+    /**
+     * Skips the realtime get of the previous version for documents which were written by an earlier item of the same
+     * bulk shard request and for creates (see {@link WriteSession}), every other document is still looked up on its own
+     */
+    public static final Setting<Boolean> BATCHED_LOOKUP_ENABLED = Setting.boolSetting("searchguard.compliance.history.write.batched_lookup.enabled",
+            true, Property.NodeScope);
+    private static final String WRITE_SESSION_TRANSIENT = "_sg_compliance_write_session";
+
     private static final Logger log = LogManager.getLogger(ComplianceIndexingOperationListenerImpl.class);
     private final ComplianceConfig complianceConfig;
     private final AuditLog auditlog;
     private volatile IndexService is;
+    private volatile boolean batchedLookup;
+    private final List<IndexingOperationListener> listeners = new CopyOnWriteArrayList<>();
 
     public ComplianceIndexingOperationListenerImpl(final ComplianceConfig complianceConfig, final AuditLog auditlog) {
         super();
@@ -49,6 +71,22 @@ public final class ComplianceIndexingOperationListenerImpl extends ComplianceInd
             throw new ElasticsearchException("Index service already set");
         }
         this.is = is;
+        this.batchedLookup = BATCHED_LOOKUP_ENABLED.get(is.getIndexSettings().getNodeSettings());
+    }
+
+    /**
+     * @return the node settings read by this listener, they need to be registered by the plugin
+     */
+    public static List<Setting<?>> getSettings() {
+        return Collections.singletonList(BATCHED_LOOKUP_ENABLED);
+    }
+
+    /**
+     * Adds a listener which is notified after the index and delete operations of the index (of all origins),
+     * this is the only indexing operation listener of the index this module can hook into
+     */
+    public void addListener(final IndexingOperationListener listener) {
+        listeners.add(listener);
     }
 
     private static final class Context {
@@ -66,13 +104,103 @@ public final class ComplianceIndexingOperationListenerImpl extends ComplianceInd
 
     private static final ThreadLocal<Context> threadContext = new ThreadLocal<Context>();
 
+    /**
+     * The documents written by the operations of one request (usually a bulk shard request) on the primary.
+     * <p>
+     * A bulk shard request executes its items one after another on one thread within its own thread context,
+     * so the session is kept as a transient of that context and ends with the request.
+     * The previous version of a document which was already written by an earlier item of the request is exactly
+     * what this item wrote, so it is served from here instead of a realtime get (which would also refresh the shard
+     * because the document is still in the version map).
+     * <p>
+     * The previous versions of all other documents are still resolved one by one with a realtime get,
+     * a bulk of N distinct existing ids does N gets.
+     * They are not looked up together over a single searcher per bulk: this listener only sees one operation
+     * at a time, and a searcher does not see documents which were written by other requests since the last refresh,
+     * so it would return stale previous versions and thus wrong diffs.
+     */
+    static final class WriteSession {
+
+        //bulk shard requests are bounded, this only guards against unexpected reuse of a thread context
+        static final int MAX_DOCS = 10000;
+
+        private final Thread owner = Thread.currentThread();
+        private final Map<String, GetResult> written = new HashMap<>();
+
+        static WriteSession get(final ThreadContext threadContext) {
+            final Object session = threadContext.getTransient(WRITE_SESSION_TRANSIENT);
+
+            if (session == null) {
+                final WriteSession newSession = new WriteSession();
+                threadContext.putTransient(WRITE_SESSION_TRANSIENT, newSession);
+                return newSession;
+            }
+
+            //a context which was passed on to another thread
+            return session instanceof WriteSession && ((WriteSession) session).owner == Thread.currentThread() ? (WriteSession) session : null;
+        }
+
+        private static String key(final ShardId shardId, final String type, final String id) {
+            return shardId.getIndex().getUUID() + "/" + shardId.getId() + "/" + type + "/" + id;
+        }
+
+        /**
+         * @return the previous version of the document or null if it was not written within this session
+         */
+        GetResult previous(final ShardId shardId, final String type, final String id) {
+            return written.get(key(shardId, type, id));
+        }
+
+        void indexed(final ShardId shardId, final Index index, final IndexResult result) {
+            put(key(shardId, index.type(), index.id()), new GetResult(shardId.getIndexName(), index.type(), index.id(), result.getSeqNo(),
+                    result.getTerm(), result.getVersion(), true, index.source(), null));
+        }
+
+        void deleted(final ShardId shardId, final Delete delete, final DeleteResult result) {
+            put(key(shardId, delete.type(), delete.id()), new GetResult(shardId.getIndexName(), delete.type(), delete.id(),
+                    result.getSeqNo(), result.getTerm(), result.getVersion(), false, null, null));
+        }
+
+        private void put(final String key, final GetResult getResult) {
+            if (written.size() < MAX_DOCS || written.containsKey(key)) {
+                written.put(key, getResult);
+            }
+        }
+    }
+
+    private WriteSession writeSession() {
+        return batchedLookup ? WriteSession.get(is.getThreadPool().getThreadContext()) : null;
+    }
+
+    //operations which fail if the document exists (create) or which index a document with a new auto generated id
+    private static boolean cannotHavePreviousVersion(final Index index) {
+        return (index.version() == Versions.MATCH_DELETED && index.versionType() == VersionType.INTERNAL)
+                || (index.getAutoGeneratedIdTimestamp() != IndexRequest.UNSET_AUTO_GENERATED_TIMESTAMP && !index.isRetry());
+    }
+
     @Override
     public void postDelete(final ShardId shardId, final Delete delete, final DeleteResult result) {
+        for(final IndexingOperationListener listener : listeners) {
+            try {
+                listener.postDelete(shardId, delete, result);
+            } catch (Exception e) {
+                log.warn("postDelete listener [{}] failed", listener, e);
+            }
+        }
+
         if(complianceConfig.isEnabled()) {
             Objects.requireNonNull(is);
             if(result.getFailure() == null && result.isFound() && delete.origin() == org.elasticsearch.index.engine.Engine.Operation.Origin.PRIMARY) {
                 auditlog.logDocumentDeleted(shardId, delete, result);
             }
+
+            if(result.getFailure() == null && delete.origin() == org.elasticsearch.index.engine.Engine.Operation.Origin.PRIMARY
+                    && complianceConfig.logDiffsForWrite()) {
+                final WriteSession session = writeSession();
+                if(session != null) {
+                    session.deleted(shardId, delete, result);
+                }
+            }
         } 
     }
 
@@ -91,6 +219,21 @@ public final class ComplianceIndexingOperationListenerImpl extends ComplianceInd
                 return index;
             }
     
+            final WriteSession session;
+
+            if (batchedLookup && cannotHavePreviousVersion(index)) {
+                threadContext.set(new Context(null));
+                return index;
+            }
+
+            if ((session = writeSession()) != null) {
+                final GetResult previous = session.previous(shardId, index.type(), index.id());
+                if (previous != null) {
+                    threadContext.set(new Context(previous.isExists() ? previous : null));
+                    return index;
+                }
+            }
+    
             if (shard.isReadAllowed()) {
                 try {
     
@@ -127,6 +270,14 @@ public final class ComplianceIndexingOperationListenerImpl extends ComplianceInd
 
     @Override
     public void postIndex(ShardId shardId, Index index, IndexResult result) {
+        for(final IndexingOperationListener listener : listeners) {
+            try {
+                listener.postIndex(shardId, index, result);
+            } catch (Exception e) {
+                log.warn("postIndex listener [{}] failed", listener, e);
+            }
+        }
+
         if(complianceConfig.isEnabled() && complianceConfig.logDiffsForWrite()) {
             final Context context = threadContext.get();
             final GetResult previousContent = context==null?null:context.getGetResult();
@@ -141,6 +292,12 @@ public final class ComplianceIndexingOperationListenerImpl extends ComplianceInd
                 return;
             }
 
+            final WriteSession session = writeSession();
+
+            if(session != null) {
+                session.indexed(shardId, index, result);
+            }
+
             if(previousContent == null) {
                 //no previous content
                 if(!result.isCreated()) {
@@ -0,0 +1,156 @@
+/*
+ * Copyright 2016-2019 by floragunn GmbH - All rights reserved
+ *
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed here is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * This software is free of charge for non-commercial and academic use.
+ * For commercial use in a production environment you have to obtain a license
+ * from https://floragunn.com
+ *
+ */
+
+package com.floragunn.searchguard.compliance;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.elasticsearch.common.settings.Setting;
+import org.elasticsearch.common.settings.Setting.Property;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.util.concurrent.ThreadContext;
+import org.elasticsearch.common.util.concurrent.ThreadContext.StoredContext;
+import org.elasticsearch.index.shard.ShardId;
+import org.elasticsearch.threadpool.Scheduler.Cancellable;
+import org.elasticsearch.threadpool.ThreadPool;
+
+import com.floragunn.searchguard.auditlog.AuditLog;
+import com.floragunn.searchguard.auditlog.impl.AbstractAuditLog;
+
+/**
+ * Collects the compliance read events of one searcher (one request or scroll on one shard) and logs them
+ * as a single event per batch instead of one event per document.
+ * <p>
+ * A batch is logged when it reaches {@link #MAX_DOCS} documents, when it is older than {@link #MAX_AGE}
+ * (e.g. a scroll which is kept open) and when the searcher is released.
+ * The thread context of the first read of a batch is restored for logging it, so the batch is attributed
+ * to the user and request which read the documents even if the searcher is released on another thread.
+ */
+public final class DocumentReadAggregator implements Closeable {
+
+    public static final Setting<Boolean> ENABLED = Setting.boolSetting("searchguard.compliance.history.read.aggregation.enabled", false,
+            Property.NodeScope);
+    public static final Setting<Integer> MAX_DOCS = Setting.intSetting("searchguard.compliance.history.read.aggregation.max_docs", 1000, 1,
+            Property.NodeScope);
+    public static final Setting<TimeValue> MAX_AGE = Setting.positiveTimeSetting("searchguard.compliance.history.read.aggregation.max_age",
+            TimeValue.timeValueSeconds(10), Property.NodeScope);
+
+    private static final Logger log = LogManager.getLogger(DocumentReadAggregator.class);
+
+    private final ThreadPool threadPool;
+    private final ThreadContext threadContext;
+    private final AbstractAuditLog auditLog;
+    private final ComplianceConfig complianceConfig;
+    private final String index;
+    private final ShardId shardId;
+    private final int maxDocs;
+    private final TimeValue maxAge;
+    private List<String> ids;
+    private List<Map<String, String>> fieldNameValues;
+    private StoredContext context;
+    private Cancellable scheduledFlush;
+
+    private DocumentReadAggregator(final ThreadPool threadPool, final ThreadContext threadContext, final AbstractAuditLog auditLog,
+            final ComplianceConfig complianceConfig, final ShardId shardId, final int maxDocs, final TimeValue maxAge) {
+        this.threadPool = threadPool;
+        this.threadContext = threadContext;
+        this.auditLog = auditLog;
+        this.complianceConfig = complianceConfig;
+        this.index = shardId.getIndexName();
+        this.shardId = shardId;
+        this.maxDocs = maxDocs;
+        this.maxAge = maxAge;
+    }
+
+    /**
+     * @return a new aggregator or null if aggregation is disabled or not supported by the audit log,
+     * the reads are then logged document by document
+     */
+    public static DocumentReadAggregator create(final Settings settings, final ThreadPool threadPool, final ThreadContext threadContext,
+            final AuditLog auditLog, final ComplianceConfig complianceConfig, final ShardId shardId) {
+
+        if (shardId == null || !(auditLog instanceof AbstractAuditLog) || !ENABLED.get(settings)) {
+            return null;
+        }
+
+        return new DocumentReadAggregator(threadPool, threadContext, (AbstractAuditLog) auditLog, complianceConfig, shardId,
+                MAX_DOCS.get(settings), MAX_AGE.get(settings));
+    }
+
+    public static List<Setting<?>> getSettings() {
+        return Arrays.asList(ENABLED, MAX_DOCS, MAX_AGE);
+    }
+
+    public synchronized void add(final String id, final Map<String, String> fields) {
+        if (ids == null) {
+            ids = new ArrayList<>();
+            fieldNameValues = new ArrayList<>();
+            context = threadContext.newStoredContext(false);
+            final List<String> batch = ids;
+            scheduledFlush = threadPool.schedule(() -> flushExpired(batch), maxAge, ThreadPool.Names.GENERIC);
+        }
+
+        ids.add(id);
+        fieldNameValues.add(fields);
+
+        if (ids.size() >= maxDocs) {
+            flush();
+        }
+    }
+
+    private synchronized void flushExpired(final List<String> batch) {
+        //the batch might have been logged already
+        if (ids == batch) {
+            flush();
+        }
+    }
+
+    private void flush() {
+        final List<String> ids = this.ids;
+        final List<Map<String, String>> fieldNameValues = this.fieldNameValues;
+        final StoredContext context = this.context;
+        this.ids = null;
+        this.fieldNameValues = null;
+        this.context = null;
+
+        if (scheduledFlush != null) {
+            scheduledFlush.cancel();
+            scheduledFlush = null;
+        }
+
+        try (StoredContext ctx = threadContext.stashContext()) {
+            context.restore();
+            auditLog.logDocumentsRead(index, shardId, ids, fieldNameValues, complianceConfig);
+        } catch (Exception e) {
+            log.error("Unexpected error logging {} compliance read entries of index '{}': {}", ids.size(), index, e.toString(), e);
+        }
+    }
+
+    /**
+     * Logs the pending reads
+     */
+    @Override
+    public synchronized void close() {
+        if (ids != null) {
+            flush();
+        }
+    }
+}
@@ -21,30 +21,25 @@ import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
-import java.util.function.Function;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.apache.lucene.index.FieldInfo;
 import org.elasticsearch.cluster.service.ClusterService;
-import org.elasticsearch.common.bytes.BytesArray;
-import org.elasticsearch.common.bytes.BytesReference;
-import org.elasticsearch.common.collect.Tuple;
 import org.elasticsearch.common.util.concurrent.ThreadContext;
-import org.elasticsearch.common.xcontent.XContentBuilder;
-import org.elasticsearch.common.xcontent.XContentHelper;
-import org.elasticsearch.common.xcontent.XContentType;
-import org.elasticsearch.common.xcontent.support.XContentMapValues;
 import org.elasticsearch.index.Index;
 import org.elasticsearch.index.IndexService;
 import org.elasticsearch.index.mapper.Uid;
 import org.elasticsearch.index.shard.ShardId;
 
 import com.floragunn.searchguard.auditlog.AuditLog;
+import com.floragunn.searchguard.configuration.FlsSourceFilter;
 import com.floragunn.searchguard.support.HeaderHelper;
 import com.floragunn.searchguard.support.SourceFieldsContext;
 import com.floragunn.searchguard.support.WildcardMatcher;
-import com.github.wnameless.json.flattener.JsonFlattener;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 
 //TODO  We need to deal with caching!!
 //Currently we disable caching (and realtime requests) when FLS or DLS is applied
@@ -55,20 +50,23 @@ import com.github.wnameless.json.flattener.JsonFlattener;
 public final class FieldReadCallback {
 
     private static final Logger log = LogManager.getLogger(FieldReadCallback.class);
+    private static final String SOURCE_FIELD_CONTEXT_HEADER = "_sg_source_field_context";
+    private static final String SOURCE_FIELD_FILTER_TRANSIENT = "_sg_source_field_filter";
     //private final ThreadContext threadContext;
     //private final ClusterService clusterService;
     private final Index index;
     private final ComplianceConfig complianceConfig;
     private final Set<String> maskedFields;
     private final AuditLog auditLog;
-    private Function<Map<String, ?>, Map<String, Object>> filterFunction;
-    private SourceFieldsContext sfc;
+    private final FlsSourceFilter sourceFilter;
+    private final WatchedFields watchedFields;
+    private final DocumentReadAggregator readAggregator;
     private Doc doc;
     private final ShardId shardId;
 
     public FieldReadCallback(final ThreadContext threadContext, final IndexService indexService,
             final ClusterService clusterService, final ComplianceConfig complianceConfig, final AuditLog auditLog,
-            final Set<String> maskedFields, ShardId shardId) {
+            final Set<String> maskedFields, ShardId shardId, final DocumentReadAggregator readAggregator) {
         super();
         //this.threadContext = Objects.requireNonNull(threadContext);
         //this.clusterService = Objects.requireNonNull(clusterService);
@@ -77,28 +75,56 @@ public final class FieldReadCallback {
         this.auditLog = auditLog;
         this.maskedFields = maskedFields;
         this.shardId = shardId;
+        this.readAggregator = readAggregator;
+        this.sourceFilter = sourceFilter(threadContext);
+        this.watchedFields = WatchedFields.get(index.getName(), complianceConfig);
+    }
+
+    //the source fields context of a request is decoded once, the filter is kept as a transient of the request
+    private static FlsSourceFilter sourceFilter(final ThreadContext threadContext) {
         try {
-            sfc = (SourceFieldsContext) HeaderHelper.deserializeSafeFromHeader(threadContext, "_sg_source_field_context");
+            final String header = HeaderHelper.getSafeFromHeader(threadContext, SOURCE_FIELD_CONTEXT_HEADER);
+
+            if (header == null) {
+                return null;
+            }
+
+            final Object cached = threadContext.getTransient(SOURCE_FIELD_FILTER_TRANSIENT);
+
+            if (cached instanceof SourceFieldFilter && ((SourceFieldFilter) cached).header.equals(header)) {
+                return ((SourceFieldFilter) cached).filter;
+            }
+
+            final SourceFieldsContext sfc = (SourceFieldsContext) HeaderHelper.deserializeSafeFromHeader(threadContext,
+                    SOURCE_FIELD_CONTEXT_HEADER);
+            FlsSourceFilter filter = null;
+
             if(sfc != null && sfc.hasIncludesOrExcludes()) {
                 if(log.isTraceEnabled()) {
                     log.trace("_sg_source_field_context: "+sfc);
                 }
 
-                filterFunction = XContentMapValues.filter(sfc.getIncludes(), sfc.getExcludes());
+                filter = FlsSourceFilter.of(sfc.getIncludes(), sfc.getExcludes());
             }
+
+            if (cached == null) {
+                threadContext.putTransient(SOURCE_FIELD_FILTER_TRANSIENT, new SourceFieldFilter(header, filter));
+            }
+
+            return filter;
         } catch (Exception e) {
             if(log.isDebugEnabled()) {
                 log.debug("Cannot deserialize _sg_source_field_context because of {}", e.toString());
             }
+            return null;
         }
     }
 
     private boolean recordField(final String fieldName, boolean isStringField) {
-        boolean masked = false;
-        if(isStringField && maskedFields != null && maskedFields.size() > 0) {
-            masked = WildcardMatcher.matchAny(maskedFields, fieldName);
+        if(!watchedFields.isWatched(fieldName)) {
+            return false;
         }
-        return !masked && complianceConfig.readHistoryEnabledForField(index.getName(), fieldName);
+        return !(isStringField && maskedFields != null && maskedFields.size() > 0 && WildcardMatcher.matchAny(maskedFields, fieldName));
     }
 
     public void binaryFieldRead(final FieldInfo fieldInfo, byte[] fieldValue) {
@@ -109,32 +135,16 @@ public final class FieldReadCallback {
 
             if(fieldInfo.name.equals("_source")) {
 
-                if(filterFunction != null) {
-                    final BytesReference bytesRef = new BytesArray(fieldValue);
-                    final Tuple<XContentType, Map<String, Object>> bytesRefTuple = XContentHelper.convertToMap(bytesRef, false, XContentType.JSON);
-                    Map<String, Object> filteredSource = bytesRefTuple.v2();
-
-                    //if (!canOptimize) {
-                        filteredSource = filterFunction.apply(bytesRefTuple.v2());
-                    /*} else {
-                        if (!excludesSet.isEmpty()) {
-                            filteredSource.keySet().removeAll(excludesSet);
-                        } else {
-                            filteredSource.keySet().retainAll(includesSet);
-                        }
-                    }*/
-
-                    final XContentBuilder xBuilder = XContentBuilder.builder(bytesRefTuple.v1().xContent()).map(filteredSource);
-                    fieldValue = BytesReference.toBytes(BytesReference.bytes(xBuilder));
+                if(sourceFilter != null) {
+                    fieldValue = sourceFilter.filter(fieldValue);
                 }
 
-                Map<String, Object> filteredSource = new JsonFlattener(new String(fieldValue, StandardCharsets.UTF_8)).flattenAsMap();
-                for(String k: filteredSource.keySet()) {
-                    if(!recordField(k, filteredSource.get(k) instanceof String)) {
-                        continue;
+                //only the leaves of watched fields are materialized
+                SourceFlattener.flatten(fieldValue, watchedFields::isWatched, (k, v) -> {
+                    if(recordField(k, v instanceof String)) {
+                        fieldRead0(k, v);
                     }
-                    fieldRead0(k, filteredSource.get(k));
-                }
+                });
             } else if (fieldInfo.name.equals("_id")) {
                 fieldRead0(fieldInfo.name, Uid.decodeId(fieldValue));
             }  else {
@@ -194,12 +204,15 @@ public final class FieldReadCallback {
             for(Field fi: doc.fields) {
                 f.put(fi.fieldName, String.valueOf(fi.fieldValue));
             }
-            auditLog.logDocumentRead(doc.indexName, doc.id, shardId, f, complianceConfig);
+            if(readAggregator != null) {
+                readAggregator.add(doc.id, f);
+            } else {
+                auditLog.logDocumentRead(doc.indexName, doc.id, shardId, f, complianceConfig);
+            }
         } catch (Exception e) {
             log.error("Unexpected error finished compliance read entry {} in index '{}': {}", doc.id, index.getName(), e.toString(), e);
         } finally {
             doc = null;
-            sfc = null;
         }
     }
 
@@ -241,4 +254,61 @@ public final class FieldReadCallback {
             return "Field [fieldName=" + fieldName + ", fieldValue=" + fieldValue + "]";
         }
     }
+
+    private static final class SourceFieldFilter {
+        final String header;
+        final FlsSourceFilter filter;
+
+        SourceFieldFilter(final String header, final FlsSourceFilter filter) {
+            this.header = header;
+            this.filter = filter;
+        }
+    }
+
+    /**
+     * Memoized {@link ComplianceConfig#readHistoryEnabledForField(String, String)} decisions of an index,
+     * the flattened keys of the documents of an index are mostly the same.
+     * Both the indices and their keys (which are unbounded because of array indices) are evicted least recently used first,
+     * the decisions of a changed compliance config are not reused.
+     */
+    private static final class WatchedFields {
+
+        private static final int MAX_INDICES = 100;
+        private static final int MAX_FIELDS = 1000;
+        private static final Cache<String, WatchedFields> perIndex = CacheBuilder.newBuilder().maximumSize(MAX_INDICES)
+                .expireAfterAccess(1, TimeUnit.HOURS).build();
+
+        private final String index;
+        private final ComplianceConfig complianceConfig;
+        private final Cache<String, Boolean> watched = CacheBuilder.newBuilder().maximumSize(MAX_FIELDS).build();
+
+        private WatchedFields(final String index, final ComplianceConfig complianceConfig) {
+            this.index = index;
+            this.complianceConfig = complianceConfig;
+        }
+
+        static WatchedFields get(final String index, final ComplianceConfig complianceConfig) {
+            final WatchedFields cached = perIndex.getIfPresent(index);
+
+            if (cached != null && cached.complianceConfig == complianceConfig) {
+                return cached;
+            }
+
+            final WatchedFields watchedFields = new WatchedFields(index, complianceConfig);
+            perIndex.put(index, watchedFields);
+            return watchedFields;
+        }
+
+        boolean isWatched(final String fieldName) {
+            final Boolean cached = watched.getIfPresent(fieldName);
+
+            if (cached != null) {
+                return cached;
+            }
+
+            final boolean enabled = complianceConfig.readHistoryEnabledForField(index, fieldName);
+            watched.put(fieldName, enabled);
+            return enabled;
+        }
+    }
 }
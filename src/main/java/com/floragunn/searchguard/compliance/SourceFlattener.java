@@ -0,0 +1,179 @@
+/*
+ * Copyright 2016-2019 by floragunn GmbH - All rights reserved
+ *
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed here is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * This software is free of charge for non-commercial and academic use.
+ * For commercial use in a production environment you have to obtain a license
+ * from https://floragunn.com
+ *
+ */
+
+package com.floragunn.searchguard.compliance;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.util.Collections;
+import java.util.function.BiConsumer;
+import java.util.function.Predicate;
+
+import org.elasticsearch.ElasticsearchParseException;
+import org.elasticsearch.common.xcontent.NamedXContentRegistry;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.common.xcontent.XContentParser.Token;
+import org.elasticsearch.common.xcontent.XContentType;
+
+import com.floragunn.searchguard.support.SearchGuardDeprecationHandler;
+
+/**
+ * Flattens a JSON _source into its leaves by streaming it from a parser, without building the document as string or map.
+ * <p>
+ * The keys and values are the same as the ones of <code>JsonFlattener.flattenAsMap()</code> (which was used before):
+ * object keys are joined with dots, array elements are appended as <code>[index]</code>, keys containing dots or
+ * brackets are written as <code>[\"key\"]</code>, numbers are {@link BigDecimal}s and empty objects and arrays are leaves.
+ * Only the values of the selected keys are materialized.
+ */
+final class SourceFlattener {
+
+    private SourceFlattener() {
+    }
+
+    /**
+     * @param selected decides on the flattened key of a leaf whether the leaf is passed to the consumer
+     * @param consumer receives the flattened key and value of the selected leaves in document order
+     */
+    static void flatten(final byte[] source, final Predicate<String> selected, final BiConsumer<String, Object> consumer) throws IOException {
+        try (final XContentParser parser = XContentType.JSON.xContent().createParser(NamedXContentRegistry.EMPTY,
+                SearchGuardDeprecationHandler.INSTANCE, source)) {
+
+            if (parser.nextToken() != Token.START_OBJECT) {
+                throw new ElasticsearchParseException("_source is not a json object");
+            }
+
+            final StringBuilder key = new StringBuilder();
+            object(parser, parser.nextToken(), key, selected, consumer);
+        }
+    }
+
+    //token is the first token after the START_OBJECT
+    private static void object(final XContentParser parser, Token token, final StringBuilder key, final Predicate<String> selected,
+            final BiConsumer<String, Object> consumer) throws IOException {
+
+        for (; token != Token.END_OBJECT; token = parser.nextToken()) {
+            final int length = key.length();
+            appendKey(key, parser.currentName());
+            value(parser, parser.nextToken(), key, selected, consumer);
+            key.setLength(length);
+        }
+    }
+
+    //token is the first token after the START_ARRAY
+    private static void array(final XContentParser parser, Token token, final StringBuilder key, final Predicate<String> selected,
+            final BiConsumer<String, Object> consumer) throws IOException {
+
+        for (int index = 0; token != Token.END_ARRAY; token = parser.nextToken(), index++) {
+            final int length = key.length();
+            key.append('[').append(index).append(']');
+            value(parser, token, key, selected, consumer);
+            key.setLength(length);
+        }
+    }
+
+    private static void value(final XContentParser parser, final Token token, final StringBuilder key, final Predicate<String> selected,
+            final BiConsumer<String, Object> consumer) throws IOException {
+
+        if (token == Token.START_OBJECT) {
+            final Token next = parser.nextToken();
+            if (next == Token.END_OBJECT) {
+                leaf(key, Collections.emptyMap(), selected, consumer);
+            } else {
+                object(parser, next, key, selected, consumer);
+            }
+        } else if (token == Token.START_ARRAY) {
+            final Token next = parser.nextToken();
+            if (next == Token.END_ARRAY) {
+                leaf(key, Collections.emptyList(), selected, consumer);
+            } else {
+                array(parser, next, key, selected, consumer);
+            }
+        } else {
+            final String flattenedKey = key.toString();
+
+            if (!selected.test(flattenedKey)) {
+                return;
+            }
+
+            final Object value;
+
+            if (token == Token.VALUE_STRING) {
+                value = parser.text();
+            } else if (token == Token.VALUE_NUMBER) {
+                value = new BigDecimal(parser.text());
+            } else if (token == Token.VALUE_BOOLEAN) {
+                value = parser.booleanValue();
+            } else if (token == Token.VALUE_NULL) {
+                value = null;
+            } else {
+                //embedded binary, not produced by the json parser
+                value = parser.text();
+            }
+
+            consumer.accept(flattenedKey, value);
+        }
+    }
+
+    private static void leaf(final StringBuilder key, final Object value, final Predicate<String> selected,
+            final BiConsumer<String, Object> consumer) {
+        final String flattenedKey = key.toString();
+        if (selected.test(flattenedKey)) {
+            consumer.accept(flattenedKey, value);
+        }
+    }
+
+    private static void appendKey(final StringBuilder key, final String name) {
+        if (name.indexOf('.') > -1 || name.indexOf('[') > -1 || name.indexOf(']') > -1) {
+            key.append("[\\\"");
+            escape(key, name);
+            key.append("\\\"]");
+        } else {
+            if (key.length() > 0) {
+                key.append('.');
+            }
+            escape(key, name);
+        }
+    }
+
+    private static void escape(final StringBuilder key, final String name) {
+        for (int i = 0; i < name.length(); i++) {
+            final char c = name.charAt(i);
+            switch (c) {
+            case '"':
+                key.append("\\\"");
+                break;
+            case '\\':
+                key.append("\\\\");
+                break;
+            case '\b':
+                key.append("\\b");
+                break;
+            case '\f':
+                key.append("\\f");
+                break;
+            case '\n':
+                key.append("\\n");
+                break;
+            case '\r':
+                key.append("\\r");
+                break;
+            case '\t':
+                key.append("\\t");
+                break;
+            default:
+                key.append(c);
+            }
+        }
+    }
+}
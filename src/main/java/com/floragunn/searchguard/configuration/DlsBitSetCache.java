@@ -0,0 +1,414 @@
+/*
+ * Copyright 2016-2019 by floragunn GmbH - All rights reserved
+ *
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed here is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * This software is free of charge for non-commercial and academic use.
+ * For commercial use in a production environment you have to obtain a license
+ * from https://floragunn.com
+ *
+ */
+
+package com.floragunn.searchguard.configuration;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexReaderContext;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.ReaderUtil;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.Weight;
+import org.apache.lucene.search.join.BitSetProducer;
+import org.apache.lucene.util.Accountable;
+import org.apache.lucene.util.BitSet;
+import org.apache.lucene.util.BitSetIterator;
+import org.apache.lucene.util.FixedBitSet;
+import org.apache.lucene.util.RamUsageEstimator;
+import org.apache.lucene.util.SparseFixedBitSet;
+import org.elasticsearch.ExceptionsHelper;
+import org.elasticsearch.common.settings.Setting;
+import org.elasticsearch.common.settings.Setting.Property;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.ByteSizeValue;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.RemovalNotification;
+
+/**
+ * Node wide cache of the per segment DLS bitsets, used instead of the BitsetFilterCache of the index.
+ * <p>
+ * The representation of a bitset is picked by its measured density: empty results are not stored at all,
+ * sparse ones (less than 1/128 of the docs) as {@link SparseFixedBitSet} and all others as {@link FixedBitSet}.
+ * The BitsetFilterCache picks by the cost estimate of the query which heavily overestimates
+ * disjunctions of selective DLS queries, so many mostly empty dense bitsets were held.
+ * <p>
+ * The heap used is accounted per index and per DLS query set and capped (least recently used bitsets are evicted),
+ * by default to 10% of the heap. Bitsets of user specific DLS query sets (see {@link DlsQueryTemplate}) have their own part
+ * of the budget (by default 2.5% of the heap), so that the logins of many users can not evict the bitsets which are shared by many users.
+ * Entries are removed when their segment core is closed.
+ */
+final class DlsBitSetCache implements Accountable {
+
+    private static final Logger log = LogManager.getLogger(DlsBitSetCache.class);
+
+    private static final long ENTRY_OVERHEAD = RamUsageEstimator.shallowSizeOfInstance(Key.class)
+            + RamUsageEstimator.shallowSizeOfInstance(Value.class) + 8 * RamUsageEstimator.NUM_BYTES_OBJECT_REF;
+
+    public static final Setting<ByteSizeValue> MAX_SIZE = Setting.memorySizeSetting("searchguard.dls.bitset_cache.max_size", "10%",
+            Property.NodeScope);
+    public static final Setting<ByteSizeValue> MAX_USER_SPECIFIC_SIZE = Setting.memorySizeSetting(
+            "searchguard.dls.bitset_cache.max_user_specific_size", "2.5%", Property.NodeScope);
+
+    //shared by all indices of the node, the cap applies to all dls bitsets of the node
+    private static volatile DlsBitSetCache instance;
+
+    private final long maxBytes;
+    private final long maxUserSpecificBytes;
+    private final Cache<Key, Value> cache;
+    private final Cache<Key, Value> userSpecificCache;
+    private final Map<IndexReader.CacheKey, Set<Key>> keysByCore = new ConcurrentHashMap<>();
+    private final Map<String, Map<Query, AtomicLong>> ramBytesByIndex = new ConcurrentHashMap<>();
+    private final AtomicLong ramBytesUsed = new AtomicLong();
+    private final AtomicLong sparseCount = new AtomicLong();
+    private final AtomicLong denseCount = new AtomicLong();
+
+    /**
+     * @param maxBytes the heap all bitsets may use
+     * @param maxUserSpecificBytes the part of maxBytes the bitsets of user specific DLS query sets may use
+     */
+    DlsBitSetCache(final long maxBytes, final long maxUserSpecificBytes) {
+        this.maxBytes = maxBytes;
+        this.maxUserSpecificBytes = Math.min(maxBytes, maxUserSpecificBytes);
+        this.cache = newCache(this.maxBytes - this.maxUserSpecificBytes);
+        this.userSpecificCache = newCache(this.maxUserSpecificBytes);
+    }
+
+    DlsBitSetCache(final Settings settings) {
+        this(MAX_SIZE.get(settings).getBytes(), MAX_USER_SPECIFIC_SIZE.get(settings).getBytes());
+    }
+
+    /**
+     * @return the cache of this node, the caps are read from the node settings when it is created
+     */
+    static DlsBitSetCache getInstance(final Settings settings) {
+        DlsBitSetCache result = instance;
+
+        if (result == null) {
+            synchronized (DlsBitSetCache.class) {
+                result = instance;
+                if (result == null) {
+                    instance = result = new DlsBitSetCache(settings);
+                }
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * @param dlsQuery the DLS query set of a role (as returned by {@link DlsQueryParser})
+     * @param flsFieldMatcher the FLS rules the bitsets are computed with, or null
+     * @param maskedFields the masked fields in effect (their terms are hidden while the bitsets are computed), or null
+     * @param index the name of the index, for memory accounting
+     * @param userSpecific true if the DLS query set contains user specific values
+     * @param docValuesFilter the doc values fast path for the DLS query set or null
+     */
+    BitSetProducer getBitSetProducer(final Query dlsQuery, final FlsFieldMatcher flsFieldMatcher, final Set<String> maskedFields,
+            final String index, final boolean userSpecific, final DlsDocValuesFilter docValuesFilter) {
+        return new DlsBitSetProducer(dlsQuery, flsFieldMatcher, maskedFields, index, userSpecific, docValuesFilter);
+    }
+
+    @Override
+    public long ramBytesUsed() {
+        return ramBytesUsed.get();
+    }
+
+    /**
+     * @return heap used by the DLS bitsets of the index
+     */
+    long ramBytesUsed(final String index) {
+        final Map<Query, AtomicLong> perQuery = ramBytesByIndex.get(index);
+        return perQuery == null ? 0 : perQuery.values().stream().mapToLong(AtomicLong::get).sum();
+    }
+
+    /**
+     * @return heap used by the DLS bitsets of the index per DLS query set
+     */
+    Map<Query, Long> ramBytesUsedPerQuery(final String index) {
+        final Map<Query, AtomicLong> perQuery = ramBytesByIndex.get(index);
+
+        if (perQuery == null) {
+            return Collections.emptyMap();
+        }
+
+        final Map<Query, Long> result = new HashMap<>(perQuery.size());
+        perQuery.forEach((q, bytes) -> result.put(q, bytes.get()));
+        return result;
+    }
+
+    long maxBytes() {
+        return maxBytes;
+    }
+
+    long maxUserSpecificBytes() {
+        return maxUserSpecificBytes;
+    }
+
+    CacheStats stats() {
+        return cache.stats();
+    }
+
+    CacheStats userSpecificStats() {
+        return userSpecificCache.stats();
+    }
+
+    long sparseCount() {
+        return sparseCount.get();
+    }
+
+    long denseCount() {
+        return denseCount.get();
+    }
+
+    private BitSet getBitSet(final DlsBitSetProducer producer, final LeafReaderContext context) throws IOException {
+        final IndexReader.CacheHelper cacheHelper = context.reader().getCoreCacheHelper();
+
+        if (cacheHelper == null) {
+            return load(producer.dlsQuery, context);
+        }
+
+        final IndexReader.CacheKey coreKey = cacheHelper.getKey();
+        final Key key = new Key(coreKey, producer);
+
+        try {
+            return (producer.userSpecific ? userSpecificCache : cache).get(key, () -> {
+                keysByCore.computeIfAbsent(coreKey, k -> {
+                    cacheHelper.addClosedListener(this::onCoreClosed);
+                    return ConcurrentHashMap.newKeySet();
+                }).add(key);
+
+                final BitSet bitSet = load(producer.dlsQuery, context);
+                final Value value = new Value(bitSet, ENTRY_OVERHEAD + (bitSet == null ? 0 : bitSet.ramBytesUsed()));
+
+                ramBytesUsed.addAndGet(value.ramBytesUsed);
+                ramBytesByIndex.computeIfAbsent(producer.index, i -> new ConcurrentHashMap<>())
+                        .computeIfAbsent(producer.dlsQuery, q -> new AtomicLong()).addAndGet(value.ramBytesUsed);
+                return value;
+            }).bitSet;
+        } catch (ExecutionException e) {
+            throw ExceptionsHelper.convertToElastic((Exception) e.getCause());
+        }
+    }
+
+    private BitSet load(final Query query, final LeafReaderContext context) throws IOException {
+        final IndexReaderContext topLevelContext = ReaderUtil.getTopLevelContext(context);
+        final IndexSearcher searcher = new IndexSearcher(topLevelContext);
+        searcher.setQueryCache(null);
+        final Weight weight = searcher.createWeight(searcher.rewrite(query), false, 1f);
+        final Scorer scorer = weight.scorer(context);
+
+        if (scorer == null) {
+            return null;
+        }
+
+        final int maxDoc = context.reader().maxDoc();
+        final BitSet bitSet = BitSet.of(scorer.iterator(), maxDoc);
+        final int cardinality = bitSet.cardinality();
+
+        if (cardinality == 0) {
+            return null;
+        }
+
+        //same threshold as BitSet.of(), but on the actual instead of the estimated number of docs
+        final boolean sparse = cardinality < (maxDoc >>> 7);
+
+        if (sparse) {
+            sparseCount.incrementAndGet();
+        } else {
+            denseCount.incrementAndGet();
+        }
+
+        if (sparse == bitSet instanceof SparseFixedBitSet) {
+            return bitSet;
+        }
+
+        final BitSet reencoded = sparse ? new SparseFixedBitSet(maxDoc) : new FixedBitSet(maxDoc);
+        reencoded.or(new BitSetIterator(bitSet, cardinality));
+        return reencoded;
+    }
+
+    private void onCoreClosed(final IndexReader.CacheKey coreKey) {
+        final Set<Key> keys = keysByCore.remove(coreKey);
+
+        if (keys != null) {
+            cache.invalidateAll(keys);
+            userSpecificCache.invalidateAll(keys);
+        }
+
+        if (log.isTraceEnabled()) {
+            log.trace("Segment core closed, {} dls bitsets left, {} bytes", cache.size() + userSpecificCache.size(), ramBytesUsed.get());
+        }
+    }
+
+    private Cache<Key, Value> newCache(final long maxBytes) {
+        return CacheBuilder.newBuilder()
+                .maximumWeight(Math.max(0, maxBytes))
+                .weigher((Key k, Value v) -> (int) Math.min(Integer.MAX_VALUE, v.ramBytesUsed))
+                .removalListener(this::onRemoval)
+                .recordStats()
+                .build();
+    }
+
+    private void onRemoval(final RemovalNotification<Key, Value> notification) {
+        final Key key = notification.getKey();
+        final Value value = notification.getValue();
+
+        ramBytesUsed.addAndGet(-value.ramBytesUsed);
+
+        final Map<Query, AtomicLong> perQuery = ramBytesByIndex.get(key.producer.index);
+        if (perQuery != null) {
+            perQuery.computeIfPresent(key.producer.dlsQuery, (q, bytes) -> bytes.addAndGet(-value.ramBytesUsed) <= 0 ? null : bytes);
+            if (perQuery.isEmpty()) {
+                ramBytesByIndex.remove(key.producer.index, perQuery);
+            }
+        }
+
+        final Set<Key> keys = keysByCore.get(key.coreKey);
+        if (keys != null) {
+            keys.remove(key);
+        }
+    }
+
+    /**
+     * Equal for the same DLS query set, FLS rules and masked fields, so it can also be used as a key for the DLS view of a segment.
+     * The bitsets are computed on the FLS filtered leaf, which hides the terms of fields which are not visible or masked,
+     * so all of them determine the result.
+     */
+    final class DlsBitSetProducer implements BitSetProducer {
+
+        private final Query dlsQuery;
+        private final FlsFieldMatcher flsFieldMatcher;
+        private final Set<String> maskedFields;
+        private final String index;
+        private final boolean userSpecific;
+        private final DlsDocValuesFilter docValuesFilter;
+        private final int hash;
+
+        private DlsBitSetProducer(final Query dlsQuery, final FlsFieldMatcher flsFieldMatcher, final Set<String> maskedFields, final String index,
+                final boolean userSpecific, final DlsDocValuesFilter docValuesFilter) {
+            this.dlsQuery = dlsQuery;
+            this.flsFieldMatcher = flsFieldMatcher;
+            this.maskedFields = maskedFields == null || maskedFields.isEmpty() ? null : Collections.unmodifiableSet(new HashSet<>(maskedFields));
+            this.index = index;
+            this.userSpecific = userSpecific;
+            this.docValuesFilter = docValuesFilter;
+            this.hash = 31 * (31 * dlsQuery.hashCode() + Objects.hashCode(flsFieldMatcher)) + Objects.hashCode(this.maskedFields);
+        }
+
+        @Override
+        public BitSet getBitSet(final LeafReaderContext context) throws IOException {
+            return DlsBitSetCache.this.getBitSet(this, context);
+        }
+
+        FlsFieldMatcher getFlsFieldMatcher() {
+            return flsFieldMatcher;
+        }
+
+        /**
+         * @return true if the bitsets are computed with masked fields (which are read from the thread context of the search)
+         */
+        boolean hasMaskedFields() {
+            return maskedFields != null;
+        }
+
+        boolean isUserSpecific() {
+            return userSpecific;
+        }
+
+        /**
+         * @return the doc values fast path for the DLS query set, it is derived from the query so it is not part of equals()
+         */
+        DlsDocValuesFilter getDocValuesFilter() {
+            return docValuesFilter;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(final Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof DlsBitSetProducer)) {
+                return false;
+            }
+            final DlsBitSetProducer other = (DlsBitSetProducer) obj;
+            return hash == other.hash && Objects.equals(flsFieldMatcher, other.flsFieldMatcher) && Objects.equals(maskedFields, other.maskedFields)
+                    && dlsQuery.equals(other.dlsQuery);
+        }
+
+        @Override
+        public String toString() {
+            return "DlsBitSetProducer(" + dlsQuery + ")";
+        }
+    }
+
+    private static final class Key {
+        private final IndexReader.CacheKey coreKey;
+        private final DlsBitSetProducer producer;
+
+        Key(final IndexReader.CacheKey coreKey, final DlsBitSetProducer producer) {
+            this.coreKey = coreKey;
+            this.producer = producer;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * coreKey.hashCode() + producer.hashCode();
+        }
+
+        @Override
+        public boolean equals(final Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            final Key other = (Key) obj;
+            return coreKey == other.coreKey && producer.equals(other.producer);
+        }
+    }
+
+    private static final class Value {
+        private final BitSet bitSet;
+        private final long ramBytesUsed;
+
+        Value(final BitSet bitSet, final long ramBytesUsed) {
+            this.bitSet = bitSet;
+            this.ramBytesUsed = ramBytesUsed;
+        }
+    }
+}
@@ -0,0 +1,299 @@
+/*
+ * Copyright 2016-2019 by floragunn GmbH - All rights reserved
+ *
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed here is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * This software is free of charge for non-commercial and academic use.
+ * For commercial use in a production environment you have to obtain a license
+ * from https://floragunn.com
+ *
+ */
+
+package com.floragunn.searchguard.configuration;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.FilterLeafReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.search.join.BitSetProducer;
+import org.apache.lucene.store.AlreadyClosedException;
+import org.elasticsearch.cluster.service.ClusterService;
+import org.elasticsearch.common.settings.Setting;
+import org.elasticsearch.common.settings.Setting.Property;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.util.concurrent.ThreadContext;
+import org.elasticsearch.common.util.concurrent.ThreadContext.StoredContext;
+import org.elasticsearch.index.IndexService;
+import org.elasticsearch.index.engine.Engine;
+import org.elasticsearch.index.shard.IndexShard;
+import org.elasticsearch.index.shard.IndexingOperationListener;
+import org.elasticsearch.index.shard.ShardId;
+import org.elasticsearch.threadpool.ThreadPool;
+
+import com.floragunn.searchguard.auditlog.AuditLog;
+import com.floragunn.searchguard.compliance.ComplianceConfig;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * Builds the DLS bitsets of the recently used ("hot") DLS query sets of an index for new segments
+ * (after a refresh or a merge) in the background, so that the first restricted search on a new segment
+ * does not pay for it inline.
+ * <p>
+ * New segments are noticed when a searcher is wrapped. To have the bitsets ready before the first search after a refresh,
+ * the warmer listens to the indexing operations of the index and registers a refresh listener for the shard
+ * (at most one per shard at a time, and only while the shard has spare refresh listeners so that no refresh is forced).
+ * When the operation becomes visible a searcher is acquired on the warmer thread pool, wrapping it notices the new segments.
+ * Segments created by merges are still only noticed when a searcher is wrapped.
+ * <p>
+ * The hot query sets are held in a bounded LRU, the bitsets are built on the warmer thread pool of the node
+ * with a bounded number of pending tasks per index. If that is exceeded warming is skipped, the bitsets are then built inline as before.
+ * <p>
+ * User specific query sets are not warmed, they would only churn the hot query sets. Neither are query sets of users
+ * with masked fields: masking is applied from the thread context of the search, which a warming task does not have,
+ * so their bitsets would differ from the ones built inline.
+ */
+final class DlsBitSetWarmer implements IndexingOperationListener {
+
+    public static final Setting<Boolean> ENABLED = Setting.boolSetting("searchguard.dls.warmer.enabled", true, Property.NodeScope);
+    public static final Setting<Integer> MAX_QUERY_SETS = Setting.intSetting("searchguard.dls.warmer.max_query_sets", 20, 1, Property.NodeScope);
+    public static final Setting<Integer> MAX_QUEUE_LEN = Setting.intSetting("searchguard.dls.warmer.max_queue_len", 1000, 1, Property.NodeScope);
+
+    private static final Logger log = LogManager.getLogger(DlsBitSetWarmer.class);
+
+    private final boolean enabled;
+    private final int maxPending;
+    private final AtomicInteger pending = new AtomicInteger();
+    private final Cache<BitSetProducer, Boolean> hotProducers;
+    private final Set<IndexReader.CacheKey> knownCores = ConcurrentHashMap.newKeySet();
+    private final Map<Integer, AtomicBoolean> refreshListenerPending = new ConcurrentHashMap<>();
+    private final IndexService indexService;
+    private final ThreadContext threadContext;
+    private final ClusterService clusterService;
+    private final ComplianceConfig complianceConfig;
+    private final AuditLog auditlog;
+    private final AtomicLong warmed = new AtomicLong();
+    private final AtomicLong skipped = new AtomicLong();
+
+    DlsBitSetWarmer(final Settings settings, final IndexService indexService, final ThreadContext threadContext,
+            final ClusterService clusterService, final ComplianceConfig complianceConfig, final AuditLog auditlog) {
+        this.enabled = ENABLED.get(settings);
+        this.maxPending = MAX_QUEUE_LEN.get(settings);
+        this.hotProducers = CacheBuilder.newBuilder().maximumSize(MAX_QUERY_SETS.get(settings))
+                .expireAfterAccess(1, TimeUnit.HOURS).build();
+        this.indexService = indexService;
+        this.threadContext = threadContext;
+        this.clusterService = clusterService;
+        this.complianceConfig = complianceConfig;
+        this.auditlog = auditlog;
+    }
+
+    /**
+     * Called for every wrapped directory reader
+     *
+     * @param dlsBitSetProducer the DLS producer of the current search or null
+     */
+    void onWrap(final DirectoryReader reader, final BitSetProducer dlsBitSetProducer, final ShardId shardId) {
+
+        if (!enabled) {
+            return;
+        }
+
+        if (dlsBitSetProducer != null && isWarmable(dlsBitSetProducer)) {
+            hotProducers.put(dlsBitSetProducer, Boolean.TRUE);
+        }
+
+        final List<LeafReader> newLeaves = new ArrayList<>();
+
+        for (final LeafReaderContext leaf : reader.leaves()) {
+            final IndexReader.CacheHelper cacheHelper = leaf.reader().getCoreCacheHelper();
+
+            if (cacheHelper == null || knownCores.contains(cacheHelper.getKey())) {
+                continue;
+            }
+
+            try {
+                if (knownCores.add(cacheHelper.getKey())) {
+                    cacheHelper.addClosedListener(knownCores::remove);
+                    //ref counting is only meaningful on the segment reader, filter readers do not propagate it
+                    newLeaves.add(FilterLeafReader.unwrap(leaf.reader()));
+                }
+            } catch (AlreadyClosedException e) {
+                knownCores.remove(cacheHelper.getKey());
+            }
+        }
+
+        if (newLeaves.isEmpty() || hotProducers.size() == 0) {
+            return;
+        }
+
+        final List<BitSetProducer> producers = new ArrayList<>(hotProducers.asMap().keySet());
+
+        for (final LeafReader leaf : newLeaves) {
+            for (final BitSetProducer producer : producers) {
+                if (pending.incrementAndGet() > maxPending) {
+                    pending.decrementAndGet();
+                    skipped.incrementAndGet();
+                    continue;
+                }
+
+                //the task must not see the thread context of this search (e.g. its masked fields)
+                try (StoredContext ctx = threadContext.stashContext()) {
+                    indexService.getThreadPool().executor(ThreadPool.Names.WARMER).execute(() -> {
+                        try {
+                            warm(leaf, producer, shardId);
+                        } finally {
+                            pending.decrementAndGet();
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    //node is shutting down
+                    pending.decrementAndGet();
+                    skipped.incrementAndGet();
+                }
+            }
+        }
+    }
+
+    @Override
+    public void postIndex(final ShardId shardId, final Engine.Index index, final Engine.IndexResult result) {
+        onOperation(shardId, result);
+    }
+
+    @Override
+    public void postDelete(final ShardId shardId, final Engine.Delete delete, final Engine.DeleteResult result) {
+        onOperation(shardId, result);
+    }
+
+    private void onOperation(final ShardId shardId, final Engine.Result result) {
+
+        //without hot query sets there is nothing to warm
+        if (!enabled || result.getTranslogLocation() == null || hotProducers.size() == 0) {
+            return;
+        }
+
+        final AtomicBoolean pendingForShard = refreshListenerPending.computeIfAbsent(shardId.getId(), id -> new AtomicBoolean());
+
+        if (pendingForShard.get() || !pendingForShard.compareAndSet(false, true)) {
+            return;
+        }
+
+        final IndexShard shard = indexService.getShardOrNull(shardId.getId());
+
+        //a refresh is forced if a shard runs out of refresh listeners, the ones of wait_for requests take precedence
+        if (shard == null || shard.refreshStats().getListeners() >= indexService.getIndexSettings().getMaxRefreshListeners() / 2) {
+            pendingForShard.set(false);
+            return;
+        }
+
+        try {
+            shard.addRefreshListener(result.getTranslogLocation(), forcedRefresh -> {
+                pendingForShard.set(false);
+                onRefresh(shard);
+            });
+        } catch (Exception e) {
+            pendingForShard.set(false);
+            log.debug("Unable to add refresh listener for {}", shardId, e);
+        }
+    }
+
+    /**
+     * Acquires a searcher, so that the new segments are noticed by {@link #onWrap(DirectoryReader, BitSetProducer, ShardId)}
+     */
+    private void onRefresh(final IndexShard shard) {
+        //called on the refresh thread (or the indexing thread if already visible), the searcher is acquired without the thread context of a request
+        try (StoredContext ctx = threadContext.stashContext()) {
+            indexService.getThreadPool().executor(ThreadPool.Names.WARMER).execute(() -> {
+                try (Engine.Searcher searcher = shard.acquireSearcher("dls_warmer")) {
+                    //only wrapping the searcher is needed
+                } catch (Exception e) {
+                    //shard closed or not yet started
+                    log.debug("Unable to acquire searcher for {}", shard.shardId(), e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            //node is shutting down
+            skipped.incrementAndGet();
+        }
+    }
+
+    private static boolean isWarmable(final BitSetProducer producer) {
+        if (!(producer instanceof DlsBitSetCache.DlsBitSetProducer)) {
+            return true;
+        }
+
+        final DlsBitSetCache.DlsBitSetProducer dlsBitSetProducer = (DlsBitSetCache.DlsBitSetProducer) producer;
+        return !dlsBitSetProducer.isUserSpecific() && !dlsBitSetProducer.hasMaskedFields();
+    }
+
+    long hotQuerySetCount() {
+        return hotProducers.size();
+    }
+
+    long warmedCount() {
+        return warmed.get();
+    }
+
+    long skippedCount() {
+        return skipped.get();
+    }
+
+    private void warm(final LeafReader segmentReader, final BitSetProducer producer, final ShardId shardId) {
+
+        if (!segmentReader.tryIncRef()) {
+            //already closed again
+            skipped.incrementAndGet();
+            return;
+        }
+
+        try {
+            final FlsFieldMatcher flsFieldMatcher = producer instanceof DlsBitSetCache.DlsBitSetProducer
+                    ? ((DlsBitSetCache.DlsBitSetProducer) producer).getFlsFieldMatcher()
+                    : null;
+
+            //the bitsets are computed on the fls filtered leaf, see DlsBitSetCache (producers with masked fields are not warmed)
+            final LeafReader leaf = flsFieldMatcher == null ? segmentReader
+                    : new DlsFlsFilterLeafReader(segmentReader, flsFieldMatcher, null, indexService, threadContext, clusterService,
+                            complianceConfig, auditlog, null, shardId, null, null, null, null, null);
+
+            final DlsDocValuesFilter docValuesFilter = producer instanceof DlsBitSetCache.DlsBitSetProducer
+                    ? ((DlsBitSetCache.DlsBitSetProducer) producer).getDocValuesFilter()
+                    : null;
+
+            //evaluated lazily against doc values, there is no bitset to build
+            if (docValuesFilter != null && docValuesFilter.isSelective(leaf)) {
+                return;
+            }
+
+            producer.getBitSet(leaf.getContext());
+            warmed.incrementAndGet();
+        } catch (AlreadyClosedException e) {
+            skipped.incrementAndGet();
+        } catch (Exception e) {
+            log.warn("Unable to warm DLS bitset {} for {}", producer, shardId, e);
+        } finally {
+            try {
+                segmentReader.decRef();
+            } catch (Exception e) {
+                log.warn("Unable to release segment reader for {}", shardId, e);
+            }
+        }
+    }
+}
@@ -0,0 +1,340 @@
+/*
+ * Copyright 2016-2019 by floragunn GmbH - All rights reserved
+ *
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed here is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * This software is free of charge for non-commercial and academic use.
+ * For commercial use in a production environment you have to obtain a license
+ * from https://floragunn.com
+ *
+ */
+
+package com.floragunn.searchguard.configuration;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.lucene.index.DocValues;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.PostingsEnum;
+import org.apache.lucene.index.PrefixCodedTerms.TermIterator;
+import org.apache.lucene.index.SortedSetDocValues;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.ConstantScoreQuery;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermInSetQuery;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.DocIdSetBuilder;
+import org.apache.lucene.util.FixedBitSet;
+import org.apache.lucene.util.RamUsageEstimator;
+import org.elasticsearch.ExceptionsHelper;
+import org.elasticsearch.index.mapper.KeywordFieldMapper;
+import org.elasticsearch.index.mapper.MappedFieldType;
+import org.elasticsearch.index.mapper.MapperService;
+
+/**
+ * Fast path for DLS query sets which reduce to "field is one of these values" on a keyword field with doc values,
+ * which is the typical tenant DLS rule (a term or terms query, see {@link DlsQueryParser#canonicalize}).
+ * <p>
+ * Instead of materializing a bitset per segment the values are resolved to ordinals once per segment
+ * and the live docs are answered lazily against the {@link SortedSetDocValues} of the field.
+ * This is only done if the values match a small fraction of the documents of the segment (measured by their doc freqs),
+ * otherwise a bitset is cheaper to check and the regular {@link DlsBitSetCache} path is used.
+ */
+final class DlsDocValuesFilter {
+
+    //the values may match at most 1/16 of the docs of a segment for the lazy live docs
+    private static final int MAX_MATCH_RATIO_SHIFT = 4;
+
+    private final String field;
+    private final BytesRef[] values;
+
+    private DlsDocValuesFilter(final String field, final BytesRef[] values) {
+        this.field = field;
+        this.values = values;
+    }
+
+    /**
+     * @param dlsQuery the DLS query set as returned by {@link DlsQueryParser}
+     * @return the filter or null if the query is not a term query on a keyword field with doc values
+     */
+    static DlsDocValuesFilter of(final Query dlsQuery, final MapperService mapperService) {
+
+        Query query = dlsQuery;
+
+        while (query instanceof ConstantScoreQuery) {
+            query = ((ConstantScoreQuery) query).getQuery();
+        }
+
+        final String field;
+        final List<BytesRef> values = new ArrayList<>();
+
+        if (query instanceof TermQuery) {
+            field = ((TermQuery) query).getTerm().field();
+            values.add(((TermQuery) query).getTerm().bytes());
+        } else if (query instanceof TermInSetQuery) {
+            final TermIterator iterator = ((TermInSetQuery) query).getTermData().iterator();
+            BytesRef term = iterator.next();
+            //the field is reset at the end of the terms
+            field = iterator.field();
+            for (; term != null; term = iterator.next()) {
+                values.add(BytesRef.deepCopyOf(term));
+            }
+        } else {
+            return null;
+        }
+
+        if (field == null || values.isEmpty()) {
+            return null;
+        }
+
+        final MappedFieldType fieldType = mapperService.fullName(field);
+
+        if (!(fieldType instanceof KeywordFieldMapper.KeywordFieldType) || !fieldType.hasDocValues()) {
+            return null;
+        }
+
+        final BytesRef[] sortedValues = values.toArray(new BytesRef[0]);
+        Arrays.sort(sortedValues);
+        return new DlsDocValuesFilter(field, sortedValues);
+    }
+
+    String getField() {
+        return field;
+    }
+
+    /**
+     * @param dlsLeaf the leaf the DLS rules are evaluated on (FLS applies)
+     * @return true if the values match few enough documents of the segment for lazy live docs
+     */
+    boolean isSelective(final LeafReader dlsLeaf) throws IOException {
+        final Terms terms = dlsLeaf.terms(field);
+
+        if (terms == null) {
+            return true;
+        }
+
+        final TermsEnum termsEnum = terms.iterator();
+        long docFreq = 0;
+
+        for (final BytesRef value : values) {
+            if (termsEnum.seekExact(value)) {
+                docFreq += termsEnum.docFreq();
+            }
+        }
+
+        return docFreq <= dlsLeaf.maxDoc() >>> MAX_MATCH_RATIO_SHIFT;
+    }
+
+    /**
+     * @param dlsLeaf the leaf the DLS rules are evaluated on (FLS applies), only used while building the live docs
+     * @param segmentReader the segment reader the live docs are built for
+     * @param segmentLiveDocs the live docs of the segment reader
+     * @return the live docs or null if the values match too many documents of the segment
+     */
+    DlsReaderViews.DlsLiveDocs getLiveDocs(final LeafReader dlsLeaf, final LeafReader segmentReader, final Bits segmentLiveDocs)
+            throws IOException {
+
+        final int maxDoc = segmentReader.maxDoc();
+        //the field might be hidden by FLS or masked, the DLS query does not match anything then
+        final Terms terms = dlsLeaf.terms(field);
+
+        if (terms == null) {
+            return new DlsReaderViews.DlsLiveDocs(new Bits.MatchNoBits(maxDoc), 0, 0);
+        }
+
+        final TermsEnum termsEnum = terms.iterator();
+        final List<BytesRef> matchingValues = new ArrayList<>(values.length);
+        long docFreq = 0;
+
+        for (final BytesRef value : values) {
+            if (termsEnum.seekExact(value)) {
+                matchingValues.add(value);
+                docFreq += termsEnum.docFreq();
+            }
+        }
+
+        if (docFreq > maxDoc >>> MAX_MATCH_RATIO_SHIFT) {
+            return null;
+        }
+
+        if (matchingValues.isEmpty()) {
+            return new DlsReaderViews.DlsLiveDocs(new Bits.MatchNoBits(maxDoc), 0, 0);
+        }
+
+        final SortedSetDocValues docValues = DocValues.getSortedSet(segmentReader, field);
+        final long[] ords = new long[matchingValues.size()];
+
+        for (int i = 0; i < ords.length; i++) {
+            ords[i] = docValues.lookupTerm(matchingValues.get(i));
+
+            if (ords[i] < 0) {
+                //indexed but without doc values (e.g. doc values were enabled later), the bitset is built instead
+                return null;
+            }
+        }
+
+        //the values are sorted, so are the ords
+        return new DocValuesLiveDocs(segmentReader, ords, segmentLiveDocs, count(termsEnum, matchingValues, segmentLiveDocs, maxDoc));
+    }
+
+    private static int count(final TermsEnum termsEnum, final List<BytesRef> matchingValues, final Bits segmentLiveDocs, final int maxDoc)
+            throws IOException {
+
+        final DocIdSetIterator matches;
+
+        if (matchingValues.size() == 1) {
+            termsEnum.seekExact(matchingValues.get(0));
+            matches = termsEnum.postings(null, PostingsEnum.NONE);
+        } else {
+            //a document can have several of the values
+            final DocIdSetBuilder builder = new DocIdSetBuilder(maxDoc);
+            for (final BytesRef value : matchingValues) {
+                termsEnum.seekExact(value);
+                builder.add(termsEnum.postings(null, PostingsEnum.NONE));
+            }
+            matches = builder.build().iterator();
+        }
+
+        int count = 0;
+
+        if (matches == null) {
+            return count;
+        }
+
+        for (int doc = matches.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS; doc = matches.nextDoc()) {
+            if (segmentLiveDocs == null || segmentLiveDocs.get(doc)) {
+                count++;
+            }
+        }
+
+        return count;
+    }
+
+    @Override
+    public String toString() {
+        return "DlsDocValuesFilter(" + field + ":" + values.length + " values)";
+    }
+
+    /**
+     * Every call of {@link #getLiveDocs()} returns new bits with their own doc values iterator, they must not be shared
+     * between threads (like any other live docs of a search). Doc values can only move forward, so as soon as the live docs
+     * are accessed backwards (e.g. realtime gets) they are built into a bitset once, which is used from then on
+     * and accounted in {@link #ramBytesUsed()}.
+     */
+    private final class DocValuesLiveDocs extends DlsReaderViews.DlsLiveDocs {
+
+        private final LeafReader segmentReader;
+        private final long[] ords;
+        private final long minOrd;
+        private final long maxOrd;
+        private final Bits segmentLiveDocs;
+        private volatile FixedBitSet fixedBits;
+
+        DocValuesLiveDocs(final LeafReader segmentReader, final long[] ords, final Bits segmentLiveDocs, final int numDocs) {
+            super(null, numDocs, RamUsageEstimator.sizeOf(ords));
+            this.segmentReader = segmentReader;
+            this.ords = ords;
+            this.minOrd = ords[0];
+            this.maxOrd = ords[ords.length - 1];
+            this.segmentLiveDocs = segmentLiveDocs;
+        }
+
+        @Override
+        Bits getLiveDocs() {
+            final FixedBitSet fixedBits = this.fixedBits;
+            return fixedBits == null ? new DocValuesBits(this) : fixedBits;
+        }
+
+        boolean matches(final SortedSetDocValues docValues) throws IOException {
+            //ords of a document are returned in ascending order
+            for (long ord = docValues.nextOrd(); ord != SortedSetDocValues.NO_MORE_ORDS && ord <= maxOrd; ord = docValues.nextOrd()) {
+                if (ord >= minOrd && Arrays.binarySearch(ords, ord) >= 0) {
+                    return true;
+                }
+            }
+
+            return false;
+        }
+
+        synchronized FixedBitSet getFixedBits() throws IOException {
+            if (fixedBits == null) {
+                final FixedBitSet result = new FixedBitSet(segmentReader.maxDoc());
+                final SortedSetDocValues docValues = DocValues.getSortedSet(segmentReader, field);
+
+                for (int doc = docValues.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS; doc = docValues.nextDoc()) {
+                    if ((segmentLiveDocs == null || segmentLiveDocs.get(doc)) && matches(docValues)) {
+                        result.set(doc);
+                    }
+                }
+
+                fixedBits = result;
+                grow(result.ramBytesUsed());
+            }
+
+            return fixedBits;
+        }
+    }
+
+    private final class DocValuesBits implements Bits {
+
+        private final DocValuesLiveDocs liveDocs;
+        private SortedSetDocValues docValues;
+        private FixedBitSet fixedBits;
+        private int lastDoc = -1;
+        private boolean lastMatch;
+
+        DocValuesBits(final DocValuesLiveDocs liveDocs) {
+            this.liveDocs = liveDocs;
+        }
+
+        @Override
+        public boolean get(final int index) {
+
+            if (fixedBits != null) {
+                return fixedBits.get(index);
+            }
+
+            if (liveDocs.segmentLiveDocs != null && !liveDocs.segmentLiveDocs.get(index)) {
+                return false;
+            }
+
+            if (index == lastDoc) {
+                return lastMatch;
+            }
+
+            try {
+                //doc values can only move forward
+                if (index < lastDoc) {
+                    fixedBits = liveDocs.getFixedBits();
+                    docValues = null;
+                    return fixedBits.get(index);
+                }
+
+                if (docValues == null) {
+                    docValues = DocValues.getSortedSet(liveDocs.segmentReader, field);
+                }
+
+                lastDoc = index;
+                lastMatch = docValues.advanceExact(index) && liveDocs.matches(docValues);
+                return lastMatch;
+            } catch (IOException e) {
+                throw ExceptionsHelper.convertToElastic(e);
+            }
+        }
+
+        @Override
+        public int length() {
+            return liveDocs.segmentReader.maxDoc();
+        }
+    }
+}
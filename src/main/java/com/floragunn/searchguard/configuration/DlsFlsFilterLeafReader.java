@@ -21,14 +21,10 @@ package com.floragunn.searchguard.configuration;
 
 import java.io.IOException;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.Iterator;
-import java.util.List;
-import java.util.ListIterator;
 import java.util.Map;
-import java.util.Optional;
 import java.util.Set;
-import java.util.function.Function;
+import java.util.concurrent.Callable;
 
 import org.apache.lucene.index.BinaryDocValues;
 import org.apache.lucene.index.DirectoryReader;
@@ -53,62 +49,54 @@ import org.apache.lucene.util.BitSet;
 import org.apache.lucene.util.BitSetIterator;
 import org.apache.lucene.util.Bits;
 import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.BytesRefBuilder;
 import org.apache.lucene.util.automaton.CompiledAutomaton;
 import org.elasticsearch.ExceptionsHelper;
 import org.elasticsearch.cluster.service.ClusterService;
-import org.elasticsearch.common.bytes.BytesArray;
-import org.elasticsearch.common.bytes.BytesReference;
-import org.elasticsearch.common.collect.Tuple;
 import org.elasticsearch.common.util.concurrent.ThreadContext;
-import org.elasticsearch.common.xcontent.XContentBuilder;
-import org.elasticsearch.common.xcontent.XContentHelper;
-import org.elasticsearch.common.xcontent.XContentType;
-import org.elasticsearch.common.xcontent.support.XContentMapValues;
 import org.elasticsearch.index.IndexService;
 import org.elasticsearch.index.shard.ShardId;
 
 import com.floragunn.searchguard.auditlog.AuditLog;
 import com.floragunn.searchguard.compliance.ComplianceConfig;
+import com.floragunn.searchguard.compliance.DocumentReadAggregator;
 import com.floragunn.searchguard.compliance.FieldReadCallback;
-import com.floragunn.searchguard.support.ConfigConstants;
-import com.floragunn.searchguard.support.HeaderHelper;
-import com.floragunn.searchguard.support.MapUtils;
-import com.floragunn.searchguard.support.SgUtils;
 import com.floragunn.searchguard.support.WildcardMatcher;
-import com.google.common.base.Joiner;
 import com.google.common.base.Predicate;
 import com.google.common.collect.Iterators;
 
 class DlsFlsFilterLeafReader extends FilterLeafReader {
 
     private static final String KEYWORD = ".keyword";
-    private static final String[] EMPTY_STRING_ARRAY = new String[0];
-    private final Set<String> includesSet;
-    private final Set<String> excludesSet;
+    private final FlsFieldMatcher flsFieldMatcher;
     private final FieldInfos flsFieldInfos;
     private volatile int numDocs = -1;
     private final boolean flsEnabled;
     private final boolean dlsEnabled;
-    private String[] includes;
-    private String[] excludes;
-    private boolean canOptimize = true;
-    private Function<Map<String, ?>, Map<String, Object>> filterFunction;
     private final IndexService indexService;
     private final ThreadContext threadContext;
     private final ClusterService clusterService;
     private final ComplianceConfig complianceConfig;
     private final AuditLog auditlog;
     private final Map<String, MaskedField> maskedFieldsMap;
+    private final MaskedSourceFilter maskedSourceFilter;
+    private final FlsDocValuesSource flsDocValuesSource;
+    private final FlsDocValuesSource.LeafSource flsLeafSource;
     private final Set<String> maskedFieldsKeySet;
     private final ShardId shardId;
     private BitSet bs;
+    private DlsReaderViews.DlsLiveDocs dlsLiveDocs;
     private final boolean maskFields;
+    private final MaskedOrdinalsCache maskedOrdinalsCache;
+    private final DocumentReadAggregator readAggregator;
     
     
-    DlsFlsFilterLeafReader(final LeafReader delegate, final Set<String> includesExcludes,
+    DlsFlsFilterLeafReader(final LeafReader delegate, final FlsFieldMatcher flsFieldMatcher,
             final BitSetProducer bsp, final IndexService indexService, final ThreadContext threadContext,
             final ClusterService clusterService, final ComplianceConfig complianceConfig,
-            final AuditLog auditlog, final Set<String> maskedFields, final ShardId shardId) {
+            final AuditLog auditlog, final Set<String> maskedFields, final ShardId shardId,
+            final DlsFlsLeafCache leafCache, final DlsFlsLeafCache.Fingerprint fingerprint, final DlsReaderViews.View dlsView,
+            final MaskedOrdinalsCache maskedOrdinalsCache, final DocumentReadAggregator readAggregator) {
         super(delegate);        
         
         maskFields = (complianceConfig.isEnabled() && maskedFields != null && maskedFields.size() > 0);
@@ -118,109 +106,87 @@ class DlsFlsFilterLeafReader extends FilterLeafReader {
         this.clusterService = clusterService;
         this.complianceConfig = complianceConfig;
         this.auditlog = auditlog;
-        this.maskedFieldsMap = maskFields?extractMaskedFields(maskedFields):null;
-        
-        if(maskedFieldsMap != null) {
-            maskedFieldsKeySet = maskedFieldsMap.keySet();
-        } else {
-            maskedFieldsKeySet = null;
-        }
-        
         this.shardId = shardId;
-        flsEnabled = includesExcludes != null && !includesExcludes.isEmpty();
+        this.flsFieldMatcher = flsFieldMatcher;
+        this.maskedOrdinalsCache = maskedOrdinalsCache;
+        this.readAggregator = readAggregator;
+        flsEnabled = flsFieldMatcher != null;
         dlsEnabled = bsp != null;
 
-        if (flsEnabled) {
-
-            final FieldInfos infos = delegate.getFieldInfos();
-            this.includesSet = new HashSet<>(includesExcludes.size());
-            this.excludesSet = new HashSet<>(includesExcludes.size());
-
-            for (final String incExc : includesExcludes) {
-                if (canOptimize && (incExc.indexOf('.') > -1 || incExc.indexOf('*') > -1)) {
-                    canOptimize = false;
-                }
-
-                final char firstChar = incExc.charAt(0);
-
-                if (firstChar == '!' || firstChar == '~') {
-                    excludesSet.add(incExc.substring(1));
-                } else {
-                    includesSet.add(incExc);
-                }
-            }
-
-            int i = 0;
-            final FieldInfo[] fa = new FieldInfo[infos.size()];
-
-            if (canOptimize) {
-                if (!excludesSet.isEmpty()) {
-                    for (final FieldInfo info : infos) {
-                        if (!excludesSet.contains(info.name)) {
-                            fa[i++] = info;
-                        }
-                    }
-                } else {
-                    for (final String inc : includesSet) {
-                        FieldInfo f;
-                        if ((f = infos.fieldInfo(inc)) != null) {
-                            fa[i++] = f;
-                        }
-                    }
-                }
-            } else {
-                if (!excludesSet.isEmpty()) {
-                    for (final FieldInfo info : infos) {
-                        if (!WildcardMatcher.matchAny(excludesSet, info.name)) {
-                            fa[i++] = info;
-                        }
-                    }
-
-                    this.excludes = excludesSet.toArray(EMPTY_STRING_ARRAY);
-
-                } else {
-                    for (final FieldInfo info : infos) {
-                        if (WildcardMatcher.matchAny(includesSet, info.name)) {
-                            fa[i++] = info;
-                        }
-                    }
-
-                    this.includes = includesSet.toArray(EMPTY_STRING_ARRAY);
-                }
-
-                if (!excludesSet.isEmpty()) {
-                    filterFunction = XContentMapValues.filter(null, excludes);
-                } else {
-                    filterFunction = XContentMapValues.filter(includes, null);
-                }
-            }
-
-            final FieldInfo[] tmp = new FieldInfo[i];
-            System.arraycopy(fa, 0, tmp, 0, i);
-            this.flsFieldInfos = new FieldInfos(tmp);
+        final Callable<DlsFlsLeafCache.Artifacts> loader = () -> new DlsFlsLeafCache.Artifacts(
+                flsEnabled ? filterFieldInfos(delegate.getFieldInfos(), flsFieldMatcher) : null,
+                maskFields ? extractMaskedFields(maskedFields, complianceConfig.getSalt16()) : null,
+                flsEnabled && FlsDocValuesSource.ENABLED.get(indexService.getIndexSettings().getNodeSettings())
+                        ? FlsDocValuesSource.of(flsFieldMatcher, indexService.mapperService(), delegate.getFieldInfos()) : null);
 
+        final DlsFlsLeafCache.Artifacts artifacts;
 
+        try {
+            artifacts = leafCache == null ? loader.call() : leafCache.get(delegate, fingerprint, loader);
+        } catch (Exception e) {
+            throw ExceptionsHelper.convertToElastic(e);
+        }
 
+        this.flsFieldInfos = artifacts.getFlsFieldInfos();
+        this.maskedFieldsMap = artifacts.getMaskedFieldsMap();
+        this.maskedSourceFilter = artifacts.getMaskedSourceFilter();
+        this.flsDocValuesSource = artifacts.getFlsDocValuesSource();
+        this.flsLeafSource = flsDocValuesSource == null ? null : flsDocValuesSource.newLeafSource(delegate);
+        
+        if(maskedFieldsMap != null) {
+            maskedFieldsKeySet = maskedFieldsMap.keySet();
         } else {
-            this.includesSet = null;
-            this.excludesSet = null;
-            this.flsFieldInfos = null;
+            maskedFieldsKeySet = null;
         }
-
             
         if(dlsEnabled) {
             try {
-                bs = bsp.getBitSet(this.getContext());
+                //intersected with the deletions once per dls view and deletion generation if possible
+                //simple term rules on keyword fields are evaluated lazily against doc values if they are selective
+                final DlsDocValuesFilter docValuesFilter = bsp instanceof DlsBitSetCache.DlsBitSetProducer
+                        ? ((DlsBitSetCache.DlsBitSetProducer) bsp).getDocValuesFilter()
+                        : null;
+                dlsLiveDocs = dlsView == null ? null : dlsView.getLiveDocs(
+                        docValuesFilter == null ? null : () -> docValuesFilter.getLiveDocs(this, delegate, delegate.getLiveDocs()),
+                        () -> bsp.getBitSet(this.getContext()), delegate.getLiveDocs(), delegate.maxDoc());
+
+                if(dlsLiveDocs == null) {
+                    bs = bsp.getBitSet(this.getContext());
+                }
             } catch (IOException e) {
                 throw ExceptionsHelper.convertToElastic(e);
             }
         }
     }
 
-    private Map<String, MaskedField> extractMaskedFields(Set<String> maskedFields) {
+    private static FieldInfos filterFieldInfos(final FieldInfos infos, final FlsFieldMatcher flsFieldMatcher) {
+        int i = 0;
+        final FieldInfo[] fa = new FieldInfo[infos.size()];
+
+        if (flsFieldMatcher.canOptimize() && flsFieldMatcher.getExcludes().isEmpty()) {
+            for (final String inc : flsFieldMatcher.getIncludes()) {
+                FieldInfo f;
+                if ((f = infos.fieldInfo(inc)) != null) {
+                    fa[i++] = f;
+                }
+            }
+        } else {
+            for (final FieldInfo info : infos) {
+                if (flsFieldMatcher.isAllowed(info.name)) {
+                    fa[i++] = info;
+                }
+            }
+        }
+
+        final FieldInfo[] tmp = new FieldInfo[i];
+        System.arraycopy(fa, 0, tmp, 0, i);
+        return new FieldInfos(tmp);
+    }
+
+    private static Map<String, MaskedField> extractMaskedFields(final Set<String> maskedFields, final byte[] salt) {
         Map<String, MaskedField> retVal = new HashMap<>(maskedFields.size());
         for(String mfs: maskedFields) {
-            MaskedField mf = new MaskedField(mfs, complianceConfig.getSalt16());
+            MaskedField mf = new MaskedField(mfs, salt);
             retVal.put(mf.getName(), mf);
         }
         return retVal;
@@ -228,7 +194,7 @@ class DlsFlsFilterLeafReader extends FilterLeafReader {
 
     private static class DlsFlsSubReaderWrapper extends FilterDirectoryReader.SubReaderWrapper {
 
-        private final Set<String> includes;
+        private final FlsFieldMatcher flsFieldMatcher;
         private final BitSetProducer bsp;
         private final IndexService indexService;
         private final ThreadContext threadContext;
@@ -237,12 +203,19 @@ class DlsFlsFilterLeafReader extends FilterLeafReader {
         private final AuditLog auditlog;
         private final Set<String> maskedFields;
         private final ShardId shardId;
+        private final DlsFlsLeafCache leafCache;
+        private final DlsFlsLeafCache.Fingerprint fingerprint;
+        private final DlsReaderViews dlsReaderViews;
+        private final MaskedOrdinalsCache maskedOrdinalsCache;
+        private final DocumentReadAggregator readAggregator;
 
-        public DlsFlsSubReaderWrapper(final Set<String> includes, final BitSetProducer bsp,
+        public DlsFlsSubReaderWrapper(final FlsFieldMatcher flsFieldMatcher, final BitSetProducer bsp,
                 final IndexService indexService, final ThreadContext threadContext,
                 final ClusterService clusterService, final ComplianceConfig complianceConfig,
-                final AuditLog auditlog, final Set<String> maskedFields, ShardId shardId) {
-            this.includes = includes;
+                final AuditLog auditlog, final Set<String> maskedFields, ShardId shardId, final DlsFlsLeafCache leafCache,
+                final DlsReaderViews dlsReaderViews, final MaskedOrdinalsCache maskedOrdinalsCache,
+                final DocumentReadAggregator readAggregator) {
+            this.flsFieldMatcher = flsFieldMatcher;
             this.bsp = bsp;
             this.indexService = indexService;
             this.threadContext = threadContext;
@@ -251,18 +224,25 @@ class DlsFlsFilterLeafReader extends FilterLeafReader {
             this.auditlog = auditlog;
             this.maskedFields = maskedFields;
             this.shardId = shardId;
+            this.leafCache = leafCache;
+            this.fingerprint = leafCache == null ? null : new DlsFlsLeafCache.Fingerprint(flsFieldMatcher, maskedFields,
+                    indexService.getIndexSettings().getIndexMetaData().getMappingVersion());
+            this.dlsReaderViews = dlsReaderViews;
+            this.maskedOrdinalsCache = maskedOrdinalsCache;
+            this.readAggregator = readAggregator;
         }
 
         @Override
         public LeafReader wrap(final LeafReader reader) {
-            return new DlsFlsFilterLeafReader(reader, includes, bsp, indexService, threadContext, clusterService, complianceConfig, auditlog, maskedFields, shardId);
+            final DlsReaderViews.View dlsView = bsp == null || dlsReaderViews == null ? null : dlsReaderViews.get(reader, bsp);
+            return new DlsFlsFilterLeafReader(reader, flsFieldMatcher, bsp, indexService, threadContext, clusterService, complianceConfig, auditlog, maskedFields, shardId, leafCache, fingerprint, dlsView, maskedOrdinalsCache, readAggregator);
         }
 
     }
 
     static class DlsFlsDirectoryReader extends FilterDirectoryReader {
 
-        private final Set<String> includes;
+        private final FlsFieldMatcher flsFieldMatcher;
         private final BitSetProducer bsp;
         private final IndexService indexService;
         private final ThreadContext threadContext;
@@ -271,13 +251,30 @@ class DlsFlsFilterLeafReader extends FilterLeafReader {
         private final AuditLog auditlog;
         private final Set<String> maskedFields;
         private final ShardId shardId;
+        private final DlsFlsLeafCache leafCache;
+        private final DlsReaderViews dlsReaderViews;
+        private final MaskedOrdinalsCache maskedOrdinalsCache;
+        //read events of this searcher, logged when it is released
+        private final DocumentReadAggregator readAggregator;
 
-        public DlsFlsDirectoryReader(final DirectoryReader in, final Set<String> includes, final BitSetProducer bsp,
+        public DlsFlsDirectoryReader(final DirectoryReader in, final FlsFieldMatcher flsFieldMatcher, final BitSetProducer bsp,
                 final IndexService indexService, final ThreadContext threadContext,
                 final ClusterService clusterService, final ComplianceConfig complianceConfig,
-                final AuditLog auditlog, final Set<String> maskedFields, ShardId shardId) throws IOException {
-            super(in, new DlsFlsSubReaderWrapper(includes, bsp, indexService, threadContext, clusterService, complianceConfig, auditlog, maskedFields, shardId));
-            this.includes = includes;
+                final AuditLog auditlog, final Set<String> maskedFields, ShardId shardId, final DlsFlsLeafCache leafCache,
+                final DlsReaderViews dlsReaderViews, final MaskedOrdinalsCache maskedOrdinalsCache) throws IOException {
+            this(in, flsFieldMatcher, bsp, indexService, threadContext, clusterService, complianceConfig, auditlog, maskedFields, shardId,
+                    leafCache, dlsReaderViews, maskedOrdinalsCache, DocumentReadAggregator.create(indexService.getIndexSettings().getNodeSettings(),
+                            indexService.getThreadPool(), threadContext, auditlog, complianceConfig, shardId));
+        }
+
+        private DlsFlsDirectoryReader(final DirectoryReader in, final FlsFieldMatcher flsFieldMatcher, final BitSetProducer bsp,
+                final IndexService indexService, final ThreadContext threadContext,
+                final ClusterService clusterService, final ComplianceConfig complianceConfig,
+                final AuditLog auditlog, final Set<String> maskedFields, ShardId shardId, final DlsFlsLeafCache leafCache,
+                final DlsReaderViews dlsReaderViews, final MaskedOrdinalsCache maskedOrdinalsCache,
+                final DocumentReadAggregator readAggregator) throws IOException {
+            super(in, new DlsFlsSubReaderWrapper(flsFieldMatcher, bsp, indexService, threadContext, clusterService, complianceConfig, auditlog, maskedFields, shardId, leafCache, dlsReaderViews, maskedOrdinalsCache, readAggregator));
+            this.flsFieldMatcher = flsFieldMatcher;
             this.bsp = bsp;
             this.indexService = indexService;
             this.threadContext = threadContext;
@@ -286,17 +283,32 @@ class DlsFlsFilterLeafReader extends FilterLeafReader {
             this.auditlog = auditlog;
             this.maskedFields = maskedFields;
             this.shardId = shardId;
+            this.leafCache = leafCache;
+            this.dlsReaderViews = dlsReaderViews;
+            this.maskedOrdinalsCache = maskedOrdinalsCache;
+            this.readAggregator = readAggregator;
         }
 
         @Override
         protected DirectoryReader doWrapDirectoryReader(final DirectoryReader in) throws IOException {
-            return new DlsFlsDirectoryReader(in, includes, bsp, indexService, threadContext, clusterService, complianceConfig, auditlog, maskedFields, shardId);
+            return new DlsFlsDirectoryReader(in, flsFieldMatcher, bsp, indexService, threadContext, clusterService, complianceConfig, auditlog, maskedFields, shardId, leafCache, dlsReaderViews, maskedOrdinalsCache);
         }
 
         @Override
         public CacheHelper getReaderCacheHelper() {
             return in.getReaderCacheHelper();
         }
+
+        @Override
+        protected void doClose() throws IOException {
+            try {
+                if(readAggregator != null) {
+                    readAggregator.close();
+                }
+            } finally {
+                super.doClose();
+            }
+        }
     }
 
     @Override
@@ -306,7 +318,7 @@ class DlsFlsFilterLeafReader extends FilterLeafReader {
             final ComplianceAwareStoredFieldVisitor cv = new ComplianceAwareStoredFieldVisitor(visitor);
             
             if(flsEnabled) {
-                in.document(docID, new FlsStoredFieldVisitor(maskFields?new HashingStoredFieldVisitor(cv):cv));
+                flsDocument(docID, maskFields?new HashingStoredFieldVisitor(cv):cv);
             } else {
                 in.document(docID, maskFields?new HashingStoredFieldVisitor(cv):cv);
             }
@@ -314,15 +326,37 @@ class DlsFlsFilterLeafReader extends FilterLeafReader {
             cv.finished();
         } else {
             if(flsEnabled) {
-                in.document(docID, new FlsStoredFieldVisitor(maskFields?new HashingStoredFieldVisitor(visitor):visitor));
+                flsDocument(docID, maskFields?new HashingStoredFieldVisitor(visitor):visitor);
             } else {
                 in.document(docID, maskFields?new HashingStoredFieldVisitor(visitor):visitor);
             }
         }
 
     }
+
+    private void flsDocument(final int docID, final StoredFieldVisitor visitor) throws IOException {
+        final FlsStoredFieldVisitor flsVisitor = new FlsStoredFieldVisitor(visitor);
+        in.document(docID, flsVisitor);
+
+        if(flsVisitor.docValuesSourceField != null) {
+            //the stored _source was skipped
+            visitor.binaryField(flsVisitor.docValuesSourceField, flsLeafSource.build(docID));
+        }
+    }
     
     private boolean isFls(final BytesRef termAsFiledName) {
+
+        if(!flsEnabled) {
+            return true;
+        }
+
+        //cheap rejection directly on the bytes, most hidden fields do not need to be decoded
+        if(!flsFieldMatcher.isAllowed(termAsFiledName)) {
+            return false;
+        }
+
+        //_field_names also contains the paths of parent objects, which are no fields of the segment
+        //but are allowed by the rules if a hidden field below them is (e.g. "a" for "a.secret" with "~a.secret")
         return isFls(termAsFiledName.utf8ToString());
     }
 
@@ -349,7 +383,7 @@ class DlsFlsFilterLeafReader extends FilterLeafReader {
 
         private final StoredFieldVisitor delegate;
         private FieldReadCallback fieldReadCallback = 
-                new FieldReadCallback(threadContext, indexService, clusterService, complianceConfig, auditlog, maskedFieldsKeySet, shardId);
+                new FieldReadCallback(threadContext, indexService, clusterService, complianceConfig, auditlog, maskedFieldsKeySet, shardId, readAggregator);
 
         public ComplianceAwareStoredFieldVisitor(final StoredFieldVisitor delegate) {
             super();
@@ -423,6 +457,7 @@ class DlsFlsFilterLeafReader extends FilterLeafReader {
     private class FlsStoredFieldVisitor extends StoredFieldVisitor {
 
         private final StoredFieldVisitor delegate;
+        private FieldInfo docValuesSourceField;
 
         public FlsStoredFieldVisitor(final StoredFieldVisitor delegate) {
             super();
@@ -433,22 +468,7 @@ class DlsFlsFilterLeafReader extends FilterLeafReader {
         public void binaryField(final FieldInfo fieldInfo, final byte[] value) throws IOException {
 
             if (fieldInfo.name.equals("_source")) {
-                final BytesReference bytesRef = new BytesArray(value);
-                final Tuple<XContentType, Map<String, Object>> bytesRefTuple = XContentHelper.convertToMap(bytesRef, false, XContentType.JSON);
-                Map<String, Object> filteredSource = bytesRefTuple.v2();
-
-                if (!canOptimize) {
-                    filteredSource = filterFunction.apply(bytesRefTuple.v2());
-                } else {
-                    if (!excludesSet.isEmpty()) {
-                        filteredSource.keySet().removeAll(excludesSet);
-                    } else {
-                        filteredSource.keySet().retainAll(includesSet);
-                    }
-                }
-
-                final XContentBuilder xBuilder = XContentBuilder.builder(bytesRefTuple.v1().xContent()).map(filteredSource);
-                delegate.binaryField(fieldInfo, BytesReference.toBytes(BytesReference.bytes(xBuilder)));
+                delegate.binaryField(fieldInfo, flsFieldMatcher.getSourceFilter().filter(value));
             } else {
                 delegate.binaryField(fieldInfo, value);
             }
@@ -457,6 +477,17 @@ class DlsFlsFilterLeafReader extends FilterLeafReader {
         
         @Override
         public Status needsField(final FieldInfo fieldInfo) throws IOException {
+
+            if (flsDocValuesSource != null && fieldInfo.name.equals("_source")) {
+                final Status status = delegate.needsField(fieldInfo);
+                if (status == Status.YES) {
+                    //built from doc values once all stored fields are visited
+                    docValuesSourceField = fieldInfo;
+                    return Status.NO;
+                }
+                return status;
+            }
+
             return isFls(fieldInfo.name) ? delegate.needsField(fieldInfo) : Status.NO;
         }
 
@@ -514,12 +545,8 @@ class DlsFlsFilterLeafReader extends FilterLeafReader {
         public void binaryField(final FieldInfo fieldInfo, final byte[] value) throws IOException {
 
             if (fieldInfo.name.equals("_source")) {
-                final BytesReference bytesRef = new BytesArray(value);
-                final Tuple<XContentType, Map<String, Object>> bytesRefTuple = XContentHelper.convertToMap(bytesRef, false, XContentType.JSON);
-                Map<String, Object> filteredSource = bytesRefTuple.v2();
-                MapUtils.deepTraverseMap(filteredSource, HASH_CB);
-                final XContentBuilder xBuilder = XContentBuilder.builder(bytesRefTuple.v1().xContent()).map(filteredSource);
-                delegate.binaryField(fieldInfo, BytesReference.toBytes(BytesReference.bytes(xBuilder)));
+                //streamed, masked values are replaced in place
+                delegate.binaryField(fieldInfo, maskedSourceFilter.filter(value));
             } else {
                 delegate.binaryField(fieldInfo, value);
             }
@@ -539,10 +566,10 @@ class DlsFlsFilterLeafReader extends FilterLeafReader {
         @Override
         public void stringField(final FieldInfo fieldInfo, final byte[] value) throws IOException {
             
-            final Optional<String> matchedPattern = WildcardMatcher.getFirstMatchingPattern(maskedFieldsKeySet, fieldInfo.name);
+            final MaskedField maskedField = maskedSourceFilter.match(fieldInfo.name);
             
-            if(matchedPattern.isPresent()) {
-                delegate.stringField(fieldInfo, maskedFieldsMap.get(matchedPattern.get()).mask(value));
+            if(maskedField != null) {
+                delegate.stringField(fieldInfo, maskedField.mask(value));
             } else {
                 delegate.stringField(fieldInfo, value);
             }
@@ -579,49 +606,6 @@ class DlsFlsFilterLeafReader extends FilterLeafReader {
         }
     }
     
-    private final MapUtils.Callback HASH_CB = new HashingCallback();
-    
-    private class HashingCallback implements MapUtils.Callback {
-        @SuppressWarnings({ "rawtypes", "unchecked" })
-        @Override
-        public void call(String key, Map<String, Object> map, List<String> stack) {
-            Object v = map.get(key);
-
-            if (v != null && (v instanceof List)) {
-                final String field = stack.isEmpty() ? key : Joiner.on('.').join(stack) + "." + key;
-                final Optional<String> matchedPattern = WildcardMatcher.getFirstMatchingPattern(maskedFieldsKeySet,
-                        field);
-                if (matchedPattern.isPresent()) {
-                    final List listField = (List) v;
-                    for (ListIterator iterator = listField.listIterator(); iterator.hasNext();) {
-                        final Object listFieldItem = iterator.next();
-
-                        if (listFieldItem instanceof String) {
-                            iterator.set(maskedFieldsMap.get(matchedPattern.get()).mask(((String) listFieldItem)));
-                        } else if (listFieldItem instanceof byte[]) {
-                            iterator.set(maskedFieldsMap.get(matchedPattern.get()).mask(((byte[]) listFieldItem)));
-                        }
-                    }
-                }
-            }
-
-            if (v != null && (v instanceof String || v instanceof byte[])) {
-
-                final String field = stack.isEmpty() ? key : Joiner.on('.').join(stack) + "." + key;
-                final Optional<String> matchedPattern = WildcardMatcher.getFirstMatchingPattern(maskedFieldsKeySet,
-                        field);
-                if (matchedPattern.isPresent()) {
-                    if (v instanceof String) {
-                        map.replace(key, maskedFieldsMap.get(matchedPattern.get()).mask(((String) v)));
-                    } else {
-                        map.replace(key, maskedFieldsMap.get(matchedPattern.get()).mask(((byte[]) v)));
-                    }
-                }
-            }
-        }
-
-    }
-
     @Override
     public Fields getTermVectors(final int docID) throws IOException {
         final Fields fields = in.getTermVectors(docID);
@@ -688,6 +672,9 @@ class DlsFlsFilterLeafReader extends FilterLeafReader {
             
             return new BinaryDocValues() {
 
+                //masked values are only valid until the next call, like the values of the wrapped doc values
+                private final BytesRefBuilder maskBuffer = new BytesRefBuilder();
+
                 @Override
                 public int nextDoc() throws IOException {
                     return binaryDocValues.nextDoc();
@@ -715,7 +702,7 @@ class DlsFlsFilterLeafReader extends FilterLeafReader {
 
                 @Override
                 public BytesRef binaryValue() throws IOException {
-                    return mf.mask(binaryDocValues.binaryValue());
+                    return mf.mask(binaryDocValues.binaryValue(), maskBuffer);
                 }
             };
         } else {
@@ -743,11 +730,23 @@ class DlsFlsFilterLeafReader extends FilterLeafReader {
                 return sortedDocValues;
             }
             
+            //the masked terms of the ordinals are shared by all searches on this segment
+            final MaskedOrdinalsCache.MaskedOrdinals maskedOrdinals = maskedOrdinalsCache == null ? null
+                    : maskedOrdinalsCache.get(in, field, mf, sortedDocValues.getValueCount());
+
             return new SortedDocValues() {
 
+                //masked values are only valid until the next call, like the values of the wrapped doc values
+                private final BytesRefBuilder maskBuffer = new BytesRefBuilder();
+                private final BytesRef maskedTerm = new BytesRef();
+                private final MaskedOrdinalsCache.OrdinalLookup unmasked = sortedDocValues::lookupOrd;
+
                 @Override
                 public BytesRef binaryValue() throws IOException {
-                    return mf.mask(sortedDocValues.binaryValue());
+                    if (maskedOrdinals != null) {
+                        return lookupOrd(sortedDocValues.ordValue());
+                    }
+                    return mf.mask(sortedDocValues.binaryValue(), maskBuffer);
                 }
 
                 @Override
@@ -798,7 +797,10 @@ class DlsFlsFilterLeafReader extends FilterLeafReader {
 
                 @Override
                 public BytesRef lookupOrd(int ord) throws IOException {
-                    return mf.mask(sortedDocValues.lookupOrd(ord));
+                    if (maskedOrdinals != null) {
+                        return maskedOrdinals.lookupOrd(ord, unmasked, maskBuffer, maskedTerm);
+                    }
+                    return mf.mask(sortedDocValues.lookupOrd(ord), maskBuffer);
                 }
 
                 @Override
@@ -835,8 +837,17 @@ class DlsFlsFilterLeafReader extends FilterLeafReader {
                 return sortedSetDocValues;
             }
 
+            //the masked terms of the ordinals are shared by all searches on this segment
+            final MaskedOrdinalsCache.MaskedOrdinals maskedOrdinals = maskedOrdinalsCache == null ? null
+                    : maskedOrdinalsCache.get(in, field, mf, sortedSetDocValues.getValueCount());
+
             return new SortedSetDocValues() {
 
+                //masked values are only valid until the next call, like the values of the wrapped doc values
+                private final BytesRefBuilder maskBuffer = new BytesRefBuilder();
+                private final BytesRef maskedTerm = new BytesRef();
+                private final MaskedOrdinalsCache.OrdinalLookup unmasked = o -> sortedSetDocValues.lookupOrd(o);
+
                 @Override
                 public long lookupTerm(BytesRef key) throws IOException {
                     return sortedSetDocValues.lookupTerm(key);
@@ -884,7 +895,10 @@ class DlsFlsFilterLeafReader extends FilterLeafReader {
 
                 @Override
                 public BytesRef lookupOrd(long ord) throws IOException {
-                    return mf.mask(sortedSetDocValues.lookupOrd(ord));
+                    if (maskedOrdinals != null) {
+                        return maskedOrdinals.lookupOrd((int) ord, unmasked, maskBuffer, maskedTerm);
+                    }
+                    return mf.mask(sortedSetDocValues.lookupOrd(ord), maskBuffer);
                 }
 
                 @Override
@@ -1016,6 +1030,10 @@ class DlsFlsFilterLeafReader extends FilterLeafReader {
     public Bits getLiveDocs() {
 
         if(dlsEnabled) {
+            if(dlsLiveDocs != null) {
+                return dlsLiveDocs.getLiveDocs();
+            }
+
             final Bits currentLiveDocs = in.getLiveDocs();
             
             if(bs == null) {
@@ -1048,6 +1066,10 @@ class DlsFlsFilterLeafReader extends FilterLeafReader {
     public int numDocs() {
 
         if (dlsEnabled) {
+            if (dlsLiveDocs != null) {
+                return dlsLiveDocs.getNumDocs();
+            }
+
             if (this.numDocs == -1) {
                 final Bits currentLiveDocs = in.getLiveDocs();
 
@@ -1099,26 +1121,17 @@ class DlsFlsFilterLeafReader extends FilterLeafReader {
         return dlsEnabled?true:in.hasDeletions();
     }
     
-    @SuppressWarnings("unchecked")
     private Map<String, MaskedField> getRuntimeMaskedFieldInfo() {
         
         if(!complianceConfig.isEnabled()) {
             return null;
         }
 
-        final Map<String, Set<String>> maskedFieldsMap = (Map<String, Set<String>>) HeaderHelper.deserializeSafeFromHeader(threadContext,
-        ConfigConstants.SG_MASKED_FIELD_HEADER);
-        final String maskedEval = SgUtils.evalMap(maskedFieldsMap, indexService.index().getName());
+        //decoded once per request, the masked fields are not built again for every field
+        final Map<String, MaskedField> maskedFields = DlsFlsRequestContext.get(threadContext)
+                .forIndex(indexService.index().getName(), complianceConfig.getSalt16()).getMaskedFieldsMap();
         
-        if(maskedEval != null) {
-            final Set<String> mf = maskedFieldsMap.get(maskedEval);
-            if(mf != null && !mf.isEmpty()) {
-                return extractMaskedFields(mf);
-            }
-            
-        } 
-
-        return null;
+        return maskedFields == null || maskedFields.isEmpty() ? null : maskedFields;
     }
     
     private String handleKeyword(final String field) {
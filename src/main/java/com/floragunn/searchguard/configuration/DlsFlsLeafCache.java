@@ -0,0 +1,220 @@
+/*
+ * Copyright 2016-2019 by floragunn GmbH - All rights reserved
+ *
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed here is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * This software is free of charge for non-commercial and academic use.
+ * For commercial use in a production environment you have to obtain a license
+ * from https://floragunn.com
+ *
+ */
+
+package com.floragunn.searchguard.configuration;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.lucene.index.FieldInfos;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReader;
+import org.elasticsearch.ExceptionsHelper;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.RemovalCause;
+import com.google.common.cache.RemovalNotification;
+
+/**
+ * Caches the immutable per segment artifacts of a {@link DlsFlsFilterLeafReader}
+ * (the FLS filtered field infos, the parsed masked fields and their compiled source filter,
+ * the doc values _source builder) so that they are not rebuilt
+ * on every searcher acquisition (query phase, fetch phase, every scroll page).
+ * <p>
+ * Entries are keyed by the segment core cache key plus a fingerprint of the effective rules
+ * and are evicted when the segment core is closed (keys are indexed by core, so this does not scan the cache).
+ * DLS bitsets are not held here,
+ * they are already cached per segment core by the BitsetFilterCache.
+ */
+final class DlsFlsLeafCache {
+
+    private static final Logger log = LogManager.getLogger(DlsFlsLeafCache.class);
+
+    private final Cache<Key, Artifacts> cache;
+    private final Map<IndexReader.CacheKey, Set<Key>> keysByCore = new ConcurrentHashMap<>();
+
+    DlsFlsLeafCache(final int maxSize) {
+        this.cache = CacheBuilder.newBuilder().maximumSize(maxSize).recordStats().removalListener(this::onRemoval).build();
+    }
+
+    Artifacts get(final LeafReader reader, final Fingerprint fingerprint, final Callable<Artifacts> loader) {
+        try {
+            final IndexReader.CacheHelper cacheHelper = reader.getCoreCacheHelper();
+
+            if (cacheHelper == null) {
+                return loader.call();
+            }
+
+            final IndexReader.CacheKey coreKey = cacheHelper.getKey();
+            Set<Key> keys = keysByCore.get(coreKey);
+
+            if (keys == null) {
+                final Set<Key> newKeys = ConcurrentHashMap.newKeySet();
+                keys = keysByCore.putIfAbsent(coreKey, newKeys);
+
+                if (keys == null) {
+                    keys = newKeys;
+                    cacheHelper.addClosedListener(this::onCoreClosed);
+                }
+            }
+
+            final Key key = new Key(coreKey, fingerprint);
+            final Artifacts artifacts = cache.get(key, loader);
+            keys.add(key);
+            return artifacts;
+        } catch (ExecutionException e) {
+            throw ExceptionsHelper.convertToElastic((Exception) e.getCause());
+        } catch (Exception e) {
+            throw ExceptionsHelper.convertToElastic(e);
+        }
+    }
+
+    CacheStats stats() {
+        return cache.stats();
+    }
+
+    long size() {
+        return cache.size();
+    }
+
+    private void onCoreClosed(final IndexReader.CacheKey coreKey) {
+        final Set<Key> keys = keysByCore.remove(coreKey);
+
+        if (keys != null) {
+            cache.invalidateAll(keys);
+        }
+
+        if (log.isTraceEnabled()) {
+            log.trace("Segment core closed, {} entries left, stats: {}", cache.size(), cache.stats());
+        }
+    }
+
+    //keeps the index of a core in sync when entries are evicted because of the max size
+    private void onRemoval(final RemovalNotification<Key, Artifacts> notification) {
+        final Key key = notification.getKey();
+
+        if (key != null && notification.getCause() != RemovalCause.REPLACED) {
+            final Set<Key> keys = keysByCore.get(key.coreKey);
+
+            if (keys != null) {
+                keys.remove(key);
+            }
+        }
+    }
+
+    static final class Artifacts {
+        private final FieldInfos flsFieldInfos;
+        private final Map<String, MaskedField> maskedFieldsMap;
+        private final MaskedSourceFilter maskedSourceFilter;
+        private final FlsDocValuesSource flsDocValuesSource;
+
+        Artifacts(final FieldInfos flsFieldInfos, final Map<String, MaskedField> maskedFieldsMap,
+                final FlsDocValuesSource flsDocValuesSource) {
+            this.flsFieldInfos = flsFieldInfos;
+            this.flsDocValuesSource = flsDocValuesSource;
+            this.maskedFieldsMap = maskedFieldsMap == null ? null : Collections.unmodifiableMap(maskedFieldsMap);
+            this.maskedSourceFilter = maskedFieldsMap == null ? null : new MaskedSourceFilter(this.maskedFieldsMap);
+        }
+
+        FieldInfos getFlsFieldInfos() {
+            return flsFieldInfos;
+        }
+
+        Map<String, MaskedField> getMaskedFieldsMap() {
+            return maskedFieldsMap;
+        }
+
+        MaskedSourceFilter getMaskedSourceFilter() {
+            return maskedSourceFilter;
+        }
+
+        FlsDocValuesSource getFlsDocValuesSource() {
+            return flsDocValuesSource;
+        }
+    }
+
+    /**
+     * Identifies the effective FLS and masking rules of a searcher and the mapping they were evaluated against
+     * (e.g. whether the _source can be built from doc values depends on the mapping of the fields).
+     * Computed once per directory reader, the hash is precomputed so per leaf lookups are cheap.
+     */
+    static final class Fingerprint {
+        private final FlsFieldMatcher flsFieldMatcher;
+        private final Set<String> maskedFields;
+        private final long mappingVersion;
+        private final int hash;
+
+        Fingerprint(final FlsFieldMatcher flsFieldMatcher, final Set<String> maskedFields, final long mappingVersion) {
+            this.flsFieldMatcher = flsFieldMatcher;
+            this.maskedFields = maskedFields == null ? null : Collections.unmodifiableSet(new HashSet<>(maskedFields));
+            this.mappingVersion = mappingVersion;
+            this.hash = 31 * (31 * Objects.hashCode(flsFieldMatcher) + Objects.hashCode(this.maskedFields)) + Long.hashCode(mappingVersion);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(final Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof Fingerprint)) {
+                return false;
+            }
+            final Fingerprint other = (Fingerprint) obj;
+            return hash == other.hash && Objects.equals(flsFieldMatcher, other.flsFieldMatcher) && mappingVersion == other.mappingVersion
+                    && Objects.equals(maskedFields, other.maskedFields);
+        }
+    }
+
+    private static final class Key {
+        private final IndexReader.CacheKey coreKey;
+        private final Fingerprint fingerprint;
+
+        Key(final IndexReader.CacheKey coreKey, final Fingerprint fingerprint) {
+            this.coreKey = coreKey;
+            this.fingerprint = fingerprint;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * coreKey.hashCode() + fingerprint.hashCode();
+        }
+
+        @Override
+        public boolean equals(final Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            final Key other = (Key) obj;
+            return coreKey == other.coreKey && fingerprint.equals(other.fingerprint);
+        }
+    }
+}
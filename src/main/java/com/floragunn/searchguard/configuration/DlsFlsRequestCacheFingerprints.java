@@ -0,0 +1,204 @@
+/*
+ * Copyright 2016-2019 by floragunn GmbH - All rights reserved
+ *
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed here is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * This software is free of charge for non-commercial and academic use.
+ * For commercial use in a production environment you have to obtain a license
+ * from https://floragunn.com
+ *
+ */
+
+package com.floragunn.searchguard.configuration;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.bouncycastle.util.encoders.Hex;
+import org.elasticsearch.ExceptionsHelper;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.search.builder.SearchSourceBuilder;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+
+/**
+ * Makes the shard request cache usable for searches restricted by DLS, FLS or field masking.
+ * <p>
+ * The request cache key of a shard is the serialized shard request plus the reader cache key of the shard,
+ * which can not be changed by a reader wrapper. So a canonical fingerprint of the effective restrictions
+ * is added to the request as a stats group (stats groups are part of the serialized source and thus
+ * of the cache key, but do not change the result). Users with identical restrictions share cached results,
+ * all others (and unrestricted users) never see them. Invalidation follows the normal refresh rules.
+ * <p>
+ * The number of searches per fingerprint can be checked with the search stats of the stats group
+ * (<code>GET _stats/search?groups=sg_dlsfls_*</code>).
+ */
+public final class DlsFlsRequestCacheFingerprints {
+
+    public static final String STATS_GROUP_PREFIX = "sg_dlsfls_";
+
+    private static final Logger log = LogManager.getLogger(DlsFlsRequestCacheFingerprints.class);
+
+    private static final Cache<List<Map<String, Set<String>>>, String> fingerprints = CacheBuilder.newBuilder().maximumSize(10000)
+            .expireAfterAccess(4, TimeUnit.HOURS).recordStats().build();
+
+    private DlsFlsRequestCacheFingerprints() {
+    }
+
+    /**
+     * @return false if the restrictions can not be cached, e.g. because a DLS query depends on the current time
+     */
+    public static boolean isCacheable(final Map<String, Set<String>> queries) {
+        if (queries == null) {
+            return true;
+        }
+
+        for (final Set<String> dlsQueries : queries.values()) {
+            if (dlsQueries == null) {
+                continue;
+            }
+            for (final String dlsQuery : dlsQueries) {
+                //conservative, date math would not be reflected in the cache key
+                if (dlsQuery != null && dlsQuery.contains("now")) {
+                    return false;
+                }
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Removes stats groups which look like a fingerprint from the request. This must be done for every search request,
+     * also the ones of unrestricted users, otherwise a forged fingerprint could put unrestricted results into the cache
+     * entries of restricted users.
+     */
+    public static void strip(final SearchRequest request) {
+        final SearchSourceBuilder source = request.source();
+
+        if (source == null || source.stats() == null) {
+            return;
+        }
+
+        final List<String> stats = new ArrayList<>(source.stats().size());
+
+        for (final String group : source.stats()) {
+            if (!group.startsWith(STATS_GROUP_PREFIX)) {
+                stats.add(group);
+            }
+        }
+
+        if (stats.size() != source.stats().size()) {
+            source.stats(stats.isEmpty() ? null : stats);
+        }
+    }
+
+    /**
+     * Tags the request with the fingerprint of the restrictions so that it can be cached safely.
+     * Forged fingerprints must have been removed with {@link #strip(SearchRequest)} before.
+     */
+    public static void apply(final SearchRequest request, final Map<String, Set<String>> allowedFlsFields,
+            final Map<String, Set<String>> maskedFields, final Map<String, Set<String>> queries) {
+
+        final String group = STATS_GROUP_PREFIX + fingerprint(allowedFlsFields, maskedFields, queries);
+
+        SearchSourceBuilder source = request.source();
+
+        if (source == null) {
+            source = new SearchSourceBuilder();
+            request.source(source);
+        }
+
+        final List<String> stats = source.stats() == null ? new ArrayList<>() : new ArrayList<>(source.stats());
+
+        stats.add(group);
+        source.stats(stats);
+
+        if (log.isTraceEnabled()) {
+            log.trace("Request cache enabled with restrictions fingerprint {}", group);
+        }
+    }
+
+    /**
+     * @return a hex encoded hash of the restrictions which does not depend on the order of their entries
+     */
+    public static String fingerprint(final Map<String, Set<String>> allowedFlsFields, final Map<String, Set<String>> maskedFields,
+            final Map<String, Set<String>> queries) {
+        try {
+            return fingerprints.get(Arrays.asList(allowedFlsFields, maskedFields, queries),
+                    () -> computeFingerprint(allowedFlsFields, maskedFields, queries));
+        } catch (ExecutionException e) {
+            throw ExceptionsHelper.convertToElastic((Exception) e.getCause());
+        }
+    }
+
+    /**
+     * @return hit/miss statistics of the fingerprint computation, the miss count is the number of
+     *         distinct restriction sets seen (modulo expiration)
+     */
+    public static CacheStats stats() {
+        return fingerprints.stats();
+    }
+
+    private static String computeFingerprint(final Map<String, Set<String>> allowedFlsFields, final Map<String, Set<String>> maskedFields,
+            final Map<String, Set<String>> queries) throws NoSuchAlgorithmException {
+        final MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        update(digest, "fls", allowedFlsFields);
+        update(digest, "masked", maskedFields);
+        update(digest, "dls", queries);
+        return new String(Hex.encode(digest.digest()), StandardCharsets.US_ASCII);
+    }
+
+    private static void update(final MessageDigest digest, final String section, final Map<String, Set<String>> map) {
+        update(digest, section);
+
+        if (map == null) {
+            digest.update((byte) 0);
+            return;
+        }
+
+        digest.update((byte) 1);
+
+        for (final Map.Entry<String, Set<String>> entry : new TreeMap<>(map).entrySet()) {
+            update(digest, entry.getKey());
+
+            if (entry.getValue() == null) {
+                digest.update((byte) 0);
+                continue;
+            }
+
+            digest.update((byte) 1);
+            for (final String value : new TreeSet<>(entry.getValue())) {
+                update(digest, value);
+            }
+            digest.update((byte) 2);
+        }
+    }
+
+    //length prefixed, so that different splits of the same characters do not collide
+    private static void update(final MessageDigest digest, final String value) {
+        final byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        digest.update((byte) (bytes.length >>> 24));
+        digest.update((byte) (bytes.length >>> 16));
+        digest.update((byte) (bytes.length >>> 8));
+        digest.update((byte) bytes.length);
+        digest.update(bytes);
+    }
+}
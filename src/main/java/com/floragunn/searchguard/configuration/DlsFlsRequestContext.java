@@ -0,0 +1,236 @@
+/*
+ * Copyright 2016-2019 by floragunn GmbH - All rights reserved
+ *
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed here is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * This software is free of charge for non-commercial and academic use.
+ * For commercial use in a production environment you have to obtain a license
+ * from https://floragunn.com
+ *
+ */
+
+package com.floragunn.searchguard.configuration;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.elasticsearch.ExceptionsHelper;
+import org.elasticsearch.common.util.concurrent.ThreadContext;
+import org.elasticsearch.index.mapper.MapperService;
+
+import com.floragunn.searchguard.support.ConfigConstants;
+import com.floragunn.searchguard.support.HeaderHelper;
+import com.floragunn.searchguard.support.SgUtils;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.Sets;
+
+/**
+ * The FLS, DLS and masked field headers of a request, decoded once and resolved per index.
+ * <p>
+ * The headers are Java serialized maps (they are written by the core plugin). Decoding them is expensive,
+ * so the decoded context is kept as a transient of the thread context of the request and in a small node wide cache
+ * keyed by the raw headers (the same user sends the same headers with every request).
+ * Everything is immutable once resolved and shared by all threads of the request.
+ */
+final class DlsFlsRequestContext {
+
+    private static final String TRANSIENT = "_sg_dls_fls_request_context";
+
+    private static final Set<String> META_FIELDS = Sets.union(Sets.newHashSet("_source", "_version", "_field_names", "_seq_no"),
+            Sets.newHashSet(MapperService.getAllMetaFields()));
+
+    private static final DlsFlsRequestContext EMPTY = new DlsFlsRequestContext(null, null, null, null, null, null);
+
+    private static final Cache<List<String>, DlsFlsRequestContext> contexts = CacheBuilder.newBuilder().maximumSize(1000)
+            .expireAfterAccess(1, TimeUnit.HOURS).build();
+
+    //raw headers, to detect a transient which was set before the headers
+    private final String flsHeader;
+    private final String dlsHeader;
+    private final String maskedFieldsHeader;
+
+    private final Map<String, Set<String>> flsFields;
+    private final Map<String, Set<String>> dlsQueries;
+    private final Map<String, Set<String>> maskedFields;
+    private final Map<String, IndexPlan> plans = new ConcurrentHashMap<>();
+
+    private DlsFlsRequestContext(final String flsHeader, final String dlsHeader, final String maskedFieldsHeader,
+            final Map<String, Set<String>> flsFields, final Map<String, Set<String>> dlsQueries,
+            final Map<String, Set<String>> maskedFields) {
+        this.flsHeader = flsHeader;
+        this.dlsHeader = dlsHeader;
+        this.maskedFieldsHeader = maskedFieldsHeader;
+        this.flsFields = flsFields;
+        this.dlsQueries = dlsQueries;
+        this.maskedFields = maskedFields;
+    }
+
+    /**
+     * @return the context of the request of the thread context, never null
+     */
+    static DlsFlsRequestContext get(final ThreadContext threadContext) {
+
+        final String flsHeader = HeaderHelper.getSafeFromHeader(threadContext, ConfigConstants.SG_FLS_FIELDS_HEADER);
+        final String dlsHeader = HeaderHelper.getSafeFromHeader(threadContext, ConfigConstants.SG_DLS_QUERY_HEADER);
+        final String maskedFieldsHeader = HeaderHelper.getSafeFromHeader(threadContext, ConfigConstants.SG_MASKED_FIELD_HEADER);
+
+        final Object cached = threadContext.getTransient(TRANSIENT);
+
+        if (cached instanceof DlsFlsRequestContext && ((DlsFlsRequestContext) cached).isFor(flsHeader, dlsHeader, maskedFieldsHeader)) {
+            return (DlsFlsRequestContext) cached;
+        }
+
+        final DlsFlsRequestContext context;
+
+        if (flsHeader == null && dlsHeader == null && maskedFieldsHeader == null) {
+            context = EMPTY;
+        } else {
+            try {
+                context = contexts.get(Arrays.asList(flsHeader, dlsHeader, maskedFieldsHeader), () -> decode(threadContext));
+            } catch (ExecutionException e) {
+                throw ExceptionsHelper.convertToElastic((Exception) e.getCause());
+            }
+        }
+
+        if (cached == null) {
+            threadContext.putTransient(TRANSIENT, context);
+        }
+
+        return context;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static DlsFlsRequestContext decode(final ThreadContext threadContext) {
+        return new DlsFlsRequestContext(
+                HeaderHelper.getSafeFromHeader(threadContext, ConfigConstants.SG_FLS_FIELDS_HEADER),
+                HeaderHelper.getSafeFromHeader(threadContext, ConfigConstants.SG_DLS_QUERY_HEADER),
+                HeaderHelper.getSafeFromHeader(threadContext, ConfigConstants.SG_MASKED_FIELD_HEADER),
+                (Map<String, Set<String>>) HeaderHelper.deserializeSafeFromHeader(threadContext, ConfigConstants.SG_FLS_FIELDS_HEADER),
+                (Map<String, Set<String>>) HeaderHelper.deserializeSafeFromHeader(threadContext, ConfigConstants.SG_DLS_QUERY_HEADER),
+                (Map<String, Set<String>>) HeaderHelper.deserializeSafeFromHeader(threadContext, ConfigConstants.SG_MASKED_FIELD_HEADER));
+    }
+
+    private boolean isFor(final String flsHeader, final String dlsHeader, final String maskedFieldsHeader) {
+        return (this == EMPTY && flsHeader == null && dlsHeader == null && maskedFieldsHeader == null)
+                || (this != EMPTY && equals(this.flsHeader, flsHeader) && equals(this.dlsHeader, dlsHeader)
+                        && equals(this.maskedFieldsHeader, maskedFieldsHeader));
+    }
+
+    private static boolean equals(final String a, final String b) {
+        //the same header string in the common case
+        return a == b || (a != null && a.equals(b));
+    }
+
+    /**
+     * @param salt the salt of the masked fields, it does not change for the lifetime of a node
+     * @return the FLS, DLS and masking rules which apply to the index
+     */
+    IndexPlan forIndex(final String index, final byte[] salt) {
+        if (this == EMPTY) {
+            return IndexPlan.NONE;
+        }
+        return plans.computeIfAbsent(index, i -> new IndexPlan(this, i, salt));
+    }
+
+    /**
+     * The rules of a request for one index
+     */
+    static final class IndexPlan {
+
+        private static final IndexPlan NONE = new IndexPlan(null, null, null, null, null);
+
+        private final Set<String> flsFields;
+        private final FlsFieldMatcher flsFieldMatcher;
+        private final Set<String> dlsQueries;
+        private final Set<String> maskedFields;
+        private final Map<String, MaskedField> maskedFieldsMap;
+
+        private IndexPlan(final Set<String> flsFields, final FlsFieldMatcher flsFieldMatcher, final Set<String> dlsQueries,
+                final Set<String> maskedFields, final Map<String, MaskedField> maskedFieldsMap) {
+            this.flsFields = flsFields;
+            this.flsFieldMatcher = flsFieldMatcher;
+            this.dlsQueries = dlsQueries;
+            this.maskedFields = maskedFields;
+            this.maskedFieldsMap = maskedFieldsMap;
+        }
+
+        private IndexPlan(final DlsFlsRequestContext context, final String index, final byte[] salt) {
+
+            final String flsEval = SgUtils.evalMap(context.flsFields, index);
+            final String dlsEval = SgUtils.evalMap(context.dlsQueries, index);
+            final String maskedEval = SgUtils.evalMap(context.maskedFields, index);
+
+            if (flsEval != null) {
+                final Set<String> fields = new HashSet<>(META_FIELDS);
+                fields.addAll(context.flsFields.get(flsEval));
+                this.flsFields = Collections.unmodifiableSet(fields);
+                this.flsFieldMatcher = FlsFieldMatcher.compile(fields);
+            } else {
+                this.flsFields = null;
+                this.flsFieldMatcher = null;
+            }
+
+            final Set<String> queries = dlsEval == null ? null : context.dlsQueries.get(dlsEval);
+            this.dlsQueries = queries == null || queries.isEmpty() ? null : Collections.unmodifiableSet(queries);
+
+            final Set<String> masked = maskedEval == null ? null : context.maskedFields.get(maskedEval);
+
+            if (masked != null) {
+                this.maskedFields = Collections.unmodifiableSet(new HashSet<>(masked));
+                final Map<String, MaskedField> map = new HashMap<>(masked.size());
+                for (final String mfs : masked) {
+                    final MaskedField mf = new MaskedField(mfs, salt);
+                    map.put(mf.getName(), mf);
+                }
+                this.maskedFieldsMap = Collections.unmodifiableMap(map);
+            } else {
+                this.maskedFields = null;
+                this.maskedFieldsMap = null;
+            }
+        }
+
+        /**
+         * @return the allowed fields including the meta fields, null if FLS does not apply
+         */
+        Set<String> getFlsFields() {
+            return flsFields;
+        }
+
+        FlsFieldMatcher getFlsFieldMatcher() {
+            return flsFieldMatcher;
+        }
+
+        /**
+         * @return the unparsed DLS queries, null if DLS does not apply
+         */
+        Set<String> getDlsQueries() {
+            return dlsQueries;
+        }
+
+        /**
+         * @return the masked field definitions, null if no masking applies
+         */
+        Set<String> getMaskedFields() {
+            return maskedFields;
+        }
+
+        /**
+         * @return the masked fields by field name (pattern), null if no masking applies
+         */
+        Map<String, MaskedField> getMaskedFieldsMap() {
+            return maskedFieldsMap;
+        }
+    }
+}
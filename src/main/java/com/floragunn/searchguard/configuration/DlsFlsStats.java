@@ -0,0 +1,130 @@
+/*
+ * Copyright 2016-2019 by floragunn GmbH - All rights reserved
+ *
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed here is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * This software is free of charge for non-commercial and academic use.
+ * For commercial use in a production environment you have to obtain a license
+ * from https://floragunn.com
+ *
+ */
+
+package com.floragunn.searchguard.configuration;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.WeakHashMap;
+
+import org.elasticsearch.cluster.metadata.IndexMetaData;
+import org.elasticsearch.cluster.metadata.MetaData;
+import org.elasticsearch.cluster.service.ClusterService;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.ToXContentObject;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+
+import com.google.common.cache.CacheStats;
+
+/**
+ * Node local statistics of the DLS/FLS caches of all open indices on this node
+ */
+public final class DlsFlsStats implements ToXContentObject {
+
+    //one searcher wrapper per index service, they are dropped together with their index service
+    private static final Map<SearchGuardFlsDlsIndexSearcherWrapper, Boolean> WRAPPERS = Collections.synchronizedMap(new WeakHashMap<>());
+
+    private final SortedMap<String, SearchGuardFlsDlsIndexSearcherWrapper> indices = new TreeMap<>();
+    private final DlsBitSetCache dlsBitSetCache;
+
+    public DlsFlsStats(final ClusterService clusterService, final Settings settings) {
+        this.dlsBitSetCache = DlsBitSetCache.getInstance(settings);
+        final MetaData metaData = clusterService.state().metaData();
+        final List<SearchGuardFlsDlsIndexSearcherWrapper> wrappers;
+
+        synchronized (WRAPPERS) {
+            wrappers = new ArrayList<>(WRAPPERS.keySet());
+        }
+
+        for (final SearchGuardFlsDlsIndexSearcherWrapper wrapper : wrappers) {
+            //wrappers of deleted or closed indices linger until they are garbage collected
+            final IndexMetaData indexMetaData = metaData.index(wrapper.index);
+            if (indexMetaData != null && indexMetaData.getState() == IndexMetaData.State.OPEN) {
+                indices.put(wrapper.index.getName(), wrapper);
+            }
+        }
+    }
+
+    static void register(final SearchGuardFlsDlsIndexSearcherWrapper wrapper) {
+        WRAPPERS.put(wrapper, Boolean.TRUE);
+    }
+
+    @Override
+    public XContentBuilder toXContent(final XContentBuilder builder, final Params params) throws IOException {
+        builder.startObject();
+        builder.startObject("indices");
+
+        for (final Map.Entry<String, SearchGuardFlsDlsIndexSearcherWrapper> entry : indices.entrySet()) {
+            final SearchGuardFlsDlsIndexSearcherWrapper wrapper = entry.getValue();
+            builder.startObject(entry.getKey());
+
+            final CacheStats leafCacheStats = wrapper.getLeafCacheStats();
+            builder.startObject("leaf_cache");
+            builder.field("size", wrapper.getLeafCacheSize());
+            builder.field("hit_count", leafCacheStats.hitCount());
+            builder.field("miss_count", leafCacheStats.missCount());
+            builder.field("eviction_count", leafCacheStats.evictionCount());
+            builder.endObject();
+
+            final DlsReaderViews dlsReaderViews = wrapper.getDlsReaderViews();
+            builder.startObject("reader_views");
+            builder.field("size", dlsReaderViews.size());
+            builder.field("memory_size_in_bytes", dlsReaderViews.ramBytesUsed());
+            builder.field("hit_count", dlsReaderViews.hitCount());
+            builder.field("miss_count", dlsReaderViews.missCount());
+            builder.field("rejected_count", dlsReaderViews.rejectedCount());
+            builder.endObject();
+
+            builder.startObject("bitsets");
+            builder.field("memory_size_in_bytes", dlsBitSetCache.ramBytesUsed(entry.getKey()));
+            builder.field("query_sets", dlsBitSetCache.ramBytesUsedPerQuery(entry.getKey()).size());
+            builder.endObject();
+
+            final DlsBitSetWarmer dlsBitSetWarmer = wrapper.getDlsBitSetWarmer();
+            builder.startObject("warmer");
+            builder.field("hot_query_sets", dlsBitSetWarmer.hotQuerySetCount());
+            builder.field("warmed_count", dlsBitSetWarmer.warmedCount());
+            builder.field("skipped_count", dlsBitSetWarmer.skippedCount());
+            builder.endObject();
+
+            builder.endObject();
+        }
+
+        builder.endObject();
+
+        final CacheStats bitSetStats = dlsBitSetCache.stats();
+        final CacheStats userSpecificBitSetStats = dlsBitSetCache.userSpecificStats();
+        builder.startObject("bitset_cache");
+        builder.field("memory_size_in_bytes", dlsBitSetCache.ramBytesUsed());
+        builder.field("max_size_in_bytes", dlsBitSetCache.maxBytes());
+        builder.field("max_user_specific_size_in_bytes", dlsBitSetCache.maxUserSpecificBytes());
+        builder.field("hit_count", bitSetStats.hitCount());
+        builder.field("miss_count", bitSetStats.missCount());
+        builder.field("eviction_count", bitSetStats.evictionCount());
+        builder.field("user_specific_hit_count", userSpecificBitSetStats.hitCount());
+        builder.field("user_specific_miss_count", userSpecificBitSetStats.missCount());
+        builder.field("user_specific_eviction_count", userSpecificBitSetStats.evictionCount());
+        builder.field("sparse_count", dlsBitSetCache.sparseCount());
+        builder.field("dense_count", dlsBitSetCache.denseCount());
+        builder.endObject();
+
+        builder.endObject();
+        return builder;
+    }
+}
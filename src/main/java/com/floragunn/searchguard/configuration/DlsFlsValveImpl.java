@@ -47,6 +47,11 @@ public class DlsFlsValveImpl implements DlsFlsRequestValve {
         final boolean masked = maskedFields != null && !maskedFields.isEmpty();
         final boolean dls = queries != null && !queries.isEmpty();
         
+        if(request instanceof SearchRequest) {
+            //fingerprints are reserved for the restrictions of the current user, see below
+            DlsFlsRequestCacheFingerprints.strip((SearchRequest) request);
+        }
+        
         if(fls || masked || dls) {
             
             if(request instanceof RealtimeRequest) {
@@ -54,7 +59,15 @@ public class DlsFlsValveImpl implements DlsFlsRequestValve {
             }
             
             if(request instanceof SearchRequest) {
-                ((SearchRequest)request).requestCache(Boolean.FALSE);
+                final SearchRequest searchRequest = (SearchRequest) request;
+
+                //cached results are only shared between users with identical restrictions
+                //this is opt-in, so only if the request explicitly asks for the request cache
+                if(Boolean.TRUE.equals(searchRequest.requestCache()) && DlsFlsRequestCacheFingerprints.isCacheable(queries)) {
+                    DlsFlsRequestCacheFingerprints.apply(searchRequest, allowedFlsFields, maskedFields, queries);
+                } else {
+                    searchRequest.requestCache(Boolean.FALSE);
+                }
             }
             
             if(request instanceof UpdateRequest) {
@@ -15,23 +15,40 @@
 package com.floragunn.searchguard.configuration;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
 
+import org.apache.lucene.index.PrefixCodedTerms.TermIterator;
 import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause;
 import org.apache.lucene.search.BooleanClause.Occur;
 import org.apache.lucene.search.BooleanQuery;
 import org.apache.lucene.search.ConstantScoreQuery;
 import org.apache.lucene.search.MatchAllDocsQuery;
+import org.apache.lucene.search.MatchNoDocsQuery;
 import org.apache.lucene.search.PrefixQuery;
 import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermInSetQuery;
+import org.apache.lucene.search.TermQuery;
 import org.apache.lucene.search.join.BitSetProducer;
 import org.apache.lucene.search.join.ToChildBlockJoinQuery;
+import org.apache.lucene.util.BytesRef;
 import org.elasticsearch.common.xcontent.NamedXContentRegistry;
 import org.elasticsearch.common.xcontent.XContentParser;
 import org.elasticsearch.common.xcontent.json.JsonXContent;
+import org.elasticsearch.index.mapper.MapperService;
 import org.elasticsearch.index.query.AbstractQueryBuilder;
 import org.elasticsearch.index.query.ParsedQuery;
 import org.elasticsearch.index.query.QueryBuilder;
@@ -60,54 +77,209 @@ final class DlsQueryParser {
     private static Cache<String, QueryBuilder> queries = CacheBuilder.newBuilder().maximumSize(10000).expireAfterWrite(4, TimeUnit.HOURS)
             .build();
 
-    private DlsQueryParser() {
+    //final lucene queries of the index, keyed by mapping version and the canonicalized dls query set
+    private final Cache<Key, ParsedDlsQuery> parsedQueries;
 
+    DlsQueryParser(final int maxParsedQueries) {
+        this.parsedQueries = CacheBuilder.newBuilder().maximumSize(maxParsedQueries).expireAfterWrite(4, TimeUnit.HOURS).build();
     }
 
-    static Query parse(final Set<String> unparsedDlsQueries, final QueryShardContext queryShardContext,
-            final NamedXContentRegistry namedXContentRegistry) throws IOException {
+    /**
+     * @param unparsedDlsQueries the dls queries of the roles of the user for the index
+     * @param mapperService the mapper service of the index
+     * @param queryShardContext used to build the lucene query if it is not cached yet
+     */
+    ParsedDlsQuery parse(final Set<String> unparsedDlsQueries, final MapperService mapperService,
+            final Supplier<QueryShardContext> queryShardContext, final NamedXContentRegistry namedXContentRegistry) throws IOException {
 
         if (unparsedDlsQueries == null || unparsedDlsQueries.isEmpty()) {
             return null;
         }
-        
-        final boolean hasNestedMapping = queryShardContext.getMapperService().hasNested();
 
-        BooleanQuery.Builder dlsQueryBuilder = new BooleanQuery.Builder();
-        dlsQueryBuilder.setMinimumNumberShouldMatch(1);
+        final boolean hasNestedMapping = mapperService.hasNested();
+        final Key key = new Key(mapperService.getIndexSettings().getIndexMetaData().getMappingVersion(),
+                hasNestedMapping, new TreeSet<>(unparsedDlsQueries));
+
+        final ParsedDlsQuery cached = parsedQueries.getIfPresent(key);
+
+        if (cached != null) {
+            return cached;
+        }
+
+        final SortedMap<String, DlsQueryTemplate.Binding> bindings = new TreeMap<>();
+        boolean userSpecific = false;
 
         for (final String unparsedDlsQuery : unparsedDlsQueries) {
+            final DlsQueryTemplate.Binding binding = DlsQueryTemplate.bind(unparsedDlsQuery);
+            userSpecific |= binding != null && binding.isUserSpecific();
+            bindings.put(unparsedDlsQuery, binding);
+        }
+
+        final QueryShardContext context = queryShardContext.get();
+        final Query query = parse(bindings, hasNestedMapping, context, namedXContentRegistry);
+        final ParsedDlsQuery dlsQuery = new ParsedDlsQuery(query, userSpecific, DlsDocValuesFilter.of(query, mapperService));
+
+        //user specific query sets are cheap to bind and would only evict the ones which are shared by many users
+        //time dependent queries (if 'now' is allowed) must be built for every search
+        if (!userSpecific && context.isCacheable()) {
+            parsedQueries.put(key, dlsQuery);
+        }
+
+        return dlsQuery;
+    }
+
+    private static Query parse(final Map<String, DlsQueryTemplate.Binding> bindings, final boolean hasNestedMapping,
+            final QueryShardContext queryShardContext, final NamedXContentRegistry namedXContentRegistry) throws IOException {
+
+        final List<Query> dlsQueries = new ArrayList<>(bindings.size());
+
+        for (final Map.Entry<String, DlsQueryTemplate.Binding> binding : bindings.entrySet()) {
+            final String unparsedDlsQuery = binding.getKey();
+            final boolean userSpecific = binding.getValue() != null && binding.getValue().isUserSpecific();
+            QueryBuilder qb = binding.getValue() == null ? null : binding.getValue().toQueryBuilder();
+
             try {
 
-                final QueryBuilder qb = queries.get(unparsedDlsQuery, new Callable<QueryBuilder>() {
+                //user specific queries would only evict the parsed queries which are shared by many users
+                if (qb == null && userSpecific) {
+                    qb = parseQueryBuilder(unparsedDlsQuery, namedXContentRegistry);
+                } else if (qb == null) {
+                    qb = queries.get(unparsedDlsQuery, new Callable<QueryBuilder>() {
 
-                    @Override
-                    public QueryBuilder call() throws Exception {
-                        final XContentParser parser = JsonXContent.jsonXContent.createParser(namedXContentRegistry, SearchGuardDeprecationHandler.INSTANCE, unparsedDlsQuery);                
-                        final QueryBuilder qb = AbstractQueryBuilder.parseInnerQueryBuilder(parser);
-                        return qb;
-                    }
+                        @Override
+                        public QueryBuilder call() throws Exception {
+                            return parseQueryBuilder(unparsedDlsQuery, namedXContentRegistry);
+                        }
+
+                    });
+                }
 
-                });
                 final ParsedQuery parsedQuery = queryShardContext.toFilter(qb);
-                final Query dlsQuery = parsedQuery.query();
-                dlsQueryBuilder.add(dlsQuery, Occur.SHOULD);
-                
-                if (hasNestedMapping) {
-                    handleNested(queryShardContext, dlsQueryBuilder, dlsQuery);
-                }  
+                dlsQueries.add(parsedQuery.query());
 
             } catch (ExecutionException e) {
                 throw new IOException(e);
             }
         }
 
-        // no need for scoring here, so its possible to wrap this in a
-        // ConstantScoreQuery
+        final Query dlsQuery = canonicalize(dlsQueries);
+
+        if (dlsQuery instanceof MatchAllDocsQuery) {
+            //nested documents are matched anyway
+            return new ConstantScoreQuery(dlsQuery);
+        }
+
+        if (!hasNestedMapping) {
+            // no need for scoring here, so its possible to wrap this in a
+            // ConstantScoreQuery
+            return new ConstantScoreQuery(dlsQuery);
+        }
+
+        //one block join for the whole disjunction instead of one per dls query
+        final BooleanQuery.Builder dlsQueryBuilder = new BooleanQuery.Builder();
+        dlsQueryBuilder.setMinimumNumberShouldMatch(1);
+        dlsQueryBuilder.add(dlsQuery, Occur.SHOULD);
+        handleNested(queryShardContext, dlsQueryBuilder, dlsQuery);
         return new ConstantScoreQuery(dlsQueryBuilder.build());
+    }
+
+    /**
+     * Builds the disjunction of the dls queries. Only the matched documents are of interest (the queries are filters), so
+     * <ul>
+     * <li>plain disjunctions and constant score wrappers are flattened</li>
+     * <li>term queries on the same field are merged into one {@link TermInSetQuery} (or a {@link TermQuery} for a single term)</li>
+     * <li>duplicates and clauses that can not match are dropped, a match all query subsumes all other clauses</li>
+     * </ul>
+     */
+    static Query canonicalize(final Collection<Query> dlsQueries) {
+
+        final List<Query> clauses = new ArrayList<>();
+        dlsQueries.forEach(q -> flatten(q, clauses));
+
+        final Set<Query> canonicalClauses = new LinkedHashSet<>();
+        final Map<String, List<Query>> termQueriesByField = new TreeMap<>();
+        final Map<String, Set<BytesRef>> termsByField = new TreeMap<>();
+
+        for (final Query clause : clauses) {
+            if (clause instanceof MatchAllDocsQuery) {
+                return clause;
+            } else if (clause instanceof MatchNoDocsQuery) {
+                continue;
+            } else if (clause instanceof TermQuery) {
+                final Term term = ((TermQuery) clause).getTerm();
+                termQueriesByField.computeIfAbsent(term.field(), f -> new ArrayList<>()).add(clause);
+                termsByField.computeIfAbsent(term.field(), f -> new HashSet<>()).add(term.bytes());
+            } else if (clause instanceof TermInSetQuery) {
+                //a TermInSetQuery holds the terms of a single field
+                final TermIterator iterator = ((TermInSetQuery) clause).getTermData().iterator();
+                BytesRef term = iterator.next();
+
+                if (term == null) {
+                    continue;
+                }
+
+                final String field = iterator.field();
+                termQueriesByField.computeIfAbsent(field, f -> new ArrayList<>()).add(clause);
+                final Set<BytesRef> terms = termsByField.computeIfAbsent(field, f -> new HashSet<>());
+
+                for (; term != null; term = iterator.next()) {
+                    terms.add(BytesRef.deepCopyOf(term));
+                }
+            } else {
+                canonicalClauses.add(clause);
+            }
+        }
+
+        for (final Map.Entry<String, Set<BytesRef>> terms : termsByField.entrySet()) {
+            final List<Query> termQueries = termQueriesByField.get(terms.getKey());
+
+            if (terms.getValue().size() == 1) {
+                //a single term, whether given once or several times
+                canonicalClauses.add(new TermQuery(new Term(terms.getKey(), terms.getValue().iterator().next())));
+            } else if (termQueries.size() == 1) {
+                //nothing to merge
+                canonicalClauses.add(termQueries.get(0));
+            } else {
+                canonicalClauses.add(new TermInSetQuery(terms.getKey(), terms.getValue()));
+            }
+        }
 
+        if (canonicalClauses.size() == 1) {
+            return canonicalClauses.iterator().next();
+        }
+
+        final BooleanQuery.Builder dlsQueryBuilder = new BooleanQuery.Builder();
+        dlsQueryBuilder.setMinimumNumberShouldMatch(1);
+        canonicalClauses.forEach(q -> dlsQueryBuilder.add(q, Occur.SHOULD));
+        return dlsQueryBuilder.build();
     }
-    
+
+    private static void flatten(final Query query, final List<Query> clauses) {
+        if (query instanceof ConstantScoreQuery) {
+            flatten(((ConstantScoreQuery) query).getQuery(), clauses);
+        } else if (isDisjunction(query)) {
+            ((BooleanQuery) query).clauses().forEach(c -> flatten(c.getQuery(), clauses));
+        } else {
+            clauses.add(query);
+        }
+    }
+
+    private static boolean isDisjunction(final Query query) {
+        if (!(query instanceof BooleanQuery) || ((BooleanQuery) query).getMinimumNumberShouldMatch() > 1) {
+            return false;
+        }
+
+        final List<BooleanClause> clauses = ((BooleanQuery) query).clauses();
+        return !clauses.isEmpty() && clauses.stream().allMatch(c -> c.getOccur() == Occur.SHOULD);
+    }
+
+    private static QueryBuilder parseQueryBuilder(final String unparsedDlsQuery, final NamedXContentRegistry namedXContentRegistry)
+            throws IOException {
+        final XContentParser parser = JsonXContent.jsonXContent.createParser(namedXContentRegistry, SearchGuardDeprecationHandler.INSTANCE, unparsedDlsQuery);                
+        final QueryBuilder qb = AbstractQueryBuilder.parseInnerQueryBuilder(parser);
+        return qb;
+    }
+
     private static void handleNested(final QueryShardContext queryShardContext, 
             final BooleanQuery.Builder dlsQueryBuilder, 
             final Query parentQuery) {      
@@ -115,5 +287,65 @@ final class DlsQueryParser {
         dlsQueryBuilder.add(new ToChildBlockJoinQuery(parentQuery, parentDocumentsFilter), Occur.SHOULD);
     }
 
+    /**
+     * The dls query of a set of roles
+     */
+    static final class ParsedDlsQuery {
+        private final Query query;
+        private final boolean userSpecific;
+        private final DlsDocValuesFilter docValuesFilter;
+
+        ParsedDlsQuery(final Query query, final boolean userSpecific, final DlsDocValuesFilter docValuesFilter) {
+            this.query = query;
+            this.userSpecific = userSpecific;
+            this.docValuesFilter = docValuesFilter;
+        }
+
+        Query getQuery() {
+            return query;
+        }
+
+        /**
+         * @return true if the query contains user specific values (e.g. substituted user attributes)
+         */
+        boolean isUserSpecific() {
+            return userSpecific;
+        }
+
+        /**
+         * @return the doc values fast path if the query is a simple term rule on a keyword field, otherwise null
+         */
+        DlsDocValuesFilter getDocValuesFilter() {
+            return docValuesFilter;
+        }
+    }
+
+    private static final class Key {
+        private final long mappingVersion;
+        private final boolean hasNestedMapping;
+        private final Set<String> queries;
 
+        Key(final long mappingVersion, final boolean hasNestedMapping, final Set<String> queries) {
+            this.mappingVersion = mappingVersion;
+            this.hasNestedMapping = hasNestedMapping;
+            this.queries = queries;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (31 * Long.hashCode(mappingVersion) + Boolean.hashCode(hasNestedMapping)) + queries.hashCode();
+        }
+
+        @Override
+        public boolean equals(final Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            final Key other = (Key) obj;
+            return mappingVersion == other.mappingVersion && hasNestedMapping == other.hasNestedMapping && queries.equals(other.queries);
+        }
+    }
 }
@@ -0,0 +1,275 @@
+/*
+ * Copyright 2016-2019 by floragunn GmbH - All rights reserved
+ *
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed here is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * This software is free of charge for non-commercial and academic use.
+ * For commercial use in a production environment you have to obtain a license
+ * from https://floragunn.com
+ *
+ */
+
+package com.floragunn.searchguard.configuration;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.elasticsearch.common.xcontent.NamedXContentRegistry;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.common.xcontent.XContentParser.Token;
+import org.elasticsearch.common.xcontent.json.JsonXContent;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.index.query.TermQueryBuilder;
+import org.elasticsearch.index.query.TermsQueryBuilder;
+
+import com.floragunn.searchguard.support.SearchGuardDeprecationHandler;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * A DLS query with its values (and the field names of leaf queries) replaced by typed parameter slots.
+ * <p>
+ * User attributes are substituted into the DLS queries before they reach this module, so every user
+ * can produce a different query string for the same role. The string is split once into its template
+ * (e.g. <code>{"term":{?f:?s}}</code>) and its parameters. Templates are shared by all users, the common shapes
+ * (term and terms queries) are bound to a query builder directly without parsing the query again.
+ * The bindings are cached by query string, so a query is only tokenized once.
+ * <p>
+ * The first distinct bindings of a template are shared, the ones seen after that are considered to be user specific
+ * and are not kept in the caches which are shared by all users. This is decided per binding, so the shared
+ * bindings of a template (e.g. the fixed values of a role) stay cached when it is also used with user attributes.
+ */
+final class DlsQueryTemplate {
+
+    //the number of distinct bindings of a template which are shared
+    static final int MAX_SHARED_BINDINGS = 32;
+
+    //the keys of the bodies of these queries are field names
+    private static final Set<String> LEAF_QUERIES = new HashSet<>(Arrays.asList("term", "terms", "match", "match_phrase",
+            "match_phrase_prefix", "prefix", "wildcard", "regexp", "fuzzy", "range"));
+
+    private static final String TERM = "{\"term\":{?f:?s}}";
+    private static final String TERM_NUMBER = "{\"term\":{?f:?n}}";
+    private static final String TERM_BOOLEAN = "{\"term\":{?f:?b}}";
+    private static final String TERMS = "{\"terms\":{?f:[?*]}}";
+
+    private static final Cache<String, DlsQueryTemplate> templates = CacheBuilder.newBuilder().maximumSize(1000)
+            .expireAfterAccess(4, TimeUnit.HOURS).build();
+
+    private static final Cache<String, Binding> bindings = CacheBuilder.newBuilder().maximumSize(10000)
+            .expireAfterAccess(4, TimeUnit.HOURS).build();
+
+    private final String template;
+    private final Set<List<Object>> sharedBindings = ConcurrentHashMap.newKeySet();
+
+    private DlsQueryTemplate(final String template) {
+        this.template = template;
+    }
+
+    /**
+     * @return the template and parameters of the query, or null if the query could not be tokenized
+     * (it will then fail to parse anyway)
+     */
+    static Binding bind(final String unparsedDlsQuery) {
+        Binding binding = bindings.getIfPresent(unparsedDlsQuery);
+
+        //queries which can not be tokenized are not cached, they fail to parse
+        if (binding == null && (binding = tokenize(unparsedDlsQuery)) != null) {
+            bindings.put(unparsedDlsQuery, binding);
+        }
+
+        return binding;
+    }
+
+    private static Binding tokenize(final String unparsedDlsQuery) {
+
+        final StringBuilder template = new StringBuilder(unparsedDlsQuery.length());
+        final List<Object> parameters = new ArrayList<>();
+
+        try (XContentParser parser = JsonXContent.jsonXContent.createParser(NamedXContentRegistry.EMPTY,
+                SearchGuardDeprecationHandler.INSTANCE, unparsedDlsQuery)) {
+
+            final Token token = parser.nextToken();
+
+            if (token != Token.START_OBJECT) {
+                return null;
+            }
+
+            value(parser, token, false, template, parameters);
+
+            if (parser.nextToken() != null) {
+                return null;
+            }
+
+        } catch (Exception e) {
+            return null;
+        }
+
+        try {
+            final String key = template.toString();
+            final DlsQueryTemplate dlsQueryTemplate = templates.get(key, () -> new DlsQueryTemplate(key));
+            return new Binding(dlsQueryTemplate, parameters, !dlsQueryTemplate.share(parameters));
+        } catch (ExecutionException e) {
+            return null;
+        }
+    }
+
+    String getTemplate() {
+        return template;
+    }
+
+    /**
+     * @return true if the binding is one of the shared ones of this template
+     */
+    private boolean share(final List<Object> parameters) {
+        if (sharedBindings.contains(parameters)) {
+            return true;
+        }
+
+        synchronized (sharedBindings) {
+            return sharedBindings.size() < MAX_SHARED_BINDINGS && sharedBindings.add(parameters) || sharedBindings.contains(parameters);
+        }
+    }
+
+    private static void value(final XContentParser parser, final Token token, final boolean fieldNames, final StringBuilder template,
+            final List<Object> parameters) throws IOException {
+
+        if (token == Token.START_OBJECT) {
+            template.append('{');
+            boolean first = true;
+
+            for (Token t = parser.nextToken(); t != Token.END_OBJECT; t = parser.nextToken()) {
+                final String name = parser.currentName();
+
+                if (!first) {
+                    template.append(',');
+                }
+                first = false;
+
+                if (fieldNames) {
+                    template.append("?f:");
+                    parameters.add(name);
+                } else {
+                    quote(name, template).append(':');
+                }
+
+                value(parser, parser.nextToken(), !fieldNames && LEAF_QUERIES.contains(name), template, parameters);
+            }
+
+            template.append('}');
+
+        } else if (token == Token.START_ARRAY) {
+            //arrays of values (e.g. terms of the roles of the user) are a single slot, their length varies
+            final StringBuilder elements = new StringBuilder();
+            final List<Object> elementParameters = new ArrayList<>();
+            final List<Object> values = new ArrayList<>();
+            boolean onlyValues = true;
+
+            for (Token t = parser.nextToken(); t != Token.END_ARRAY; t = parser.nextToken()) {
+                if (elements.length() > 0) {
+                    elements.append(',');
+                }
+
+                if (t.isValue() || t == Token.VALUE_NULL) {
+                    values.add(parser.objectText());
+                } else {
+                    onlyValues = false;
+                }
+
+                value(parser, t, false, elements, elementParameters);
+            }
+
+            if (onlyValues) {
+                template.append("[?*]");
+                parameters.add(Collections.unmodifiableList(values));
+            } else {
+                template.append('[').append(elements).append(']');
+                parameters.addAll(elementParameters);
+            }
+
+        } else if (token == Token.VALUE_STRING) {
+            template.append("?s");
+            parameters.add(parser.objectText());
+        } else if (token == Token.VALUE_NUMBER) {
+            template.append("?n");
+            parameters.add(parser.objectText());
+        } else if (token == Token.VALUE_BOOLEAN) {
+            template.append("?b");
+            parameters.add(parser.objectText());
+        } else if (token == Token.VALUE_NULL) {
+            template.append("?z");
+            parameters.add(null);
+        } else {
+            throw new IOException("Unexpected token " + token);
+        }
+    }
+
+    private static StringBuilder quote(final String name, final StringBuilder template) {
+        template.append('"');
+        for (int i = 0; i < name.length(); i++) {
+            final char c = name.charAt(i);
+            if (c == '"' || c == '\\') {
+                template.append('\\');
+            }
+            template.append(c);
+        }
+        return template.append('"');
+    }
+
+    /**
+     * A template bound to the parameters of a concrete DLS query
+     */
+    static final class Binding {
+
+        private final DlsQueryTemplate template;
+        private final List<Object> parameters;
+        private final boolean userSpecific;
+
+        private Binding(final DlsQueryTemplate template, final List<Object> parameters, final boolean userSpecific) {
+            this.template = template;
+            this.parameters = parameters;
+            this.userSpecific = userSpecific;
+        }
+
+        DlsQueryTemplate getTemplate() {
+            return template;
+        }
+
+        List<Object> getParameters() {
+            return parameters;
+        }
+
+        boolean isUserSpecific() {
+            return userSpecific;
+        }
+
+        /**
+         * @return the query builder for the common shapes, null if the query has to be parsed
+         */
+        QueryBuilder toQueryBuilder() {
+            switch (template.template) {
+            case TERM:
+            case TERM_NUMBER:
+            case TERM_BOOLEAN:
+                return new TermQueryBuilder((String) parameters.get(0), parameters.get(1));
+            case TERMS:
+                final List<?> values = (List<?>) parameters.get(1);
+                //let the parser report invalid values
+                return values.contains(null) ? null : new TermsQueryBuilder((String) parameters.get(0), values);
+            default:
+                return null;
+            }
+        }
+    }
+}
@@ -0,0 +1,335 @@
+/*
+ * Copyright 2016-2019 by floragunn GmbH - All rights reserved
+ *
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed here is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * This software is free of charge for non-commercial and academic use.
+ * For commercial use in a production environment you have to obtain a license
+ * from https://floragunn.com
+ *
+ */
+
+package com.floragunn.searchguard.configuration;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.join.BitSetProducer;
+import org.apache.lucene.store.AlreadyClosedException;
+import org.apache.lucene.util.Accountable;
+import org.apache.lucene.util.BitSet;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.FixedBitSet;
+import org.apache.lucene.util.RamUsageEstimator;
+import org.apache.lucene.util.SparseFixedBitSet;
+import org.elasticsearch.ExceptionsHelper;
+
+/**
+ * Tracks the DLS restricted views of a segment reader, one per (segment reader, DLS bitset producer) pair.
+ * Users with the same DLS query set (and FLS rules, see {@link DlsBitSetCache.DlsBitSetProducer}) share the view.
+ * <p>
+ * A view holds the live docs of the restricted leaf (the DLS bitset intersected with the deletions
+ * of the segment reader, which is specific to a deletion generation) and their count, built once
+ * and shared by all searchers with the same view.
+ * <p>
+ * Views are closed when the underlying segment reader is closed. A changed DLS rule yields a new query and thus a new producer and view,
+ * the old one is not reachable anymore and goes away with the segment reader.
+ * The number of views per segment reader and the heap used by intersected live docs are bounded,
+ * leaves exceeding that are not cached (like before).
+ */
+final class DlsReaderViews implements Accountable {
+
+    private static final Logger log = LogManager.getLogger(DlsReaderViews.class);
+
+    private static final long BYTES_PER_VIEW = RamUsageEstimator.shallowSizeOfInstance(View.class)
+            + RamUsageEstimator.shallowSizeOfInstance(DlsLiveDocs.class)
+            //ConcurrentHashMap node
+            + RamUsageEstimator.NUM_BYTES_OBJECT_HEADER + 3 * RamUsageEstimator.NUM_BYTES_OBJECT_REF + Integer.BYTES;
+
+    private final int maxViewsPerReader;
+    private final long maxLiveDocsBytes;
+    private final Map<IndexReader.CacheKey, Map<BitSetProducer, View>> views = new ConcurrentHashMap<>();
+    private final AtomicLong size = new AtomicLong();
+    private final AtomicLong liveDocsBytes = new AtomicLong();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+
+    DlsReaderViews(final int maxViewsPerReader, final long maxLiveDocsBytes) {
+        this.maxViewsPerReader = maxViewsPerReader;
+        this.maxLiveDocsBytes = maxLiveDocsBytes;
+    }
+
+    /**
+     * @return the view of reader restricted by the bitsets of dlsBitSetProducer or null if the view must not be cached
+     */
+    View get(final LeafReader reader, final BitSetProducer dlsBitSetProducer) {
+
+        if (dlsBitSetProducer == null) {
+            return null;
+        }
+
+        final IndexReader.CacheHelper readerCacheHelper = reader.getReaderCacheHelper();
+
+        if (readerCacheHelper == null) {
+            return null;
+        }
+
+        try {
+            final Map<BitSetProducer, View> readerViews = views.computeIfAbsent(readerCacheHelper.getKey(), k -> {
+                readerCacheHelper.addClosedListener(this::onReaderClosed);
+                return new ConcurrentHashMap<>();
+            });
+
+            View view = readerViews.get(dlsBitSetProducer);
+
+            if (view != null) {
+                hits.incrementAndGet();
+                return view;
+            }
+
+            if (readerViews.size() >= maxViewsPerReader) {
+                rejected.incrementAndGet();
+                return null;
+            }
+
+            final View newView = new View();
+            view = readerViews.putIfAbsent(dlsBitSetProducer, newView);
+
+            if (view != null) {
+                hits.incrementAndGet();
+                return view;
+            }
+
+            misses.incrementAndGet();
+            size.incrementAndGet();
+            return newView;
+        } catch (AlreadyClosedException e) {
+            //reader was closed concurrently
+            return null;
+        } catch (Exception e) {
+            throw ExceptionsHelper.convertToElastic(e);
+        }
+    }
+
+    /**
+     * @return number of DLS views which are currently tracked
+     */
+    long size() {
+        return size.get();
+    }
+
+    long hitCount() {
+        return hits.get();
+    }
+
+    long missCount() {
+        return misses.get();
+    }
+
+    /**
+     * @return number of views which were not cacheable because their segment reader had too many views already
+     *         or the heap budget for intersected live docs was exhausted
+     */
+    long rejectedCount() {
+        return rejected.get();
+    }
+
+    @Override
+    public long ramBytesUsed() {
+        //the dls bitsets are accounted by the DlsBitSetCache
+        return size.get() * BYTES_PER_VIEW + liveDocsBytes.get();
+    }
+
+    private void onReaderClosed(final IndexReader.CacheKey readerKey) {
+        final Map<BitSetProducer, View> readerViews = views.remove(readerKey);
+
+        if (readerViews == null) {
+            return;
+        }
+
+        size.addAndGet(-readerViews.size());
+
+        for (final View view : readerViews.values()) {
+            view.close();
+        }
+
+        if (log.isTraceEnabled()) {
+            log.trace("Reader closed, {} DLS views left, ~{} bytes", size.get(), ramBytesUsed());
+        }
+    }
+
+    /**
+     * Intersects the DLS bitset of a segment with its live docs.
+     * Only set bits of the DLS bitset are visited, the count is taken from the resulting bitset (popcount).
+     */
+    static DlsLiveDocs intersect(final BitSet dlsBits, final Bits liveDocs, final int maxDoc) {
+
+        if (dlsBits == null) {
+            return new DlsLiveDocs(new Bits.MatchNoBits(maxDoc), 0, 0);
+        }
+
+        if (liveDocs == null) {
+            return new DlsLiveDocs(dlsBits, dlsBits.cardinality(), 0);
+        }
+
+        final BitSet intersection;
+
+        if (dlsBits instanceof FixedBitSet) {
+            //copy the words, then clear what is deleted
+            final FixedBitSet fixedBitSet = ((FixedBitSet) dlsBits).clone();
+            for (int doc = fixedBitSet.nextSetBit(0); doc != DocIdSetIterator.NO_MORE_DOCS;
+                    doc = doc + 1 < maxDoc ? fixedBitSet.nextSetBit(doc + 1) : DocIdSetIterator.NO_MORE_DOCS) {
+                if (!liveDocs.get(doc)) {
+                    fixedBitSet.clear(doc);
+                }
+            }
+            intersection = fixedBitSet;
+        } else {
+            //keep sparse bitsets sparse
+            intersection = new SparseFixedBitSet(maxDoc);
+            for (int doc = dlsBits.nextSetBit(0); doc != DocIdSetIterator.NO_MORE_DOCS;
+                    doc = doc + 1 < maxDoc ? dlsBits.nextSetBit(doc + 1) : DocIdSetIterator.NO_MORE_DOCS) {
+                if (liveDocs.get(doc)) {
+                    intersection.set(doc);
+                }
+            }
+        }
+
+        return new DlsLiveDocs(intersection, intersection.cardinality(), intersection.ramBytesUsed());
+    }
+
+    /**
+     * Live docs of a DLS restricted leaf and their count
+     */
+    static class DlsLiveDocs {
+        private final Bits liveDocs;
+        private final int numDocs;
+        private long ramBytesUsed;
+        private AtomicLong accountedBytes;
+
+        DlsLiveDocs(final Bits liveDocs, final int numDocs, final long ramBytesUsed) {
+            this.liveDocs = liveDocs;
+            this.numDocs = numDocs;
+            this.ramBytesUsed = ramBytesUsed;
+        }
+
+        Bits getLiveDocs() {
+            return liveDocs;
+        }
+
+        int getNumDocs() {
+            return numDocs;
+        }
+
+        synchronized long ramBytesUsed() {
+            return ramBytesUsed;
+        }
+
+        /**
+         * For live docs which allocate memory after they were built (see {@link DlsDocValuesFilter})
+         */
+        synchronized void grow(final long bytes) {
+            ramBytesUsed += bytes;
+
+            if (accountedBytes != null) {
+                accountedBytes.addAndGet(bytes);
+            }
+        }
+
+        private synchronized void account(final AtomicLong bytes) {
+            accountedBytes = bytes;
+            accountedBytes.addAndGet(ramBytesUsed);
+        }
+
+        private synchronized void release() {
+            if (accountedBytes != null) {
+                accountedBytes.addAndGet(-ramBytesUsed);
+                accountedBytes = null;
+            }
+        }
+    }
+
+    interface DlsBitsLoader {
+        BitSet load() throws IOException;
+    }
+
+    interface DlsLiveDocsLoader {
+        /**
+         * @return the live docs or null if they can not be built this way
+         */
+        DlsLiveDocs load() throws IOException;
+    }
+
+    final class View {
+
+        private volatile DlsLiveDocs liveDocs;
+        private boolean closed;
+
+        /**
+         * @param docValuesLiveDocs builds the live docs without a DLS bitset (see {@link DlsDocValuesFilter}), tried first, or null
+         * @param dlsBits loads the DLS bitset of the segment (from the bitset filter cache)
+         * @param segmentLiveDocs the live docs of the segment reader this view belongs to
+         * @return the live docs of this view, built once, or null if the heap budget for live docs is exhausted
+         */
+        DlsLiveDocs getLiveDocs(final DlsLiveDocsLoader docValuesLiveDocs, final DlsBitsLoader dlsBits, final Bits segmentLiveDocs,
+                final int maxDoc) throws IOException {
+            final DlsLiveDocs result = liveDocs;
+
+            if (result != null) {
+                return result;
+            }
+
+            synchronized (this) {
+                if (liveDocs != null) {
+                    return liveDocs;
+                }
+
+                if (closed) {
+                    return null;
+                }
+
+                final DlsLiveDocs lazyLiveDocs = docValuesLiveDocs == null ? null : docValuesLiveDocs.load();
+
+                if (lazyLiveDocs != null) {
+                    liveDocs = lazyLiveDocs;
+                    liveDocs.account(liveDocsBytes);
+                    return liveDocs;
+                }
+
+                final BitSet bits = dlsBits.load();
+
+                //an intersection is at most as large as the dls bitset
+                if (bits != null && segmentLiveDocs != null && liveDocsBytes.get() + bits.ramBytesUsed() > maxLiveDocsBytes) {
+                    rejected.incrementAndGet();
+                    return null;
+                }
+
+                liveDocs = intersect(bits, segmentLiveDocs, maxDoc);
+                liveDocs.account(liveDocsBytes);
+                return liveDocs;
+            }
+        }
+
+        private void close() {
+            synchronized (this) {
+                closed = true;
+
+                if (liveDocs != null) {
+                    liveDocs.release();
+                    liveDocs = null;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,294 @@
+/*
+ * Copyright 2016-2019 by floragunn GmbH - All rights reserved
+ *
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed here is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * This software is free of charge for non-commercial and academic use.
+ * For commercial use in a production environment you have to obtain a license
+ * from https://floragunn.com
+ *
+ */
+
+package com.floragunn.searchguard.configuration;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.lucene.document.HalfFloatPoint;
+import org.apache.lucene.index.DocValues;
+import org.apache.lucene.index.DocValuesType;
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.FieldInfos;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.SortedNumericDocValues;
+import org.apache.lucene.index.SortedSetDocValues;
+import org.apache.lucene.util.NumericUtils;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.settings.Setting;
+import org.elasticsearch.common.settings.Setting.Property;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.common.xcontent.json.JsonXContent;
+import org.elasticsearch.index.mapper.BooleanFieldMapper;
+import org.elasticsearch.index.mapper.DocumentMapper;
+import org.elasticsearch.index.mapper.FieldMapper;
+import org.elasticsearch.index.mapper.KeywordFieldMapper;
+import org.elasticsearch.index.mapper.MappedFieldType;
+import org.elasticsearch.index.mapper.Mapper;
+import org.elasticsearch.index.mapper.MapperService;
+import org.elasticsearch.index.mapper.NumberFieldMapper;
+
+/**
+ * Builds the FLS filtered _source of a document from the doc values of the allowed fields
+ * instead of decompressing and filtering the stored _source.
+ * <p>
+ * This is opt-in (see {@link #ENABLED}) because the rebuilt _source is not byte identical to the filtered one:
+ * keys are sorted, multiple values of a field are returned in doc values order (keywords are also deduplicated)
+ * and numbers are returned as parsed. It is only used if the FLS rules are plain includes of top level fields
+ * and every such field is a keyword, numeric or boolean field with doc values whose doc values contain exactly
+ * the values of the _source (no normalizer, ignore_above, ignore_malformed, null_value or copy_to).
+ * Otherwise (or if a segment has one of the fields without doc values) the stored _source is filtered as before.
+ */
+final class FlsDocValuesSource {
+
+    public static final Setting<Boolean> ENABLED = Setting.boolSetting("searchguard.dls_fls.source_from_doc_values.enabled", false,
+            Property.NodeScope);
+
+    private static final Logger log = LogManager.getLogger(FlsDocValuesSource.class);
+
+    private static final Set<String> INTEGER_TYPES = new HashSet<>(Arrays.asList("long", "integer", "short", "byte"));
+    //mapping parameters which make the doc values differ from the _source
+    private static final Set<String> LOSSY_PARAMETERS = new HashSet<>(Arrays.asList("normalizer", "ignore_above",
+            "ignore_malformed", "null_value"));
+
+    private final String[] fields;
+    private final String[] types;
+
+    private FlsDocValuesSource(final String[] fields, final String[] types) {
+        this.fields = fields;
+        this.types = types;
+    }
+
+    /**
+     * @param segmentFieldInfos the field infos of the segment the _source is built for
+     * @return the source builder or null if the _source of the segment can not be built from doc values
+     */
+    static FlsDocValuesSource of(final FlsFieldMatcher flsFieldMatcher, final MapperService mapperService,
+            final FieldInfos segmentFieldInfos) {
+
+        if (!flsFieldMatcher.canOptimize() || !flsFieldMatcher.getExcludes().isEmpty()) {
+            return null;
+        }
+
+        final List<DocumentMapper> documentMappers = new ArrayList<>(1);
+        mapperService.docMappers(false).forEach(documentMappers::add);
+
+        if (documentMappers.size() != 1 || !documentMappers.get(0).sourceMapper().isComplete()) {
+            return null;
+        }
+
+        final DocumentMapper documentMapper = documentMappers.get(0);
+        final Set<String> copyToTargets = new HashSet<>();
+
+        for (final Mapper mapper : documentMapper.mappers()) {
+            if (mapper instanceof FieldMapper && ((FieldMapper) mapper).copyTo() != null) {
+                copyToTargets.addAll(((FieldMapper) mapper).copyTo().copyToFields());
+            }
+        }
+
+        final TreeSet<String> fields = new TreeSet<>();
+
+        for (final String field : flsFieldMatcher.getIncludes()) {
+            if (!MapperService.isMetadataField(field)) {
+                fields.add(field);
+            }
+        }
+
+        final String[] types = new String[fields.size()];
+        int i = 0;
+
+        for (final String field : fields) {
+            final MappedFieldType fieldType = mapperService.fullName(field);
+            final FieldInfo fieldInfo = segmentFieldInfos.fieldInfo(field);
+
+            if (fieldType == null || !fieldType.hasDocValues() || copyToTargets.contains(field)
+                    || (fieldInfo != null && fieldInfo.getDocValuesType() == DocValuesType.NONE)
+                    || isLossy(documentMapper.mappers().getMapper(field))) {
+                return null;
+            }
+
+            if (fieldType instanceof KeywordFieldMapper.KeywordFieldType || fieldType instanceof BooleanFieldMapper.BooleanFieldType
+                    || (fieldType instanceof NumberFieldMapper.NumberFieldType && !"scaled_float".equals(fieldType.typeName()))) {
+                types[i++] = fieldType.typeName();
+            } else {
+                return null;
+            }
+        }
+
+        return new FlsDocValuesSource(fields.toArray(new String[0]), types);
+    }
+
+    private static boolean isLossy(final Mapper mapper) {
+        if (mapper == null) {
+            return true;
+        }
+
+        try {
+            final XContentBuilder builder = JsonXContent.contentBuilder().startObject();
+            mapper.toXContent(builder, ToXContent.EMPTY_PARAMS);
+            builder.endObject();
+
+            final Object parameters = XContentHelper.convertToMap(BytesReference.bytes(builder), false, XContentType.JSON).v2()
+                    .get(mapper.simpleName());
+
+            if (!(parameters instanceof Map)) {
+                return true;
+            }
+
+            for (final String parameter : LOSSY_PARAMETERS) {
+                final Object value = ((Map<?, ?>) parameters).get(parameter);
+                if (value != null && !Boolean.FALSE.equals(value) && !"false".equals(value)
+                        && !String.valueOf(Integer.MAX_VALUE).equals(String.valueOf(value))) {
+                    return true;
+                }
+            }
+
+            return false;
+        } catch (Exception e) {
+            log.debug("Unable to inspect mapping of {}", mapper.name(), e);
+            return true;
+        }
+    }
+
+    /**
+     * @param reader the segment reader the _source is built for
+     * @return builds the _source of the documents of reader
+     */
+    LeafSource newLeafSource(final LeafReader reader) {
+        return new LeafSource(reader);
+    }
+
+    private static void keyword(final SortedSetDocValues docValues, final int docID, final String field, final XContentBuilder builder)
+            throws IOException {
+
+        if (!docValues.advanceExact(docID)) {
+            return;
+        }
+
+        final long first = docValues.nextOrd();
+        final long second = docValues.nextOrd();
+
+        builder.field(field);
+
+        if (second == SortedSetDocValues.NO_MORE_ORDS) {
+            builder.value(docValues.lookupOrd(first).utf8ToString());
+            return;
+        }
+
+        builder.startArray();
+        builder.value(docValues.lookupOrd(first).utf8ToString());
+        for (long ord = second; ord != SortedSetDocValues.NO_MORE_ORDS; ord = docValues.nextOrd()) {
+            builder.value(docValues.lookupOrd(ord).utf8ToString());
+        }
+        builder.endArray();
+    }
+
+    private static void numeric(final SortedNumericDocValues docValues, final int docID, final String field, final String type,
+            final XContentBuilder builder) throws IOException {
+
+        if (!docValues.advanceExact(docID)) {
+            return;
+        }
+
+        final int count = docValues.docValueCount();
+
+        builder.field(field);
+
+        if (count > 1) {
+            builder.startArray();
+        }
+
+        for (int i = 0; i < count; i++) {
+            final long value = docValues.nextValue();
+
+            if (INTEGER_TYPES.contains(type)) {
+                builder.value(value);
+            } else if ("boolean".equals(type)) {
+                builder.value(value != 0);
+            } else if ("double".equals(type)) {
+                builder.value(NumericUtils.sortableLongToDouble(value));
+            } else if ("float".equals(type)) {
+                builder.value(NumericUtils.sortableIntToFloat((int) value));
+            } else {
+                builder.value(HalfFloatPoint.sortableShortToHalfFloat((short) value));
+            }
+        }
+
+        if (count > 1) {
+            builder.endArray();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "FlsDocValuesSource(" + String.join(",", fields) + ")";
+    }
+
+    /**
+     * Keeps the doc values of the fields of one segment reader, they are fetched once and advanced from document to document.
+     * Doc values can only move forward, they are fetched again if a document before the last one is read.
+     */
+    final class LeafSource {
+
+        private final LeafReader reader;
+        private final SortedSetDocValues[] sortedSetDocValues = new SortedSetDocValues[fields.length];
+        private final SortedNumericDocValues[] sortedNumericDocValues = new SortedNumericDocValues[fields.length];
+        private int lastDocID = -1;
+
+        private LeafSource(final LeafReader reader) {
+            this.reader = reader;
+        }
+
+        /**
+         * @return the _source of the document with the values of the allowed fields
+         */
+        synchronized byte[] build(final int docID) throws IOException {
+
+            final boolean reset = docID <= lastDocID;
+            lastDocID = docID;
+
+            final XContentBuilder builder = XContentBuilder.builder(XContentType.JSON.xContent());
+            builder.startObject();
+
+            for (int i = 0; i < fields.length; i++) {
+                if ("keyword".equals(types[i])) {
+                    if (reset || sortedSetDocValues[i] == null) {
+                        sortedSetDocValues[i] = DocValues.getSortedSet(reader, fields[i]);
+                    }
+                    keyword(sortedSetDocValues[i], docID, fields[i], builder);
+                } else {
+                    if (reset || sortedNumericDocValues[i] == null) {
+                        sortedNumericDocValues[i] = DocValues.getSortedNumeric(reader, fields[i]);
+                    }
+                    numeric(sortedNumericDocValues[i], docID, fields[i], types[i], builder);
+                }
+            }
+
+            builder.endObject();
+            return BytesReference.toBytes(BytesReference.bytes(builder));
+        }
+    }
+}
@@ -0,0 +1,211 @@
+/*
+ * Copyright 2016-2019 by floragunn GmbH - All rights reserved
+ *
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed here is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * This software is free of charge for non-commercial and academic use.
+ * For commercial use in a production environment you have to obtain a license
+ * from https://floragunn.com
+ *
+ */
+
+package com.floragunn.searchguard.configuration;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.automaton.Automata;
+import org.apache.lucene.util.automaton.Automaton;
+import org.apache.lucene.util.automaton.ByteRunAutomaton;
+import org.apache.lucene.util.automaton.CharacterRunAutomaton;
+import org.apache.lucene.util.automaton.Operations;
+import org.apache.lucene.util.automaton.TooComplexToDeterminizeException;
+import org.elasticsearch.ExceptionsHelper;
+
+import com.floragunn.searchguard.support.WildcardMatcher;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * The FLS rules of a role set compiled once and shared across all segments (and searchers).
+ * <p>
+ * Allow/deny decisions are answered by a Lucene automaton which runs directly on the
+ * utf-8 bytes of a term, so walking the terms of _field_names does not need to decode
+ * or allocate anything. Regex patterns (/.../) are not expressible as Lucene automatons,
+ * rule sets containing them fall back to {@link WildcardMatcher}.
+ */
+final class FlsFieldMatcher {
+
+    private static final Logger log = LogManager.getLogger(FlsFieldMatcher.class);
+
+    private static final Cache<Set<String>, FlsFieldMatcher> matchers = CacheBuilder.newBuilder().maximumSize(1000)
+            .expireAfterAccess(4, TimeUnit.HOURS).build();
+
+    private final Set<String> rules;
+    private final int hash;
+    private final Set<String> includesSet;
+    private final Set<String> excludesSet;
+    private final boolean canOptimize;
+    private final ByteRunAutomaton byteMatcher;
+    private final CharacterRunAutomaton charMatcher;
+    private final FlsSourceFilter sourceFilter;
+
+    //use compile() outside of tests
+    FlsFieldMatcher(final Set<String> includesExcludes) {
+        this.rules = Collections.unmodifiableSet(new HashSet<>(includesExcludes));
+        this.hash = rules.hashCode();
+        final Set<String> includes = new HashSet<>(includesExcludes.size());
+        final Set<String> excludes = new HashSet<>(includesExcludes.size());
+        boolean optimizable = true;
+        boolean regex = false;
+
+        for (final String incExc : includesExcludes) {
+            if (optimizable && (incExc.indexOf('.') > -1 || incExc.indexOf('*') > -1)) {
+                optimizable = false;
+            }
+
+            final char firstChar = incExc.charAt(0);
+            final boolean exclude = firstChar == '!' || firstChar == '~';
+            final String pattern = exclude ? incExc.substring(1) : incExc;
+
+            if (pattern.length() > 1 && pattern.startsWith("/") && pattern.endsWith("/")) {
+                regex = true;
+            }
+
+            if (exclude) {
+                excludes.add(pattern);
+            } else {
+                includes.add(pattern);
+            }
+        }
+
+        this.includesSet = Collections.unmodifiableSet(includes);
+        this.excludesSet = Collections.unmodifiableSet(excludes);
+        this.canOptimize = optimizable;
+        this.sourceFilter = new FlsSourceFilter(includesSet, excludesSet, canOptimize);
+
+        Automaton allowed = null;
+
+        if (canOptimize || !regex) {
+            try {
+                final Automaton matching = toAutomaton(excludesSet.isEmpty() ? includesSet : excludesSet, !canOptimize);
+                allowed = excludesSet.isEmpty() ? matching : Operations.complement(matching, Operations.DEFAULT_MAX_DETERMINIZED_STATES);
+                allowed = Operations.determinize(allowed, Operations.DEFAULT_MAX_DETERMINIZED_STATES);
+            } catch (TooComplexToDeterminizeException e) {
+                log.warn("FLS rules {} are too complex to be compiled, will use slow path", includesExcludes);
+                allowed = null;
+            }
+        }
+
+        this.byteMatcher = allowed == null ? null : new ByteRunAutomaton(allowed);
+        this.charMatcher = allowed == null ? null : new CharacterRunAutomaton(allowed);
+    }
+
+    /**
+     * @param includesExcludes the FLS fields of a role set, excludes are prefixed with ! or ~
+     * @return the (cached) compiled matcher for this rule set
+     */
+    static FlsFieldMatcher compile(final Set<String> includesExcludes) {
+        try {
+            return matchers.get(includesExcludes, () -> new FlsFieldMatcher(includesExcludes));
+        } catch (ExecutionException e) {
+            throw ExceptionsHelper.convertToElastic((Exception) e.getCause());
+        }
+    }
+
+    boolean isAllowed(final String field) {
+        if (charMatcher != null) {
+            return charMatcher.run(field);
+        }
+
+        if (!excludesSet.isEmpty()) {
+            return !WildcardMatcher.matchAny(excludesSet, field);
+        } else {
+            return WildcardMatcher.matchAny(includesSet, field);
+        }
+    }
+
+    boolean isAllowed(final BytesRef field) {
+        if (byteMatcher != null) {
+            return byteMatcher.run(field.bytes, field.offset, field.length);
+        }
+
+        return isAllowed(field.utf8ToString());
+    }
+
+    Set<String> getIncludes() {
+        return includesSet;
+    }
+
+    Set<String> getExcludes() {
+        return excludesSet;
+    }
+
+    boolean canOptimize() {
+        return canOptimize;
+    }
+
+    FlsSourceFilter getSourceFilter() {
+        return sourceFilter;
+    }
+
+    /**
+     * Equal for the same rule set, also if the matchers were compiled independently (e.g. after the cache expired)
+     */
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public boolean equals(final Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof FlsFieldMatcher)) {
+            return false;
+        }
+        final FlsFieldMatcher other = (FlsFieldMatcher) obj;
+        return hash == other.hash && rules.equals(other.rules);
+    }
+
+    //same semantics as WildcardMatcher.match() for non regex patterns: * matches any sequence, ? exactly one character
+    //if wildcards is false the patterns are taken literally (like the Set.contains() checks of the optimized path)
+    private static Automaton toAutomaton(final Set<String> patterns, final boolean wildcards) {
+        final List<Automaton> automatons = new ArrayList<>(patterns.size());
+
+        for (final String pattern : patterns) {
+            if (!wildcards) {
+                automatons.add(Automata.makeString(pattern));
+                continue;
+            }
+
+            final List<Automaton> parts = new ArrayList<>(pattern.length());
+            for (int i = 0; i < pattern.length();) {
+                final int c = pattern.codePointAt(i);
+                if (c == '*') {
+                    parts.add(Automata.makeAnyString());
+                } else if (c == '?') {
+                    parts.add(Automata.makeAnyChar());
+                } else {
+                    parts.add(Automata.makeChar(c));
+                }
+                i += Character.charCount(c);
+            }
+            automatons.add(parts.isEmpty() ? Automata.makeEmptyString() : Operations.concatenate(parts));
+        }
+
+        return automatons.isEmpty() ? Automata.makeEmpty() : Operations.union(automatons);
+    }
+}
@@ -0,0 +1,306 @@
+/*
+ * Copyright 2016-2019 by floragunn GmbH - All rights reserved
+ *
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed here is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * This software is free of charge for non-commercial and academic use.
+ * For commercial use in a production environment you have to obtain a license
+ * from https://floragunn.com
+ *
+ */
+
+package com.floragunn.searchguard.configuration;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Set;
+
+import org.apache.lucene.util.automaton.Automata;
+import org.apache.lucene.util.automaton.Automaton;
+import org.apache.lucene.util.automaton.CharacterRunAutomaton;
+import org.apache.lucene.util.automaton.Operations;
+import org.elasticsearch.ElasticsearchParseException;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.regex.Regex;
+import org.elasticsearch.common.xcontent.NamedXContentRegistry;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.common.xcontent.XContentParser.Token;
+import org.elasticsearch.common.xcontent.XContentType;
+
+import com.floragunn.searchguard.support.SearchGuardDeprecationHandler;
+
+/**
+ * Filters a JSON _source by streaming it from a parser directly into a builder.
+ * Allowed subtrees are copied through token by token, excluded subtrees are skipped,
+ * so no intermediate map of the document is ever built.
+ * <p>
+ * The include/exclude/wildcard semantics are the same as
+ * {@link org.elasticsearch.common.xcontent.support.XContentMapValues#filter(String[], String[])}
+ * (or plain top level key matching if no pattern contains a dot or a wildcard).
+ * Instances are immutable and thread safe.
+ */
+public final class FlsSourceFilter {
+
+    private static final CharacterRunAutomaton MATCH_ALL = new CharacterRunAutomaton(Automata.makeAnyString());
+
+    private final boolean canOptimize;
+    private final Set<String> includesSet;
+    private final Set<String> excludesSet;
+    private final CharacterRunAutomaton include;
+    private final CharacterRunAutomaton exclude;
+
+    /**
+     * @param includesSet field names or patterns to include, ignored if excludesSet is not empty
+     * @param excludesSet field names or patterns to exclude
+     * @param canOptimize true if no pattern contains a dot or a wildcard, only top level keys are matched then
+     */
+    public FlsSourceFilter(final Set<String> includesSet, final Set<String> excludesSet, final boolean canOptimize) {
+        this.canOptimize = canOptimize;
+        this.includesSet = includesSet == null ? Collections.emptySet() : includesSet;
+        this.excludesSet = excludesSet == null ? Collections.emptySet() : excludesSet;
+
+        if (canOptimize) {
+            this.include = null;
+            this.exclude = null;
+        } else if (!this.excludesSet.isEmpty()) {
+            this.include = MATCH_ALL;
+            this.exclude = new CharacterRunAutomaton(makeMatchDotsInFieldNames(Regex.simpleMatchToAutomaton(this.excludesSet.toArray(new String[0]))));
+        } else {
+            this.include = new CharacterRunAutomaton(makeMatchDotsInFieldNames(Regex.simpleMatchToAutomaton(this.includesSet.toArray(new String[0]))));
+            this.exclude = new CharacterRunAutomaton(Automata.makeEmpty());
+        }
+    }
+
+    private FlsSourceFilter(final CharacterRunAutomaton include, final CharacterRunAutomaton exclude) {
+        this.canOptimize = false;
+        this.includesSet = Collections.emptySet();
+        this.excludesSet = Collections.emptySet();
+        this.include = include;
+        this.exclude = exclude;
+    }
+
+    /**
+     * @param includes field names or patterns to include, everything is included if null or empty
+     * @param excludes field names or patterns to exclude, applied to the included fields
+     * @return a filter which applies both includes and excludes like
+     * {@link org.elasticsearch.common.xcontent.support.XContentMapValues#filter(String[], String[])}
+     * (e.g. for the source filtering of a request)
+     */
+    public static FlsSourceFilter of(final String[] includes, final String[] excludes) {
+        return new FlsSourceFilter(
+                includes == null || includes.length == 0 ? MATCH_ALL
+                        : new CharacterRunAutomaton(makeMatchDotsInFieldNames(Regex.simpleMatchToAutomaton(includes))),
+                new CharacterRunAutomaton(excludes == null || excludes.length == 0 ? Automata.makeEmpty()
+                        : makeMatchDotsInFieldNames(Regex.simpleMatchToAutomaton(excludes))));
+    }
+
+    public byte[] filter(final byte[] source) throws IOException {
+        try (final XContentParser parser = XContentType.JSON.xContent().createParser(NamedXContentRegistry.EMPTY,
+                SearchGuardDeprecationHandler.INSTANCE, source);
+             final XContentBuilder builder = XContentBuilder.builder(XContentType.JSON.xContent())) {
+
+            if (parser.nextToken() != Token.START_OBJECT) {
+                throw new ElasticsearchParseException("_source is not a json object");
+            }
+
+            builder.startObject();
+
+            if (canOptimize) {
+                filterTopLevel(parser, builder);
+            } else {
+                filterObject(parser, builder, Scope.ROOT, include, 0, 0);
+            }
+
+            builder.endObject();
+            return BytesReference.toBytes(BytesReference.bytes(builder));
+        }
+    }
+
+    private void filterTopLevel(final XContentParser parser, final XContentBuilder builder) throws IOException {
+        final boolean useExcludes = !excludesSet.isEmpty();
+
+        for (Token token = parser.nextToken(); token != Token.END_OBJECT; token = parser.nextToken()) {
+            final String key = parser.currentName();
+            parser.nextToken();
+
+            if (useExcludes ? !excludesSet.contains(key) : includesSet.contains(key)) {
+                builder.field(key);
+                builder.copyCurrentStructure(parser);
+            } else {
+                parser.skipChildren();
+            }
+        }
+    }
+
+    //mirrors XContentMapValues.filter(Map, ...) but works on the token stream
+    //parser must be positioned on the START_OBJECT of the object to filter
+    private void filterObject(final XContentParser parser, final XContentBuilder builder, final Scope scope,
+            final CharacterRunAutomaton includeAutomaton, final int initialIncludeState, final int initialExcludeState) throws IOException {
+
+        for (Token token = parser.nextToken(); token != Token.END_OBJECT; token = parser.nextToken()) {
+            final String key = parser.currentName();
+            token = parser.nextToken();
+
+            final int includeState = step(includeAutomaton, key, initialIncludeState);
+            if (includeState == -1) {
+                parser.skipChildren();
+                continue;
+            }
+
+            int excludeState = step(exclude, key, initialExcludeState);
+            if (excludeState != -1 && exclude.isAccept(excludeState)) {
+                parser.skipChildren();
+                continue;
+            }
+
+            CharacterRunAutomaton subIncludeAutomaton = includeAutomaton;
+            int subIncludeState = includeState;
+            if (includeAutomaton.isAccept(includeState)) {
+                if (excludeState == -1 || exclude.step(excludeState, '.') == -1) {
+                    //the exclude has no chance to match inner properties, copy the whole subtree
+                    scope.open(builder);
+                    builder.field(key);
+                    builder.copyCurrentStructure(parser);
+                    continue;
+                } else {
+                    //the object matched, so consider that the include matches every inner property
+                    //we only care about excludes now
+                    subIncludeAutomaton = MATCH_ALL;
+                    subIncludeState = 0;
+                }
+            }
+
+            if (token == Token.START_OBJECT) {
+                subIncludeState = subIncludeAutomaton.step(subIncludeState, '.');
+                if (subIncludeState == -1) {
+                    parser.skipChildren();
+                    continue;
+                }
+                if (excludeState != -1) {
+                    excludeState = exclude.step(excludeState, '.');
+                }
+                final Scope child = new Scope(scope, key, false);
+                filterObject(parser, builder, child, subIncludeAutomaton, subIncludeState, excludeState);
+                child.close(builder, includeAutomaton.isAccept(includeState));
+            } else if (token == Token.START_ARRAY) {
+                final Scope child = new Scope(scope, key, true);
+                filterArray(parser, builder, child, subIncludeAutomaton, subIncludeState, excludeState);
+                child.close(builder, false);
+            } else if (includeAutomaton.isAccept(includeState) && (excludeState == -1 || !exclude.isAccept(excludeState))) {
+                //leaf property
+                scope.open(builder);
+                builder.field(key);
+                builder.copyCurrentStructure(parser);
+            }
+        }
+    }
+
+    //mirrors XContentMapValues.filter(Iterable, ...) but works on the token stream
+    //parser must be positioned on the START_ARRAY of the array to filter
+    private void filterArray(final XContentParser parser, final XContentBuilder builder, final Scope scope,
+            final CharacterRunAutomaton includeAutomaton, final int initialIncludeState, final int initialExcludeState) throws IOException {
+
+        final boolean isInclude = includeAutomaton.isAccept(initialIncludeState);
+
+        for (Token token = parser.nextToken(); token != Token.END_ARRAY; token = parser.nextToken()) {
+            if (token == Token.START_OBJECT) {
+                final int includeState = includeAutomaton.step(initialIncludeState, '.');
+                if (includeState == -1) {
+                    parser.skipChildren();
+                    continue;
+                }
+                final int excludeState = initialExcludeState == -1 ? -1 : exclude.step(initialExcludeState, '.');
+                final Scope child = new Scope(scope, null, false);
+                filterObject(parser, builder, child, includeAutomaton, includeState, excludeState);
+                child.close(builder, false);
+            } else if (token == Token.START_ARRAY) {
+                final Scope child = new Scope(scope, null, true);
+                filterArray(parser, builder, child, includeAutomaton, initialIncludeState, initialExcludeState);
+                child.close(builder, false);
+            } else if (isInclude) {
+                //only accept this array value if the key we are on is accepted
+                scope.open(builder);
+                builder.copyCurrentStructure(parser);
+            }
+        }
+    }
+
+    private static int step(final CharacterRunAutomaton automaton, final String key, int state) {
+        for (int i = 0; state != -1 && i < key.length(); ++i) {
+            state = automaton.step(state, key.charAt(i));
+        }
+        return state;
+    }
+
+    private static Automaton makeMatchDotsInFieldNames(final Automaton automaton) {
+        return Operations.union(automaton,
+                Operations.concatenate(Arrays.asList(automaton, Automata.makeChar('.'), Automata.makeAnyString())));
+    }
+
+    /**
+     * An object or array which is written to the builder only once its first allowed child
+     * is written (or on close if it must be emitted even when empty).
+     * This way excluded subtrees do not leave empty objects or arrays behind.
+     */
+    private static final class Scope {
+
+        static final Scope ROOT = new Scope();
+
+        private final Scope parent;
+        private final String fieldName;
+        private final boolean array;
+        private boolean opened;
+
+        private Scope() {
+            this.parent = null;
+            this.fieldName = null;
+            this.array = false;
+            this.opened = true;
+        }
+
+        Scope(final Scope parent, final String fieldName, final boolean array) {
+            this.parent = parent;
+            this.fieldName = fieldName;
+            this.array = array;
+        }
+
+        void open(final XContentBuilder builder) throws IOException {
+            if (opened) {
+                return;
+            }
+
+            parent.open(builder);
+
+            if (fieldName != null) {
+                builder.field(fieldName);
+            }
+
+            if (array) {
+                builder.startArray();
+            } else {
+                builder.startObject();
+            }
+
+            opened = true;
+        }
+
+        void close(final XContentBuilder builder, final boolean emitIfEmpty) throws IOException {
+            if (!opened && emitIfEmpty) {
+                open(builder);
+            }
+
+            if (opened) {
+                if (array) {
+                    builder.endArray();
+                } else {
+                    builder.endObject();
+                }
+            }
+        }
+    }
+}
@@ -15,21 +15,31 @@
 package com.floragunn.searchguard.configuration;
 
 import java.nio.charset.StandardCharsets;
+import java.security.DigestException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
 
 import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.BytesRefBuilder;
 import org.bouncycastle.crypto.digests.Blake2bDigest;
-import org.bouncycastle.util.encoders.Hex;
 
 import com.google.common.base.Splitter;
 
 public class MaskedField {
 
+    private static final byte[] HEX_DIGITS = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+
+    //digests are stateful, so they are reused per thread instead of created per value
+    private static final ThreadLocal<Digests> DIGESTS = ThreadLocal.withInitial(Digests::new);
+
     private final String name;
     private String algo = null;
     private List<RegexReplacement> regexReplacements;
@@ -83,10 +93,33 @@ public class MaskedField {
         }
     }
 
+    /**
+     * Same as {@link #mask(BytesRef)} but writes the result into buffer, for callers which mask many values
+     * and only need the result until the next call (like doc values)
+     */
+    BytesRef mask(final BytesRef value, final BytesRefBuilder buffer) {
+        if (isDefault()) {
+            final Digests digests = DIGESTS.get();
+            final int hashLength = digests.blake2b(defaultSalt, value.bytes, value.offset, value.length);
+            buffer.grow(hashLength * 2);
+            buffer.setLength(hex(digests.hash, hashLength, buffer.bytes()));
+        } else {
+            buffer.copyBytes(customHash(value));
+        }
+        return buffer.get();
+    }
+
     public String getName() {
         return name;
     }
 
+    /**
+     * @return true if other masks all values exactly like this one (equals() does not consider the salt)
+     */
+    boolean hasSameMasking(final MaskedField other) {
+        return equals(other) && Arrays.equals(defaultSalt, other.defaultSalt);
+    }
+
     
 
     @Override
@@ -139,17 +172,20 @@ public class MaskedField {
     }
 
     private byte[] customHash(byte[] in) {
+        return customHash(in, 0, in.length);
+    }
+
+    private byte[] customHash(byte[] in, int offset, int length) {
         if (algo != null) {
-            try {
-                MessageDigest digest = MessageDigest.getInstance(algo);
-                return Hex.encode(digest.digest(in));
-            } catch (NoSuchAlgorithmException e) {
-                throw new IllegalArgumentException(e);
-            }
+            final Digests digests = DIGESTS.get();
+            final int hashLength = digests.digest(algo, in, offset, length);
+            final byte[] out = new byte[hashLength * 2];
+            hex(digests.hash, hashLength, out);
+            return out;
         } else if (regexReplacements != null) {
-            String cur = new String(in, StandardCharsets.UTF_8);
+            String cur = new String(in, offset, length, StandardCharsets.UTF_8);
             for(RegexReplacement rr: regexReplacements) {
-                cur = cur.replaceAll(rr.getRegex(), rr.getReplacement());
+                cur = rr.replaceAll(cur);
             }
             return cur.getBytes(StandardCharsets.UTF_8);
             
@@ -159,8 +195,7 @@ public class MaskedField {
     }
 
     private BytesRef customHash(BytesRef in) {
-        final BytesRef copy = BytesRef.deepCopyOf(in);
-        return new BytesRef(customHash(copy.bytes));
+        return new BytesRef(customHash(in.bytes, in.offset, in.length));
     }
 
     private String customHash(String in) {
@@ -168,30 +203,111 @@ public class MaskedField {
     }
 
     private byte[] blake2bHash(byte[] in) {
-        final Blake2bDigest hash = new Blake2bDigest(null, 32, null, defaultSalt);
-        hash.update(in, 0, in.length);
-        final byte[] out = new byte[hash.getDigestSize()];
-        hash.doFinal(out, 0);
-        return Hex.encode(out);
+        return blake2bHash(in, 0, in.length);
+    }
+
+    private byte[] blake2bHash(byte[] in, int offset, int length) {
+        final Digests digests = DIGESTS.get();
+        final int hashLength = digests.blake2b(defaultSalt, in, offset, length);
+        final byte[] out = new byte[hashLength * 2];
+        hex(digests.hash, hashLength, out);
+        return out;
     }
 
     private BytesRef blake2bHash(BytesRef in) {
-        final BytesRef copy = BytesRef.deepCopyOf(in);
-        return new BytesRef(blake2bHash(copy.bytes));
+        return new BytesRef(blake2bHash(in.bytes, in.offset, in.length));
     }
 
     private String blake2bHash(String in) {
-        return new String(blake2bHash(in.getBytes(StandardCharsets.UTF_8)), StandardCharsets.UTF_8);
+        return new String(blake2bHash(in.getBytes(StandardCharsets.UTF_8)), StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Lower case hex encoding, like org.bouncycastle.util.encoders.Hex
+     *
+     * @return the number of bytes written
+     */
+    private static int hex(final byte[] in, final int length, final byte[] out) {
+        for (int i = 0; i < length; i++) {
+            out[2 * i] = HEX_DIGITS[(in[i] >> 4) & 0xf];
+            out[2 * i + 1] = HEX_DIGITS[in[i] & 0xf];
+        }
+        return 2 * length;
+    }
+
+    private static final class Digests {
+        private final Map<String, MessageDigest> messageDigests = new HashMap<>();
+        private Blake2bDigest blake2b;
+        private byte[] blake2bSalt;
+        private byte[] hash = new byte[64];
+
+        /**
+         * @return the length of the hash, which is in {@link #hash}
+         */
+        int blake2b(final byte[] salt, final byte[] in, final int offset, final int length) {
+            if (blake2b == null || !Arrays.equals(salt, blake2bSalt)) {
+                blake2b = new Blake2bDigest(null, 32, null, salt);
+                blake2bSalt = salt == null ? null : salt.clone();
+            }
+
+            blake2b.reset();
+            blake2b.update(in, offset, length);
+            return blake2b.doFinal(hash, 0);
+        }
+
+        /**
+         * @return the length of the hash, which is in {@link #hash}
+         */
+        int digest(final String algo, final byte[] in, final int offset, final int length) {
+            MessageDigest digest = messageDigests.get(algo);
+
+            if (digest == null) {
+                try {
+                    digest = MessageDigest.getInstance(algo);
+                } catch (NoSuchAlgorithmException e) {
+                    throw new IllegalArgumentException(e);
+                }
+                messageDigests.put(algo, digest);
+            }
+
+            if (hash.length < digest.getDigestLength()) {
+                hash = new byte[digest.getDigestLength()];
+            }
+
+            digest.reset();
+            digest.update(in, offset, length);
+
+            try {
+                return digest.digest(hash, 0, hash.length);
+            } catch (DigestException e) {
+                throw new IllegalArgumentException(e);
+            }
+        }
     }
 
     private static class RegexReplacement {
         private final String regex;
         private final String replacement;
+        //compiled once, an invalid regex fails like before when a value is masked
+        private final Pattern pattern;
 
         public RegexReplacement(String regex, String replacement) {
             super();
             this.regex = regex.substring(1).substring(0, regex.length()-2);
             this.replacement = replacement;
+            this.pattern = compile(this.regex);
+        }
+
+        private static Pattern compile(final String regex) {
+            try {
+                return Pattern.compile(regex);
+            } catch (PatternSyntaxException e) {
+                return null;
+            }
+        }
+
+        String replaceAll(final String value) {
+            return pattern == null ? value.replaceAll(regex, replacement) : pattern.matcher(value).replaceAll(replacement);
         }
 
         public String getRegex() {
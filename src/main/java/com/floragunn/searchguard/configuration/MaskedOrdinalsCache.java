@@ -0,0 +1,223 @@
+/*
+ * Copyright 2016-2019 by floragunn GmbH - All rights reserved
+ *
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed here is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * This software is free of charge for non-commercial and academic use.
+ * For commercial use in a production environment you have to obtain a license
+ * from https://floragunn.com
+ *
+ */
+
+package com.floragunn.searchguard.configuration;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.BytesRefBuilder;
+import org.apache.lucene.util.RamUsageEstimator;
+import org.elasticsearch.common.settings.Setting;
+import org.elasticsearch.common.settings.Setting.Property;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.monitor.jvm.JvmInfo;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+
+/**
+ * Node wide cache of the masked terms of the ordinals of masked sorted (set) doc values,
+ * so that a terms aggregation on a masked keyword field does not hash the same term for every bucket of every request.
+ * <p>
+ * Entries are keyed by segment core, field and masking rule, the masked terms are computed lazily
+ * when an ordinal is looked up for the first time. Ordinals are stable for a segment core.
+ * The estimated heap used is capped (least recently used entries are evicted), fields with too many
+ * distinct values are not cached at all. Entries are removed when their segment core is closed.
+ */
+final class MaskedOrdinalsCache {
+
+    public static final Setting<Boolean> ENABLED = Setting.boolSetting("searchguard.compliance.masked_ordinals_cache.enabled", true,
+            Property.NodeScope);
+
+    private static final Logger log = LogManager.getLogger(MaskedOrdinalsCache.class);
+
+    //shared by all indices of the node, the cap applies to all cached masked terms of the node
+    static final MaskedOrdinalsCache INSTANCE = new MaskedOrdinalsCache(JvmInfo.jvmInfo().getMem().getHeapMax().getBytes() / 50);
+
+    private final long maxBytesPerEntry;
+    private final Cache<Key, MaskedOrdinals> cache;
+    private final Map<IndexReader.CacheKey, Set<Key>> keysByCore = new ConcurrentHashMap<>();
+
+    /**
+     * @return the node wide cache or null if it is disabled
+     */
+    static MaskedOrdinalsCache getInstance(final Settings settings) {
+        return ENABLED.get(settings) ? INSTANCE : null;
+    }
+
+    MaskedOrdinalsCache(final long maxBytes) {
+        //a single field must not be able to flush everything else
+        this.maxBytesPerEntry = maxBytes / 16;
+        this.cache = CacheBuilder.newBuilder()
+                .maximumWeight(maxBytes)
+                .weigher((Key k, MaskedOrdinals v) -> (int) Math.min(Integer.MAX_VALUE, v.ramBytesUsed))
+                .removalListener(n -> removeKey(n.getKey()))
+                .recordStats()
+                .build();
+    }
+
+    /**
+     * @param segmentReader the reader the doc values belong to
+     * @param valueCount the number of ordinals of the field in the segment
+     * @return the masked terms of the field or null if they are not cached
+     */
+    MaskedOrdinals get(final LeafReader segmentReader, final String field, final MaskedField maskedField, final long valueCount) {
+
+        final IndexReader.CacheHelper cacheHelper = segmentReader.getCoreCacheHelper();
+
+        if (cacheHelper == null || valueCount <= 0 || valueCount > Integer.MAX_VALUE) {
+            return null;
+        }
+
+        final long ramBytesUsed;
+
+        try {
+            //the length of the masked empty value is the length of all hashes, regex replacements vary
+            final int maskedLength = Math.max(32, maskedField.mask(BytesRef.EMPTY_BYTES).length);
+            ramBytesUsed = RamUsageEstimator.NUM_BYTES_ARRAY_HEADER
+                    + valueCount * (RamUsageEstimator.NUM_BYTES_OBJECT_REF + RamUsageEstimator.NUM_BYTES_ARRAY_HEADER + maskedLength);
+        } catch (Exception e) {
+            //invalid masking rule, fails when the values are masked
+            return null;
+        }
+
+        if (ramBytesUsed > maxBytesPerEntry) {
+            return null;
+        }
+
+        final IndexReader.CacheKey coreKey = cacheHelper.getKey();
+        final Key key = new Key(coreKey, field, maskedField);
+
+        try {
+            return cache.get(key, () -> {
+                keysByCore.computeIfAbsent(coreKey, k -> {
+                    cacheHelper.addClosedListener(this::onCoreClosed);
+                    return ConcurrentHashMap.newKeySet();
+                }).add(key);
+
+                return new MaskedOrdinals(maskedField, (int) valueCount, ramBytesUsed);
+            });
+        } catch (ExecutionException e) {
+            log.debug("Unable to cache masked ordinals of {}", field, e.getCause());
+            return null;
+        }
+    }
+
+    CacheStats stats() {
+        return cache.stats();
+    }
+
+    long size() {
+        return cache.size();
+    }
+
+    private void onCoreClosed(final IndexReader.CacheKey coreKey) {
+        final Set<Key> keys = keysByCore.remove(coreKey);
+
+        if (keys != null) {
+            cache.invalidateAll(keys);
+        }
+    }
+
+    private void removeKey(final Key key) {
+        final Set<Key> keys = keysByCore.get(key.coreKey);
+
+        if (keys != null) {
+            keys.remove(key);
+        }
+    }
+
+    interface OrdinalLookup {
+        BytesRef lookupOrd(int ord) throws IOException;
+    }
+
+    /**
+     * The masked terms of the ordinals of a field in a segment, computed on first access
+     */
+    static final class MaskedOrdinals {
+
+        private final MaskedField maskedField;
+        private final AtomicReferenceArray<byte[]> maskedTerms;
+        private final long ramBytesUsed;
+
+        private MaskedOrdinals(final MaskedField maskedField, final int valueCount, final long ramBytesUsed) {
+            this.maskedField = maskedField;
+            this.maskedTerms = new AtomicReferenceArray<>(valueCount);
+            this.ramBytesUsed = ramBytesUsed;
+        }
+
+        /**
+         * @param unmasked looks up the unmasked term of an ordinal
+         * @param buffer for masking, by the thread which looks up the ordinal
+         * @param result is pointed to the masked term, which must not be modified
+         */
+        BytesRef lookupOrd(final int ord, final OrdinalLookup unmasked, final BytesRefBuilder buffer, final BytesRef result)
+                throws IOException {
+
+            byte[] masked = maskedTerms.get(ord);
+
+            if (masked == null) {
+                //racing threads compute the same value
+                masked = BytesRef.deepCopyOf(maskedField.mask(unmasked.lookupOrd(ord), buffer)).bytes;
+                maskedTerms.lazySet(ord, masked);
+            }
+
+            result.bytes = masked;
+            result.offset = 0;
+            result.length = masked.length;
+            return result;
+        }
+    }
+
+    private static final class Key {
+        private final IndexReader.CacheKey coreKey;
+        private final String field;
+        private final MaskedField maskedField;
+
+        Key(final IndexReader.CacheKey coreKey, final String field, final MaskedField maskedField) {
+            this.coreKey = coreKey;
+            this.field = field;
+            this.maskedField = maskedField;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (31 * coreKey.hashCode() + field.hashCode()) + maskedField.hashCode();
+        }
+
+        @Override
+        public boolean equals(final Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            final Key other = (Key) obj;
+            //the salt is not part of MaskedField.equals()
+            return coreKey == other.coreKey && field.equals(other.field) && maskedField.hasSameMasking(other.maskedField);
+        }
+    }
+}
@@ -0,0 +1,269 @@
+/*
+ * Copyright 2016-2019 by floragunn GmbH - All rights reserved
+ *
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed here is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * This software is free of charge for non-commercial and academic use.
+ * For commercial use in a production environment you have to obtain a license
+ * from https://floragunn.com
+ *
+ */
+
+package com.floragunn.searchguard.configuration;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.lucene.util.automaton.Automata;
+import org.apache.lucene.util.automaton.Automaton;
+import org.apache.lucene.util.automaton.CharacterRunAutomaton;
+import org.apache.lucene.util.automaton.Operations;
+import org.apache.lucene.util.automaton.TooComplexToDeterminizeException;
+import org.elasticsearch.ElasticsearchParseException;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.xcontent.NamedXContentRegistry;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.common.xcontent.XContentParser.Token;
+import org.elasticsearch.common.xcontent.XContentType;
+
+import com.floragunn.searchguard.support.SearchGuardDeprecationHandler;
+import com.floragunn.searchguard.support.WildcardMatcher;
+
+/**
+ * Masks the values of masked fields in a JSON _source by streaming it from a parser directly into a builder.
+ * <p>
+ * The field name patterns are compiled into a single automaton which is stepped key by key while descending
+ * into the document, so no dotted path is built for the leaves and subtrees which can not contain a masked field
+ * are copied through as a whole. If several patterns match a field the first one (in the iteration order
+ * of the map the filter was built from) is applied, like {@link WildcardMatcher#getFirstMatchingPattern}.
+ * <p>
+ * Only string values of objects and strings directly contained in arrays are masked, objects within arrays
+ * are copied unchanged. Regex patterns (<code>/regex/</code>) can not be compiled into the automaton,
+ * they are matched against the dotted path of the leaves instead.
+ * Instances are immutable and thread safe.
+ */
+public final class MaskedSourceFilter {
+
+    private static final Logger log = LogManager.getLogger(MaskedSourceFilter.class);
+
+    //marks the end of pattern i (i + MARKER), private use plane, can not be stepped as part of a key (see firstMatch)
+    private static final int MARKER = 0xF0000;
+
+    private final String[] patterns;
+    private final MaskedField[] maskedFields;
+    //indices of the patterns which are matched against the dotted path, ascending
+    private final int[] pathPatterns;
+    private final CharacterRunAutomaton automaton;
+    //the first pattern which accepts the path leading to a state, -1 if none
+    private final int[] firstMatch;
+
+    /**
+     * @param maskedFields the masked fields by field name pattern, the iteration order is the precedence of the patterns
+     */
+    public MaskedSourceFilter(final Map<String, MaskedField> maskedFields) {
+        final int size = maskedFields.size();
+        this.patterns = new String[size];
+        this.maskedFields = new MaskedField[size];
+
+        final List<Automaton> automata = new ArrayList<>(size);
+        final List<Integer> regexPatterns = new ArrayList<>();
+        int i = 0;
+
+        for (final Map.Entry<String, MaskedField> entry : maskedFields.entrySet()) {
+            patterns[i] = entry.getKey();
+            this.maskedFields[i] = entry.getValue();
+
+            if (isRegex(patterns[i])) {
+                regexPatterns.add(i);
+            } else {
+                automata.add(Operations.concatenate(toAutomaton(patterns[i]), Automata.makeChar(MARKER + i)));
+            }
+
+            i++;
+        }
+
+        CharacterRunAutomaton compiled = null;
+
+        if (!automata.isEmpty()) {
+            try {
+                compiled = new CharacterRunAutomaton(Operations.union(automata));
+            } catch (TooComplexToDeterminizeException e) {
+                log.debug("Masked field patterns {} are too complex for an automaton, matching them one by one", maskedFields.keySet());
+            }
+        }
+
+        if (compiled == null) {
+            //all patterns are matched against the path
+            regexPatterns.clear();
+            for (i = 0; i < size; i++) {
+                regexPatterns.add(i);
+            }
+        }
+
+        this.automaton = compiled;
+        this.pathPatterns = regexPatterns.stream().mapToInt(Integer::intValue).toArray();
+        this.firstMatch = compiled == null ? null : firstMatch(compiled, size);
+    }
+
+    private static int[] firstMatch(final CharacterRunAutomaton automaton, final int patternCount) {
+        final int[] firstMatch = new int[automaton.getSize()];
+
+        for (int state = 0; state < firstMatch.length; state++) {
+            firstMatch[state] = -1;
+            for (int i = 0; i < patternCount; i++) {
+                final int next = automaton.step(state, MARKER + i);
+                if (next != -1 && automaton.isAccept(next)) {
+                    firstMatch[state] = i;
+                    break;
+                }
+            }
+        }
+
+        return firstMatch;
+    }
+
+    /**
+     * @param field the full (dotted) name of a field
+     * @return the masked field which applies to the field, null if it is not masked
+     */
+    public MaskedField match(final String field) {
+        return match(step(automaton == null ? -1 : 0, field), pathPatterns.length == 0 ? null : field);
+    }
+
+    public byte[] filter(final byte[] source) throws IOException {
+        try (final XContentParser parser = XContentType.JSON.xContent().createParser(NamedXContentRegistry.EMPTY,
+                SearchGuardDeprecationHandler.INSTANCE, source);
+             final XContentBuilder builder = XContentBuilder.builder(XContentType.JSON.xContent())) {
+
+            if (parser.nextToken() != Token.START_OBJECT) {
+                throw new ElasticsearchParseException("_source is not a json object");
+            }
+
+            builder.startObject();
+            filterObject(parser, builder, automaton == null ? -1 : 0, pathPatterns.length == 0 ? null : new StringBuilder());
+            builder.endObject();
+            return BytesReference.toBytes(BytesReference.bytes(builder));
+        }
+    }
+
+    //parser must be positioned on the START_OBJECT of the object to filter
+    //state is the automaton state of the path of the object (followed by a dot), path is only tracked for path patterns
+    private void filterObject(final XContentParser parser, final XContentBuilder builder, final int state, final StringBuilder path)
+            throws IOException {
+
+        for (Token token = parser.nextToken(); token != Token.END_OBJECT; token = parser.nextToken()) {
+            final String key = parser.currentName();
+            token = parser.nextToken();
+
+            final int keyState = step(state, key);
+            final int pathLength = path == null ? 0 : path.length();
+
+            builder.field(key);
+
+            if (keyState == -1 && path == null) {
+                //no pattern can match this subtree
+                builder.copyCurrentStructure(parser);
+                continue;
+            }
+
+            if (path != null) {
+                if (pathLength > 0) {
+                    path.append('.');
+                }
+                path.append(key);
+            }
+
+            if (token == Token.START_OBJECT) {
+                builder.startObject();
+                filterObject(parser, builder, keyState == -1 ? -1 : automaton.step(keyState, '.'), path);
+                builder.endObject();
+            } else {
+                final MaskedField maskedField = match(keyState, path);
+
+                if (maskedField == null) {
+                    builder.copyCurrentStructure(parser);
+                } else if (token == Token.VALUE_STRING) {
+                    builder.value(maskedField.mask(parser.text()));
+                } else if (token == Token.START_ARRAY) {
+                    builder.startArray();
+                    for (token = parser.nextToken(); token != Token.END_ARRAY; token = parser.nextToken()) {
+                        if (token == Token.VALUE_STRING) {
+                            builder.value(maskedField.mask(parser.text()));
+                        } else {
+                            builder.copyCurrentStructure(parser);
+                        }
+                    }
+                    builder.endArray();
+                } else {
+                    builder.copyCurrentStructure(parser);
+                }
+            }
+
+            if (path != null) {
+                path.setLength(pathLength);
+            }
+        }
+    }
+
+    private MaskedField match(final int state, final CharSequence path) {
+        int first = state == -1 ? -1 : firstMatch[state];
+
+        if (path != null) {
+            String field = null;
+            for (final int i : pathPatterns) {
+                if (first != -1 && i >= first) {
+                    break;
+                }
+                if (field == null) {
+                    field = path.toString();
+                }
+                if (WildcardMatcher.match(patterns[i], field)) {
+                    first = i;
+                    break;
+                }
+            }
+        }
+
+        return first == -1 ? null : maskedFields[first];
+    }
+
+    private int step(int state, final String key) {
+        for (int i = 0; state != -1 && i < key.length();) {
+            final int c = key.codePointAt(i);
+            state = automaton.step(state, c);
+            i += Character.charCount(c);
+        }
+        return state;
+    }
+
+    private static boolean isRegex(final String pattern) {
+        return pattern.length() > 1 && pattern.startsWith("/") && pattern.endsWith("/");
+    }
+
+    //same semantics as WildcardMatcher.match() for non regex patterns: * matches any string (dots included), ? any char
+    private static Automaton toAutomaton(final String pattern) {
+        final List<Automaton> automata = new ArrayList<>(pattern.length());
+
+        for (int i = 0; i < pattern.length();) {
+            final int c = pattern.codePointAt(i);
+            if (c == '*') {
+                automata.add(Automata.makeAnyString());
+            } else if (c == '?') {
+                automata.add(Automata.makeAnyChar());
+            } else {
+                automata.add(Automata.makeChar(c));
+            }
+            i += Character.charCount(c);
+        }
+
+        return automata.isEmpty() ? Automata.makeEmptyString() : Operations.concatenate(automata);
+    }
+}
@@ -15,41 +15,47 @@
 package com.floragunn.searchguard.configuration;
 
 import java.io.IOException;
-import java.util.HashSet;
-import java.util.Map;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Set;
 import java.util.function.LongSupplier;
 
 import org.apache.lucene.index.DirectoryReader;
 import org.apache.lucene.search.IndexSearcher;
-import org.apache.lucene.search.Query;
 import org.apache.lucene.search.join.BitSetProducer;
 import org.elasticsearch.cluster.service.ClusterService;
+import org.elasticsearch.common.settings.Setting;
 import org.elasticsearch.common.settings.Settings;
 import org.elasticsearch.index.IndexService;
-import org.elasticsearch.index.cache.bitset.BitsetFilterCache;
 import org.elasticsearch.index.engine.EngineException;
-import org.elasticsearch.index.mapper.MapperService;
 import org.elasticsearch.index.shard.ShardId;
 import org.elasticsearch.index.shard.ShardUtils;
 
 import com.floragunn.searchguard.auditlog.AuditLog;
 import com.floragunn.searchguard.compliance.ComplianceConfig;
 import com.floragunn.searchguard.compliance.ComplianceIndexingOperationListener;
+import com.floragunn.searchguard.compliance.ComplianceIndexingOperationListenerImpl;
+import com.floragunn.searchguard.compliance.DocumentReadAggregator;
 import com.floragunn.searchguard.support.ConfigConstants;
-import com.floragunn.searchguard.support.HeaderHelper;
-import com.floragunn.searchguard.support.SgUtils;
-import com.google.common.collect.Sets;
+import com.google.common.cache.CacheStats;
 
 public class SearchGuardFlsDlsIndexSearcherWrapper extends SearchGuardIndexSearcherWrapper {
 
-    private static final Set<String> metaFields = Sets.union(Sets.newHashSet("_source", "_version", "_field_names", "_seq_no"),
-            Sets.newHashSet(MapperService.getAllMetaFields()));
     private final ClusterService clusterService;
     private final IndexService indexService;
     private final ComplianceConfig complianceConfig;
     private final AuditLog auditlog;
     private final LongSupplier nowInMillis;
+    //per segment FLS/masking artifacts, bounded so that many distinct role combinations can not exhaust the heap
+    private final DlsFlsLeafCache leafCache = new DlsFlsLeafCache(10000);
+    //reader cache keys and intersected live docs of dls restricted segment views, bounded for the same reason
+    private final DlsReaderViews dlsReaderViews = new DlsReaderViews(100, 64 * 1024 * 1024);
+    private final DlsBitSetWarmer dlsBitSetWarmer;
+    private final DlsBitSetCache dlsBitSetCache;
+    //final dls queries of this index, bounded for the same reason
+    private final DlsQueryParser dlsQueryParser = new DlsQueryParser(1000);
+    private final MaskedOrdinalsCache maskedOrdinalsCache;
 
     public SearchGuardFlsDlsIndexSearcherWrapper(final IndexService indexService, final Settings settings,
             final AdminDNs adminDNs, final ClusterService clusterService, final AuditLog auditlog,
@@ -60,66 +66,103 @@ public class SearchGuardFlsDlsIndexSearcherWrapper extends SearchGuardIndexSearc
         this.indexService = indexService;
         this.complianceConfig = complianceConfig;
         this.auditlog = auditlog;
+        this.dlsBitSetCache = DlsBitSetCache.getInstance(settings);
+        this.dlsBitSetWarmer = new DlsBitSetWarmer(settings, indexService, threadContext, clusterService, complianceConfig, auditlog);
+        if(ciol instanceof ComplianceIndexingOperationListenerImpl) {
+            //warms the dls bitsets after refreshes
+            ((ComplianceIndexingOperationListenerImpl) ciol).addListener(dlsBitSetWarmer);
+        }
+        this.maskedOrdinalsCache = MaskedOrdinalsCache.getInstance(settings);
         final boolean allowNowinDlsQueries = settings.getAsBoolean(ConfigConstants.SEARCHGUARD_UNSUPPORTED_ALLOW_NOW_IN_DLS, false);
         if (allowNowinDlsQueries) {
             nowInMillis = () -> System.currentTimeMillis();
         } else {
             nowInMillis = () -> {throw new IllegalArgumentException("'now' is not allowed in DLS queries");};
         }
+        DlsFlsStats.register(this);
+    }
+
+    /**
+     * @return the node settings read by the DLS/FLS module, they need to be registered by the plugin
+     */
+    public static List<Setting<?>> getSettings() {
+        final List<Setting<?>> settings = new ArrayList<>(Arrays.asList(DlsBitSetCache.MAX_SIZE, DlsBitSetCache.MAX_USER_SPECIFIC_SIZE,
+                DlsBitSetWarmer.ENABLED, DlsBitSetWarmer.MAX_QUERY_SETS, DlsBitSetWarmer.MAX_QUEUE_LEN,
+                MaskedOrdinalsCache.ENABLED, FlsDocValuesSource.ENABLED));
+        settings.addAll(DocumentReadAggregator.getSettings());
+        return settings;
     }
 
-    @SuppressWarnings("unchecked")
     @Override
     protected DirectoryReader dlsFlsWrap(final DirectoryReader reader, boolean isAdmin) throws IOException {
 
         final ShardId shardId = ShardUtils.extractShardId(reader); 
         
         Set<String> flsFields = null;
+        FlsFieldMatcher flsFieldMatcher = null;
         Set<String> maskedFields = null;
         BitSetProducer bsp = null;
 
         if(!isAdmin) {
 
-            final Map<String, Set<String>> allowedFlsFields = (Map<String, Set<String>>) HeaderHelper.deserializeSafeFromHeader(threadContext,
-                    ConfigConstants.SG_FLS_FIELDS_HEADER);
-            final Map<String, Set<String>> queries = (Map<String, Set<String>>) HeaderHelper.deserializeSafeFromHeader(threadContext,
-                    ConfigConstants.SG_DLS_QUERY_HEADER);
-            final Map<String, Set<String>> maskedFieldsMap = (Map<String, Set<String>>) HeaderHelper.deserializeSafeFromHeader(threadContext,
-                    ConfigConstants.SG_MASKED_FIELD_HEADER);
-
-            final String flsEval = SgUtils.evalMap(allowedFlsFields, index.getName());
-            final String dlsEval = SgUtils.evalMap(queries, index.getName());
-            final String maskedEval = SgUtils.evalMap(maskedFieldsMap, index.getName());
-
-            if (flsEval != null) {
-                flsFields = new HashSet<>(metaFields);
-                flsFields.addAll(allowedFlsFields.get(flsEval));
-            }
-
-            
-            
-            if (dlsEval != null) { 
-                final Set<String> unparsedDlsQueries = queries.get(dlsEval);
-                if(unparsedDlsQueries != null && !unparsedDlsQueries.isEmpty()) { 
-                    final BitsetFilterCache bsfc = this.indexService.cache().bitsetFilterCache();
-                    //disable reader optimizations
-                    final Query dlsQuery = DlsQueryParser.parse(unparsedDlsQueries, this.indexService.newQueryShardContext(shardId.getId(), null, nowInMillis, null)
-                            , this.indexService.xContentRegistry());
-                    bsp = dlsQuery==null?null:bsfc.getBitSetProducer(dlsQuery);
-                }
-            }
-            
-            if (maskedEval != null) {
-                maskedFields = new HashSet<>();
-                maskedFields.addAll(maskedFieldsMap.get(maskedEval));
+            //decoded once per request and resolved once per index
+            final DlsFlsRequestContext.IndexPlan plan = DlsFlsRequestContext.get(threadContext).forIndex(index.getName(),
+                    complianceConfig.getSalt16());
+
+            flsFields = plan.getFlsFields();
+            flsFieldMatcher = plan.getFlsFieldMatcher();
+            maskedFields = plan.getMaskedFields();
+
+            final Set<String> unparsedDlsQueries = plan.getDlsQueries();
+            if(unparsedDlsQueries != null) { 
+                final DlsQueryParser.ParsedDlsQuery dlsQuery = dlsQueryParser.parse(unparsedDlsQueries, this.indexService.mapperService(),
+                        () -> this.indexService.newQueryShardContext(shardId.getId(), null, nowInMillis, null), this.indexService.xContentRegistry());
+                //masked fields only hide terms if compliance is enabled
+                bsp = dlsQuery==null?null:dlsBitSetCache.getBitSetProducer(dlsQuery.getQuery(), flsFieldMatcher,
+                        complianceConfig.isEnabled() ? maskedFields : null, index.getName(), dlsQuery.isUserSpecific(), dlsQuery.getDocValuesFilter());
             }
         }
         
-        return new DlsFlsFilterLeafReader.DlsFlsDirectoryReader(reader, flsFields, bsp,
-                indexService, threadContext, clusterService, complianceConfig, auditlog, maskedFields, shardId);
+        dlsBitSetWarmer.onWrap(reader, bsp, shardId);
+
+        return new DlsFlsFilterLeafReader.DlsFlsDirectoryReader(reader, flsFieldMatcher, bsp,
+                indexService, threadContext, clusterService, complianceConfig, auditlog, maskedFields, shardId,
+                flsFields == null && maskedFields == null ? null : leafCache, dlsReaderViews, maskedOrdinalsCache);
     }
 
 
+    /**
+     * @return hit/miss statistics of the per segment FLS/masking artifacts cache of this index
+     */
+    public CacheStats getLeafCacheStats() {
+        return leafCache.stats();
+    }
+
+    /**
+     * @return number of segments with cached FLS/masking artifacts of this index
+     */
+    public long getLeafCacheSize() {
+        return leafCache.size();
+    }
+
+    /**
+     * @return the dls restricted segment views of this index
+     */
+    DlsReaderViews getDlsReaderViews() {
+        return dlsReaderViews;
+    }
+
+    DlsBitSetWarmer getDlsBitSetWarmer() {
+        return dlsBitSetWarmer;
+    }
+
+    /**
+     * @return the dls bitsets of all indices on this node
+     */
+    DlsBitSetCache getDlsBitSetCache() {
+        return dlsBitSetCache;
+    }
+
     @Override
     protected IndexSearcher dlsFlsWrap(final IndexSearcher searcher, boolean isAdmin) throws EngineException {
 
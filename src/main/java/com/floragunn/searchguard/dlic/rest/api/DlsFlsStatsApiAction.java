@@ -0,0 +1,103 @@
+/*
+ * Copyright 2016-2019 by floragunn GmbH - All rights reserved
+ * 
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed here is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * 
+ * This software is free of charge for non-commercial and academic use. 
+ * For commercial use in a production environment you have to obtain a license 
+ * from https://floragunn.com
+ * 
+ */
+package com.floragunn.searchguard.dlic.rest.api;
+
+import java.nio.file.Path;
+
+import org.elasticsearch.client.Client;
+import org.elasticsearch.cluster.service.ClusterService;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.settings.Settings.Builder;
+import org.elasticsearch.rest.RestChannel;
+import org.elasticsearch.rest.RestController;
+import org.elasticsearch.rest.RestRequest;
+import org.elasticsearch.rest.RestRequest.Method;
+import org.elasticsearch.threadpool.ThreadPool;
+
+import com.floragunn.searchguard.auditlog.AuditLog;
+import com.floragunn.searchguard.configuration.AdminDNs;
+import com.floragunn.searchguard.configuration.DlsFlsStats;
+import com.floragunn.searchguard.configuration.IndexBaseConfigurationRepository;
+import com.floragunn.searchguard.dlic.rest.validation.AbstractConfigurationValidator;
+import com.floragunn.searchguard.dlic.rest.validation.NoOpValidator;
+import com.floragunn.searchguard.privileges.PrivilegesEvaluator;
+import com.floragunn.searchguard.ssl.transport.PrincipalExtractor;
+
+/**
+ * Provides the statistics of the DLS/FLS caches of the node which handles the request
+ */
+public class DlsFlsStatsApiAction extends AbstractApiAction {
+
+	@Inject
+	public DlsFlsStatsApiAction(final Settings settings, final Path configPath, final RestController controller, final Client client,
+			final AdminDNs adminDNs, final IndexBaseConfigurationRepository cl, final ClusterService cs,
+            final PrincipalExtractor principalExtractor, final PrivilegesEvaluator evaluator, ThreadPool threadPool, AuditLog auditLog) {
+		super(settings, configPath, controller, client, adminDNs, cl, cs, principalExtractor, evaluator, threadPool, auditLog);
+		controller.registerHandler(Method.GET, "/_searchguard/api/dlsfls/stats", this);
+	}
+
+	@Override
+	protected Endpoint getEndpoint() {
+		return Endpoint.DLSFLSSTATS;
+	}
+
+	@Override
+	protected void handleGet(RestChannel channel, final RestRequest request, final Client client,
+			final Settings.Builder additionalSettings) {
+		successResponse(channel, new DlsFlsStats(cs, settings));
+	}
+
+	@Override
+	protected void handleDelete(RestChannel channel, final RestRequest request, final Client client,
+			final Builder additionalSettings) {
+		notImplemented(channel, Method.DELETE);
+	}
+
+	@Override
+	protected void handlePost(RestChannel channel, final RestRequest request, final Client client,
+			final Settings.Builder additionalSettings) {
+		notImplemented(channel, Method.POST);
+	}
+
+	@Override
+	protected void handlePut(RestChannel channel, final RestRequest request, final Client client,
+			final Settings.Builder additionalSettings) {
+		notImplemented(channel, Method.PUT);
+	}
+
+	@Override
+	protected AbstractConfigurationValidator getValidator(RestRequest request, BytesReference ref, Object... param) {
+		return new NoOpValidator(request, ref, this.settings, param);
+	}
+
+	@Override
+	protected String getResourceName() {
+		// not needed
+		return null;
+	}
+
+	@Override
+	protected String getConfigName() {
+		// not needed
+		return null;
+	}
+
+	@Override
+	protected void consumeParameters(final RestRequest request) {
+		// not needed
+	}
+
+}
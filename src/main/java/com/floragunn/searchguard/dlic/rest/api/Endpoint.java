@@ -24,5 +24,6 @@ public enum Endpoint {
 	INTERNALUSERS,
 	SYSTEMINFO,
 	PERMISSIONSINFO,
-	AUTHTOKEN;
+	AUTHTOKEN,
+	DLSFLSSTATS;
 }
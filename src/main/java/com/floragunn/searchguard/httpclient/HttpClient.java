@@ -14,8 +14,11 @@
 
 package com.floragunn.searchguard.httpclient;
 
+import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.Socket;
 import java.nio.charset.StandardCharsets;
 import java.security.KeyManagementException;
@@ -26,9 +29,11 @@ import java.security.UnrecoverableKeyException;
 import java.security.cert.CertificateException;
 import java.util.Arrays;
 import java.util.Base64;
+import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.stream.Collectors;
+import java.util.zip.GZIPOutputStream;
 
 import javax.net.ssl.HostnameVerifier;
 import javax.net.ssl.SSLContext;
@@ -38,24 +43,37 @@ import org.apache.http.HttpHost;
 import org.apache.http.client.config.RequestConfig;
 import org.apache.http.conn.ssl.DefaultHostnameVerifier;
 import org.apache.http.conn.ssl.NoopHostnameVerifier;
+import org.apache.http.entity.ContentType;
 import org.apache.http.impl.nio.client.HttpAsyncClientBuilder;
 import org.apache.http.message.BasicHeader;
 import org.apache.http.nio.conn.ssl.SSLIOSessionStrategy;
+import org.apache.http.nio.entity.NByteArrayEntity;
 import org.apache.http.ssl.PrivateKeyDetails;
 import org.apache.http.ssl.PrivateKeyStrategy;
 import org.apache.http.ssl.SSLContextBuilder;
 import org.apache.http.ssl.SSLContexts;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.bulk.BulkResponse;
 import org.elasticsearch.action.index.IndexRequest;
 import org.elasticsearch.action.index.IndexResponse;
 import org.elasticsearch.action.support.WriteRequest.RefreshPolicy;
+import org.elasticsearch.client.Request;
 import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.client.Response;
+import org.elasticsearch.client.ResponseListener;
 import org.elasticsearch.client.RestClient;
 import org.elasticsearch.client.RestClientBuilder;
 import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.xcontent.NamedXContentRegistry;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentParser;
 import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.common.xcontent.json.JsonXContent;
 
+import com.floragunn.searchguard.support.SearchGuardDeprecationHandler;
 import com.google.common.collect.Lists;
 
 public class HttpClient implements Closeable {
@@ -70,6 +88,9 @@ public class HttpClient implements Closeable {
         private boolean verifyHostnames;
         private String[] supportedProtocols = null;
         private String[] supportedCipherSuites = null;
+        private boolean compressRequests;
+        private int maxConnTotal;
+        private int maxConnPerRoute;
         
         private final String[] servers;
         private boolean ssl;
@@ -111,9 +132,26 @@ public class HttpClient implements Closeable {
             return this;
         }
 
+        /**
+         * gzip the body of bulk requests
+         */
+        public HttpClientBuilder setCompressRequests(boolean compressRequests) {
+            this.compressRequests = compressRequests;
+            return this;
+        }
+
+        /**
+         * Limits of the connection pool, values of 0 or less keep the defaults of the rest client
+         */
+        public HttpClientBuilder setMaxConnections(int maxConnTotal, int maxConnPerRoute) {
+            this.maxConnTotal = maxConnTotal;
+            this.maxConnPerRoute = maxConnPerRoute;
+            return this;
+        }
+
         public HttpClient build() throws Exception {
             return new HttpClient(trustStore, basicCredentials, keystore, keyPassword, keystoreAlias, verifyHostnames, ssl,
-                    supportedProtocols, supportedCipherSuites, servers);
+                    supportedProtocols, supportedCipherSuites, compressRequests, maxConnTotal, maxConnPerRoute, servers);
         }
         
         private static String encodeBasicHeader(final String username, final String password) {
@@ -137,9 +175,13 @@ public class HttpClient implements Closeable {
     private boolean ssl;
     private String[] supportedProtocols;
     private String[] supportedCipherSuites;
+    private final boolean compressRequests;
+    private final int maxConnTotal;
+    private final int maxConnPerRoute;
 
     private HttpClient(final KeyStore trustStore, final String basicCredentials, final KeyStore keystore,
-            final char[] keyPassword, final String keystoreAlias, final boolean verifyHostnames, final boolean ssl, String[] supportedProtocols, String[] supportedCipherSuites, final String... servers)
+            final char[] keyPassword, final String keystoreAlias, final boolean verifyHostnames, final boolean ssl, String[] supportedProtocols, String[] supportedCipherSuites,
+            final boolean compressRequests, final int maxConnTotal, final int maxConnPerRoute, final String... servers)
             throws UnrecoverableKeyException, KeyManagementException, NoSuchAlgorithmException, KeyStoreException, CertificateException,
             IOException {
         super();
@@ -152,6 +194,9 @@ public class HttpClient implements Closeable {
         this.supportedProtocols = supportedProtocols;
         this.supportedCipherSuites = supportedCipherSuites;
         this.keystoreAlias = keystoreAlias;
+        this.compressRequests = compressRequests;
+        this.maxConnTotal = maxConnTotal;
+        this.maxConnPerRoute = maxConnPerRoute;
 
         HttpHost[] hosts = Arrays.stream(servers)
                 .map(s->s.split(":"))
@@ -201,6 +246,75 @@ public class HttpClient implements Closeable {
             }
     }
 
+    /**
+     * Indexes the sources with one bulk request without waiting for it. The body is written as NDJSON
+     * directly from the sources (gzip compressed if enabled) and the request is not refreshing.
+     * 
+     * @param sources json documents, one line each
+     * @param listener receives the response, failed items have the position of their source as item id
+     */
+    public void bulk(final List<String> sources, final String index, final String type, final ActionListener<BulkResponse> listener) {
+
+        final Request request = new Request("POST", "/_bulk");
+
+        try {
+            final NByteArrayEntity entity = new NByteArrayEntity(ndjson(sources, index, type), ContentType.create("application/x-ndjson"));
+            if (compressRequests) {
+                entity.setContentEncoding("gzip");
+            }
+            request.setEntity(entity);
+        } catch (Exception e) {
+            listener.onFailure(e);
+            return;
+        }
+
+        rclient.getLowLevelClient().performRequestAsync(request, new ResponseListener() {
+
+            @Override
+            public void onSuccess(Response response) {
+                final BulkResponse bulkResponse;
+
+                try (InputStream in = response.getEntity().getContent();
+                        XContentParser parser = XContentType.JSON.xContent().createParser(NamedXContentRegistry.EMPTY,
+                                SearchGuardDeprecationHandler.INSTANCE, in)) {
+                    bulkResponse = BulkResponse.fromXContent(parser);
+                } catch (Exception e) {
+                    listener.onFailure(e);
+                    return;
+                }
+
+                listener.onResponse(bulkResponse);
+            }
+
+            @Override
+            public void onFailure(Exception exception) {
+                listener.onFailure(exception);
+            }
+        });
+    }
+
+    private byte[] ndjson(final List<String> sources, final String index, final String type) throws IOException {
+        final byte[] action;
+
+        try (XContentBuilder builder = JsonXContent.contentBuilder()) {
+            builder.startObject().startObject("index").field("_index", index).field("_type", type).endObject().endObject();
+            action = BytesReference.toBytes(BytesReference.bytes(builder));
+        }
+
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(sources.size() * (action.length + 512));
+
+        try (OutputStream out = compressRequests ? new GZIPOutputStream(bytes, 8192) : bytes) {
+            for (final String source : sources) {
+                out.write(action);
+                out.write('\n');
+                out.write(source.getBytes(StandardCharsets.UTF_8));
+                out.write('\n');
+            }
+        }
+
+        return bytes.toByteArray();
+    }
+
     private final HttpAsyncClientBuilder asyncClientBuilder(HttpAsyncClientBuilder httpClientBuilder) 
             throws NoSuchAlgorithmException, KeyStoreException, UnrecoverableKeyException, KeyManagementException {
 
@@ -260,6 +374,14 @@ public class HttpClient implements Closeable {
           .setSocketTimeout(timeout * 1000).build();
         
         httpClientBuilder.setDefaultRequestConfig(config);
+
+        if (maxConnTotal > 0) {
+            httpClientBuilder.setMaxConnTotal(maxConnTotal);
+        }
+
+        if (maxConnPerRoute > 0) {
+            httpClientBuilder.setMaxConnPerRoute(maxConnPerRoute);
+        }
         
         return httpClientBuilder;
         
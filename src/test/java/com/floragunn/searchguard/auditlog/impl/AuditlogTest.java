@@ -17,18 +17,36 @@ package com.floragunn.searchguard.auditlog.impl;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.NumericDocValuesField;
+import org.apache.lucene.index.Term;
 import org.elasticsearch.action.admin.cluster.health.ClusterHealthRequest;
 import org.elasticsearch.action.search.SearchRequest;
 import org.elasticsearch.cluster.ClusterName;
 import org.elasticsearch.cluster.node.DiscoveryNode;
 import org.elasticsearch.cluster.service.ClusterService;
+import org.elasticsearch.common.bytes.BytesArray;
 import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.index.engine.Engine;
+import org.elasticsearch.index.get.GetResult;
+import org.elasticsearch.index.mapper.ParsedDocument;
+import org.elasticsearch.index.mapper.SeqNoFieldMapper;
+import org.elasticsearch.index.shard.ShardId;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
 
 import com.floragunn.searchguard.auditlog.helper.RetrySink;
 import com.floragunn.searchguard.auditlog.integration.TestAuditlogImpl;
+import com.floragunn.searchguard.compliance.ComplianceConfig;
 import com.floragunn.searchguard.support.ConfigConstants;
 import com.floragunn.searchguard.test.AbstractSGUnitTest;
 
@@ -133,4 +151,187 @@ public class AuditlogTest {
         al.logSSLException(null, new Exception("test retry"));
         Assert.assertNull(RetrySink.getMsg());
     }
+
+    @Test
+    public void testAggregatedAndDeduplicatedDocumentReads() {
+
+        Settings settings = Settings.builder()
+                .put("searchguard.audit.type", TestAuditlogImpl.class.getName())
+                .put(AbstractAuditLog.READ_DEDUP_WINDOW.getKey(), "1h")
+                .put("searchguard.audit.threadpool.size", 0)
+                .build();
+        AbstractAuditLog al = new AuditLogImpl(settings, null,  null, AbstractSGUnitTest.MOCK_POOL, null, cs);
+        ComplianceConfig complianceConfig = mock(ComplianceConfig.class);
+        when(complianceConfig.readHistoryEnabledForIndex("index1")).thenReturn(true);
+        ShardId shardId = new ShardId("index1", "uuid", 0);
+        TestAuditlogImpl.clear();
+
+        al.logDocumentsRead("index1", shardId, Arrays.asList("1", "2"),
+                Arrays.asList(Collections.singletonMap("f1", "v1"), Collections.singletonMap("f2", "v2")), complianceConfig);
+        Assert.assertEquals(1, TestAuditlogImpl.messages.size());
+        String body = (String) TestAuditlogImpl.messages.get(0).getAsMap().get(AuditMessage.REQUEST_BODY);
+        Assert.assertTrue(body, body.contains("\"doc_ids\":[\"1\",\"2\"]"));
+        Assert.assertTrue(body, body.contains("\"field_names\":[\"f1\",\"f2\"]"));
+        Assert.assertTrue(body, body.contains("\"v2\""));
+
+        //already logged within the window
+        al.logDocumentRead("index1", "1", shardId, Collections.singletonMap("f1", "v1"), complianceConfig);
+        Assert.assertEquals(1, TestAuditlogImpl.messages.size());
+
+        al.logDocumentsRead("index1", shardId, Arrays.asList("2", "3"),
+                Arrays.asList(Collections.singletonMap("f2", "v2"), Collections.singletonMap("f3", "v3")), complianceConfig);
+        Assert.assertEquals(2, TestAuditlogImpl.messages.size());
+        body = (String) TestAuditlogImpl.messages.get(1).getAsMap().get(AuditMessage.REQUEST_BODY);
+        Assert.assertTrue(body, body.contains("\"doc_ids\":[\"3\"]"));
+        Assert.assertEquals("3", TestAuditlogImpl.messages.get(1).getAsMap().get(AuditMessage.ID));
+    }
+
+    @Test
+    public void testWriteDiffOffIndexingThread() throws Exception {
+
+        Settings settings = Settings.builder()
+                .put("searchguard.audit.type", TestAuditlogImpl.class.getName())
+                .put(AbstractAuditLog.WRITE_DIFF_THREADS.getKey(), 1)
+                .put("searchguard.audit.threadpool.size", 0)
+                .build();
+        AbstractAuditLog al = new AuditLogImpl(settings, null,  null, AbstractSGUnitTest.MOCK_POOL, null, cs);
+        ComplianceConfig complianceConfig = mock(ComplianceConfig.class);
+        when(complianceConfig.writeHistoryEnabledForIndex("index1")).thenReturn(true);
+        when(complianceConfig.logDiffsForWrite()).thenReturn(true);
+        ShardId shardId = new ShardId("index1", "uuid", 0);
+        TestAuditlogImpl.clear();
+
+        GetResult original = new GetResult("index1", "doc", "1", 0, 1, 1, true, new BytesArray("{\"a\":1,\"b\":\"x\"}"), null);
+        al.logDocumentWritten(shardId, original, index("1", "{\"a\":2,\"b\":\"x\"}"), new Engine.IndexResult(2, 1, 1, false), complianceConfig);
+        al.logDocumentWritten(shardId, original, index("1", "{\"a\":1,\"b\":\"x\"}"), new Engine.IndexResult(3, 1, 2, false), complianceConfig);
+
+        //waits for the pending diffs
+        al.close();
+        Assert.assertEquals(2, TestAuditlogImpl.messages.size());
+        Assert.assertEquals("[{\"op\":\"replace\",\"path\":\"/a\",\"value\":2}]",
+                TestAuditlogImpl.messages.get(0).getAsMap().get(AuditMessage.COMPLIANCE_DIFF_CONTENT));
+        Assert.assertEquals(Boolean.TRUE, TestAuditlogImpl.messages.get(1).getAsMap().get(AuditMessage.COMPLIANCE_DIFF_IS_NOOP));
+    }
+
+    @Test
+    public void testWriteDiffsInOrder() throws Exception {
+
+        Settings settings = Settings.builder()
+                .put("searchguard.audit.type", TestAuditlogImpl.class.getName())
+                .put(AbstractAuditLog.WRITE_DIFF_THREADS.getKey(), 4)
+                .put("searchguard.audit.threadpool.size", 0)
+                .build();
+        AbstractAuditLog al = new AuditLogImpl(settings, null,  null, AbstractSGUnitTest.MOCK_POOL, null, cs);
+        ComplianceConfig complianceConfig = mock(ComplianceConfig.class);
+        when(complianceConfig.writeHistoryEnabledForIndex("index1")).thenReturn(true);
+        when(complianceConfig.logDiffsForWrite()).thenReturn(true);
+        ShardId shardId = new ShardId("index1", "uuid", 0);
+        TestAuditlogImpl.clear();
+
+        StringBuilder largeSource = new StringBuilder("{\"a\":[");
+        for(int i = 0; i < 5000; i++) {
+            largeSource.append(i).append(',');
+        }
+        largeSource.append("0]}");
+
+        for(int i = 0; i < 20; i++) {
+            String id = String.valueOf(i);
+            //an expensive diff, a write without previous version and a delete of the same document
+            GetResult original = new GetResult("index1", "doc", id, 0, 1, 1, true, new BytesArray("{\"a\":[]}"), null);
+            al.logDocumentWritten(shardId, original, index(id, largeSource.toString()), new Engine.IndexResult(2, 1, 1, false), complianceConfig);
+            al.logDocumentWritten(shardId, null, index(id, "{\"a\":1}"), new Engine.IndexResult(3, 1, 2, false), complianceConfig);
+            al.logDocumentDeleted(shardId, new Engine.Delete("doc", id, new Term("_id", id), 1), new Engine.DeleteResult(4, 1, 3, true));
+        }
+
+        al.close();
+        Assert.assertEquals(60, TestAuditlogImpl.messages.size());
+
+        Map<Object, Long> lastVersions = new HashMap<>();
+        for(AuditMessage msg : TestAuditlogImpl.messages) {
+            Object id = msg.getAsMap().get(AuditMessage.ID);
+            long version = ((Number) msg.getAsMap().get(AuditMessage.COMPLIANCE_DOC_VERSION)).longValue();
+            Long lastVersion = lastVersions.put(id, version);
+            Assert.assertEquals("version of " + id, lastVersion == null ? 2 : lastVersion + 1, version);
+        }
+    }
+
+    @Test
+    public void testReadDedupMaxEntries() throws Exception {
+
+        Settings settings = Settings.builder()
+                .put("searchguard.audit.type", TestAuditlogImpl.class.getName())
+                .put(AbstractAuditLog.READ_DEDUP_WINDOW.getKey(), "1h")
+                .put(AbstractAuditLog.READ_DEDUP_MAX_ENTRIES.getKey(), 1)
+                .put("searchguard.audit.threadpool.size", 0)
+                .build();
+        AbstractAuditLog al = new AuditLogImpl(settings, null,  null, AbstractSGUnitTest.MOCK_POOL, null, cs);
+        ComplianceConfig complianceConfig = mock(ComplianceConfig.class);
+        when(complianceConfig.readHistoryEnabledForIndex("index1")).thenReturn(true);
+        ShardId shardId = new ShardId("index1", "uuid", 0);
+        TestAuditlogImpl.clear();
+
+        al.logDocumentRead("index1", "1", shardId, Collections.singletonMap("f1", "v1"), complianceConfig);
+        al.logDocumentRead("index1", "1", shardId, Collections.singletonMap("f1", "v1"), complianceConfig);
+        Assert.assertEquals(1, TestAuditlogImpl.messages.size());
+
+        //the read of document 1 was evicted by the one of document 2
+        al.logDocumentRead("index1", "2", shardId, Collections.singletonMap("f1", "v1"), complianceConfig);
+        al.logDocumentRead("index1", "1", shardId, Collections.singletonMap("f1", "v1"), complianceConfig);
+        Assert.assertEquals(3, TestAuditlogImpl.messages.size());
+    }
+
+    @Test
+    public void testWriteDiffThreads() throws Exception {
+
+        ComplianceConfig complianceConfig = mock(ComplianceConfig.class);
+        when(complianceConfig.writeHistoryEnabledForIndex("index1")).thenReturn(true);
+        ShardId shardId = new ShardId("index1", "uuid", 0);
+        GetResult original = new GetResult("index1", "doc", "1", 0, 1, 1, true, new BytesArray("{\"a\":1}"), null);
+        List<String> threads = Collections.synchronizedList(new ArrayList<>());
+
+        //without diffs the messages do not wait for the diff threads
+        AbstractAuditLog al = threadRecordingAuditLog(Settings.EMPTY, threads);
+        al.logDocumentWritten(shardId, original, index("1", "{\"a\":2}"), new Engine.IndexResult(2, 1, 1, false), complianceConfig);
+        al.logDocumentDeleted(shardId, new Engine.Delete("doc", "1", new Term("_id", "1"), 1), new Engine.DeleteResult(3, 1, 2, true));
+        Assert.assertEquals(Arrays.asList(Thread.currentThread().getName(), Thread.currentThread().getName()), threads);
+
+        when(complianceConfig.logDiffsForWrite()).thenReturn(true);
+        al.logDocumentWritten(shardId, original, index("1", "{\"a\":2}"), new Engine.IndexResult(4, 1, 3, false), complianceConfig);
+        al.logDocumentDeleted(shardId, new Engine.Delete("doc", "1", new Term("_id", "1"), 1), new Engine.DeleteResult(5, 1, 4, true));
+        al.close();
+        Assert.assertEquals(4, threads.size());
+        Assert.assertTrue(threads.get(2), threads.get(2).contains("[sg_audit_write_diff]"));
+        Assert.assertEquals(threads.get(2), threads.get(3));
+
+        threads.clear();
+        al = threadRecordingAuditLog(Settings.builder().put(AbstractAuditLog.WRITE_DIFF_THREADS.getKey(), 0).build(), threads);
+        al.logDocumentWritten(shardId, original, index("1", "{\"a\":2}"), new Engine.IndexResult(2, 1, 1, false), complianceConfig);
+        Assert.assertEquals(Arrays.asList(Thread.currentThread().getName()), threads);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testWriteDiffOverflowSetting() throws Exception {
+        AbstractAuditLog.WRITE_DIFF_OVERFLOW.get(Settings.builder().put(AbstractAuditLog.WRITE_DIFF_OVERFLOW.getKey(), "block").build());
+    }
+
+    private AbstractAuditLog threadRecordingAuditLog(Settings settings, List<String> threads) {
+        return new AbstractAuditLog(settings, AbstractSGUnitTest.MOCK_POOL, null, cs) {
+
+            @Override
+            protected void save(AuditMessage msg) {
+                threads.add(Thread.currentThread().getName());
+            }
+
+            @Override
+            public void setComplianceConfig(ComplianceConfig complianceConfig) {
+            }
+        };
+    }
+
+    private static Engine.Index index(String id, String source) {
+        Field version = new NumericDocValuesField("_version", 0);
+        ParsedDocument doc = new ParsedDocument(version, SeqNoFieldMapper.SequenceIDFields.emptySeqID(), id, "doc", null,
+                Collections.emptyList(), new BytesArray(source), XContentType.JSON, null);
+        return new Engine.Index(new Term("_id", id), 1, doc);
+    }
 }
@@ -0,0 +1,263 @@
+/*
+ * Copyright 2016-2019 by floragunn GmbH - All rights reserved
+ *
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed here is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * This software is free of charge for non-commercial and academic use.
+ * For commercial use in a production environment you have to obtain a license
+ * from https://floragunn.com
+ *
+ */
+
+package com.floragunn.searchguard.auditlog.routing;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.elasticsearch.common.settings.Settings;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.floragunn.searchguard.auditlog.helper.MockAuditMessageFactory;
+import com.floragunn.searchguard.auditlog.impl.AuditMessage;
+import com.floragunn.searchguard.auditlog.sink.AuditLogSink;
+import com.floragunn.searchguard.support.ConfigConstants;
+
+public class AsyncStoragePoolTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testConcurrentStoresOfNonBatchingSink() throws Exception {
+		final AsyncStoragePool pool = new AsyncStoragePool(Settings.builder().put(ConfigConstants.SEARCHGUARD_AUDIT_THREADPOOL_SIZE, 4).build());
+		final CountingSink fallback = new CountingSink("fallback", null, false);
+		final CountingSink sink = new CountingSink("sink", fallback, false);
+		//every store waits until four messages are stored at the same time
+		sink.barrier = new CountDownLatch(4);
+
+		for (int i = 0; i < 100; i++) {
+			pool.submit(MockAuditMessageFactory.validAuditMessage(), sink);
+		}
+
+		pool.close();
+		Assert.assertEquals(100, sink.stored.get());
+		Assert.assertEquals(4, sink.maxConcurrent.get());
+		Assert.assertEquals(0, fallback.stored.get());
+	}
+
+	@Test
+	public void testSingleConsumerOfBatchingSink() throws Exception {
+		final AsyncStoragePool pool = new AsyncStoragePool(Settings.builder().put(ConfigConstants.SEARCHGUARD_AUDIT_THREADPOOL_SIZE, 4).build());
+		final CountingSink fallback = new CountingSink("fallback", null, false);
+		final CountingSink sink = new CountingSink("sink", fallback, true);
+
+		for (int i = 0; i < 100; i++) {
+			pool.submit(MockAuditMessageFactory.validAuditMessage(), sink);
+		}
+
+		pool.close();
+		Assert.assertEquals(100, sink.stored.get());
+		Assert.assertEquals(1, sink.maxConcurrent.get());
+		Assert.assertEquals(0, fallback.stored.get());
+	}
+
+	@Test
+	public void testMaxBatchSize() throws Exception {
+		final AsyncStoragePool pool = new AsyncStoragePool(Settings.builder().put(AsyncStoragePool.MAX_BATCH_SIZE.getKey(), 7).build());
+		final CountingSink sink = new CountingSink("sink", null, true);
+		//the first store waits until all messages are submitted
+		sink.barrier = new CountDownLatch(2);
+
+		for (int i = 0; i < 100; i++) {
+			pool.submit(MockAuditMessageFactory.validAuditMessage(), sink);
+		}
+
+		sink.barrier.countDown();
+		pool.close();
+		Assert.assertEquals(100, sink.stored.get());
+		Assert.assertEquals(7, sink.maxBatchSize.get());
+	}
+
+	@Test
+	public void testSpoolWithFailingSink() throws Exception {
+		final AsyncStoragePool pool = new AsyncStoragePool(Settings.builder().put("path.home", folder.getRoot().getAbsolutePath())
+				.put(AsyncStoragePool.SPOOL_ENABLED.getKey(), true).put(AsyncStoragePool.SPOOL_PATH.getKey(), "spool").build());
+		final CountingSink fallback = new CountingSink("fallback", null, false);
+		final FailingSink sink = new FailingSink("sink", fallback, 2);
+
+		for (int i = 0; i < 100; i++) {
+			pool.submit(MockAuditMessageFactory.validAuditMessage(), sink);
+		}
+
+		//the failed batches are retried after 1 and 2 seconds
+		final long deadline = System.currentTimeMillis() + 30 * 1000;
+		while (sink.stored.get() < 100 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(50);
+		}
+
+		pool.close();
+		Assert.assertEquals(0, sink.failures.get());
+		Assert.assertEquals(100, sink.stored.get());
+		Assert.assertEquals(0, fallback.stored.get());
+	}
+
+	@Test
+	public void testSpoolSettings() throws Exception {
+		AsyncStoragePool pool = new AsyncStoragePool(Settings.builder().put("path.home", folder.getRoot().getAbsolutePath()).build());
+		Assert.assertNull(pool.spoolPath);
+		Assert.assertEquals(1024 * 1024 * 1024, pool.spoolMaxSize);
+		Assert.assertEquals(64 * 1024 * 1024, pool.spoolSegmentSize);
+
+		pool = new AsyncStoragePool(Settings.builder().put("path.home", folder.getRoot().getAbsolutePath())
+				.put(AsyncStoragePool.SPOOL_ENABLED.getKey(), true).put(AsyncStoragePool.SPOOL_MAX_SIZE.getKey(), "10mb")
+				.put(AsyncStoragePool.SPOOL_SEGMENT_SIZE.getKey(), "1mb").build());
+		Assert.assertEquals(folder.getRoot().toPath().resolve("data").resolve("searchguard_audit_spool"), pool.spoolPath);
+		Assert.assertEquals(10 * 1024 * 1024, pool.spoolMaxSize);
+		Assert.assertEquals(1024 * 1024, pool.spoolSegmentSize);
+
+		try {
+			new AsyncStoragePool(Settings.builder().put(AsyncStoragePool.SPOOL_SEGMENT_SIZE.getKey(), "4gb").build());
+			Assert.fail();
+		} catch (IllegalArgumentException e) {
+			//a segment must fit into an int
+		}
+	}
+
+	@Test
+	public void testSpoolOfSeveralSinks() throws Exception {
+		final AsyncStoragePool pool = new AsyncStoragePool(Settings.builder().put("path.home", folder.getRoot().getAbsolutePath())
+				.put(AsyncStoragePool.SPOOL_ENABLED.getKey(), true).put(AsyncStoragePool.SPOOL_PATH.getKey(), "spool")
+				.put(AsyncStoragePool.SPOOL_SEGMENT_SIZE.getKey(), "64kb").build());
+		final CountingSink fallback = new CountingSink("fallback", null, false);
+		final CountingSink sink1 = new CountingSink("sink1", fallback, true);
+		final CountingSink sink2 = new CountingSink("sink2", fallback, false);
+
+		//several segments per sink
+		for (int i = 0; i < 500; i++) {
+			pool.submit(MockAuditMessageFactory.validAuditMessage(), Arrays.asList(sink1, sink2));
+		}
+
+		final long deadline = System.currentTimeMillis() + 30 * 1000;
+		while ((sink1.stored.get() < 500 || sink2.stored.get() < 500) && System.currentTimeMillis() < deadline) {
+			Thread.sleep(50);
+		}
+
+		pool.close();
+		Assert.assertEquals(500, sink1.stored.get());
+		Assert.assertEquals(500, sink2.stored.get());
+		Assert.assertEquals(0, fallback.stored.get());
+	}
+
+	@Test
+	public void testSpoolNotAvailable() throws Exception {
+		//the spool directory can not be created
+		Assert.assertTrue(folder.newFile("spool").exists());
+		final AsyncStoragePool pool = new AsyncStoragePool(Settings.builder().put("path.home", folder.getRoot().getAbsolutePath())
+				.put(AsyncStoragePool.SPOOL_ENABLED.getKey(), true).put(AsyncStoragePool.SPOOL_PATH.getKey(), "spool").build());
+		final CountingSink fallback = new CountingSink("fallback", null, false);
+		final CountingSink sink = new CountingSink("sink", fallback, true);
+
+		for (int i = 0; i < 100; i++) {
+			pool.submit(MockAuditMessageFactory.validAuditMessage(), sink);
+		}
+
+		//stored from the ring buffer
+		pool.close();
+		Assert.assertEquals(100, sink.stored.get());
+		Assert.assertEquals(0, fallback.stored.get());
+	}
+
+	//acknowledges only the first message of a batch while it fails, like a bulk request with failed items
+	static class FailingSink extends CountingSink {
+
+		final AtomicInteger failures;
+
+		FailingSink(final String name, final AuditLogSink fallbackSink, final int failures) {
+			super(name, fallbackSink, true);
+			this.failures = new AtomicInteger(failures);
+		}
+
+		@Override
+		protected int doTryStoreBatch(final List<AuditMessage> msgs) {
+			if (failures.get() > 0) {
+				failures.decrementAndGet();
+				doStore(msgs.get(0));
+				return 1;
+			}
+			return super.doTryStoreBatch(msgs);
+		}
+
+		//the failed messages are stored on the fallback sink like the bulk requests do
+		@Override
+		protected boolean doStoreBatch(final List<AuditMessage> msgs) {
+			if (failures.get() > 0) {
+				failures.decrementAndGet();
+				for (final AuditMessage msg : msgs) {
+					storeOnFallback(msg);
+				}
+				return true;
+			}
+			return super.doStoreBatch(msgs);
+		}
+	}
+
+	static class CountingSink extends AuditLogSink {
+
+		final AtomicInteger stored = new AtomicInteger();
+		final AtomicInteger concurrent = new AtomicInteger();
+		final AtomicInteger maxConcurrent = new AtomicInteger();
+		final AtomicInteger maxBatchSize = new AtomicInteger();
+		private final boolean batching;
+		volatile CountDownLatch barrier;
+
+		CountingSink(final String name, final AuditLogSink fallbackSink, final boolean batching) {
+			super(name, Settings.EMPTY, null, fallbackSink);
+			this.batching = batching;
+		}
+
+		@Override
+		protected boolean doStore(final AuditMessage msg) {
+			final int current = concurrent.incrementAndGet();
+			maxConcurrent.accumulateAndGet(current, Math::max);
+
+			try {
+				final CountDownLatch barrier = this.barrier;
+				if (barrier != null) {
+					barrier.countDown();
+					barrier.await(10, TimeUnit.SECONDS);
+				}
+				Thread.sleep(1);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} finally {
+				concurrent.decrementAndGet();
+			}
+
+			stored.incrementAndGet();
+			return true;
+		}
+
+		@Override
+		public boolean isBatching() {
+			return batching;
+		}
+
+		@Override
+		protected boolean doStoreBatch(final List<AuditMessage> msgs) {
+			maxBatchSize.accumulateAndGet(msgs.size(), Math::max);
+			for (final AuditMessage msg : msgs) {
+				doStore(msg);
+			}
+			return true;
+		}
+	}
+}
@@ -0,0 +1,245 @@
+/*
+ * Copyright 2016-2019 by floragunn GmbH - All rights reserved
+ *
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed here is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * This software is free of charge for non-commercial and academic use.
+ * For commercial use in a production environment you have to obtain a license
+ * from https://floragunn.com
+ *
+ */
+
+package com.floragunn.searchguard.auditlog.routing;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class AuditSpoolTest {
+
+	//every record is 8 bytes header and 12 bytes payload, so a segment holds 51 records
+	private static final int SEGMENT_SIZE = 1024;
+	private static final int RECORDS_PER_SEGMENT = 51;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testAppendReadCommit() throws Exception {
+		Path directory = folder.getRoot().toPath().resolve("spool");
+
+		try (AuditSpool spool = AuditSpool.open(directory, SEGMENT_SIZE, 10 * SEGMENT_SIZE)) {
+			Assert.assertTrue(spool.isEmpty());
+
+			for (int i = 0; i < 200; i++) {
+				Assert.assertTrue(spool.append(record(i)));
+			}
+
+			Assert.assertFalse(spool.isEmpty());
+			Assert.assertEquals(4, countSegments(directory));
+
+			List<byte[]> records = new ArrayList<>();
+			Assert.assertEquals(70, spool.read(records, 70));
+			Assert.assertEquals(130, spool.read(records, 1000));
+			Assert.assertEquals(0, spool.read(records, 1000));
+			Assert.assertTrue(spool.isEmpty());
+			assertRecords(records, 0, 200);
+
+			spool.commit();
+			//the current segment and at most two free ones for recycling
+			Assert.assertEquals(3, countSegments(directory));
+
+			for (int i = 200; i < 300; i++) {
+				Assert.assertTrue(spool.append(record(i)));
+			}
+
+			//recycled files are used for the new segments
+			Assert.assertEquals(3, countSegments(directory));
+			records.clear();
+			Assert.assertEquals(100, spool.read(records, 1000));
+			assertRecords(records, 200, 100);
+		}
+	}
+
+	@Test
+	public void testReplayAfterReopen() throws Exception {
+		Path directory = folder.getRoot().toPath().resolve("spool");
+		List<byte[]> records = new ArrayList<>();
+
+		try (AuditSpool spool = AuditSpool.open(directory, SEGMENT_SIZE, 10 * SEGMENT_SIZE)) {
+			for (int i = 0; i < 100; i++) {
+				Assert.assertTrue(spool.append(record(i)));
+			}
+
+			Assert.assertEquals(60, spool.read(records, 60));
+			spool.commit();
+			//read, but not committed
+			Assert.assertEquals(20, spool.read(records, 20));
+		}
+
+		try (AuditSpool spool = AuditSpool.open(directory, SEGMENT_SIZE, 10 * SEGMENT_SIZE)) {
+			records.clear();
+			Assert.assertEquals(40, spool.read(records, 1000));
+			assertRecords(records, 60, 40);
+
+			//appending continues after the recovered records
+			Assert.assertTrue(spool.append(record(100)));
+			records.clear();
+			Assert.assertEquals(1, spool.read(records, 1000));
+			assertRecords(records, 100, 1);
+			spool.commit();
+		}
+
+		try (AuditSpool spool = AuditSpool.open(directory, SEGMENT_SIZE, 10 * SEGMENT_SIZE)) {
+			Assert.assertTrue(spool.isEmpty());
+		}
+	}
+
+	@Test
+	public void testFull() throws Exception {
+		Path directory = folder.getRoot().toPath().resolve("spool");
+
+		try (AuditSpool spool = AuditSpool.open(directory, SEGMENT_SIZE, 2 * SEGMENT_SIZE)) {
+			Assert.assertFalse(spool.append(new byte[SEGMENT_SIZE]));
+
+			for (int i = 0; i < 2 * RECORDS_PER_SEGMENT; i++) {
+				Assert.assertTrue(spool.append(record(i)));
+			}
+
+			Assert.assertFalse(spool.append(record(0)));
+
+			List<byte[]> records = new ArrayList<>();
+			Assert.assertEquals(RECORDS_PER_SEGMENT + 1, spool.read(records, RECORDS_PER_SEGMENT + 1));
+			//nothing is freed before the commit
+			Assert.assertFalse(spool.append(record(0)));
+			spool.commit();
+			Assert.assertTrue(spool.append(record(2 * RECORDS_PER_SEGMENT)));
+		}
+	}
+
+	@Test
+	public void testCorruptedRecord() throws Exception {
+		Path directory = folder.getRoot().toPath().resolve("spool");
+
+		try (AuditSpool spool = AuditSpool.open(directory, SEGMENT_SIZE, 10 * SEGMENT_SIZE)) {
+			for (int i = 0; i < 100; i++) {
+				Assert.assertTrue(spool.append(record(i)));
+			}
+		}
+
+		//flip a byte in the payload of the second record of the first segment
+		try (RandomAccessFile file = new RandomAccessFile(directory.resolve(String.format("segment-%020d.spool", 0)).toFile(), "rw")) {
+			file.seek(20 + 8 + 3);
+			int b = file.read();
+			file.seek(20 + 8 + 3);
+			file.write(b ^ 0xff);
+		}
+
+		try (AuditSpool spool = AuditSpool.open(directory, SEGMENT_SIZE, 10 * SEGMENT_SIZE)) {
+			List<byte[]> records = new ArrayList<>();
+			Assert.assertEquals(1 + 100 - RECORDS_PER_SEGMENT, spool.read(records, 1000));
+			assertRecords(records.subList(0, 1), 0, 1);
+			assertRecords(records.subList(1, records.size()), RECORDS_PER_SEGMENT, 100 - RECORDS_PER_SEGMENT);
+			Assert.assertTrue(spool.isEmpty());
+		}
+	}
+
+	@Test
+	public void testClose() throws Exception {
+		Path directory = folder.getRoot().toPath().resolve("spool");
+		AuditSpool spool = AuditSpool.open(directory, SEGMENT_SIZE, 10 * SEGMENT_SIZE);
+
+		for (int i = 0; i < 100; i++) {
+			Assert.assertTrue(spool.append(record(i)));
+		}
+
+		//the full segment is forced by the consumer
+		spool.forceFullSegments();
+		spool.close();
+		//the segments are unmapped, appending fails instead of accessing them
+		Assert.assertFalse(spool.append(record(100)));
+		spool.close();
+
+		try (AuditSpool reopened = AuditSpool.open(directory, SEGMENT_SIZE, 10 * SEGMENT_SIZE)) {
+			List<byte[]> records = new ArrayList<>();
+			Assert.assertEquals(100, reopened.read(records, 1000));
+			assertRecords(records, 0, 100);
+		}
+	}
+
+	@Test
+	public void testPrepareNextSegment() throws Exception {
+		Path directory = folder.getRoot().toPath().resolve("spool");
+		List<byte[]> records = new ArrayList<>();
+
+		try (AuditSpool spool = AuditSpool.open(directory, SEGMENT_SIZE, 10 * SEGMENT_SIZE)) {
+			spool.prepareNextSegment();
+			spool.prepareNextSegment();
+			Assert.assertEquals(2, countSegments(directory));
+
+			//the prepared segment is used when the first one is full
+			for (int i = 0; i < RECORDS_PER_SEGMENT + 1; i++) {
+				Assert.assertTrue(spool.append(record(i)));
+			}
+
+			Assert.assertEquals(2, countSegments(directory));
+			spool.prepareNextSegment();
+			Assert.assertEquals(3, countSegments(directory));
+			Assert.assertEquals(RECORDS_PER_SEGMENT + 1, spool.read(records, 1000));
+			spool.commit();
+		}
+
+		//the prepared segment was not written to, appending continues in the previous one
+		try (AuditSpool spool = AuditSpool.open(directory, SEGMENT_SIZE, 10 * SEGMENT_SIZE)) {
+			Assert.assertTrue(spool.isEmpty());
+			Assert.assertTrue(spool.append(record(RECORDS_PER_SEGMENT + 1)));
+			records.clear();
+			Assert.assertEquals(1, spool.read(records, 1000));
+			assertRecords(records, RECORDS_PER_SEGMENT + 1, 1);
+		}
+
+		//not prepared beyond the max size
+		try (AuditSpool spool = AuditSpool.open(folder.getRoot().toPath().resolve("full"), SEGMENT_SIZE, 2 * SEGMENT_SIZE)) {
+			for (int i = 0; i < RECORDS_PER_SEGMENT + 1; i++) {
+				Assert.assertTrue(spool.append(record(i)));
+			}
+
+			spool.prepareNextSegment();
+			Assert.assertEquals(2, countSegments(folder.getRoot().toPath().resolve("full")));
+		}
+	}
+
+	private static byte[] record(int i) {
+		return String.format("message-%04d", i).getBytes(StandardCharsets.UTF_8);
+	}
+
+	private static void assertRecords(List<byte[]> records, int first, int count) {
+		Assert.assertEquals(count, records.size());
+		for (int i = 0; i < count; i++) {
+			Assert.assertEquals(String.format("message-%04d", first + i), new String(records.get(i), StandardCharsets.UTF_8));
+		}
+	}
+
+	private static int countSegments(Path directory) throws IOException {
+		int count = 0;
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "segment-*.spool")) {
+			for (@SuppressWarnings("unused") Path path : stream) {
+				count++;
+			}
+		}
+		return count;
+	}
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright 2016-2019 by floragunn GmbH - All rights reserved
+ *
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed here is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * This software is free of charge for non-commercial and academic use.
+ * For commercial use in a production environment you have to obtain a license
+ * from https://floragunn.com
+ *
+ */
+
+package com.floragunn.searchguard.auditlog.routing;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class SinkRingBufferTest {
+
+	@Test
+	public void testFull() {
+		SinkRingBuffer<Integer> buffer = new SinkRingBuffer<>(3);
+		Assert.assertEquals(4, buffer.capacity());
+		Assert.assertTrue(buffer.isEmpty());
+
+		for (int i = 0; i < 4; i++) {
+			Assert.assertTrue(buffer.offer(i));
+		}
+
+		Assert.assertFalse(buffer.offer(4));
+		Assert.assertFalse(buffer.isEmpty());
+
+		List<Integer> batch = new ArrayList<>();
+		Assert.assertEquals(2, buffer.drainTo(batch, 2));
+		Assert.assertTrue(buffer.offer(4));
+		Assert.assertTrue(buffer.offer(5));
+		Assert.assertFalse(buffer.offer(6));
+		Assert.assertEquals(4, buffer.drainTo(batch, 10));
+		Assert.assertEquals(0, buffer.drainTo(batch, 10));
+		Assert.assertTrue(buffer.isEmpty());
+
+		for (int i = 0; i < 6; i++) {
+			Assert.assertEquals(i, batch.get(i).intValue());
+		}
+	}
+
+	@Test
+	public void testMultipleProducers() throws Exception {
+		final int producers = 4;
+		final int perProducer = 50000;
+		final SinkRingBuffer<long[]> buffer = new SinkRingBuffer<>(128);
+		final CountDownLatch start = new CountDownLatch(1);
+		final List<Thread> threads = new ArrayList<>();
+
+		for (int p = 0; p < producers; p++) {
+			final int producer = p;
+			Thread thread = new Thread(() -> {
+				try {
+					start.await();
+				} catch (InterruptedException e) {
+					return;
+				}
+				for (int i = 0; i < perProducer; i++) {
+					while (!buffer.offer(new long[] { producer, i })) {
+						Thread.yield();
+					}
+				}
+			});
+			thread.start();
+			threads.add(thread);
+		}
+
+		start.countDown();
+
+		final int[] next = new int[producers];
+		final List<long[]> batch = new ArrayList<>();
+		int received = 0;
+
+		while (received < producers * perProducer) {
+			if (buffer.drainTo(batch, 100) == 0) {
+				Thread.yield();
+				continue;
+			}
+
+			for (long[] element : batch) {
+				//the elements of every producer arrive in the order they were offered
+				Assert.assertEquals(next[(int) element[0]]++, element[1]);
+			}
+
+			received += batch.size();
+			batch.clear();
+		}
+
+		for (Thread thread : threads) {
+			thread.join();
+		}
+
+		Assert.assertTrue(buffer.isEmpty());
+
+		for (int p = 0; p < producers; p++) {
+			Assert.assertEquals(perProducer, next[p]);
+		}
+	}
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright 2016-2019 by floragunn GmbH - All rights reserved
+ *
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed here is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * This software is free of charge for non-commercial and academic use.
+ * For commercial use in a production environment you have to obtain a license
+ * from https://floragunn.com
+ *
+ */
+
+package com.floragunn.searchguard.auditlog.sink;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.DocWriteRequest;
+import org.elasticsearch.action.DocWriteRequest.OpType;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.index.IndexResponse;
+import org.elasticsearch.action.support.WriteRequest.RefreshPolicy;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.index.shard.ShardId;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.floragunn.searchguard.auditlog.helper.LoggingSink;
+import com.floragunn.searchguard.auditlog.helper.MockAuditMessageFactory;
+import com.floragunn.searchguard.auditlog.impl.AuditMessage;
+import com.floragunn.searchguard.test.AbstractSGUnitTest;
+
+public class InternalESSinkBulkTest {
+
+	@Test
+	@SuppressWarnings("unchecked")
+	public void testBulkWithRetriesAndFallback() throws Exception {
+		Settings settings = Settings.builder()
+				.put("searchguard.audit.config.index", "auditlog")
+				.put("searchguard.audit.config.bulk.enabled", true)
+				.put("searchguard.audit.config.bulk.max_actions", 3)
+				.put("searchguard.audit.config.bulk.flush_interval", "0")
+				.put("searchguard.audit.config.bulk.max_retries", 2)
+				.put("searchguard.audit.config.bulk.retry_delay", "1ms")
+				.build();
+
+		// item ids which fail on the first, second and third request
+		final List<List<Integer>> failures = Arrays.asList(Arrays.asList(0, 2), Arrays.asList(1), Arrays.asList(0));
+		final List<BulkRequest> requests = Collections.synchronizedList(new ArrayList<>());
+		final Client client = mock(Client.class);
+
+		doAnswer(invocation -> {
+			BulkRequest request = invocation.getArgument(0);
+			List<Integer> failed = failures.get(requests.size());
+			requests.add(request);
+			BulkItemResponse[] items = new BulkItemResponse[request.numberOfActions()];
+
+			for (int i = 0; i < items.length; i++) {
+				DocWriteRequest<?> item = request.requests().get(i);
+				items[i] = failed.contains(i)
+						? new BulkItemResponse(i, OpType.INDEX, new BulkItemResponse.Failure(item.index(), item.type(), null, new Exception("failed")))
+						: new BulkItemResponse(i, OpType.INDEX, new IndexResponse(new ShardId(item.index(), "uuid", 0), item.type(), "id", 1, 1, 1, true));
+			}
+
+			((ActionListener<BulkResponse>) invocation.getArgument(1)).onResponse(new BulkResponse(items, 1));
+			return null;
+		}).when(client).bulk(any(BulkRequest.class), any(ActionListener.class));
+
+		LoggingSink fallback = new LoggingSink("fallback", settings, null, null);
+		InternalESSink sink = new InternalESSink("internal", settings, "searchguard.audit.config", null, client, AbstractSGUnitTest.MOCK_POOL, fallback);
+		Assert.assertTrue(sink.isBatching());
+
+		AuditMessage msg = MockAuditMessageFactory.validAuditMessage();
+		sink.store(Arrays.asList(msg, msg));
+		Assert.assertEquals(0, requests.size());
+
+		sink.store(Collections.singletonList(msg));
+		sink.close();
+
+		// the failed items are retried twice, the one which still fails goes to the fallback sink
+		Assert.assertEquals(3, requests.size());
+		Assert.assertEquals(3, requests.get(0).numberOfActions());
+		Assert.assertEquals(2, requests.get(1).numberOfActions());
+		Assert.assertEquals(1, requests.get(2).numberOfActions());
+		Assert.assertEquals(RefreshPolicy.NONE, requests.get(0).getRefreshPolicy());
+		Assert.assertEquals("auditlog", requests.get(0).requests().get(0).index());
+		Assert.assertEquals(1, fallback.messages.size());
+	}
+}
@@ -19,6 +19,8 @@ import java.io.InputStream;
 import java.net.URLDecoder;
 import java.nio.charset.StandardCharsets;
 import java.security.KeyStore;
+import java.util.Arrays;
+import java.util.List;
 import java.util.concurrent.TimeUnit;
 
 import javax.net.ssl.KeyManagerFactory;
@@ -692,6 +694,56 @@ public class WebhookAuditLogTest {
         server.shutdown(3l, TimeUnit.SECONDS);
 	}
 	
+	@Test
+	public void batchedFormatsTest() throws Exception {
+
+		String url = "http://localhost";
+		AuditMessage msg = MockAuditMessageFactory.validAuditMessage();
+		List<AuditMessage> msgs = Arrays.asList(msg, msg);
+
+		Settings settings = Settings.builder()
+				.put("searchguard.audit.config.webhook.url", url)
+				.put("searchguard.audit.config.webhook.format", "json_array")
+				.put("searchguard.audit.config.webhook.batch.max_events", 50)
+				.put("searchguard.audit.config.webhook.batch.flush_interval", "2s")
+				.put("path.home", ".")
+                .put("searchguard.ssl.transport.truststore_filepath",
+                        FileHelper.getAbsoluteFilePathFromClassPath("auditlog/truststore.jks"))
+				.build();
+
+		MockWebhookAuditLog auditlog = new MockWebhookAuditLog(settings, ConfigConstants.SEARCHGUARD_AUDIT_CONFIG_DEFAULT, null);
+		Assert.assertEquals(WebhookFormat.JSON_ARRAY, auditlog.webhookFormat);
+		Assert.assertEquals(50, auditlog.getMaxBatchSize());
+		Assert.assertEquals(2000, auditlog.getMaxBatchDelayMillis());
+		auditlog.store(msgs);
+		Assert.assertTrue(auditlog.payload.startsWith("[{"));
+		Assert.assertTrue(auditlog.payload.endsWith("}]"));
+		Assert.assertTrue(auditlog.payload.contains("},{"));
+		assertStringContainsAllKeysAndValues(auditlog.payload);
+
+		settings = Settings.builder().put(settings).put("searchguard.audit.config.webhook.format", "ndjson").build();
+		auditlog = new MockWebhookAuditLog(settings, ConfigConstants.SEARCHGUARD_AUDIT_CONFIG_DEFAULT, null);
+		auditlog.store(msgs);
+		Assert.assertEquals(2, auditlog.payload.split("\n").length);
+		Assert.assertTrue(auditlog.payload.endsWith("}\n"));
+		assertStringContainsAllKeysAndValues(auditlog.payload);
+
+		// a single message is sent as a batch of one
+		settings = Settings.builder().put(settings).put("searchguard.audit.config.webhook.format", "slack_digest").build();
+		auditlog = new MockWebhookAuditLog(settings, ConfigConstants.SEARCHGUARD_AUDIT_CONFIG_DEFAULT, null);
+		auditlog.store(msg);
+		Assert.assertTrue(auditlog.payload.startsWith("{\"text\":\"1 audit event\\n"));
+		auditlog.store(msgs);
+		Assert.assertTrue(auditlog.payload.startsWith("{\"text\":\"2 audit events\\n"));
+		assertStringContainsAllKeysAndValues(auditlog.payload);
+
+		// batches are not supported by the non batched formats
+		settings = Settings.builder().put(settings).put("searchguard.audit.config.webhook.format", "json").build();
+		auditlog = new MockWebhookAuditLog(settings, ConfigConstants.SEARCHGUARD_AUDIT_CONFIG_DEFAULT, null);
+		Assert.assertEquals(Integer.MAX_VALUE, auditlog.getMaxBatchSize());
+		Assert.assertEquals(0, auditlog.getMaxBatchDelayMillis());
+	}
+
 	// for TLS support on our in-memory server
 	private SSLContext createSSLContext() throws Exception {
 			final TrustManagerFactory tmf = TrustManagerFactory.getInstance(TrustManagerFactory
@@ -0,0 +1,224 @@
+/*
+ * Copyright 2016-2019 by floragunn GmbH - All rights reserved
+ *
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed here is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * This software is free of charge for non-commercial and academic use.
+ * For commercial use in a production environment you have to obtain a license
+ * from https://floragunn.com
+ *
+ */
+
+package com.floragunn.searchguard.compliance;
+
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.lucene.index.Term;
+import org.elasticsearch.Version;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.cluster.metadata.IndexMetaData;
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.lucene.uid.Versions;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.util.concurrent.ThreadContext;
+import org.elasticsearch.common.util.concurrent.ThreadContext.StoredContext;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.index.Index;
+import org.elasticsearch.index.IndexService;
+import org.elasticsearch.index.IndexSettings;
+import org.elasticsearch.index.VersionType;
+import org.elasticsearch.index.engine.Engine;
+import org.elasticsearch.index.get.GetResult;
+import org.elasticsearch.index.get.ShardGetService;
+import org.elasticsearch.index.mapper.MapperService;
+import org.elasticsearch.index.mapper.ParseContext;
+import org.elasticsearch.index.mapper.ParsedDocument;
+import org.elasticsearch.index.seqno.SequenceNumbers;
+import org.elasticsearch.index.shard.IndexShard;
+import org.elasticsearch.index.shard.ShardId;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.junit.Assert;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import com.floragunn.searchguard.auditlog.AuditLog;
+
+import com.floragunn.searchguard.compliance.ComplianceIndexingOperationListenerImpl.WriteSession;
+
+public class ComplianceIndexingOperationListenerImplTest {
+
+    private static final ShardId SHARD = new ShardId(new Index("index", "uuid"), 0);
+    private static final ShardId OTHER_SHARD = new ShardId(new Index("index", "uuid"), 1);
+
+    @Test
+    public void testSessionReuse() {
+        final ThreadContext threadContext = new ThreadContext(Settings.EMPTY);
+        final WriteSession session = WriteSession.get(threadContext);
+
+        Assert.assertNotNull(session);
+        Assert.assertSame(session, WriteSession.get(threadContext));
+        Assert.assertNull(session.previous(SHARD, "_doc", "1"));
+
+        session.indexed(SHARD, index("1", "{\"a\":1}"), new Engine.IndexResult(1, 1, 10, true));
+        GetResult previous = WriteSession.get(threadContext).previous(SHARD, "_doc", "1");
+        Assert.assertTrue(previous.isExists());
+        Assert.assertEquals("{\"a\":1}", previous.sourceAsString());
+        Assert.assertEquals(1, previous.getVersion());
+        Assert.assertEquals(10, previous.getSeqNo());
+
+        //the latest write wins
+        session.indexed(SHARD, index("1", "{\"a\":2}"), new Engine.IndexResult(2, 1, 11, false));
+        Assert.assertEquals("{\"a\":2}", session.previous(SHARD, "_doc", "1").sourceAsString());
+
+        session.deleted(SHARD, delete("1"), new Engine.DeleteResult(3, 1, 12, true));
+        previous = session.previous(SHARD, "_doc", "1");
+        Assert.assertFalse(previous.isExists());
+        Assert.assertEquals(3, previous.getVersion());
+
+        //documents are identified by shard, type and id
+        Assert.assertNull(session.previous(OTHER_SHARD, "_doc", "1"));
+        Assert.assertNull(session.previous(SHARD, "other", "1"));
+        Assert.assertNull(session.previous(SHARD, "_doc", "2"));
+
+        //the session ends with the context of the request
+        try (StoredContext ctx = threadContext.stashContext()) {
+            final WriteSession newSession = WriteSession.get(threadContext);
+            Assert.assertNotSame(session, newSession);
+            Assert.assertNull(newSession.previous(SHARD, "_doc", "1"));
+        }
+
+        Assert.assertSame(session, WriteSession.get(threadContext));
+    }
+
+    @Test
+    public void testMaxDocs() {
+        final WriteSession session = WriteSession.get(new ThreadContext(Settings.EMPTY));
+
+        for (int i = 0; i < WriteSession.MAX_DOCS; i++) {
+            session.indexed(SHARD, index(String.valueOf(i), "{}"), new Engine.IndexResult(1, 1, i, true));
+        }
+
+        session.indexed(SHARD, index("overflow", "{}"), new Engine.IndexResult(1, 1, WriteSession.MAX_DOCS, true));
+        session.deleted(SHARD, delete("overflow2"), new Engine.DeleteResult(1, 1, WriteSession.MAX_DOCS + 1, false));
+        Assert.assertNull(session.previous(SHARD, "_doc", "overflow"));
+        Assert.assertNull(session.previous(SHARD, "_doc", "overflow2"));
+
+        //documents of the session are still updated
+        session.indexed(SHARD, index("0", "{\"b\":1}"), new Engine.IndexResult(2, 1, WriteSession.MAX_DOCS + 2, false));
+        Assert.assertEquals("{\"b\":1}", session.previous(SHARD, "_doc", "0").sourceAsString());
+        Assert.assertNotNull(session.previous(SHARD, "_doc", String.valueOf(WriteSession.MAX_DOCS - 1)));
+    }
+
+    @Test
+    public void testOtherThread() throws Exception {
+        final ThreadContext threadContext = new ThreadContext(Settings.EMPTY);
+        final WriteSession session = WriteSession.get(threadContext);
+        session.indexed(SHARD, index("1", "{}"), new Engine.IndexResult(1, 1, 1, true));
+
+        final AtomicReference<Object> otherThreadSession = new AtomicReference<>("not run");
+        //the context (with the session) is passed on to another thread, like executors do
+        final Thread thread = new Thread(threadContext.preserveContext(() -> otherThreadSession.set(WriteSession.get(threadContext))));
+        thread.start();
+        thread.join();
+
+        Assert.assertNull(otherThreadSession.get());
+        Assert.assertSame(session, WriteSession.get(threadContext));
+    }
+
+    @Test
+    public void testPreIndexLookups() throws Exception {
+        final ThreadContext threadContext = new ThreadContext(Settings.EMPTY);
+        final IndexShard shard = Mockito.mock(IndexShard.class);
+        final ComplianceIndexingOperationListenerImpl listener = listener(Settings.EMPTY, threadContext, shard);
+
+        //a bulk with a create, three distinct ids and an id written before
+        write(listener, create("0"));
+        write(listener, index("1", "{}"));
+        write(listener, index("2", "{}"));
+        write(listener, index("3", "{}"));
+        write(listener, index("1", "{\"a\":1}"), false);
+        write(listener, index("2", "{\"a\":1}"), false);
+
+        //one realtime get per distinct id which is not known to the session
+        Mockito.verify(shard, Mockito.times(3)).getService();
+
+        //the next request has its own session
+        try (StoredContext ctx = threadContext.stashContext()) {
+            write(listener, index("1", "{}"));
+        }
+
+        Mockito.verify(shard, Mockito.times(4)).getService();
+    }
+
+    @Test
+    public void testBatchedLookupDisabled() throws Exception {
+        final IndexShard shard = Mockito.mock(IndexShard.class);
+        final ComplianceIndexingOperationListenerImpl listener = listener(Settings.builder()
+                .put("searchguard.compliance.history.write.batched_lookup.enabled", false).build(), new ThreadContext(Settings.EMPTY), shard);
+
+        write(listener, create("0"));
+        write(listener, index("1", "{}"));
+        write(listener, index("1", "{}"));
+
+        Mockito.verify(shard, Mockito.times(3)).getService();
+        Assert.assertTrue(ComplianceIndexingOperationListenerImpl.getSettings().contains(ComplianceIndexingOperationListenerImpl.BATCHED_LOOKUP_ENABLED));
+    }
+
+    private static ComplianceIndexingOperationListenerImpl listener(final Settings settings, final ThreadContext threadContext,
+            final IndexShard shard) {
+        final ComplianceConfig complianceConfig = Mockito.mock(ComplianceConfig.class);
+        Mockito.when(complianceConfig.isEnabled()).thenReturn(true);
+        Mockito.when(complianceConfig.logDiffsForWrite()).thenReturn(true);
+
+        final IndexSettings indexSettings = new IndexSettings(IndexMetaData.builder("index")
+                .settings(Settings.builder().put(IndexMetaData.SETTING_VERSION_CREATED, Version.CURRENT)).numberOfShards(1).numberOfReplicas(0)
+                .build(), settings);
+        final ThreadPool threadPool = Mockito.mock(ThreadPool.class);
+        Mockito.when(threadPool.getThreadContext()).thenReturn(threadContext);
+        final IndexService indexService = Mockito.mock(IndexService.class);
+        Mockito.when(indexService.getIndexSettings()).thenReturn(indexSettings);
+        Mockito.when(indexService.getThreadPool()).thenReturn(threadPool);
+        Mockito.when(indexService.getShardOrNull(0)).thenReturn(shard);
+
+        Mockito.when(shard.shardId()).thenReturn(SHARD);
+        Mockito.when(shard.isReadAllowed()).thenReturn(true);
+        //the realtime gets are counted by the calls of getService()
+        final ShardGetService getService = new ShardGetService(indexSettings, shard, Mockito.mock(MapperService.class));
+        Mockito.when(shard.getService()).thenReturn(getService);
+
+        final ComplianceIndexingOperationListenerImpl listener = new ComplianceIndexingOperationListenerImpl(complianceConfig,
+                Mockito.mock(AuditLog.class));
+        listener.setIs(indexService);
+        return listener;
+    }
+
+    private static void write(final ComplianceIndexingOperationListenerImpl listener, final Engine.Index index) {
+        write(listener, index, true);
+    }
+
+    private static void write(final ComplianceIndexingOperationListenerImpl listener, final Engine.Index index, final boolean created) {
+        listener.postIndex(SHARD, listener.preIndex(SHARD, index), new Engine.IndexResult(1, 1, 1, created));
+    }
+
+    private static Engine.Index create(final String id) {
+        final ParsedDocument doc = new ParsedDocument(null, null, id, "_doc", null, Collections.singletonList(new ParseContext.Document()),
+                new BytesArray("{}"), XContentType.JSON, null);
+        return new Engine.Index(new Term("_id", id), doc, SequenceNumbers.UNASSIGNED_SEQ_NO, 1, Versions.MATCH_DELETED, VersionType.INTERNAL,
+                Engine.Operation.Origin.PRIMARY, System.nanoTime(), IndexRequest.UNSET_AUTO_GENERATED_TIMESTAMP, false,
+                SequenceNumbers.UNASSIGNED_SEQ_NO, 0);
+    }
+
+    private static Engine.Index index(final String id, final String source) {
+        final ParsedDocument doc = new ParsedDocument(null, null, id, "_doc", null, Collections.singletonList(new ParseContext.Document()),
+                new BytesArray(source), XContentType.JSON, null);
+        return new Engine.Index(new Term("_id", id), 1, doc);
+    }
+
+    private static Engine.Delete delete(final String id) {
+        return new Engine.Delete("_doc", id, new Term("_id", id), 1);
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright 2016-2019 by floragunn GmbH - All rights reserved
+ *
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed here is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * This software is free of charge for non-commercial and academic use.
+ * For commercial use in a production environment you have to obtain a license
+ * from https://floragunn.com
+ *
+ */
+
+package com.floragunn.searchguard.compliance;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.util.concurrent.ThreadContext;
+import org.elasticsearch.index.Index;
+import org.elasticsearch.index.shard.ShardId;
+import org.elasticsearch.threadpool.Scheduler;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.junit.Assert;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.ArgumentMatchers;
+import org.mockito.Mockito;
+
+import com.floragunn.searchguard.auditlog.impl.AbstractAuditLog;
+
+public class DocumentReadAggregatorTest {
+
+    private static final ShardId SHARD = new ShardId(new Index("index", "uuid"), 0);
+
+    @Test
+    public void testMaxDocs() throws Exception {
+        final AbstractAuditLog auditLog = Mockito.mock(AbstractAuditLog.class);
+        final ThreadPool threadPool = threadPool();
+        final ThreadContext threadContext = new ThreadContext(Settings.EMPTY);
+
+        Assert.assertNull(DocumentReadAggregator.create(Settings.EMPTY, threadPool, threadContext, auditLog, null, SHARD));
+
+        final DocumentReadAggregator aggregator = DocumentReadAggregator.create(Settings.builder()
+                .put("searchguard.compliance.history.read.aggregation.enabled", true)
+                .put("searchguard.compliance.history.read.aggregation.max_docs", 2).build(), threadPool, threadContext, auditLog, null, SHARD);
+
+        aggregator.add("1", Collections.emptyMap());
+        Mockito.verifyZeroInteractions(auditLog);
+        aggregator.add("2", Collections.emptyMap());
+        Mockito.verify(auditLog).logDocumentsRead("index", SHARD, Arrays.asList("1", "2"), Arrays.asList(Collections.emptyMap(), Collections.emptyMap()), null);
+
+        aggregator.add("3", Collections.emptyMap());
+        aggregator.close();
+        Mockito.verify(auditLog).logDocumentsRead("index", SHARD, Arrays.asList("3"), Arrays.asList(Collections.emptyMap()), null);
+    }
+
+    @Test
+    public void testMaxAge() throws Exception {
+        final AbstractAuditLog auditLog = Mockito.mock(AbstractAuditLog.class);
+        final ThreadPool threadPool = threadPool();
+
+        final DocumentReadAggregator aggregator = DocumentReadAggregator.create(Settings.builder()
+                .put("searchguard.compliance.history.read.aggregation.enabled", true)
+                .put("searchguard.compliance.history.read.aggregation.max_age", "5s").build(), threadPool, new ThreadContext(Settings.EMPTY),
+                auditLog, null, SHARD);
+
+        aggregator.add("1", Collections.emptyMap());
+        aggregator.add("2", Collections.emptyMap());
+        final ArgumentCaptor<Runnable> flush = ArgumentCaptor.forClass(Runnable.class);
+        Mockito.verify(threadPool).schedule(flush.capture(), ArgumentMatchers.eq(TimeValue.timeValueSeconds(5)), ArgumentMatchers.eq(ThreadPool.Names.GENERIC));
+
+        //logged while the scroll is still open
+        flush.getValue().run();
+        Mockito.verify(auditLog).logDocumentsRead("index", SHARD, Arrays.asList("1", "2"), Arrays.asList(Collections.emptyMap(), Collections.emptyMap()), null);
+
+        //a flush of a batch which was logged already does not log the next one
+        aggregator.add("3", Collections.emptyMap());
+        flush.getValue().run();
+        aggregator.close();
+        Mockito.verify(auditLog).logDocumentsRead("index", SHARD, Arrays.asList("3"), Arrays.asList(Collections.emptyMap()), null);
+        Mockito.verify(threadPool, Mockito.times(2)).schedule(ArgumentMatchers.any(Runnable.class), ArgumentMatchers.any(TimeValue.class), ArgumentMatchers.anyString());
+    }
+
+    private static ThreadPool threadPool() {
+        final ThreadPool threadPool = Mockito.mock(ThreadPool.class);
+        Mockito.when(threadPool.schedule(ArgumentMatchers.any(Runnable.class), ArgumentMatchers.any(TimeValue.class), ArgumentMatchers.anyString()))
+                .thenReturn(Mockito.mock(Scheduler.ScheduledCancellable.class));
+        return threadPool;
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright 2016-2019 by floragunn GmbH - All rights reserved
+ *
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed here is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * This software is free of charge for non-commercial and academic use.
+ * For commercial use in a production environment you have to obtain a license
+ * from https://floragunn.com
+ *
+ */
+
+package com.floragunn.searchguard.compliance;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.github.wnameless.json.flattener.JsonFlattener;
+
+public class SourceFlattenerTest {
+
+    @Test
+    public void testSameAsJsonFlattener() throws Exception {
+        assertEquivalent("{}");
+        assertEquivalent("{\"a\":\"x\",\"b\":1,\"c\":-2.50,\"d\":true,\"e\":null,\"f\":1e3,\"g\":12345678901234567890}");
+        //nested objects and arrays
+        assertEquivalent("{\"a\":{\"b\":{\"c\":\"x\",\"d\":[1,2]}},\"e\":[{\"f\":\"y\"},{\"f\":\"z\",\"g\":[[1],[2,[3]]]}]}");
+        //empty objects and arrays are leaves
+        assertEquivalent("{\"a\":{},\"b\":[],\"c\":[{},[]],\"d\":{\"e\":{}}}");
+        //keys with dots, brackets and characters which are escaped
+        assertEquivalent("{\"a.b\":1,\"c\":{\"d.e\":{\"f\":2}},\"g[0]\":3,\"h]\":[4],\"i\\\"j\":5,\"k\\\\l\":6,\"m\\nn\\to\":7,\"p q\":8}");
+        assertEquivalent("{\"a\":[{\"b.c\":[{\"d\":\"\\u00e4\\u2603\"}]}]}");
+    }
+
+    @Test
+    public void testSelected() throws Exception {
+        final String source = "{\"a\":{\"b\":\"x\",\"c\":[1,{\"d\":2}]},\"e\":{}}";
+        final Map<String, Object> flattened = new LinkedHashMap<>();
+        final List<String> tested = new ArrayList<>();
+
+        SourceFlattener.flatten(source.getBytes(StandardCharsets.UTF_8), key -> tested.add(key) && key.startsWith("a.c"), flattened::put);
+
+        Assert.assertEquals("[a.b, a.c[0], a.c[1].d, e]", tested.toString());
+        Assert.assertEquals(JsonFlattener.flattenAsMap(source).get("a.c[0]"), flattened.get("a.c[0]"));
+        Assert.assertEquals("[a.c[0], a.c[1].d]", flattened.keySet().toString());
+    }
+
+    private static void assertEquivalent(final String source) throws Exception {
+        final Map<String, Object> flattened = new LinkedHashMap<>();
+        SourceFlattener.flatten(source.getBytes(StandardCharsets.UTF_8), key -> true, flattened::put);
+
+        final Map<String, Object> expected = JsonFlattener.flattenAsMap(source);
+        //same keys in the same order with the same values
+        Assert.assertEquals(source, new ArrayList<>(expected.keySet()), new ArrayList<>(flattened.keySet()));
+        Assert.assertEquals(source, expected, flattened);
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright 2016-2019 by floragunn GmbH - All rights reserved
+ *
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed here is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * This software is free of charge for non-commercial and academic use.
+ * For commercial use in a production environment you have to obtain a license
+ * from https://floragunn.com
+ *
+ */
+
+package com.floragunn.searchguard.configuration;
+
+import java.util.Collections;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field.Store;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.join.BitSetProducer;
+import org.apache.lucene.store.ByteBuffersDirectory;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.util.BitSet;
+import org.apache.lucene.util.FixedBitSet;
+import org.apache.lucene.util.SparseFixedBitSet;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.monitor.jvm.JvmInfo;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class DlsBitSetCacheTest {
+
+    @Test
+    public void testProducerIdentity() {
+        final DlsBitSetCache cache = new DlsBitSetCache(1024 * 1024, 1024);
+        final TermQuery query = new TermQuery(new Term("dept", "a"));
+        final FlsFieldMatcher fls = FlsFieldMatcher.compile(Collections.singleton("~secret"));
+
+        final BitSetProducer producer = cache.getBitSetProducer(query, fls, null, "index", false, null);
+        Assert.assertEquals(producer, cache.getBitSetProducer(new TermQuery(new Term("dept", "a")), fls, Collections.emptySet(), "index", false, null));
+        Assert.assertEquals(producer.hashCode(), cache.getBitSetProducer(query, fls, null, "index", false, null).hashCode());
+
+        Assert.assertNotEquals(producer, cache.getBitSetProducer(new TermQuery(new Term("dept", "b")), fls, null, "index", false, null));
+        Assert.assertNotEquals(producer, cache.getBitSetProducer(query, null, null, "index", false, null));
+        Assert.assertNotEquals(producer, cache.getBitSetProducer(query, FlsFieldMatcher.compile(Collections.singleton("dept")), null, "index", false, null));
+        //equal rules, compiled independently
+        Assert.assertEquals(producer, cache.getBitSetProducer(query, new FlsFieldMatcher(Collections.singleton("~secret")), null, "index", false, null));
+        //masked fields hide terms while the bitsets are computed
+        Assert.assertNotEquals(producer, cache.getBitSetProducer(query, fls, Collections.singleton("dept"), "index", false, null));
+        Assert.assertEquals(cache.getBitSetProducer(query, fls, Collections.singleton("dept"), "index", false, null),
+                cache.getBitSetProducer(query, fls, Collections.singleton("dept"), "index", false, null));
+    }
+
+    @Test
+    public void testDensityAdaptive() throws Exception {
+        final DlsBitSetCache cache = new DlsBitSetCache(10 * 1024 * 1024, 1024);
+
+        try (Directory directory = new ByteBuffersDirectory()) {
+            try (DirectoryReader reader = createReader(directory)) {
+                final LeafReaderContext context = reader.leaves().get(0);
+
+                final BitSet dense = cache.getBitSetProducer(new TermQuery(new Term("dept", "even")), null, null, "index", false, null)
+                        .getBitSet(context);
+                Assert.assertTrue(dense instanceof FixedBitSet);
+                Assert.assertEquals(1000, dense.cardinality());
+
+                final BitSetProducer sparseProducer = cache.getBitSetProducer(new TermQuery(new Term("id", "7")), null, null, "index", false, null);
+                final BitSet sparse = sparseProducer.getBitSet(context);
+                Assert.assertTrue(sparse instanceof SparseFixedBitSet);
+                Assert.assertEquals(1, sparse.cardinality());
+                Assert.assertSame(sparse, sparseProducer.getBitSet(context));
+
+                Assert.assertNull(cache.getBitSetProducer(new TermQuery(new Term("id", "x")), null, null, "index", false, null).getBitSet(context));
+
+                Assert.assertEquals(1, cache.denseCount());
+                Assert.assertEquals(1, cache.sparseCount());
+                Assert.assertTrue(cache.ramBytesUsed("index") > dense.ramBytesUsed());
+                Assert.assertEquals(3, cache.ramBytesUsedPerQuery("index").size());
+            }
+
+            //removed with the segment core
+            Assert.assertEquals(0, cache.ramBytesUsed());
+            Assert.assertEquals(0, cache.ramBytesUsed("index"));
+        }
+    }
+
+    @Test
+    public void testMaxSizeSettings() throws Exception {
+        Assert.assertEquals(JvmInfo.jvmInfo().getMem().getHeapMax().getBytes() / 10, new DlsBitSetCache(Settings.EMPTY).maxBytes(), 1);
+
+        final DlsBitSetCache cache = new DlsBitSetCache(Settings.builder().put("searchguard.dls.bitset_cache.max_size", "1mb")
+                .put("searchguard.dls.bitset_cache.max_user_specific_size", "0b").build());
+        Assert.assertEquals(1024 * 1024, cache.maxBytes());
+        Assert.assertEquals(0, cache.maxUserSpecificBytes());
+
+        try (Directory directory = new ByteBuffersDirectory(); DirectoryReader reader = createReader(directory)) {
+            final LeafReaderContext context = reader.leaves().get(0);
+
+            final BitSetProducer shared = cache.getBitSetProducer(new TermQuery(new Term("dept", "even")), null, null, "index", false, null);
+            Assert.assertSame(shared.getBitSet(context), shared.getBitSet(context));
+
+            //no budget for user specific bitsets
+            final BitSetProducer userSpecific = cache.getBitSetProducer(new TermQuery(new Term("dept", "odd")), null, null, "index", true, null);
+            Assert.assertNotSame(userSpecific.getBitSet(context), userSpecific.getBitSet(context));
+            Assert.assertEquals(2, cache.userSpecificStats().missCount());
+        }
+    }
+
+    //one segment with 2000 docs, half of them in dept even
+    private static DirectoryReader createReader(final Directory directory) throws Exception {
+        return TestIndexReaders.createReader(directory, writer -> {
+            for (int i = 0; i < 2000; i++) {
+                final Document doc = new Document();
+                doc.add(new StringField("dept", i % 2 == 0 ? "even" : "odd", Store.NO));
+                doc.add(new StringField("id", String.valueOf(i), Store.NO));
+                writer.addDocument(doc);
+            }
+        });
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright 2016-2019 by floragunn GmbH - All rights reserved
+ *
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed here is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * This software is free of charge for non-commercial and academic use.
+ * For commercial use in a production environment you have to obtain a license
+ * from https://floragunn.com
+ *
+ */
+
+package com.floragunn.searchguard.configuration;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field.Store;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.search.join.BitSetProducer;
+import org.apache.lucene.store.ByteBuffersDirectory;
+import org.apache.lucene.store.Directory;
+import org.elasticsearch.Version;
+import org.elasticsearch.cluster.metadata.IndexMetaData;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.util.concurrent.EsExecutors;
+import org.elasticsearch.common.util.concurrent.ThreadContext;
+import org.elasticsearch.index.Index;
+import org.elasticsearch.index.IndexService;
+import org.elasticsearch.index.IndexSettings;
+import org.elasticsearch.index.engine.Engine;
+import org.elasticsearch.index.refresh.RefreshStats;
+import org.elasticsearch.index.shard.IndexShard;
+import org.elasticsearch.index.shard.ShardId;
+import org.elasticsearch.index.translog.Translog;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.junit.Assert;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.ArgumentMatchers;
+import org.mockito.Mockito;
+
+public class DlsBitSetWarmerTest {
+
+    private static final ShardId SHARD_ID = new ShardId(new Index("index", "uuid"), 0);
+
+    @Test
+    public void testWarmsNewSegments() throws Exception {
+        final AtomicInteger loads = new AtomicInteger();
+        final BitSetProducer producer = context -> {
+            loads.incrementAndGet();
+            return null;
+        };
+        final DlsBitSetWarmer warmer = new DlsBitSetWarmer(Settings.EMPTY, createIndexService(), new ThreadContext(Settings.EMPTY), null, null, null);
+
+        try (Directory directory = new ByteBuffersDirectory()) {
+            DirectoryReader reader = createReader(directory);
+
+            //the segment is new for the producer of the current search, too
+            warmer.onWrap(reader, producer, SHARD_ID);
+            Assert.assertEquals(1, loads.get());
+            warmer.onWrap(reader, producer, SHARD_ID);
+            Assert.assertEquals(1, loads.get());
+
+            //noticed by unrestricted searches, e.g. the one acquired after a refresh
+            addSegment(directory);
+            final DirectoryReader newReader = DirectoryReader.openIfChanged(reader);
+            reader.close();
+            reader = newReader;
+            warmer.onWrap(reader, null, SHARD_ID);
+            Assert.assertEquals(2, loads.get());
+            Assert.assertEquals(2, warmer.warmedCount());
+            Assert.assertEquals(0, warmer.skippedCount());
+            reader.close();
+        }
+    }
+
+    @Test
+    public void testSettings() throws Exception {
+        final IndexService indexService = createIndexService();
+        final AtomicInteger loads = new AtomicInteger();
+
+        try (Directory directory = new ByteBuffersDirectory(); DirectoryReader reader = createReader(directory)) {
+            DlsBitSetWarmer warmer = new DlsBitSetWarmer(Settings.builder().put("searchguard.dls.warmer.enabled", false).build(), indexService,
+                    new ThreadContext(Settings.EMPTY), null, null, null);
+            warmer.onWrap(reader, context -> {
+                loads.incrementAndGet();
+                return null;
+            }, SHARD_ID);
+            Assert.assertEquals(0, loads.get());
+            Assert.assertEquals(0, warmer.hotQuerySetCount());
+
+            warmer = new DlsBitSetWarmer(Settings.builder().put("searchguard.dls.warmer.max_query_sets", 1).build(), indexService,
+                    new ThreadContext(Settings.EMPTY), null, null, null);
+            warmer.onWrap(reader, context -> null, SHARD_ID);
+            warmer.onWrap(reader, context -> null, SHARD_ID);
+            Assert.assertEquals(1, warmer.hotQuerySetCount());
+        }
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testRefreshListener() throws Exception {
+        final IndexService indexService = createIndexService();
+        final IndexShard shard = Mockito.mock(IndexShard.class);
+        Mockito.when(indexService.getShardOrNull(0)).thenReturn(shard);
+        Mockito.when(shard.refreshStats()).thenReturn(new RefreshStats(0, 0, 0));
+        final Engine.IndexResult result = Mockito.mock(Engine.IndexResult.class);
+        Mockito.when(result.getTranslogLocation()).thenReturn(new Translog.Location(1, 1, 1));
+
+        final DlsBitSetWarmer warmer = new DlsBitSetWarmer(Settings.EMPTY, indexService, new ThreadContext(Settings.EMPTY), null, null, null);
+
+        //nothing to warm yet
+        warmer.postIndex(SHARD_ID, null, result);
+        Mockito.verify(shard, Mockito.never()).addRefreshListener(ArgumentMatchers.any(), ArgumentMatchers.any());
+
+        try (Directory directory = new ByteBuffersDirectory(); DirectoryReader reader = createReader(directory)) {
+            warmer.onWrap(reader, context -> null, SHARD_ID);
+        }
+
+        //one listener per shard at a time
+        warmer.postIndex(SHARD_ID, null, result);
+        warmer.postIndex(SHARD_ID, null, result);
+        final ArgumentCaptor<Consumer<Boolean>> listener = ArgumentCaptor.forClass(Consumer.class);
+        Mockito.verify(shard).addRefreshListener(ArgumentMatchers.eq(new Translog.Location(1, 1, 1)), listener.capture());
+
+        listener.getValue().accept(Boolean.FALSE);
+        Mockito.verify(shard).acquireSearcher("dls_warmer");
+
+        warmer.postIndex(SHARD_ID, null, result);
+        Mockito.verify(shard, Mockito.times(2)).addRefreshListener(ArgumentMatchers.any(), ArgumentMatchers.any());
+
+        //the refresh listeners of the shard are left to wait_for requests
+        listener.getValue().accept(Boolean.FALSE);
+        Mockito.when(shard.refreshStats()).thenReturn(new RefreshStats(0, 0, 500));
+        warmer.postIndex(SHARD_ID, null, result);
+        Mockito.verify(shard, Mockito.times(2)).addRefreshListener(ArgumentMatchers.any(), ArgumentMatchers.any());
+    }
+
+    private static IndexService createIndexService() {
+        final IndexService indexService = Mockito.mock(IndexService.class);
+        final ThreadPool threadPool = Mockito.mock(ThreadPool.class);
+        Mockito.when(threadPool.executor(ThreadPool.Names.WARMER)).thenReturn(EsExecutors.newDirectExecutorService());
+        Mockito.when(indexService.getThreadPool()).thenReturn(threadPool);
+        Mockito.when(indexService.getIndexSettings()).thenReturn(new IndexSettings(IndexMetaData.builder("index")
+                .settings(Settings.builder().put(IndexMetaData.SETTING_VERSION_CREATED, Version.CURRENT)).numberOfShards(1).numberOfReplicas(0)
+                .build(), Settings.EMPTY));
+        return indexService;
+    }
+
+    private static DirectoryReader createReader(final Directory directory) throws Exception {
+        return TestIndexReaders.createReader(directory, writer -> writer.addDocument(document("0")));
+    }
+
+    private static void addSegment(final Directory directory) throws Exception {
+        try (IndexWriter writer = new IndexWriter(directory, new IndexWriterConfig())) {
+            writer.addDocument(document("1"));
+        }
+    }
+
+    private static Document document(final String id) {
+        final Document doc = new Document();
+        doc.add(new StringField("id", id, Store.YES));
+        return doc;
+    }
+}
@@ -0,0 +1,225 @@
+/*
+ * Copyright 2016-2019 by floragunn GmbH - All rights reserved
+ *
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed here is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * This software is free of charge for non-commercial and academic use.
+ * For commercial use in a production environment you have to obtain a license
+ * from https://floragunn.com
+ *
+ */
+
+package com.floragunn.searchguard.configuration;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field.Store;
+import org.apache.lucene.document.SortedSetDocValuesField;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.ConstantScoreQuery;
+import org.apache.lucene.search.TermInSetQuery;
+import org.apache.lucene.store.ByteBuffersDirectory;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.FixedBitSet;
+import org.elasticsearch.index.mapper.KeywordFieldMapper;
+import org.elasticsearch.index.mapper.MapperService;
+import org.junit.Assert;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+public class DlsDocValuesFilterTest {
+
+    private static final int NUM_DOCS = 400;
+
+    @Test
+    public void testForwardAccess() throws Exception {
+        try (Directory directory = new ByteBuffersDirectory(); DirectoryReader reader = createReader(directory)) {
+            final LeafReader leaf = reader.leaves().get(0).reader();
+            final DlsReaderViews.DlsLiveDocs liveDocs = createFilter("v3", "v7").getLiveDocs(leaf, leaf, leaf.getLiveDocs());
+            final boolean[] expected = expected(leaf, "v3", "v7");
+
+            Assert.assertEquals(count(expected), liveDocs.getNumDocs());
+
+            final Bits bits = liveDocs.getLiveDocs();
+            for (int i = 0; i < NUM_DOCS; i++) {
+                Assert.assertEquals("doc " + i, expected[i], bits.get(i));
+                Assert.assertEquals("doc " + i, expected[i], bits.get(i));
+            }
+
+            //the bits stay lazy as long as they are accessed forward only, the next search gets new ones from the first doc on
+            Assert.assertFalse(bits instanceof FixedBitSet);
+            final Bits nextBits = liveDocs.getLiveDocs();
+            Assert.assertNotSame(bits, nextBits);
+            Assert.assertFalse(nextBits instanceof FixedBitSet);
+            for (int i = 0; i < NUM_DOCS; i++) {
+                Assert.assertEquals("doc " + i, expected[i], nextBits.get(i));
+            }
+        }
+    }
+
+    @Test
+    public void testNonMonotonicAccess() throws Exception {
+        try (Directory directory = new ByteBuffersDirectory(); DirectoryReader reader = createReader(directory)) {
+            final LeafReader leaf = reader.leaves().get(0).reader();
+            final DlsReaderViews.DlsLiveDocs liveDocs = createFilter("v3").getLiveDocs(leaf, leaf, leaf.getLiveDocs());
+            final boolean[] expected = expected(leaf, "v3");
+            final Bits bits = liveDocs.getLiveDocs();
+
+            for (int i = NUM_DOCS - 1; i >= 0; i--) {
+                Assert.assertEquals("doc " + i, expected[i], bits.get(i));
+            }
+
+            final Random random = new Random(42);
+            for (int i = 0; i < 1000; i++) {
+                final int doc = random.nextInt(NUM_DOCS);
+                Assert.assertEquals("doc " + doc, expected[doc], bits.get(doc));
+            }
+
+            //backward access built the bitset, which is used from then on
+            final Bits fixedBits = liveDocs.getLiveDocs();
+            Assert.assertTrue(fixedBits instanceof FixedBitSet);
+            Assert.assertSame(fixedBits, liveDocs.getLiveDocs());
+            Assert.assertEquals(count(expected), ((FixedBitSet) fixedBits).cardinality());
+        }
+    }
+
+    @Test
+    public void testRamBytesUsed() throws Exception {
+        final DlsReaderViews views = new DlsReaderViews(10, Long.MAX_VALUE);
+
+        try (Directory directory = new ByteBuffersDirectory(); DirectoryReader reader = createReader(directory)) {
+            final LeafReader leaf = reader.leaves().get(0).reader();
+            final DlsReaderViews.View view = views.get(leaf, context -> null);
+            final DlsDocValuesFilter filter = createFilter("v3");
+            final DlsReaderViews.DlsLiveDocs liveDocs = view.getLiveDocs(() -> filter.getLiveDocs(leaf, leaf, leaf.getLiveDocs()), () -> null,
+                    leaf.getLiveDocs(), leaf.maxDoc());
+            final long lazyBytes = views.ramBytesUsed();
+
+            liveDocs.getLiveDocs().get(NUM_DOCS - 1);
+            Assert.assertFalse(liveDocs.getLiveDocs() instanceof FixedBitSet);
+            Assert.assertEquals(lazyBytes, views.ramBytesUsed());
+
+            //the bitset built on backward access is accounted, too
+            final Bits bits = liveDocs.getLiveDocs();
+            bits.get(2);
+            bits.get(1);
+            final FixedBitSet fixedBits = (FixedBitSet) liveDocs.getLiveDocs();
+            Assert.assertEquals(lazyBytes + fixedBits.ramBytesUsed(), views.ramBytesUsed());
+        }
+
+        Assert.assertEquals(0, views.ramBytesUsed());
+    }
+
+    @Test
+    public void testBitsPerThread() throws Exception {
+        try (Directory directory = new ByteBuffersDirectory(); DirectoryReader reader = createReader(directory)) {
+            final LeafReader leaf = reader.leaves().get(0).reader();
+            final DlsReaderViews.DlsLiveDocs liveDocs = createFilter("v3").getLiveDocs(leaf, leaf, leaf.getLiveDocs());
+            final boolean[] expected = expected(leaf, "v3");
+            final Bits bits = liveDocs.getLiveDocs();
+            Assert.assertTrue(bits.get(3));
+
+            final AtomicReference<Bits> otherBits = new AtomicReference<>();
+            final Thread thread = new Thread(() -> {
+                final Bits threadBits = liveDocs.getLiveDocs();
+                otherBits.set(threadBits);
+                for (int i = 0; i < NUM_DOCS; i++) {
+                    Assert.assertEquals("doc " + i, expected[i], threadBits.get(i));
+                }
+            });
+            thread.start();
+            thread.join();
+
+            Assert.assertNotNull(otherBits.get());
+            Assert.assertNotSame(bits, otherBits.get());
+            //the other thread did not move the doc values of this one
+            for (int i = 4; i < NUM_DOCS; i++) {
+                Assert.assertEquals("doc " + i, expected[i], bits.get(i));
+            }
+            Assert.assertFalse(liveDocs.getLiveDocs() instanceof FixedBitSet);
+        }
+    }
+
+    @Test
+    public void testNotSelective() throws Exception {
+        try (Directory directory = new ByteBuffersDirectory(); DirectoryReader reader = createReader(directory)) {
+            final LeafReader leaf = reader.leaves().get(0).reader();
+            final DlsDocValuesFilter filter = createFilter("v1", "v2", "v3", "v4", "v5", "v6", "v7", "v8");
+            Assert.assertFalse(filter.isSelective(leaf));
+            Assert.assertNull(filter.getLiveDocs(leaf, leaf, leaf.getLiveDocs()));
+
+            final DlsReaderViews.DlsLiveDocs noMatches = createFilter("unknown").getLiveDocs(leaf, leaf, leaf.getLiveDocs());
+            Assert.assertEquals(0, noMatches.getNumDocs());
+            Assert.assertFalse(noMatches.getLiveDocs().get(0));
+        }
+    }
+
+    private static DlsDocValuesFilter createFilter(final String... values) {
+        final KeywordFieldMapper.KeywordFieldType fieldType = new KeywordFieldMapper.KeywordFieldType();
+        fieldType.setName("dept");
+        fieldType.setHasDocValues(true);
+
+        final MapperService mapperService = Mockito.mock(MapperService.class);
+        Mockito.when(mapperService.fullName("dept")).thenReturn(fieldType);
+
+        final List<BytesRef> terms = new ArrayList<>();
+        for (final String value : values) {
+            terms.add(new BytesRef(value));
+        }
+
+        final DlsDocValuesFilter filter = DlsDocValuesFilter.of(new ConstantScoreQuery(new TermInSetQuery("dept", terms)), mapperService);
+        Assert.assertNotNull(filter);
+        return filter;
+    }
+
+    private static boolean[] expected(final LeafReader leaf, final String... values) throws Exception {
+        final boolean[] expected = new boolean[NUM_DOCS];
+        final List<String> valueList = new ArrayList<>();
+        Collections.addAll(valueList, values);
+
+        for (int i = 0; i < NUM_DOCS; i++) {
+            expected[i] = (leaf.getLiveDocs() == null || leaf.getLiveDocs().get(i)) && valueList.contains(leaf.document(i).get("dept"));
+        }
+
+        return expected;
+    }
+
+    private static int count(final boolean[] bits) {
+        int count = 0;
+        for (final boolean bit : bits) {
+            count += bit ? 1 : 0;
+        }
+        return count;
+    }
+
+    //one segment, dept is one of v0 to v39, every 13th doc is deleted
+    private static DirectoryReader createReader(final Directory directory) throws Exception {
+        return TestIndexReaders.createReader(directory, writer -> {
+            for (int i = 0; i < NUM_DOCS; i++) {
+                final Document doc = new Document();
+                doc.add(new StringField("id", String.valueOf(i), Store.NO));
+                doc.add(new StringField("dept", "v" + (i % 40), Store.YES));
+                doc.add(new SortedSetDocValuesField("dept", new BytesRef("v" + (i % 40))));
+                writer.addDocument(doc);
+            }
+            writer.commit();
+
+            for (int i = 0; i < NUM_DOCS; i += 13) {
+                writer.deleteDocuments(new Term("id", String.valueOf(i)));
+            }
+        });
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright 2016-2019 by floragunn GmbH - All rights reserved
+ *
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed here is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * This software is free of charge for non-commercial and academic use.
+ * For commercial use in a production environment you have to obtain a license
+ * from https://floragunn.com
+ *
+ */
+
+package com.floragunn.searchguard.configuration;
+
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field.Store;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.store.ByteBuffersDirectory;
+import org.apache.lucene.store.Directory;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class DlsFlsLeafCacheTest {
+
+    @Test
+    public void testCachedPerCoreAndRules() throws Exception {
+        final DlsFlsLeafCache cache = new DlsFlsLeafCache(100);
+        final AtomicInteger loads = new AtomicInteger();
+        final DlsFlsLeafCache.Fingerprint fingerprint1 = new DlsFlsLeafCache.Fingerprint(FlsFieldMatcher.compile(Collections.singleton("a")), null, 1);
+        final DlsFlsLeafCache.Fingerprint fingerprint2 = new DlsFlsLeafCache.Fingerprint(FlsFieldMatcher.compile(Collections.singleton("~a")),
+                Collections.singleton("b"), 1);
+
+        try (Directory directory = new ByteBuffersDirectory(); DirectoryReader reader = createReader(directory)) {
+            Assert.assertEquals(2, reader.leaves().size());
+            final LeafReader leaf1 = reader.leaves().get(0).reader();
+            final LeafReader leaf2 = reader.leaves().get(1).reader();
+
+            final DlsFlsLeafCache.Artifacts artifacts = load(cache, leaf1, fingerprint1, loads);
+            Assert.assertSame(artifacts, load(cache, leaf1, fingerprint1, loads));
+            Assert.assertSame(artifacts, load(cache, leaf1, new DlsFlsLeafCache.Fingerprint(FlsFieldMatcher.compile(Collections.singleton("a")), null, 1), loads));
+            Assert.assertEquals(1, loads.get());
+
+            Assert.assertNotSame(artifacts, load(cache, leaf1, fingerprint2, loads));
+            Assert.assertNotSame(artifacts, load(cache, leaf2, fingerprint1, loads));
+            //the mapping was updated
+            Assert.assertNotSame(artifacts, load(cache, leaf1,
+                    new DlsFlsLeafCache.Fingerprint(FlsFieldMatcher.compile(Collections.singleton("a")), null, 2), loads));
+            Assert.assertEquals(4, loads.get());
+            Assert.assertEquals(4, cache.size());
+        }
+
+        //all entries are evicted when their cores are closed
+        Assert.assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testEvictionOnCoreClose() throws Exception {
+        final DlsFlsLeafCache cache = new DlsFlsLeafCache(100);
+        final AtomicInteger loads = new AtomicInteger();
+        final DlsFlsLeafCache.Fingerprint fingerprint = new DlsFlsLeafCache.Fingerprint(FlsFieldMatcher.compile(Collections.singleton("a")), null, 1);
+
+        try (Directory directory1 = new ByteBuffersDirectory(); Directory directory2 = new ByteBuffersDirectory()) {
+            final DirectoryReader reader1 = createReader(directory1);
+            final DirectoryReader reader2 = createReader(directory2);
+
+            for (DirectoryReader reader : new DirectoryReader[] { reader1, reader2 }) {
+                load(cache, reader.leaves().get(0).reader(), fingerprint, loads);
+                load(cache, reader.leaves().get(1).reader(), fingerprint, loads);
+            }
+
+            Assert.assertEquals(4, cache.size());
+            reader1.close();
+            Assert.assertEquals(2, cache.size());
+            load(cache, reader2.leaves().get(0).reader(), fingerprint, loads);
+            Assert.assertEquals(4, loads.get());
+            reader2.close();
+            Assert.assertEquals(0, cache.size());
+        }
+    }
+
+    @Test
+    public void testMaxSize() throws Exception {
+        final DlsFlsLeafCache cache = new DlsFlsLeafCache(2);
+        final AtomicInteger loads = new AtomicInteger();
+
+        try (Directory directory = new ByteBuffersDirectory(); DirectoryReader reader = createReader(directory)) {
+            final LeafReader leaf = reader.leaves().get(0).reader();
+
+            for (int i = 0; i < 10; i++) {
+                load(cache, leaf, new DlsFlsLeafCache.Fingerprint(FlsFieldMatcher.compile(Collections.singleton("f" + i)), null, 1), loads);
+            }
+
+            Assert.assertEquals(10, loads.get());
+            Assert.assertEquals(2, cache.size());
+        }
+
+        Assert.assertEquals(0, cache.size());
+    }
+
+    private static DlsFlsLeafCache.Artifacts load(final DlsFlsLeafCache cache, final LeafReader leaf, final DlsFlsLeafCache.Fingerprint fingerprint,
+            final AtomicInteger loads) {
+        return cache.get(leaf, fingerprint, () -> {
+            loads.incrementAndGet();
+            return new DlsFlsLeafCache.Artifacts(leaf.getFieldInfos(), null, null);
+        });
+    }
+
+    //two segments
+    private static DirectoryReader createReader(final Directory directory) throws Exception {
+        return TestIndexReaders.createReader(directory, writer -> {
+            for (int i = 0; i < 2; i++) {
+                final Document doc = new Document();
+                doc.add(new StringField("a", "value" + i, Store.YES));
+                doc.add(new StringField("b", "value" + i, Store.YES));
+                writer.addDocument(doc);
+                writer.commit();
+            }
+        });
+    }
+}
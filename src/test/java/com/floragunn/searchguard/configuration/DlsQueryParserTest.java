@@ -0,0 +1,180 @@
+/*
+ * Copyright 2016-2019 by floragunn GmbH - All rights reserved
+ *
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed here is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * This software is free of charge for non-commercial and academic use.
+ * For commercial use in a production environment you have to obtain a license
+ * from https://floragunn.com
+ *
+ */
+
+package com.floragunn.searchguard.configuration;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field.Store;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause.Occur;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.ConstantScoreQuery;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.MatchAllDocsQuery;
+import org.apache.lucene.search.MatchNoDocsQuery;
+import org.apache.lucene.search.PrefixQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.TermInSetQuery;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.store.ByteBuffersDirectory;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.util.BytesRef;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class DlsQueryParserTest {
+
+    private static Directory directory;
+    private static DirectoryReader reader;
+    private static IndexSearcher searcher;
+
+    @BeforeClass
+    public static void createIndex() throws Exception {
+        directory = new ByteBuffersDirectory();
+        reader = TestIndexReaders.createReader(directory, writer -> {
+            for (String dept : new String[] { "a", "b", "c" }) {
+                for (String level : new String[] { "1", "2" }) {
+                    for (String tag : new String[] { "x1", "y1" }) {
+                        final Document doc = new Document();
+                        doc.add(new StringField("dept", dept, Store.NO));
+                        doc.add(new StringField("level", level, Store.NO));
+                        doc.add(new StringField("tag", tag, Store.NO));
+                        writer.addDocument(doc);
+                    }
+                }
+            }
+        });
+        searcher = new IndexSearcher(reader);
+    }
+
+    @AfterClass
+    public static void closeIndex() throws Exception {
+        reader.close();
+        directory.close();
+    }
+
+    @Test
+    public void testEquivalentQueriesAreCanonicalizedTheSame() throws Exception {
+        assertEquivalent(Arrays.asList(term("dept", "a"), term("dept", "b")), Arrays.asList(term("dept", "b"), term("dept", "a")));
+        assertEquivalent(Arrays.asList(term("dept", "a"), term("dept", "b")), Arrays.asList(terms("dept", "a", "b")));
+        assertEquivalent(Arrays.asList(terms("dept", "a", "b"), term("dept", "c")), Arrays.asList(terms("dept", "c", "a"), term("dept", "b")));
+
+        assertEquivalent(Arrays.asList(term("dept", "a")), Arrays.asList(term("dept", "a"), term("dept", "a")));
+        assertEquivalent(Arrays.asList(term("dept", "a")), Arrays.asList(new ConstantScoreQuery(term("dept", "a"))));
+        assertEquivalent(Arrays.asList(term("dept", "a")), Arrays.asList(terms("dept", "a")));
+        assertEquivalent(Arrays.asList(term("dept", "a")), Arrays.asList(term("dept", "a"), new MatchNoDocsQuery(), terms("dept")));
+
+        assertEquivalent(Arrays.asList(or(term("dept", "a"), term("level", "1")), new PrefixQuery(new Term("tag", "x"))),
+                Arrays.asList(new PrefixQuery(new Term("tag", "x")), term("level", "1"), new ConstantScoreQuery(term("dept", "a"))));
+        assertEquivalent(Arrays.asList(or(term("dept", "a"), or(term("dept", "b"), term("level", "2")))),
+                Arrays.asList(term("level", "2"), terms("dept", "a", "b")));
+
+        assertEquivalent(Arrays.asList(new MatchAllDocsQuery(), term("dept", "a")), Arrays.asList(new MatchAllDocsQuery()));
+        assertEquivalent(Arrays.asList(new MatchNoDocsQuery()), Arrays.asList(terms("dept"), new MatchNoDocsQuery("other reason")));
+    }
+
+    @Test
+    public void testDifferentQueriesAreNotCanonicalizedTheSame() throws Exception {
+        assertDifferent(Arrays.asList(term("dept", "a")), Arrays.asList(term("level", "a")));
+        assertDifferent(Arrays.asList(term("dept", "a"), term("dept", "b")), Arrays.asList(term("dept", "a")));
+        assertDifferent(Arrays.asList(terms("dept", "a", "b")), Arrays.asList(terms("level", "a", "b")));
+        assertDifferent(Arrays.asList(term("dept", "a"), term("level", "1")), Arrays.asList(term("dept", "a")));
+        assertDifferent(Arrays.asList(term("dept", "a"), term("level", "1")), Arrays.asList(terms("dept", "a", "1")));
+
+        //conjunctions, negations and minimum should match are not disjunctions
+        assertDifferent(Arrays.asList(and(term("dept", "a"), term("level", "1"))), Arrays.asList(term("dept", "a"), term("level", "1")));
+        assertDifferent(Arrays.asList(not(term("dept", "a"))), Arrays.asList(term("dept", "a")));
+
+        final BooleanQuery.Builder twoOfThree = new BooleanQuery.Builder();
+        twoOfThree.setMinimumNumberShouldMatch(2);
+        twoOfThree.add(term("dept", "a"), Occur.SHOULD);
+        twoOfThree.add(term("level", "1"), Occur.SHOULD);
+        twoOfThree.add(term("tag", "x1"), Occur.SHOULD);
+        assertDifferent(Arrays.asList(twoOfThree.build()), Arrays.asList(term("dept", "a"), term("level", "1"), term("tag", "x1")));
+
+        assertDifferent(Arrays.asList(new MatchAllDocsQuery()), Arrays.asList(new MatchNoDocsQuery()));
+        assertDifferent(Arrays.asList(new PrefixQuery(new Term("tag", "x"))), Arrays.asList(new PrefixQuery(new Term("tag", "y"))));
+    }
+
+    private static void assertEquivalent(final List<Query> queries1, final List<Query> queries2) throws Exception {
+        final Query canonical1 = DlsQueryParser.canonicalize(queries1);
+        final Query canonical2 = DlsQueryParser.canonicalize(queries2);
+
+        Assert.assertEquals(canonical1, canonical2);
+        Assert.assertEquals(canonical1.hashCode(), canonical2.hashCode());
+        Assert.assertEquals(docs(disjunction(queries1)), docs(canonical1));
+        Assert.assertEquals(docs(disjunction(queries2)), docs(canonical2));
+    }
+
+    private static void assertDifferent(final List<Query> queries1, final List<Query> queries2) throws Exception {
+        final Query canonical1 = DlsQueryParser.canonicalize(queries1);
+        final Query canonical2 = DlsQueryParser.canonicalize(queries2);
+
+        //the test data must tell them apart
+        Assert.assertNotEquals(docs(disjunction(queries1)), docs(disjunction(queries2)));
+        Assert.assertNotEquals(canonical1, canonical2);
+        Assert.assertEquals(docs(disjunction(queries1)), docs(canonical1));
+        Assert.assertEquals(docs(disjunction(queries2)), docs(canonical2));
+    }
+
+    //the dls queries of several roles before they were canonicalized
+    private static Query disjunction(final List<Query> queries) {
+        final BooleanQuery.Builder builder = new BooleanQuery.Builder();
+        builder.setMinimumNumberShouldMatch(1);
+        queries.forEach(q -> builder.add(q, Occur.SHOULD));
+        return builder.build();
+    }
+
+    private static Set<Integer> docs(final Query query) throws Exception {
+        final Set<Integer> docs = new HashSet<>();
+        for (final ScoreDoc scoreDoc : searcher.search(query, reader.maxDoc() + 1).scoreDocs) {
+            docs.add(scoreDoc.doc);
+        }
+        return docs;
+    }
+
+    private static Query term(final String field, final String value) {
+        return new TermQuery(new Term(field, value));
+    }
+
+    private static Query terms(final String field, final String... values) {
+        return new TermInSetQuery(field, Arrays.stream(values).map(BytesRef::new).toArray(BytesRef[]::new));
+    }
+
+    private static Query or(final Query... queries) {
+        final BooleanQuery.Builder builder = new BooleanQuery.Builder();
+        Arrays.stream(queries).forEach(q -> builder.add(q, Occur.SHOULD));
+        return builder.build();
+    }
+
+    private static Query and(final Query... queries) {
+        final BooleanQuery.Builder builder = new BooleanQuery.Builder();
+        Arrays.stream(queries).forEach(q -> builder.add(q, Occur.FILTER));
+        return builder.build();
+    }
+
+    private static Query not(final Query query) {
+        return new BooleanQuery.Builder().add(new MatchAllDocsQuery(), Occur.FILTER).add(query, Occur.MUST_NOT).build();
+    }
+}
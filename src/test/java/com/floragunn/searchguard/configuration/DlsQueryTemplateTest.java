@@ -0,0 +1,205 @@
+/*
+ * Copyright 2016-2019 by floragunn GmbH - All rights reserved
+ *
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed here is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * This software is free of charge for non-commercial and academic use.
+ * For commercial use in a production environment you have to obtain a license
+ * from https://floragunn.com
+ *
+ */
+
+package com.floragunn.searchguard.configuration;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.NamedXContentRegistry;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.common.xcontent.json.JsonXContent;
+import org.elasticsearch.index.query.AbstractQueryBuilder;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.search.SearchModule;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.floragunn.searchguard.support.SearchGuardDeprecationHandler;
+
+public class DlsQueryTemplateTest {
+
+    private static final NamedXContentRegistry REGISTRY = new NamedXContentRegistry(
+            new SearchModule(Settings.EMPTY, false, Collections.emptyList()).getNamedXContents());
+
+    private static final String[] DLS_QUERIES = {
+            "{\"term\":{\"owner\":\"${user.name}\"}}",
+            "{\"term\":{\"owner\":\"${user_name}\"}}",
+            "{\"terms\":{\"dept\":[${user.roles}]}}",
+            "{\"terms\":{\"dept\":[${user_roles}]}}",
+            "{\"term\":{\"dept\":\"${attr.ldap.dept}\"}}",
+            "{\"term\":{\"level\":${attr.internal.level}}}",
+            "{\"term\":{\"${attr.internal.field}\":\"x\"}}",
+            "{\"terms\":{\"dept\":[\"${attr.ldap.dept}\",\"shared\"]}}",
+            "{\"bool\":{\"should\":[{\"term\":{\"owner\":\"${user.name}\"}},{\"terms\":{\"dept\":[${user.roles}]}}]}}",
+            "{\"bool\":{\"must_not\":{\"term\":{\"owner\":\"${user.name}\"}}}}",
+            "{\"match\":{\"owner\":\"${user.name}\"}}",
+            "{\"term\":{\"owner\":{\"value\":\"${user.name}\"}}}",
+            "{\"range\":{\"level\":{\"lte\":${attr.internal.level}}}}" };
+
+    @Test
+    public void testUserAttributes() throws Exception {
+        assertEquivalent(user("alice", Arrays.asList("hr", "it"), "ldap.dept", "finance", "internal.level", "5", "internal.field", "owner"));
+        assertEquivalent(user("bob", Arrays.asList("sales"), "ldap.dept", "sales", "internal.level", "-1", "internal.field", "dept"));
+        assertEquivalent(user("ünï cödé", Arrays.asList("röle"), "ldap.dept", "日本", "internal.level", "2.5", "internal.field", "a.b"));
+    }
+
+    @Test
+    public void testRoles() throws Exception {
+        assertEquivalent(user("alice", Collections.emptyList(), "ldap.dept", "finance", "internal.level", "5", "internal.field", "owner"));
+        assertEquivalent(user("alice", Arrays.asList("r1"), "ldap.dept", "finance", "internal.level", "5", "internal.field", "owner"));
+        assertEquivalent(user("alice", Arrays.asList("r1", "r2", "r3", "r4"), "ldap.dept", "finance", "internal.level", "5", "internal.field",
+                "owner"));
+    }
+
+    @Test
+    public void testMissingAttributes() throws Exception {
+        //unresolved variables stay in the query
+        assertEquivalent(user("alice", Arrays.asList("hr")));
+        assertEquivalent(user("alice", Arrays.asList("hr"), "ldap.dept", "finance"));
+    }
+
+    @Test
+    public void testEscapingAndInjection() throws Exception {
+        assertEquivalent(user("a\\\"b", Arrays.asList("r\\\\1"), "ldap.dept", "x\\u0022y", "internal.level", "1", "internal.field", "o\\\"w"));
+        assertEquivalent(user("?s", Arrays.asList("?*", "?f"), "ldap.dept", "?z", "internal.level", "1", "internal.field", "?f"));
+        assertEquivalent(user("{\"match_all\":{}}", Arrays.asList("],\"x\":[\"y"), "ldap.dept", "[]", "internal.level", "1", "internal.field",
+                "{}"));
+        //attribute values which break out of the json string
+        assertEquivalent(user("x\"}},{\"match_all\":{}}]}}", Arrays.asList("hr\"],\"x\":[\"y"), "ldap.dept", "x\"}}, \"match_all\":{\"",
+                "internal.level", "1}},{\"match_all\":{}", "internal.field", "owner\":\"x\"},\"match_all\":{\"a"));
+        assertEquivalent(user("x\"}}", Arrays.asList("hr"), "ldap.dept", "x", "internal.level", "true", "internal.field", "owner"));
+        assertEquivalent(user("x", Arrays.asList("hr"), "ldap.dept", "x", "internal.level", "null", "internal.field", "owner"));
+    }
+
+    @Test
+    public void testSharedTemplate() throws Exception {
+        final DlsQueryTemplate.Binding alice = DlsQueryTemplate.bind(substitute(DLS_QUERIES[8], user("alice", Arrays.asList("hr", "it"))));
+        final DlsQueryTemplate.Binding bob = DlsQueryTemplate.bind(substitute(DLS_QUERIES[8], user("bob", Arrays.asList("sales"))));
+        final DlsQueryTemplate.Binding injected = DlsQueryTemplate.bind(substitute(DLS_QUERIES[8],
+                user("x\\\"}},{\\\"match_all\\\":{}}", Arrays.asList("hr"))));
+
+        Assert.assertSame(alice.getTemplate(), bob.getTemplate());
+        //escaped quotes are part of the value
+        Assert.assertSame(alice.getTemplate(), injected.getTemplate());
+        Assert.assertEquals("x\"}},{\"match_all\":{}}", injected.getParameters().get(1));
+        Assert.assertEquals(Arrays.asList("hr", "it"), alice.getParameters().get(3));
+    }
+
+    @Test
+    public void testUserSpecific() throws Exception {
+        //templates are shared node wide (field names are slots too), this one is not used by the other tests
+        final String dlsQuery = "{\"match_phrase\":{\"owner\":\"${user.name}\"}}";
+        DlsQueryTemplate.Binding binding = null;
+
+        for (int i = 0; i < DlsQueryTemplate.MAX_SHARED_BINDINGS; i++) {
+            binding = DlsQueryTemplate.bind(substitute(dlsQuery, user("user" + i, Collections.emptyList())));
+            Assert.assertFalse(binding.isUserSpecific());
+        }
+
+        //the same binding again
+        Assert.assertFalse(DlsQueryTemplate.bind(substitute(dlsQuery, user("user0", Collections.emptyList()))).isUserSpecific());
+
+        binding = DlsQueryTemplate.bind(substitute(dlsQuery, user("user" + DlsQueryTemplate.MAX_SHARED_BINDINGS, Collections.emptyList())));
+        Assert.assertTrue(binding.isUserSpecific());
+
+        //decided per binding, the shared ones stay shared
+        Assert.assertFalse(DlsQueryTemplate.bind(substitute(dlsQuery, user("user0", Collections.emptyList()))).isUserSpecific());
+    }
+
+    @Test
+    public void testBindingCache() throws Exception {
+        final String dlsQuery = substitute(DLS_QUERIES[8], user("carol", Arrays.asList("hr")));
+        final DlsQueryTemplate.Binding binding = DlsQueryTemplate.bind(dlsQuery);
+
+        //the same query string is not tokenized again
+        Assert.assertSame(binding, DlsQueryTemplate.bind(new String(dlsQuery)));
+        Assert.assertNull(DlsQueryTemplate.bind("{\"term\":"));
+    }
+
+    private static void assertEquivalent(final User user) throws Exception {
+        for (final String dlsQuery : DLS_QUERIES) {
+            final String substituted = substitute(dlsQuery, user);
+            QueryBuilder expected;
+
+            try {
+                expected = parse(substituted);
+            } catch (Exception e) {
+                expected = null;
+            }
+
+            QueryBuilder actual;
+
+            try {
+                actual = bindAndParse(substituted);
+            } catch (Exception e) {
+                actual = null;
+            }
+
+            Assert.assertEquals(substituted, expected, actual);
+        }
+    }
+
+    //the query builder of DlsQueryParser
+    private static QueryBuilder bindAndParse(final String dlsQuery) throws Exception {
+        final DlsQueryTemplate.Binding binding = DlsQueryTemplate.bind(dlsQuery);
+        final QueryBuilder qb = binding == null ? null : binding.toQueryBuilder();
+        return qb == null ? parse(dlsQuery) : qb;
+    }
+
+    //the query builder before the queries were bound to templates
+    private static QueryBuilder parse(final String dlsQuery) throws Exception {
+        try (XContentParser parser = JsonXContent.jsonXContent.createParser(REGISTRY, SearchGuardDeprecationHandler.INSTANCE, dlsQuery)) {
+            return AbstractQueryBuilder.parseInnerQueryBuilder(parser);
+        }
+    }
+
+    //the variable substitution of the dls queries of the roles
+    private static String substitute(String dlsQuery, final User user) {
+        dlsQuery = dlsQuery.replace("${user.name}", user.name).replace("${user_name}", user.name);
+        final String roles = user.roles.stream().map(r -> "\"" + r + "\"").collect(Collectors.joining(","));
+        dlsQuery = dlsQuery.replace("${user.roles}", roles).replace("${user_roles}", roles);
+
+        for (final Map.Entry<String, String> attribute : user.attributes.entrySet()) {
+            dlsQuery = dlsQuery.replace("${attr." + attribute.getKey() + "}", attribute.getValue());
+        }
+
+        return dlsQuery;
+    }
+
+    private static User user(final String name, final List<String> roles, final String... attributes) {
+        final Map<String, String> attributeMap = new HashMap<>();
+        for (int i = 0; i < attributes.length; i += 2) {
+            attributeMap.put(attributes[i], attributes[i + 1]);
+        }
+        return new User(name, roles, attributeMap);
+    }
+
+    private static final class User {
+        private final String name;
+        private final List<String> roles;
+        private final Map<String, String> attributes;
+
+        User(final String name, final List<String> roles, final Map<String, String> attributes) {
+            this.name = name;
+            this.roles = roles;
+            this.attributes = attributes;
+        }
+    }
+}
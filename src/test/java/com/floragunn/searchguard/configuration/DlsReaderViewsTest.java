@@ -0,0 +1,167 @@
+/*
+ * Copyright 2016-2019 by floragunn GmbH - All rights reserved
+ *
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed here is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * This software is free of charge for non-commercial and academic use.
+ * For commercial use in a production environment you have to obtain a license
+ * from https://floragunn.com
+ *
+ */
+
+package com.floragunn.searchguard.configuration;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field.Store;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.join.BitSetProducer;
+import org.apache.lucene.store.ByteBuffersDirectory;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.FixedBitSet;
+import org.apache.lucene.util.SparseFixedBitSet;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class DlsReaderViewsTest {
+
+    @Test
+    public void testViewPerReaderAndProducer() throws Exception {
+        final DlsReaderViews views = new DlsReaderViews(10, Long.MAX_VALUE);
+        final BitSetProducer producer1 = context -> null;
+        final BitSetProducer producer2 = context -> null;
+
+        try (Directory directory = new ByteBuffersDirectory()) {
+            final DirectoryReader reader = createReader(directory);
+            final LeafReader leaf = reader.leaves().get(0).reader();
+
+            Assert.assertNull(views.get(leaf, null));
+
+            final DlsReaderViews.View view1 = views.get(leaf, producer1);
+            final DlsReaderViews.View view2 = views.get(leaf, producer2);
+            Assert.assertSame(view1, views.get(leaf, producer1));
+            Assert.assertNotSame(view1, view2);
+            Assert.assertEquals(2, views.size());
+            Assert.assertEquals(2, views.missCount());
+            Assert.assertEquals(1, views.hitCount());
+
+            reader.close();
+            Assert.assertEquals(0, views.size());
+        }
+    }
+
+    @Test
+    public void testMaxViewsPerReader() throws Exception {
+        final DlsReaderViews views = new DlsReaderViews(1, Long.MAX_VALUE);
+
+        try (Directory directory = new ByteBuffersDirectory(); DirectoryReader reader = createReader(directory)) {
+            final LeafReader leaf = reader.leaves().get(0).reader();
+            Assert.assertNotNull(views.get(leaf, context -> null));
+            Assert.assertNull(views.get(leaf, context -> null));
+            Assert.assertEquals(1, views.rejectedCount());
+        }
+    }
+
+    @Test
+    public void testLiveDocsBuiltOnce() throws Exception {
+        final DlsReaderViews views = new DlsReaderViews(10, Long.MAX_VALUE);
+        final AtomicInteger loads = new AtomicInteger();
+
+        try (Directory directory = new ByteBuffersDirectory(); DirectoryReader reader = createReader(directory)) {
+            final LeafReader leaf = reader.leaves().get(0).reader();
+            //doc 1 is deleted
+            Assert.assertFalse(leaf.getLiveDocs().get(1));
+
+            final DlsReaderViews.View view = views.get(leaf, context -> null);
+            final DlsReaderViews.DlsBitsLoader loader = () -> {
+                loads.incrementAndGet();
+                final FixedBitSet bits = new FixedBitSet(leaf.maxDoc());
+                bits.set(0, 3);
+                return bits;
+            };
+
+            final DlsReaderViews.DlsLiveDocs liveDocs = view.getLiveDocs(null, loader, leaf.getLiveDocs(), leaf.maxDoc());
+            Assert.assertSame(liveDocs, view.getLiveDocs(null, loader, leaf.getLiveDocs(), leaf.maxDoc()));
+            Assert.assertEquals(1, loads.get());
+            Assert.assertEquals(2, liveDocs.getNumDocs());
+            assertBits(liveDocs.getLiveDocs(), true, false, true, false);
+            Assert.assertTrue(views.ramBytesUsed() > 0);
+        }
+    }
+
+    @Test
+    public void testLiveDocsBudget() throws Exception {
+        final DlsReaderViews views = new DlsReaderViews(10, 0);
+
+        try (Directory directory = new ByteBuffersDirectory(); DirectoryReader reader = createReader(directory)) {
+            final LeafReader leaf = reader.leaves().get(0).reader();
+            final DlsReaderViews.View view = views.get(leaf, context -> null);
+            Assert.assertNull(view.getLiveDocs(null, () -> new FixedBitSet(leaf.maxDoc()), leaf.getLiveDocs(), leaf.maxDoc()));
+            Assert.assertEquals(1, views.rejectedCount());
+        }
+    }
+
+    @Test
+    public void testIntersect() {
+        final FixedBitSet liveDocs = new FixedBitSet(100);
+        liveDocs.set(0, 100);
+        liveDocs.clear(10);
+        liveDocs.clear(99);
+
+        final FixedBitSet dense = new FixedBitSet(100);
+        dense.set(5, 20);
+        dense.set(99);
+        DlsReaderViews.DlsLiveDocs result = DlsReaderViews.intersect(dense, liveDocs, 100);
+        Assert.assertTrue(result.getLiveDocs() instanceof FixedBitSet);
+        Assert.assertEquals(14, result.getNumDocs());
+        Assert.assertFalse(result.getLiveDocs().get(10));
+        Assert.assertFalse(result.getLiveDocs().get(99));
+        Assert.assertTrue(result.getLiveDocs().get(11));
+        //the dls bitset itself is not modified
+        Assert.assertTrue(dense.get(10));
+
+        final SparseFixedBitSet sparse = new SparseFixedBitSet(100);
+        sparse.set(10);
+        sparse.set(50);
+        sparse.set(99);
+        result = DlsReaderViews.intersect(sparse, liveDocs, 100);
+        Assert.assertTrue(result.getLiveDocs() instanceof SparseFixedBitSet);
+        Assert.assertEquals(1, result.getNumDocs());
+        Assert.assertTrue(result.getLiveDocs().get(50));
+
+        result = DlsReaderViews.intersect(sparse, null, 100);
+        Assert.assertSame(sparse, result.getLiveDocs());
+        Assert.assertEquals(3, result.getNumDocs());
+
+        result = DlsReaderViews.intersect(null, liveDocs, 100);
+        Assert.assertEquals(0, result.getNumDocs());
+        Assert.assertFalse(result.getLiveDocs().get(0));
+    }
+
+    private static void assertBits(final Bits bits, final boolean... expected) {
+        for (int i = 0; i < expected.length; i++) {
+            Assert.assertEquals("doc " + i, expected[i], bits.get(i));
+        }
+    }
+
+    //one segment with four docs, doc 1 is deleted
+    private static DirectoryReader createReader(final Directory directory) throws Exception {
+        return TestIndexReaders.createReader(directory, writer -> {
+            for (int i = 0; i < 4; i++) {
+                final Document doc = new Document();
+                doc.add(new StringField("id", String.valueOf(i), Store.YES));
+                writer.addDocument(doc);
+            }
+            writer.commit();
+            writer.deleteDocuments(new Term("id", "1"));
+        });
+    }
+}
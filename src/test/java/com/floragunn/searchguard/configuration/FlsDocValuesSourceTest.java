@@ -0,0 +1,275 @@
+/*
+ * Copyright 2016-2019 by floragunn GmbH - All rights reserved
+ *
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed here is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * This software is free of charge for non-commercial and academic use.
+ * For commercial use in a production environment you have to obtain a license
+ * from https://floragunn.com
+ *
+ */
+
+package com.floragunn.searchguard.configuration;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.lucene.analysis.core.KeywordAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.Field.Store;
+import org.apache.lucene.document.SortedNumericDocValuesField;
+import org.apache.lucene.document.SortedSetDocValuesField;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.FilterLeafReader;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.SortedNumericDocValues;
+import org.apache.lucene.index.SortedSetDocValues;
+import org.apache.lucene.store.ByteBuffersDirectory;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.util.BytesRef;
+import org.elasticsearch.Version;
+import org.elasticsearch.cluster.metadata.IndexMetaData;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.index.mapper.BooleanFieldMapper;
+import org.elasticsearch.index.mapper.ContentPath;
+import org.elasticsearch.index.mapper.DateFieldMapper;
+import org.elasticsearch.index.mapper.DocumentFieldMappers;
+import org.elasticsearch.index.mapper.DocumentMapper;
+import org.elasticsearch.index.mapper.FieldMapper;
+import org.elasticsearch.index.mapper.KeywordFieldMapper;
+import org.elasticsearch.index.mapper.Mapper;
+import org.elasticsearch.index.mapper.MapperService;
+import org.elasticsearch.index.mapper.NumberFieldMapper;
+import org.elasticsearch.index.mapper.NumberFieldMapper.NumberType;
+import org.elasticsearch.index.mapper.SourceFieldMapper;
+import org.junit.Assert;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+public class FlsDocValuesSourceTest {
+
+    private static final Mapper.BuilderContext CONTEXT = new Mapper.BuilderContext(
+            Settings.builder().put(IndexMetaData.SETTING_VERSION_CREATED, Version.CURRENT).build(), new ContentPath());
+
+    private static final String[] FIELDS = { "d", "f", "flag", "h", "i", "k", "l", "tags" };
+
+    @Test
+    public void testBuildSource() throws Exception {
+        final MapperService mapperService = mapperService(lossless());
+
+        try (Directory directory = new ByteBuffersDirectory(); DirectoryReader reader = createReader(directory, true)) {
+            final LeafReader leaf = reader.leaves().get(0).reader();
+            final FlsDocValuesSource source = FlsDocValuesSource.of(fls(FIELDS), mapperService, leaf.getFieldInfos());
+            Assert.assertNotNull(source);
+
+            //keys are sorted, multiple values are returned in doc values order (keywords deduplicated)
+            Assert.assertEquals("{\"d\":[-1.25,2.5],\"f\":1.5,\"flag\":true,\"h\":0.5,\"i\":[1,3],\"k\":\"b\",\"l\":5,\"tags\":[\"x\",\"y\"]}",
+                    build(source, leaf, 0));
+            //missing values are left out
+            Assert.assertEquals("{\"flag\":false,\"k\":\"a\",\"l\":-9223372036854775808}", build(source, leaf, 1));
+            Assert.assertEquals("{}", build(source, leaf, 2));
+
+            final FlsDocValuesSource subset = FlsDocValuesSource.of(fls("tags", "l", "_id"), mapperService, leaf.getFieldInfos());
+            Assert.assertEquals("{\"l\":5,\"tags\":[\"x\",\"y\"]}", build(subset, leaf, 0));
+        }
+    }
+
+    @Test
+    public void testLeafSource() throws Exception {
+        final MapperService mapperService = mapperService(lossless());
+
+        try (Directory directory = new ByteBuffersDirectory(); DirectoryReader reader = createReader(directory, true)) {
+            final AtomicInteger docValuesLookups = new AtomicInteger();
+            final LeafReader leaf = new FilterLeafReader(reader.leaves().get(0).reader()) {
+                @Override
+                public SortedSetDocValues getSortedSetDocValues(final String field) throws IOException {
+                    docValuesLookups.incrementAndGet();
+                    return super.getSortedSetDocValues(field);
+                }
+
+                @Override
+                public SortedNumericDocValues getSortedNumericDocValues(final String field) throws IOException {
+                    docValuesLookups.incrementAndGet();
+                    return super.getSortedNumericDocValues(field);
+                }
+
+                @Override
+                public CacheHelper getCoreCacheHelper() {
+                    return null;
+                }
+
+                @Override
+                public CacheHelper getReaderCacheHelper() {
+                    return null;
+                }
+            };
+            final FlsDocValuesSource.LeafSource leafSource = FlsDocValuesSource.of(fls("k", "l"), mapperService, leaf.getFieldInfos())
+                    .newLeafSource(leaf);
+
+            //the doc values are fetched once per field and advanced
+            Assert.assertEquals("{\"k\":\"b\",\"l\":5}", build(leafSource, 0));
+            Assert.assertEquals("{\"k\":\"a\",\"l\":-9223372036854775808}", build(leafSource, 1));
+            Assert.assertEquals("{}", build(leafSource, 2));
+            Assert.assertEquals(2, docValuesLookups.get());
+
+            //and fetched again to go back
+            Assert.assertEquals("{\"k\":\"a\",\"l\":-9223372036854775808}", build(leafSource, 1));
+            Assert.assertEquals("{\"k\":\"a\",\"l\":-9223372036854775808}", build(leafSource, 1));
+            Assert.assertEquals(6, docValuesLookups.get());
+        }
+    }
+
+    @Test
+    public void testSettings() throws Exception {
+        Assert.assertFalse(FlsDocValuesSource.ENABLED.get(Settings.EMPTY));
+        Assert.assertTrue(FlsDocValuesSource.ENABLED.get(Settings.builder().put("searchguard.dls_fls.source_from_doc_values.enabled", true).build()));
+        Assert.assertTrue(SearchGuardFlsDlsIndexSearcherWrapper.getSettings().contains(FlsDocValuesSource.ENABLED));
+    }
+
+    @Test
+    public void testUnsupportedRules() throws Exception {
+        final MapperService mapperService = mapperService(lossless());
+
+        try (Directory directory = new ByteBuffersDirectory(); DirectoryReader reader = createReader(directory, true)) {
+            final LeafReader leaf = reader.leaves().get(0).reader();
+            Assert.assertNull(FlsDocValuesSource.of(fls("~k"), mapperService, leaf.getFieldInfos()));
+            Assert.assertNull(FlsDocValuesSource.of(fls("k*"), mapperService, leaf.getFieldInfos()));
+            Assert.assertNull(FlsDocValuesSource.of(fls("k", "obj.k"), mapperService, leaf.getFieldInfos()));
+            //not mapped
+            Assert.assertNull(FlsDocValuesSource.of(fls("k", "unknown"), mapperService, leaf.getFieldInfos()));
+        }
+    }
+
+    @Test
+    public void testLossyMappers() throws Exception {
+        try (Directory directory = new ByteBuffersDirectory(); DirectoryReader reader = createReader(directory, true)) {
+            final LeafReader leaf = reader.leaves().get(0).reader();
+
+            assertLossy(leaf, new KeywordFieldMapper.Builder("k").ignoreAbove(10).build(CONTEXT));
+            assertLossy(leaf, (FieldMapper) new KeywordFieldMapper.Builder("k").nullValue("n/a").build(CONTEXT));
+            assertLossy(leaf, new NumberFieldMapper.Builder("l", NumberType.LONG).ignoreMalformed(true).build(CONTEXT));
+            assertLossy(leaf, (FieldMapper) new NumberFieldMapper.Builder("l", NumberType.LONG).nullValue(0L).build(CONTEXT));
+            //doc values of dates are not converted back to their format
+            assertLossy(leaf, new DateFieldMapper.Builder("l").build(CONTEXT));
+
+            //copy_to targets contain values of other fields
+            final List<FieldMapper> mappers = lossless();
+            mappers.add(new KeywordFieldMapper.Builder("source").copyTo(new FieldMapper.CopyTo.Builder().add("k").build()).build(CONTEXT));
+            Assert.assertNull(FlsDocValuesSource.of(fls(FIELDS), mapperService(mappers), leaf.getFieldInfos()));
+            Assert.assertNotNull(FlsDocValuesSource.of(fls("l", "source"), mapperService(mappers), leaf.getFieldInfos()));
+        }
+    }
+
+    @Test
+    public void testSegmentWithoutDocValues() throws Exception {
+        try (Directory directory = new ByteBuffersDirectory(); DirectoryReader reader = createReader(directory, false)) {
+            final LeafReader leaf = reader.leaves().get(0).reader();
+            Assert.assertNull(FlsDocValuesSource.of(fls(FIELDS), mapperService(lossless()), leaf.getFieldInfos()));
+            //not in the segment at all
+            Assert.assertNotNull(FlsDocValuesSource.of(fls("l", "tags"), mapperService(lossless()), leaf.getFieldInfos()));
+        }
+    }
+
+    private static void assertLossy(final LeafReader leaf, final FieldMapper lossyMapper) {
+        final List<FieldMapper> mappers = lossless();
+        mappers.removeIf(m -> m.name().equals(lossyMapper.name()));
+        mappers.add(lossyMapper);
+        Assert.assertNull(lossyMapper.name(), FlsDocValuesSource.of(fls(FIELDS), mapperService(mappers), leaf.getFieldInfos()));
+        //other fields are still fine
+        Assert.assertNotNull(FlsDocValuesSource.of(fls("tags"), mapperService(mappers), leaf.getFieldInfos()));
+    }
+
+    private static String build(final FlsDocValuesSource source, final LeafReader leaf, final int docID) throws Exception {
+        return build(source.newLeafSource(leaf), docID);
+    }
+
+    private static String build(final FlsDocValuesSource.LeafSource leafSource, final int docID) throws Exception {
+        return new String(leafSource.build(docID), StandardCharsets.UTF_8);
+    }
+
+    private static FlsFieldMatcher fls(final String... fields) {
+        return FlsFieldMatcher.compile(new HashSet<>(Arrays.asList(fields)));
+    }
+
+    private static List<FieldMapper> lossless() {
+        final List<FieldMapper> mappers = new ArrayList<>();
+        mappers.add(new NumberFieldMapper.Builder("d", NumberType.DOUBLE).build(CONTEXT));
+        mappers.add(new NumberFieldMapper.Builder("f", NumberType.FLOAT).build(CONTEXT));
+        mappers.add(new BooleanFieldMapper.Builder("flag").build(CONTEXT));
+        mappers.add(new NumberFieldMapper.Builder("h", NumberType.HALF_FLOAT).build(CONTEXT));
+        mappers.add(new NumberFieldMapper.Builder("i", NumberType.INTEGER).build(CONTEXT));
+        mappers.add(new KeywordFieldMapper.Builder("k").build(CONTEXT));
+        mappers.add(new NumberFieldMapper.Builder("l", NumberType.LONG).build(CONTEXT));
+        mappers.add(new KeywordFieldMapper.Builder("tags").build(CONTEXT));
+        return mappers;
+    }
+
+    private static MapperService mapperService(final List<FieldMapper> mappers) {
+        final SourceFieldMapper sourceMapper = Mockito.mock(SourceFieldMapper.class);
+        Mockito.when(sourceMapper.isComplete()).thenReturn(true);
+
+        final DocumentMapper documentMapper = Mockito.mock(DocumentMapper.class);
+        Mockito.when(documentMapper.sourceMapper()).thenReturn(sourceMapper);
+        Mockito.when(documentMapper.mappers()).thenReturn(new DocumentFieldMappers(mappers, Collections.emptyList(), new KeywordAnalyzer(),
+                new KeywordAnalyzer(), new KeywordAnalyzer()));
+
+        final MapperService mapperService = Mockito.mock(MapperService.class);
+        Mockito.when(mapperService.docMappers(false)).thenReturn(Collections.singletonList(documentMapper));
+        for (final FieldMapper mapper : mappers) {
+            Mockito.when(mapperService.fullName(mapper.name())).thenReturn(mapper.fieldType());
+        }
+        return mapperService;
+    }
+
+    //one segment with three docs, the fields are indexed the way their mappers do
+    private static DirectoryReader createReader(final Directory directory, final boolean keywordDocValues) throws Exception {
+        return TestIndexReaders.createReader(directory, writer -> {
+            Document doc = new Document();
+            number(doc, "d", NumberType.DOUBLE, 2.5, -1.25);
+            number(doc, "f", NumberType.FLOAT, 1.5f);
+            doc.add(new SortedNumericDocValuesField("flag", 1));
+            number(doc, "h", NumberType.HALF_FLOAT, 0.5f);
+            number(doc, "i", NumberType.INTEGER, 3, 1);
+            keyword(doc, "k", keywordDocValues, "b");
+            number(doc, "l", NumberType.LONG, 5L);
+            keyword(doc, "tags", true, "y", "x", "x");
+            writer.addDocument(doc);
+
+            doc = new Document();
+            doc.add(new SortedNumericDocValuesField("flag", 0));
+            keyword(doc, "k", keywordDocValues, "a");
+            number(doc, "l", NumberType.LONG, Long.MIN_VALUE);
+            writer.addDocument(doc);
+
+            writer.addDocument(new Document());
+        });
+    }
+
+    private static void keyword(final Document doc, final String field, final boolean docValues, final String... values) {
+        for (final String value : values) {
+            doc.add(new StringField(field, value, Store.NO));
+            if (docValues) {
+                doc.add(new SortedSetDocValuesField(field, new BytesRef(value)));
+            }
+        }
+    }
+
+    private static void number(final Document doc, final String field, final NumberType type, final Number... values) {
+        for (final Number value : values) {
+            for (final Field f : type.createFields(field, value, true, true, false)) {
+                doc.add(f);
+            }
+        }
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright 2016-2019 by floragunn GmbH - All rights reserved
+ *
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed here is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * This software is free of charge for non-commercial and academic use.
+ * For commercial use in a production environment you have to obtain a license
+ * from https://floragunn.com
+ *
+ */
+
+package com.floragunn.searchguard.configuration;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.apache.lucene.util.BytesRef;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.floragunn.searchguard.support.WildcardMatcher;
+
+public class FlsFieldMatcherTest {
+
+    private static final String[] FIELDS = { "a", "b", "c", "ab", "ba", "a.b", "a.b.c", "a.bc", "c1", "cx.y", "customer", "customer.name",
+            "customer.address", "customer.address.street", "customer.address.zip", "customers.name", "name", "nome", "age", "page", "x.y.z",
+            "x.yz", "x.y.z.w", "address.street", "addrX.strXet", "_source", "_id", "_field_names", "field.keyword", "field", "ü.ä",
+            "über", "a*", "a?" };
+
+    @Test
+    public void testIncludes() {
+        assertEquivalent("a", "b");
+        assertEquivalent("customer", "age");
+        assertEquivalent("a?", "a*");
+    }
+
+    @Test
+    public void testExcludes() {
+        assertEquivalent("~a", "~b");
+        assertEquivalent("!a", "~customer");
+        assertEquivalent("~_source");
+    }
+
+    @Test
+    public void testNestedPaths() {
+        assertEquivalent("customer.name", "a.b");
+        assertEquivalent("customer.*");
+        assertEquivalent("~customer.address.*");
+        assertEquivalent("~x.y.z", "~a.b");
+        assertEquivalent("x.y.*", "a.*.c");
+    }
+
+    @Test
+    public void testWildcards() {
+        assertEquivalent("*");
+        assertEquivalent("~*");
+        assertEquivalent("c*");
+        assertEquivalent("*e");
+        assertEquivalent("n?me", "?ge");
+        assertEquivalent("~*.*");
+        assertEquivalent("ü*");
+    }
+
+    @Test
+    public void testMixed() {
+        assertEquivalent("na*e", "?ge", "x.y.z", "addr*.str?et", "b");
+        //excludes win over includes
+        assertEquivalent("a*", "~b", "customer.*");
+        assertEquivalent("~a*", "~customer.address.*", "~?");
+    }
+
+    @Test
+    public void testRegex() {
+        assertEquivalent("/a.*/");
+        assertEquivalent("~/customer\\..*/", "name");
+    }
+
+    private static void assertEquivalent(final String... rules) {
+        final Set<String> includesExcludes = new HashSet<>(Arrays.asList(rules));
+        final FlsFieldMatcher matcher = FlsFieldMatcher.compile(includesExcludes);
+
+        for (final String field : FIELDS) {
+            final boolean expected = isAllowedLegacy(includesExcludes, field);
+            Assert.assertEquals(includesExcludes + " " + field, expected, matcher.isAllowed(field));
+            Assert.assertEquals(includesExcludes + " " + field, expected, matcher.isAllowed(new BytesRef(field)));
+        }
+    }
+
+    //the matching of DlsFlsFilterLeafReader before the rules were compiled
+    private static boolean isAllowedLegacy(final Set<String> includesExcludes, final String field) {
+        final Set<String> includes = new HashSet<>();
+        final Set<String> excludes = new HashSet<>();
+        boolean canOptimize = true;
+
+        for (final String incExc : includesExcludes) {
+            if (canOptimize && (incExc.indexOf('.') > -1 || incExc.indexOf('*') > -1)) {
+                canOptimize = false;
+            }
+
+            final char firstChar = incExc.charAt(0);
+
+            if (firstChar == '!' || firstChar == '~') {
+                excludes.add(incExc.substring(1));
+            } else {
+                includes.add(incExc);
+            }
+        }
+
+        if (canOptimize) {
+            return excludes.isEmpty() ? includes.contains(field) : !excludes.contains(field);
+        } else {
+            return excludes.isEmpty() ? WildcardMatcher.matchAny(includes, field) : !WildcardMatcher.matchAny(excludes, field);
+        }
+    }
+}
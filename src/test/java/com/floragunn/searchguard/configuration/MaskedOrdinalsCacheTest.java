@@ -0,0 +1,29 @@
+/*
+ * Copyright 2016-2019 by floragunn GmbH - All rights reserved
+ *
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed here is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * This software is free of charge for non-commercial and academic use.
+ * For commercial use in a production environment you have to obtain a license
+ * from https://floragunn.com
+ *
+ */
+
+package com.floragunn.searchguard.configuration;
+
+import org.elasticsearch.common.settings.Settings;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class MaskedOrdinalsCacheTest {
+
+    @Test
+    public void testSettings() throws Exception {
+        Assert.assertSame(MaskedOrdinalsCache.INSTANCE, MaskedOrdinalsCache.getInstance(Settings.EMPTY));
+        Assert.assertNull(MaskedOrdinalsCache.getInstance(Settings.builder().put("searchguard.compliance.masked_ordinals_cache.enabled", false).build()));
+        Assert.assertTrue(SearchGuardFlsDlsIndexSearcherWrapper.getSettings().contains(MaskedOrdinalsCache.ENABLED));
+    }
+}
@@ -0,0 +1,47 @@
+/*
+ * Copyright 2016-2019 by floragunn GmbH - All rights reserved
+ *
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed here is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * This software is free of charge for non-commercial and academic use.
+ * For commercial use in a production environment you have to obtain a license
+ * from https://floragunn.com
+ *
+ */
+
+package com.floragunn.searchguard.configuration;
+
+import org.apache.lucene.analysis.core.KeywordAnalyzer;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.store.Directory;
+
+/**
+ * Small indices for the unit tests of the DLS/FLS readers and caches
+ */
+final class TestIndexReaders {
+
+    interface IndexContent {
+        void write(IndexWriter writer) throws Exception;
+    }
+
+    private TestIndexReaders() {
+    }
+
+    /**
+     * Writes the content with a keyword analyzer, commits it (content may commit on its own to create more segments)
+     * and opens a reader on it
+     */
+    static DirectoryReader createReader(final Directory directory, final IndexContent content) throws Exception {
+        try (IndexWriter writer = new IndexWriter(directory, new IndexWriterConfig(new KeywordAnalyzer()))) {
+            content.write(writer);
+            writer.commit();
+        }
+
+        return DirectoryReader.open(directory);
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright 2016-2019 by floragunn GmbH - All rights reserved
+ *
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed here is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * This software is free of charge for non-commercial and academic use.
+ * For commercial use in a production environment you have to obtain a license
+ * from https://floragunn.com
+ *
+ */
+
+package com.floragunn.searchguard.dlic.dlsfls;
+
+import org.apache.http.HttpStatus;
+import org.elasticsearch.action.admin.indices.create.CreateIndexRequest;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.delete.DeleteRequest;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.support.WriteRequest.RefreshPolicy;
+import org.elasticsearch.client.transport.TransportClient;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.floragunn.searchguard.test.helper.file.FileHelper;
+import com.floragunn.searchguard.test.helper.rest.RestHelper.HttpResponse;
+
+/**
+ * The DLS rule of user_aaa is a term query on a keyword field which matches few documents,
+ * it is evaluated against the doc values of the field instead of a bitset.
+ */
+public class DlsDocValuesTest extends AbstractDlsFlsTest {
+
+    @Override
+    protected void populate(TransportClient tc) {
+
+        tc.index(new IndexRequest("searchguard").type("sg").id("config").setRefreshPolicy(RefreshPolicy.IMMEDIATE)
+                .source("config", FileHelper.readYamlContent("dlsfls/sg_config.yml"))).actionGet();
+        tc.index(new IndexRequest("searchguard").type("sg").setRefreshPolicy(RefreshPolicy.IMMEDIATE).id("internalusers")
+                .source("internalusers", FileHelper.readYamlContent("dlsfls/sg_internal_users.yml"))).actionGet();
+        tc.index(new IndexRequest("searchguard").type("sg").id("roles").setRefreshPolicy(RefreshPolicy.IMMEDIATE)
+                .source("roles", FileHelper.readYamlContent("dlsfls/sg_roles.yml"))).actionGet();
+        tc.index(new IndexRequest("searchguard").type("sg").setRefreshPolicy(RefreshPolicy.IMMEDIATE).id("rolesmapping")
+                .source("rolesmapping", FileHelper.readYamlContent("dlsfls/sg_roles_mapping.yml"))).actionGet();
+        tc.index(new IndexRequest("searchguard").type("sg").setRefreshPolicy(RefreshPolicy.IMMEDIATE).id("actiongroups")
+                .source("actiongroups", FileHelper.readYamlContent("dlsfls/sg_action_groups.yml"))).actionGet();
+
+        tc.admin().indices().create(new CreateIndexRequest("aaa")
+                .settings(Settings.builder().put("index.number_of_shards", 1).put("index.number_of_replicas", 0))
+                .mapping("aaa", "type", "type=keyword")).actionGet();
+
+        //2 of 64 docs are of type a
+        final BulkRequest bulkRequest = new BulkRequest().setRefreshPolicy(RefreshPolicy.IMMEDIATE);
+        for (int i = 0; i < 64; i++) {
+            bulkRequest.add(new IndexRequest("aaa").type("aaa").id(String.valueOf(i))
+                    .source("{\"f1\": \"f1_a" + i + "\", \"f2\": \"f2_a" + i + "\", \"type\": \"" + (i % 32 == 5 ? "a" : "x") + "\"}", XContentType.JSON));
+        }
+        Assert.assertFalse(tc.bulk(bulkRequest).actionGet().hasFailures());
+    }
+
+    @Test
+    public void testDlsOnDocValues() throws Exception {
+
+        setup();
+
+        HttpResponse res;
+
+        //the live docs of a search must not depend on the previous ones
+        for (int i = 0; i < 3; i++) {
+            Assert.assertEquals(HttpStatus.SC_OK, (res = rh.executeGetRequest("/aaa/_search?pretty&size=100", encodeBasicHeader("user_aaa", "password"))).getStatusCode());
+            Assert.assertTrue(res.getBody(), res.getBody().contains("\"total\" : 2,\n    \"max_"));
+            Assert.assertTrue(res.getBody().contains("f1_a5\""));
+            Assert.assertTrue(res.getBody().contains("f1_a37\""));
+            Assert.assertFalse(res.getBody().contains("\"x\""));
+        }
+
+        Assert.assertEquals(HttpStatus.SC_OK, (res = rh.executeGetRequest("/aaa/_count?pretty", encodeBasicHeader("user_aaa", "password"))).getStatusCode());
+        Assert.assertTrue(res.getBody(), res.getBody().contains("\"count\" : 2,"));
+
+        String query = "{"+
+            "\"size\" : 0,"+
+            "\"aggs\" : {"+
+                "\"types\" : { \"terms\" : { \"field\" : \"type\" } }"+
+            "}"+
+        "}";
+
+        Assert.assertEquals(HttpStatus.SC_OK, (res = rh.executePostRequest("/aaa/_search?pretty", query, encodeBasicHeader("user_aaa", "password"))).getStatusCode());
+        Assert.assertTrue(res.getBody(), res.getBody().contains("\"key\" : \"a\",\n          \"doc_count\" : 2"));
+        Assert.assertFalse(res.getBody().contains("\"key\" : \"x\""));
+
+        //gets access the live docs backwards
+        Assert.assertEquals(HttpStatus.SC_OK, (res = rh.executeGetRequest("/aaa/aaa/37?pretty", encodeBasicHeader("user_aaa", "password"))).getStatusCode());
+        Assert.assertTrue(res.getBody().contains("\"found\" : true"));
+        Assert.assertEquals(HttpStatus.SC_NOT_FOUND, (res = rh.executeGetRequest("/aaa/aaa/36?pretty", encodeBasicHeader("user_aaa", "password"))).getStatusCode());
+        Assert.assertEquals(HttpStatus.SC_OK, (res = rh.executeGetRequest("/aaa/aaa/5?pretty", encodeBasicHeader("user_aaa", "password"))).getStatusCode());
+        Assert.assertTrue(res.getBody().contains("\"found\" : true"));
+
+        Assert.assertEquals(HttpStatus.SC_OK, (res = rh.executeGetRequest("/aaa/_search?pretty&size=100", encodeBasicHeader("user_aaa", "password"))).getStatusCode());
+        Assert.assertTrue(res.getBody(), res.getBody().contains("\"total\" : 2,\n    \"max_"));
+
+        //deletions of the segment apply
+        try (TransportClient tc = getInternalTransportClient()) {
+            tc.delete(new DeleteRequest("aaa", "aaa", "5").setRefreshPolicy(RefreshPolicy.IMMEDIATE)).actionGet();
+        }
+
+        Assert.assertEquals(HttpStatus.SC_OK, (res = rh.executeGetRequest("/aaa/_search?pretty&size=100", encodeBasicHeader("user_aaa", "password"))).getStatusCode());
+        Assert.assertTrue(res.getBody(), res.getBody().contains("\"total\" : 1,\n    \"max_"));
+        Assert.assertFalse(res.getBody().contains("f1_a5\""));
+        Assert.assertTrue(res.getBody().contains("f1_a37\""));
+    }
+}
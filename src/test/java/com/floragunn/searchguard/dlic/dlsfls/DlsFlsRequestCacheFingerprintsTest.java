@@ -0,0 +1,103 @@
+/*
+ * Copyright 2016-2019 by floragunn GmbH - All rights reserved
+ *
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed here is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * This software is free of charge for non-commercial and academic use.
+ * For commercial use in a production environment you have to obtain a license
+ * from https://floragunn.com
+ *
+ */
+
+package com.floragunn.searchguard.dlic.dlsfls;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.search.builder.SearchSourceBuilder;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.floragunn.searchguard.configuration.DlsFlsRequestCacheFingerprints;
+import com.floragunn.searchguard.configuration.DlsFlsValveImpl;
+import com.google.common.collect.Sets;
+
+public class DlsFlsRequestCacheFingerprintsTest {
+
+    @Test
+    public void testFingerprintIsCanonical() throws Exception {
+        final Map<String, Set<String>> fls1 = new LinkedHashMap<>();
+        fls1.put("index1", new LinkedHashSet<>(Arrays.asList("a", "b")));
+        fls1.put("index2", new LinkedHashSet<>(Arrays.asList("~c")));
+
+        final Map<String, Set<String>> fls2 = new LinkedHashMap<>();
+        fls2.put("index2", new LinkedHashSet<>(Arrays.asList("~c")));
+        fls2.put("index1", new LinkedHashSet<>(Arrays.asList("b", "a")));
+
+        Assert.assertEquals(DlsFlsRequestCacheFingerprints.fingerprint(fls1, null, null),
+                DlsFlsRequestCacheFingerprints.fingerprint(fls2, null, null));
+    }
+
+    @Test
+    public void testDifferentRestrictionsDoNotShareFingerprints() throws Exception {
+        final Map<String, Set<String>> restriction = Collections.singletonMap("index1", Sets.newHashSet("a"));
+        final String dls = DlsFlsRequestCacheFingerprints.fingerprint(null, null, restriction);
+        final String fls = DlsFlsRequestCacheFingerprints.fingerprint(restriction, null, null);
+        final String masked = DlsFlsRequestCacheFingerprints.fingerprint(null, restriction, null);
+
+        Assert.assertNotEquals(dls, fls);
+        Assert.assertNotEquals(dls, masked);
+        Assert.assertNotEquals(fls, masked);
+        Assert.assertNotEquals(dls, DlsFlsRequestCacheFingerprints.fingerprint(null, null,
+                Collections.singletonMap("index1", Sets.newHashSet("b"))));
+        Assert.assertNotEquals(DlsFlsRequestCacheFingerprints.fingerprint(null, null, Collections.singletonMap("index1", Sets.newHashSet("ab"))),
+                DlsFlsRequestCacheFingerprints.fingerprint(null, null, Collections.singletonMap("index1", Sets.newHashSet("a", "b"))));
+    }
+
+    @Test
+    public void testValve() throws Exception {
+        final Map<String, Set<String>> queries = new HashMap<>();
+        queries.put("index1", Sets.newHashSet("{\"term\":{\"a\":\"b\"}}"));
+
+        //request cache not explicitly requested
+        SearchRequest request = new SearchRequest("index1");
+        Assert.assertTrue(new DlsFlsValveImpl().invoke(request, null, null, null, queries));
+        Assert.assertEquals(Boolean.FALSE, request.requestCache());
+
+        //explicitly requested, forged fingerprint groups are removed
+        request = new SearchRequest("index1").requestCache(true)
+                .source(new SearchSourceBuilder().stats(Arrays.asList("mygroup", DlsFlsRequestCacheFingerprints.STATS_GROUP_PREFIX + "forged")));
+        Assert.assertTrue(new DlsFlsValveImpl().invoke(request, null, null, null, queries));
+        Assert.assertEquals(Boolean.TRUE, request.requestCache());
+        Assert.assertEquals(Arrays.asList("mygroup",
+                DlsFlsRequestCacheFingerprints.STATS_GROUP_PREFIX + DlsFlsRequestCacheFingerprints.fingerprint(null, null, queries)),
+                request.source().stats());
+
+        //forged fingerprint groups are also removed for unrestricted users
+        request = new SearchRequest("index1").requestCache(true)
+                .source(new SearchSourceBuilder().stats(Arrays.asList("mygroup", DlsFlsRequestCacheFingerprints.STATS_GROUP_PREFIX + "forged")));
+        Assert.assertTrue(new DlsFlsValveImpl().invoke(request, null, null, null, null));
+        Assert.assertEquals(Boolean.TRUE, request.requestCache());
+        Assert.assertEquals(Arrays.asList("mygroup"), request.source().stats());
+
+        request = new SearchRequest("index1").requestCache(true)
+                .source(new SearchSourceBuilder().stats(Arrays.asList(DlsFlsRequestCacheFingerprints.STATS_GROUP_PREFIX + "forged")));
+        Assert.assertTrue(new DlsFlsValveImpl().invoke(request, null, Collections.emptyMap(), null, Collections.emptyMap()));
+        Assert.assertNull(request.source().stats());
+
+        //time dependent dls queries are never cached
+        queries.put("index2", Sets.newHashSet("{\"range\":{\"ts\":{\"gte\":\"now-1d\"}}}"));
+        request = new SearchRequest("index1").requestCache(true);
+        Assert.assertTrue(new DlsFlsValveImpl().invoke(request, null, null, null, queries));
+        Assert.assertEquals(Boolean.FALSE, request.requestCache());
+    }
+}
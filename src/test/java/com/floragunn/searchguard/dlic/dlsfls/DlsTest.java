@@ -14,6 +14,9 @@
 
 package com.floragunn.searchguard.dlic.dlsfls;
 
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
 import org.apache.http.HttpStatus;
 import org.elasticsearch.action.index.IndexRequest;
 import org.elasticsearch.action.search.SearchRequest;
@@ -24,6 +27,7 @@ import org.elasticsearch.common.xcontent.XContentType;
 import org.junit.Assert;
 import org.junit.Test;
 
+import com.floragunn.searchguard.configuration.DlsFlsRequestCacheFingerprints;
 import com.floragunn.searchguard.test.helper.file.FileHelper;
 import com.floragunn.searchguard.test.helper.rest.RestHelper.HttpResponse;
 
@@ -278,4 +282,35 @@ public class DlsTest extends AbstractDlsFlsTest{
         res = rh.executeGetRequest("/deals/deals/0?pretty", encodeBasicHeader("dept_manager", "password"));
         Assert.assertTrue(res.getBody().contains("\"found\" : false"));
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testDlsRequestCacheNotPoisoned() throws Exception {
+
+        setup();
+
+        final String query = "{\"size\": 0, \"aggs\": {\"thesum\": {\"sum\": {\"field\": \"amount\"}}}}";
+        HttpResponse res;
+
+        //learn the restrictions fingerprint of the dls user from the stats groups
+        Assert.assertEquals(HttpStatus.SC_OK, (res = rh.executePostRequest("/deals/_search?pretty&request_cache=true", "{\"size\": 0}",
+                encodeBasicHeader("dept_manager", "password"))).getStatusCode());
+        Assert.assertTrue(res.getBody().contains("\"total\" : 1,"));
+        Assert.assertEquals(HttpStatus.SC_OK, (res = rh.executeGetRequest("/deals/_stats/search?groups=*", encodeBasicHeader("admin", "admin"))).getStatusCode());
+        final Matcher matcher = Pattern.compile(DlsFlsRequestCacheFingerprints.STATS_GROUP_PREFIX + "[0-9a-f]+").matcher(res.getBody());
+        Assert.assertTrue(res.getBody(), matcher.find());
+        final String group = matcher.group();
+
+        //an unrestricted user tries to put its result into the cache entry of the dls user
+        final String forged = "{\"size\": 0, \"stats\": [\"" + group + "\"], \"aggs\": {\"thesum\": {\"sum\": {\"field\": \"amount\"}}}}";
+        Assert.assertEquals(HttpStatus.SC_OK, (res = rh.executePostRequest("/deals/_search?pretty&request_cache=true", forged,
+                encodeBasicHeader("admin", "admin"))).getStatusCode());
+        Assert.assertTrue(res.getBody().contains("\"total\" : 2,"));
+        Assert.assertTrue(res.getBody().contains("\"value\" : 1510.0"));
+
+        Assert.assertEquals(HttpStatus.SC_OK, (res = rh.executePostRequest("/deals/_search?pretty&request_cache=true", query,
+                encodeBasicHeader("dept_manager", "password"))).getStatusCode());
+        Assert.assertTrue(res.getBody().contains("\"total\" : 1,"));
+        Assert.assertTrue(res.getBody().contains("\"value\" : 1500.0"));
+        Assert.assertTrue(res.getBody().contains("\"failed\" : 0"));
+    }
+}
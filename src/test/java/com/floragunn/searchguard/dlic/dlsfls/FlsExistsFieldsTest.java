@@ -76,6 +76,17 @@ public class FlsExistsFieldsTest extends AbstractDlsFlsTest {
                     XContentType.JSON)).actionGet();
         }
 
+        //without norms and doc values exists queries use the _field_names field, which also contains the parent object "obj"
+        tc.admin().indices().create(new CreateIndexRequest("objdata").mapping("doc",
+                "obj.secret", "type=text,norms=false",
+                "obj.public", "type=text,norms=false"
+                ))
+                .actionGet();
+
+        tc.index(new IndexRequest("objdata").type("doc").id("only-secret").setRefreshPolicy(RefreshPolicy.IMMEDIATE)
+                .source("{\"obj\": {\"secret\": \"s\"}}", XContentType.JSON)).actionGet();
+        tc.index(new IndexRequest("objdata").type("doc").id("with-public").setRefreshPolicy(RefreshPolicy.IMMEDIATE)
+                .source("{\"obj\": {\"secret\": \"s\", \"public\": \"p\"}}", XContentType.JSON)).actionGet();
     }
 
     @Test
@@ -129,4 +140,36 @@ public class FlsExistsFieldsTest extends AbstractDlsFlsTest {
         Assert.assertTrue(res.getBody().contains("c-missing2-0"));
         Assert.assertFalse(res.getBody().contains("response"));
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testExistsObjectParentOfHiddenField() throws Exception {
+        setup();
+
+        final String existsQuery = "{\"query\": {\"exists\": {\"field\": \"obj\"}}}";
+        final String fieldNamesQuery = "{\"query\": {\"term\": {\"_field_names\": \"obj\"}}}";
+
+        HttpResponse res;
+        Assert.assertEquals(HttpStatus.SC_OK,
+                (res = rh.executePostRequest("/objdata/_search?pretty", existsQuery, encodeBasicHeader("admin", "admin"))).getStatusCode());
+        Assert.assertTrue(res.getBody().contains("\"total\" : 2,\n    \"max_"));
+        Assert.assertEquals(HttpStatus.SC_OK,
+                (res = rh.executePostRequest("/objdata/_search?pretty", fieldNamesQuery, encodeBasicHeader("admin", "admin"))).getStatusCode());
+        Assert.assertTrue(res.getBody().contains("\"total\" : 2,\n    \"max_"));
+
+        //obj.secret is hidden, so obj must not reveal which documents contain it
+        Assert.assertEquals(HttpStatus.SC_OK, (res = rh.executePostRequest("/objdata/_search?pretty", existsQuery,
+                encodeBasicHeader("fls_exists_object", "password"))).getStatusCode());
+        Assert.assertFalse(res.getBody().contains("only-secret"));
+        Assert.assertFalse(res.getBody().contains("\"secret\""));
+
+        Assert.assertEquals(HttpStatus.SC_OK, (res = rh.executePostRequest("/objdata/_search?pretty", fieldNamesQuery,
+                encodeBasicHeader("fls_exists_object", "password"))).getStatusCode());
+        Assert.assertTrue(res.getBody().contains("\"total\" : 0,\n    \"max_"));
+
+        //the visible field below obj still exists
+        Assert.assertEquals(HttpStatus.SC_OK, (res = rh.executePostRequest("/objdata/_search?pretty",
+                "{\"query\": {\"exists\": {\"field\": \"obj.public\"}}}", encodeBasicHeader("fls_exists_object", "password"))).getStatusCode());
+        Assert.assertTrue(res.getBody().contains("\"total\" : 1,\n    \"max_"));
+        Assert.assertTrue(res.getBody().contains("with-public"));
+    }
+}
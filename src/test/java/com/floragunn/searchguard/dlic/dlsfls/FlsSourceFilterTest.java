@@ -0,0 +1,110 @@
+/*
+ * Copyright 2016-2019 by floragunn GmbH - All rights reserved
+ *
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed here is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * This software is free of charge for non-commercial and academic use.
+ * For commercial use in a production environment you have to obtain a license
+ * from https://floragunn.com
+ *
+ */
+
+package com.floragunn.searchguard.dlic.dlsfls;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.Set;
+
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.common.xcontent.support.XContentMapValues;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.floragunn.searchguard.configuration.FlsSourceFilter;
+import com.google.common.collect.Sets;
+
+public class FlsSourceFilterTest {
+
+    private static final String SOURCE = "{\"customer\":{\"name\":\"cust1\",\"type\":\"normal\",\"address\":{\"street\":\"s1\",\"zip\":\"12345\"},\"empty\":{}},"
+            + "\"secret\":\"a secret value\",\"num\":0,\"nullfield\":null,\"bool\":true,\"dbl\":1.5,"
+            + "\"arr\":[1,\"two\",{\"a\":1,\"b\":{\"c\":2}},[{\"a\":3},{\"x\":4}],null],"
+            + "\"objs\":[{\"name\":\"n1\",\"secret\":\"s1\"},{\"secret\":\"s2\"}],"
+            + "\"dotted.key\":{\"inner\":\"v\"},\"text\":\"\\u00fc\\\"quoted\\\"\"}";
+
+    @Test
+    public void testIncludes() throws Exception {
+        assertSameAsMapFilter(Sets.newHashSet("customer.name"), null);
+        assertSameAsMapFilter(Sets.newHashSet("customer.*"), null);
+        assertSameAsMapFilter(Sets.newHashSet("customer"), null);
+        assertSameAsMapFilter(Sets.newHashSet("cust*", "num"), null);
+        assertSameAsMapFilter(Sets.newHashSet("arr.a", "arr.b.c"), null);
+        assertSameAsMapFilter(Sets.newHashSet("objs.name"), null);
+        assertSameAsMapFilter(Sets.newHashSet("dotted.key.inner"), null);
+        assertSameAsMapFilter(Sets.newHashSet("*"), null);
+        assertSameAsMapFilter(Sets.newHashSet("nomatch*"), null);
+        assertSameAsMapFilter(Sets.newHashSet("customer.empty", "nullfield"), null);
+    }
+
+    @Test
+    public void testExcludes() throws Exception {
+        assertSameAsMapFilter(null, Sets.newHashSet("customer.address"));
+        assertSameAsMapFilter(null, Sets.newHashSet("customer.address.*", "secret"));
+        assertSameAsMapFilter(null, Sets.newHashSet("*secret*"));
+        assertSameAsMapFilter(null, Sets.newHashSet("arr.a"));
+        assertSameAsMapFilter(null, Sets.newHashSet("objs.secret"));
+        assertSameAsMapFilter(null, Sets.newHashSet("*.zip", "dotted.*"));
+        assertSameAsMapFilter(null, Sets.newHashSet("*"));
+    }
+
+    @Test
+    public void testIncludesAndExcludes() throws Exception {
+        assertSameAsMapFilterOf(Sets.newHashSet("customer.*"), Sets.newHashSet("customer.address.zip"));
+        assertSameAsMapFilterOf(Sets.newHashSet("customer", "objs", "secret"), Sets.newHashSet("*secret*"));
+        assertSameAsMapFilterOf(Sets.newHashSet("arr.*"), Sets.newHashSet("arr.b"));
+        assertSameAsMapFilterOf(Sets.newHashSet("*"), Sets.newHashSet("dotted.*"));
+        assertSameAsMapFilterOf(null, Sets.newHashSet("customer.address"));
+        assertSameAsMapFilterOf(Sets.newHashSet("customer.name", "num"), null);
+        assertSameAsMapFilterOf(null, null);
+    }
+
+    @Test
+    public void testOptimized() throws Exception {
+        Map<String, Object> filtered = filter(new FlsSourceFilter(Sets.newHashSet("secret", "num"), null, true));
+        Assert.assertEquals(2, filtered.size());
+        Assert.assertEquals("a secret value", filtered.get("secret"));
+        Assert.assertEquals(0, filtered.get("num"));
+
+        filtered = filter(new FlsSourceFilter(null, Sets.newHashSet("secret", "customer"), true));
+        Assert.assertFalse(filtered.containsKey("secret"));
+        Assert.assertFalse(filtered.containsKey("customer"));
+        Assert.assertEquals(XContentHelper.convertToMap(new BytesArray(SOURCE), false, XContentType.JSON).v2().size() - 2, filtered.size());
+    }
+
+    private static void assertSameAsMapFilter(final Set<String> includes, final Set<String> excludes) throws Exception {
+        final Map<String, Object> expected = XContentMapValues.filter(
+                includes == null ? null : includes.toArray(new String[0]),
+                excludes == null ? null : excludes.toArray(new String[0]))
+                .apply(XContentHelper.convertToMap(new BytesArray(SOURCE), false, XContentType.JSON).v2());
+
+        Assert.assertEquals("includes " + includes + " excludes " + excludes, expected, filter(new FlsSourceFilter(includes, excludes, false)));
+    }
+
+    private static void assertSameAsMapFilterOf(final Set<String> includes, final Set<String> excludes) throws Exception {
+        final String[] includesArray = includes == null ? null : includes.toArray(new String[0]);
+        final String[] excludesArray = excludes == null ? null : excludes.toArray(new String[0]);
+        final Map<String, Object> expected = XContentMapValues.filter(includesArray, excludesArray)
+                .apply(XContentHelper.convertToMap(new BytesArray(SOURCE), false, XContentType.JSON).v2());
+
+        Assert.assertEquals("includes " + includes + " excludes " + excludes, expected, filter(FlsSourceFilter.of(includesArray, excludesArray)));
+    }
+
+    private static Map<String, Object> filter(final FlsSourceFilter filter) throws Exception {
+        final byte[] filtered = filter.filter(SOURCE.getBytes(StandardCharsets.UTF_8));
+        return XContentHelper.convertToMap(new BytesArray(filtered), false, XContentType.JSON).v2();
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright 2016-2019 by floragunn GmbH - All rights reserved
+ *
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed here is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * This software is free of charge for non-commercial and academic use.
+ * For commercial use in a production environment you have to obtain a license
+ * from https://floragunn.com
+ *
+ */
+
+package com.floragunn.searchguard.dlic.dlsfls;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.Map;
+import java.util.Optional;
+
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.floragunn.searchguard.configuration.MaskedField;
+import com.floragunn.searchguard.configuration.MaskedSourceFilter;
+import com.floragunn.searchguard.support.WildcardMatcher;
+
+public class MaskedSourceFilterTest {
+
+    private static final byte[] SALT = "1234567890123456".getBytes(StandardCharsets.UTF_8);
+
+    private static final String SOURCE = "{\"customer\":{\"name\":\"cust1\",\"type\":\"normal\",\"address\":{\"street\":\"s1\",\"zip\":\"12345\"},\"empty\":{}},"
+            + "\"secret\":\"a secret value\",\"num\":0,\"nullfield\":null,\"bool\":true,\"dbl\":1.5,"
+            + "\"arr\":[1,\"two\",{\"a\":\"x\",\"b\":{\"c\":\"y\"}},[\"nested\"],null],"
+            + "\"objs\":[{\"name\":\"n1\",\"secret\":\"s1\"},{\"secret\":\"s2\"}],"
+            + "\"dotted.key\":{\"inner\":\"v\"},\"text\":\"\\u00fc\\\"quoted\\\"\"}";
+
+    @Test
+    public void testExactAndWildcardPatterns() throws Exception {
+        assertSameAsMapMasking("customer.name");
+        assertSameAsMapMasking("secret", "text");
+        assertSameAsMapMasking("customer.*");
+        assertSameAsMapMasking("*");
+        assertSameAsMapMasking("*.zip", "cust?mer.type");
+        assertSameAsMapMasking("arr", "objs.secret", "objs");
+        assertSameAsMapMasking("dotted.key.inner", "num", "bool", "nullfield");
+        assertSameAsMapMasking("nomatch*");
+    }
+
+    @Test
+    public void testPrecedence() throws Exception {
+        assertSameAsMapMasking("customer.*::SHA-1", "*.name::/c/::X", "*::/[0-9]/::#");
+        assertSameAsMapMasking("*::/[0-9]/::#", "customer.*::SHA-1");
+    }
+
+    @Test
+    public void testRegexPatterns() throws Exception {
+        assertSameAsMapMasking("/customer\\..*e/");
+        assertSameAsMapMasking("/dotted.*/", "secret");
+        assertSameAsMapMasking("/.*t/::/e/::E", "customer.address.*");
+    }
+
+    @Test
+    public void testMatch() throws Exception {
+        final MaskedSourceFilter filter = new MaskedSourceFilter(maskedFields("customer.*", "/sec.*/", "x?z"));
+        Assert.assertEquals("customer.*", filter.match("customer.name").getName());
+        Assert.assertEquals("customer.*", filter.match("customer.").getName());
+        Assert.assertEquals("/sec.*/", filter.match("secret").getName());
+        Assert.assertEquals("x?z", filter.match("xyz").getName());
+        Assert.assertNull(filter.match("customer"));
+        Assert.assertNull(filter.match("xz"));
+    }
+
+    private static void assertSameAsMapMasking(final String... maskedFieldDefinitions) throws Exception {
+        final Map<String, MaskedField> maskedFields = maskedFields(maskedFieldDefinitions);
+        final byte[] masked = new MaskedSourceFilter(maskedFields).filter(SOURCE.getBytes(StandardCharsets.UTF_8));
+
+        final Map<String, Object> expected = XContentHelper.convertToMap(new BytesArray(SOURCE), true, XContentType.JSON).v2();
+        mask(expected, new ArrayList<>(), maskedFields);
+
+        Assert.assertEquals(expected, XContentHelper.convertToMap(new BytesArray(masked), true, XContentType.JSON).v2());
+    }
+
+    private static Map<String, MaskedField> maskedFields(final String... maskedFieldDefinitions) {
+        final Map<String, MaskedField> maskedFields = new LinkedHashMap<>();
+        for (final String definition : maskedFieldDefinitions) {
+            final MaskedField maskedField = new MaskedField(definition, SALT);
+            maskedFields.put(maskedField.getName(), maskedField);
+        }
+        return maskedFields;
+    }
+
+    //the former map based masking
+    @SuppressWarnings("unchecked")
+    private static void mask(final Map<String, Object> map, final List<String> stack, final Map<String, MaskedField> maskedFields) {
+        for (final Map.Entry<String, Object> entry : map.entrySet()) {
+            final Object v = entry.getValue();
+
+            if (v instanceof Map) {
+                stack.add(entry.getKey());
+                mask((Map<String, Object>) v, stack, maskedFields);
+                stack.remove(stack.size() - 1);
+                continue;
+            }
+
+            final String field = stack.isEmpty() ? entry.getKey() : String.join(".", stack) + "." + entry.getKey();
+            final Optional<String> matchedPattern = WildcardMatcher.getFirstMatchingPattern(maskedFields.keySet(), field);
+
+            if (!matchedPattern.isPresent()) {
+                continue;
+            }
+
+            final MaskedField maskedField = maskedFields.get(matchedPattern.get());
+
+            if (v instanceof List) {
+                for (final ListIterator<Object> iterator = ((List<Object>) v).listIterator(); iterator.hasNext();) {
+                    final Object item = iterator.next();
+                    if (item instanceof String) {
+                        iterator.set(maskedField.mask((String) item));
+                    }
+                }
+            } else if (v instanceof String) {
+                entry.setValue(maskedField.mask((String) v));
+            }
+        }
+    }
+}
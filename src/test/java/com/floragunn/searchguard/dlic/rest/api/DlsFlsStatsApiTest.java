@@ -0,0 +1,61 @@
+/*
+ * Copyright 2016-2017 by floragunn GmbH - All rights reserved
+ * 
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed here is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * 
+ * This software is free of charge for non-commercial and academic use. 
+ * For commercial use in a production environment you have to obtain a license 
+ * from https://floragunn.com
+ * 
+ */
+package com.floragunn.searchguard.dlic.rest.api;
+
+import org.apache.http.Header;
+import org.apache.http.HttpStatus;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.floragunn.searchguard.test.helper.rest.RestHelper.HttpResponse;
+
+public class DlsFlsStatsApiTest extends AbstractRestApiUnitTest {
+
+	@Test
+	public void testDlsFlsStats() throws Exception {
+
+		setup();
+
+		rh.keystore = "restapi/kirk-keystore.jks";
+		rh.sendHTTPClientCertificate = true;
+
+		HttpResponse response = rh.executePutRequest("/statsindex/doc/1?refresh=true", "{\"a\": 1}", new Header[0]);
+		Assert.assertEquals(HttpStatus.SC_CREATED, response.getStatusCode());
+
+		// GET
+		response = rh.executeGetRequest("/_searchguard/api/dlsfls/stats");
+		Assert.assertEquals(response.getBody(), HttpStatus.SC_OK, response.getStatusCode());
+		Settings settings = Settings.builder().loadFromSource(response.getBody(), XContentType.JSON).build();
+		Assert.assertEquals("0", settings.get("indices.statsindex.leaf_cache.size"));
+		Assert.assertNotNull(settings.get("indices.statsindex.leaf_cache.hit_count"));
+		Assert.assertNotNull(settings.get("indices.statsindex.leaf_cache.miss_count"));
+		Assert.assertEquals("0", settings.get("indices.statsindex.reader_views.size"));
+		Assert.assertNotNull(settings.get("indices.statsindex.reader_views.memory_size_in_bytes"));
+		Assert.assertEquals("0", settings.get("indices.statsindex.bitsets.memory_size_in_bytes"));
+		Assert.assertEquals("0", settings.get("indices.statsindex.warmer.hot_query_sets"));
+		Assert.assertNotNull(settings.get("indices.statsindex.warmer.warmed_count"));
+		Assert.assertNotNull(settings.get("bitset_cache.memory_size_in_bytes"));
+		Assert.assertNotNull(settings.get("bitset_cache.max_size_in_bytes"));
+
+		// PUT
+		response = rh.executePutRequest("/_searchguard/api/dlsfls/stats", "{}", new Header[0]);
+		Assert.assertEquals(HttpStatus.SC_METHOD_NOT_ALLOWED, response.getStatusCode());
+
+		// DELETE
+		response = rh.executeDeleteRequest("/_searchguard/api/dlsfls/stats", new Header[0]);
+		Assert.assertEquals(HttpStatus.SC_METHOD_NOT_ALLOWED, response.getStatusCode());
+	}
+}
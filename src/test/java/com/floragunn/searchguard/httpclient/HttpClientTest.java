@@ -14,6 +14,10 @@
 
 package com.floragunn.searchguard.httpclient;
 
+import java.util.Arrays;
+
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.support.PlainActionFuture;
 import org.elasticsearch.common.settings.Settings;
 import org.junit.Assert;
 import org.junit.Test;
@@ -130,4 +134,41 @@ public class HttpClientTest extends SingleClusterTest {
         }
         
     }
+    
+    @Test
+    public void testCompressedBulk() throws Exception {
+        
+        final Settings settings = Settings.builder()
+                .put("searchguard.ssl.http.enabled", false)
+                .build();
+
+        setup(Settings.EMPTY, new DynamicSgConfig(), settings);
+        
+        Thread.sleep(1000);
+
+        try(final HttpClient httpClient = HttpClient.builder(clusterInfo.httpHost+":"+clusterInfo.httpPort)
+                .setCompressRequests(true)
+                .setMaxConnections(4, 2)
+                .setBasicCredentials("admin", "admin").build()) {
+            final PlainActionFuture<BulkResponse> future = new PlainActionFuture<>();
+            httpClient.bulk(Arrays.asList("{\"a\":5}", "{\"a\":6}", "{\"a\":"), "index", "type", future);
+            final BulkResponse response = future.actionGet();
+            Assert.assertEquals(3, response.getItems().length);
+            Assert.assertFalse(response.getItems()[0].isFailed());
+            Assert.assertFalse(response.getItems()[1].isFailed());
+            Assert.assertTrue(response.getItems()[2].isFailed());
+        }
+        
+        try(final HttpClient httpClient = HttpClient.builder("unknownhost:6654")
+                .setBasicCredentials("admin", "admin").build()) {
+            final PlainActionFuture<BulkResponse> future = new PlainActionFuture<>();
+            httpClient.bulk(Arrays.asList("{\"a\":5}"), "index", "type", future);
+            try {
+                future.actionGet();
+                Assert.fail();
+            } catch (Exception e) {
+                //expected
+            }
+        }
+    }
 }